@@ -0,0 +1,25 @@
+package april.sim;
+
+import java.io.*;
+
+import april.util.*;
+
+/** A SimObject whose state changes as the world runs, and which can
+ * save and restore all of it (see WorldCheckpoint). For objects that
+ * aren't Checkpointable, a checkpoint saves just the pose.
+ *
+ * Unlike write(), which saves what a world file needs to create the
+ * object, writeState() saves what the object has become since: where
+ * it is, what it holds, whether it is open, and so on. readState() is
+ * only ever given what writeState() wrote for the same object, so the
+ * format need not be stable, and it may refer to other objects by
+ * their WorldCheckpoint.indexOf().
+ **/
+public interface Checkpointable
+{
+    public void writeState(StructureWriter outs, WorldCheckpoint checkpoint) throws IOException;
+
+    /** Called with the world locked, once every object of the
+     * checkpoint is back in the world. **/
+    public void readState(StructureReader ins, WorldCheckpoint checkpoint) throws IOException;
+}
@@ -63,11 +63,43 @@ public class Collisions
                 A[i][j] = b[i*4+j];
     }
 
-    public static boolean collision(CompoundShape sa, double Ta[][], Shape _sb, double Tb[][])
+    // Compound shapes accumulate their ops into a copy of the pose
+    // passed in, never into the pose itself, so poses may be shared
+    // between threads (see WorldSnapshot). The copies are per thread
+    // and per level of nesting, reused from call to call.
+    static class Scratch
     {
-        double tmp[] = new double[16];
+        double poses[][][] = new double[0][][];
+        int depth;
+
+        double[][] push(double T[][])
+        {
+            if (depth == poses.length) {
+                double tmp[][][] = new double[depth+1][][];
+                System.arraycopy(poses, 0, tmp, 0, depth);
+                tmp[depth] = new double[4][4];
+                poses = tmp;
+            }
+
+            double M[][] = poses[depth++];
+            for (int i = 0; i < 4; i++)
+                for (int j = 0; j < 4; j++)
+                    M[i][j] = T[i][j];
+            return M;
+        }
+    }
 
-        backup(Ta, tmp);
+    static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        protected Scratch initialValue()
+        {
+            return new Scratch();
+        }
+    };
+
+    public static boolean collision(CompoundShape sa, double _Ta[][], Shape _sb, double Tb[][])
+    {
+        Scratch sc = scratch.get();
+        double Ta[][] = sc.push(_Ta);
         boolean ret = false;
 
         for (Object op : sa.ops) {
@@ -84,7 +116,7 @@ public class Collisions
             }
         }
 
-        restore(Ta, tmp);
+        sc.depth--;
         return ret;
     }
 
@@ -205,12 +237,11 @@ public class Collisions
         return Double.MAX_VALUE;
     }
 
-    public static double collisionDistance(double pos[], double dir[], CompoundShape s, double T[][])
+    public static double collisionDistance(double pos[], double dir[], CompoundShape s, double _T[][])
     {
         double d = Double.MAX_VALUE;
-        double tmp[] = new double[16];
-
-        backup(T, tmp);
+        Scratch sc = scratch.get();
+        double T[][] = sc.push(_T);
 
         for (Object op : s.ops) {
             if (op instanceof double[][]) {
@@ -223,7 +254,7 @@ public class Collisions
             }
         }
 
-        restore(T, tmp);
+        sc.depth--;
         return d;
     }
 
@@ -1,5 +1,6 @@
 package april.sim;
 
+import java.io.*;
 import java.util.*;
 
 import april.util.*;
@@ -34,18 +35,46 @@ public class DifferentialDrive
     public double translation_noise = 0.1;
     public double rotation_noise = 0.05;
 
+    /** The motors and the robot's motion are integrated in steps of
+     * this many seconds, however often the drive is updated. **/
+    public double stepSize = 0.001;
+
+    /** The method used to integrate the motors. **/
+    public FixedStepSolver solver = new FixedStepSolver.RK4();
+
     SimWorld sw;
     SimObject simobj; // object representing the robot
-    Random r = new Random();
+
+    // The source of odometry noise: by default, the world's "drive"
+    // stream. Give each drive of a world its own with setRandom().
+    Random r;
+
+    // Time not yet integrated, less than one step
+    double leftover;
+
+    // Integration state, reused every tick: the motor speeds and the
+    // angles the wheels have turned through this tick, and the poses
+    // of the center of rotation.
+    double motorState[] = new double[4];
+    MotorODE motorODE = new MotorODE();
+    double truthPos[] = new double[3], truthQuat[] = new double[4];
+    double odomPos[] = new double[3], odomQuat[] = new double[4];
+    double T[][] = new double[4][4];
 
     PeriodicTasks tasks = new PeriodicTasks(1);
 
+    // Scratch space for collision checks, reused every tick.
+    PosedShape robotShape = new PosedShape();
+    ArrayList<SpatialIndex.Entry> nearby = new ArrayList<SpatialIndex.Entry>();
+    ArrayList<PosedShape> nearbyShapes = new ArrayList<PosedShape>();
+
     /** ignore: a set of objects that will not be used for collision
      * detection. Typically, this includes the robot itself. **/
     public DifferentialDrive(SimWorld sw, SimObject simobj, double init_xyt[])
     {
         this.sw = sw;
         this.simobj = simobj;
+        this.r = sw.getRandom("drive");
 
         poseTruth.pos = new double[] { init_xyt[0], init_xyt[1], 0};
         poseTruth.orientation = LinAlg.rollPitchYawToQuat(new double[] {0, 0, init_xyt[2]});
@@ -54,82 +83,207 @@ public class DifferentialDrive
         poseOdom.pos = new double[3];
         poseOdom.orientation = LinAlg.rollPitchYawToQuat(new double[3]);
 
+        tasks.setStage(LockstepScheduler.STAGE_DRIVE);
         tasks.addFixedDelay(new RunTask(), 1.0 / HZ);
     }
 
+    /** Integrate the drive over dt seconds. The motors and the
+     * robot's motion are integrated in fixed steps of stepSize, so
+     * the result doesn't depend on how regularly update() is called:
+     * any time left over is carried into the next update. **/
     void update(double dt)
     {
-        synchronized (sw) {
-            synchronized (this) {
-                leftMotor.setVoltage(motorCommands[0]*voltageScale);
-                rightMotor.setVoltage(motorCommands[1]*voltageScale);
+        step(dt);
+        sw.commit(simobj);
+    }
+
+    /** update(), without publishing the new pose to the world. **/
+    synchronized void step(double dt)
+    {
+        leftMotor.setVoltage(motorCommands[0]*voltageScale);
+        rightMotor.setVoltage(motorCommands[1]*voltageScale);
 
-                leftMotor.update(dt);
-                rightMotor.update(dt);
+        double t = leftover + dt;
+        int nsteps = (int) Math.floor(t / stepSize + 1e-9);
+        leftover = Math.max(0, t - nsteps*stepSize);
 
-                // temporarily make poseTruth point to center of rotation. (we'll undo this at the end)
-                double pos_truth[] = LinAlg.add(poseTruth.pos, LinAlg.quatRotate(poseTruth.orientation, centerOfRotation));
-                double pos_odom[]  = LinAlg.add(poseOdom.pos, LinAlg.quatRotate(poseOdom.orientation, centerOfRotation));
+        // The odometry error for this update, in proportion to the motion
+        double r1 = MathUtil.clamp( r.nextGaussian(),-3.0, 3.0); // Safe random
+        double r2 = MathUtil.clamp( r.nextGaussian(),-3.0, 3.0);
 
-                double left_rad_per_sec = leftMotor.getRadPerSec();
-                double right_rad_per_sec = rightMotor.getRadPerSec();
+        // temporarily work at the center of rotation. (we'll undo this at the end)
+        copyPose(poseTruth, truthPos, truthQuat);
+        copyPose(poseOdom, odomPos, odomQuat);
+        offset(truthPos, truthQuat, centerOfRotation, 1);
+        offset(odomPos, odomQuat, centerOfRotation, 1);
 
-                double dleft  = dt * left_rad_per_sec * wheelDiameter;
-                double dright = dt * right_rad_per_sec * wheelDiameter;
+        motorState[0] = leftMotor.getRadPerSec();
+        motorState[1] = rightMotor.getRadPerSec();
+        motorState[2] = 0;
+        motorState[3] = 0;
 
-                double dl_truth = (dleft + dright) / 2;
-                double dtheta_truth = (dright - dleft) / baseline;
+        for (int i = 0; i < nsteps; i++) {
+            double left_rad = motorState[2];
+            double right_rad = motorState[3];
 
-                double r1 = MathUtil.clamp( r.nextGaussian(),-3.0, 3.0); // Safe random
-                double r2 = MathUtil.clamp( r.nextGaussian(),-3.0, 3.0);
+            solver.step(motorODE, motorState, stepSize);
 
-                double dl_odom = dl_truth + translation_noise*r1*Math.abs(dl_truth);
-                double dtheta_odom = dtheta_truth + rotation_noise*r2*Math.abs(dtheta_truth);
+            double dleft  = (motorState[2] - left_rad) * wheelDiameter;
+            double dright = (motorState[3] - right_rad) * wheelDiameter;
 
-                double dpos_truth[]  = LinAlg.quatRotate(poseTruth.orientation, new double[] { dl_truth, 0, 0 });
-                double dquat_truth[] = LinAlg.rollPitchYawToQuat(new double[] {0, 0, dtheta_truth});
+            double dl_truth = (dleft + dright) / 2;
+            double dtheta_truth = (dright - dleft) / baseline;
 
-                double dpos_odom[] = LinAlg.quatRotate(poseOdom.orientation, new double[] { dl_odom, 0, 0 });
-                double dquat_odom[] = LinAlg.rollPitchYawToQuat(new double[] {0, 0, dtheta_odom});
+            double dl_odom = dl_truth + translation_noise*r1*Math.abs(dl_truth);
+            double dtheta_odom = dtheta_truth + rotation_noise*r2*Math.abs(dtheta_truth);
 
-                double newpos_truth[] = LinAlg.add(pos_truth, dpos_truth);
-                double neworient_truth[] = LinAlg.quatMultiply(poseTruth.orientation, dquat_truth);
+            move(truthPos, truthQuat, dl_truth, dtheta_truth);
+            move(odomPos, odomQuat, dl_odom, dtheta_odom);
+        }
 
-                double newpos_odom[] = LinAlg.add(pos_odom, dpos_odom);
-                double neworient_odom[] = LinAlg.quatMultiply(poseOdom.orientation, dquat_odom);
+        leftMotor.setRadPerSec(motorState[0]);
+        rightMotor.setRadPerSec(motorState[1]);
 
-                // go back to rear axle
-                newpos_truth = LinAlg.add(newpos_truth, LinAlg.quatRotate(neworient_truth, LinAlg.scale(centerOfRotation, -1)));
-                newpos_odom = LinAlg.add(newpos_odom, LinAlg.quatRotate(neworient_odom, LinAlg.scale(centerOfRotation, -1)));
+        normalize(truthQuat);
+        normalize(odomQuat);
 
-                // only accept movements that don't run into things
-                boolean okay = true;
-                for (SimObject so : sw.objects) {
-                    if (so==simobj)
-                        continue;
-                    if (Collisions.collision(so.getShape(), so.getPose(),
-                                             simobj.getShape(), LinAlg.quatPosToMatrix(neworient_truth, newpos_truth))) {
-                        okay = false;
-                        break;
-                    }
-                }
+        // go back to rear axle
+        offset(truthPos, truthQuat, centerOfRotation, -1);
+        offset(odomPos, odomQuat, centerOfRotation, -1);
 
-                if (okay) {
+        // only accept movements that don't run into things
+        quatPosToMatrix(truthQuat, truthPos, T);
+        robotShape.set(simobj.getShape(), T);
+        boolean okay = !collides(robotShape);
 
-                    poseTruth.pos = newpos_truth;
-                    poseTruth.orientation = neworient_truth;
+        if (okay) {
+            setPose(poseTruth, truthPos, truthQuat);
 
-                    // if the robot can't detect a collision, we would update
-                    // poseOdom every time; move the next two lines outside
-                    // the if statement.
-                    poseOdom.pos = newpos_odom;
-                    poseOdom.orientation = neworient_odom;
-                }
+            // if the robot can't detect a collision, we would update
+            // poseOdom every time; move the next line outside
+            // the if statement.
+            setPose(poseOdom, odomPos, odomQuat);
+        }
+
+        poseTruth.utime = TimeUtil.utime();
+        poseOdom.utime = poseTruth.utime;
+    }
+
+    /** The motors' speeds and the angles their wheels have turned through. **/
+    class MotorODE implements FixedStepSolver.ODE
+    {
+        public void derivative(double x[], double dxdt[])
+        {
+            dxdt[0] = leftMotor.getAcceleration(x[0]);
+            dxdt[1] = rightMotor.getAcceleration(x[1]);
+            dxdt[2] = x[0];
+            dxdt[3] = x[1];
+        }
+    }
+
+    static void copyPose(pose_t pose, double pos[], double q[])
+    {
+        for (int i = 0; i < 3; i++)
+            pos[i] = pose.pos[i];
+        for (int i = 0; i < 4; i++)
+            q[i] = pose.orientation[i];
+    }
+
+    /** Give the pose new copies of pos and q. Readers (e.g.
+     * SimRobot.getPose()) use poseTruth's arrays without our lock, so
+     * they are replaced, never written in place: a reader sees the old
+     * position or the new one, never a mix of the two. **/
+    static void setPose(pose_t pose, double pos[], double q[])
+    {
+        pose.pos = new double[] { pos[0], pos[1], pos[2] };
+        pose.orientation = new double[] { q[0], q[1], q[2], q[3] };
+    }
+
+    /** pos += sign * rotate(q, v). **/
+    static void offset(double pos[], double q[], double v[], double sign)
+    {
+        double w = q[0], x = q[1], y = q[2], z = q[3];
+
+        pos[0] += sign*((1 - 2*(y*y + z*z))*v[0] + 2*(x*y - w*z)*v[1] + 2*(x*z + w*y)*v[2]);
+        pos[1] += sign*(2*(x*y + w*z)*v[0] + (1 - 2*(x*x + z*z))*v[1] + 2*(y*z - w*x)*v[2]);
+        pos[2] += sign*(2*(x*z - w*y)*v[0] + 2*(y*z + w*x)*v[1] + (1 - 2*(x*x + y*y))*v[2]);
+    }
+
+    /** Move dl along an arc that turns by dtheta about the body's z
+     * axis: turn by half, drive dl along the chord, turn by the other
+     * half. **/
+    static void move(double pos[], double q[], double dl, double dtheta)
+    {
+        turn(q, dtheta/2);
+
+        double w = q[0], x = q[1], y = q[2], z = q[3];
+        pos[0] += dl*(1 - 2*(y*y + z*z));
+        pos[1] += dl*2*(x*y + w*z);
+        pos[2] += dl*2*(x*z - w*y);
+
+        turn(q, dtheta/2);
+    }
+
+    /** q = q * rollPitchYawToQuat(0, 0, dtheta). **/
+    static void turn(double q[], double dtheta)
+    {
+        double w = q[0], x = q[1], y = q[2], z = q[3];
+        double c = Math.cos(dtheta/2), s = Math.sin(dtheta/2);
+        q[0] = w*c - z*s;
+        q[1] = x*c + y*s;
+        q[2] = y*c - x*s;
+        q[3] = z*c + w*s;
+    }
+
+    static void normalize(double q[])
+    {
+        double mag = Math.sqrt(q[0]*q[0] + q[1]*q[1] + q[2]*q[2] + q[3]*q[3]);
+        for (int i = 0; i < 4; i++)
+            q[i] /= mag;
+    }
+
+    /** LinAlg.quatPosToMatrix, into T. **/
+    static void quatPosToMatrix(double q[], double pos[], double T[][])
+    {
+        double w = q[0], x = q[1], y = q[2], z = q[3];
+
+        T[0][0] = 1 - 2*(y*y + z*z); T[0][1] = 2*(x*y - w*z);     T[0][2] = 2*(x*z + w*y);     T[0][3] = pos[0];
+        T[1][0] = 2*(x*y + w*z);     T[1][1] = 1 - 2*(x*x + z*z); T[1][2] = 2*(y*z - w*x);     T[1][3] = pos[1];
+        T[2][0] = 2*(x*z - w*y);     T[2][1] = 2*(y*z + w*x);     T[2][2] = 1 - 2*(x*x + y*y); T[2][3] = pos[2];
+        T[3][0] = 0;                 T[3][1] = 0;                 T[3][2] = 0;                 T[3][3] = 1;
+    }
 
-                poseTruth.utime = TimeUtil.utime();
-                poseOdom.utime = poseTruth.utime;
+    /** Does the robot, posed as given, hit anything in the world?
+     * Other objects are read from the world's latest snapshot through
+     * its SpatialIndex, so the drive never waits on the SimWorld lock
+     * and only the objects near the robot are tested exactly, against
+     * the shapes the snapshot has already posed. **/
+    boolean collides(PosedShape robot)
+    {
+        if (!robot.isCollidable())
+            return false;
+
+        // Hold the index only long enough to copy out the candidates;
+        // snapshot shapes are immutable.
+        SpatialIndex index = sw.getIndex();
+        synchronized (index) {
+            index.refit();
+            index.overlapping(robot.getCenter(), robot.getBoundingRadius(), nearby);
+            for (int i = 0, n = nearby.size(); i < n; i++) {
+                SpatialIndex.Entry e = nearby.get(i);
+                if (e.so == simobj)
+                    continue;
+                nearbyShapes.add(e.posed);
             }
+            nearby.clear();
         }
+
+        boolean hit = false;
+        for (int i = 0, n = nearbyShapes.size(); i < n && !hit; i++)
+            hit = robot.collides(nearbyShapes.get(i));
+
+        nearbyShapes.clear();
+        return hit;
     }
 
     public void setRunning(boolean b)
@@ -137,6 +291,61 @@ public class DifferentialDrive
         tasks.setRunning(b);
     }
 
+    /** Take odometry noise from r, e.g. a stream of the world's
+     * RandomStreams named for the robot. **/
+    public synchronized void setRandom(Random r)
+    {
+        this.r = r;
+    }
+
+    /** Make the odometry noise reproducible. **/
+    public synchronized void setSeed(long seed)
+    {
+        r.setSeed(seed);
+    }
+
+    /** Save the poses, the motors, and the commands to them (see
+     * WorldCheckpoint). The random stream is saved with the world's. **/
+    public synchronized void writeState(StructureWriter outs) throws IOException
+    {
+        outs.writeDoubles(poseTruth.pos);
+        outs.writeDoubles(poseTruth.orientation);
+        outs.writeDoubles(poseOdom.pos);
+        outs.writeDoubles(poseOdom.orientation);
+        outs.writeDoubles(motorCommands);
+        outs.writeDouble(leftover);
+        writeMotor(outs, leftMotor);
+        writeMotor(outs, rightMotor);
+    }
+
+    public synchronized void readState(StructureReader ins) throws IOException
+    {
+        poseTruth.pos = ins.readDoubles();
+        poseTruth.orientation = ins.readDoubles();
+        poseOdom.pos = ins.readDoubles();
+        poseOdom.orientation = ins.readDoubles();
+        motorCommands = ins.readDoubles();
+        leftover = ins.readDouble();
+        readMotor(ins, leftMotor);
+        readMotor(ins, rightMotor);
+    }
+
+    static void writeMotor(StructureWriter outs, Motor m) throws IOException
+    {
+        outs.writeInt(m.input_connected ? 1 : 0);
+        outs.writeDouble(m.input_volts);
+        outs.writeDouble(m.rad_per_sec);
+        outs.writeDouble(m.amps);
+    }
+
+    static void readMotor(StructureReader ins, Motor m) throws IOException
+    {
+        m.input_connected = (ins.readInt() != 0);
+        m.input_volts = ins.readDouble();
+        m.rad_per_sec = ins.readDouble();
+        m.amps = ins.readDouble();
+    }
+
     class RunTask implements PeriodicTasks.Task
     {
         public void run(double dt)
@@ -144,4 +353,177 @@ public class DifferentialDrive
             update(dt);
         }
     }
+
+    /** Benchmarks. "steps": drive updates per second, allocation,
+     * and accuracy for each solver. "collisions": the cost of one
+     * tick's collision check versus world size. Runs both by
+     * default. **/
+    public static void main(String args[])
+    {
+        String which = args.length > 0 ? args[0] : "all";
+        if (which.equals("all") || which.equals("steps"))
+            benchmarkSteps();
+        if (which.equals("all") || which.equals("collisions"))
+            benchmarkCollisions();
+
+        System.exit(0);
+    }
+
+    /** Integrates 20 simulated seconds of driving, switching between
+     * two arcs every second, at 50 Hz. Compares the final pose against
+     * RK4 with 0.1 ms steps. **/
+    static void benchmarkSteps()
+    {
+        int ticks = 20*HZ;
+        double reference[] = drive(new FixedStepSolver.RK4(), 0.0001, ticks, 1, null);
+
+        System.out.printf("%-8s %10s %16s %14s %14s\n", "solver", "step (ms)", "updates/sec", "bytes/update", "error (um)");
+
+        Object solvers[][] = new Object[][] { { new FixedStepSolver.Euler(), 1.0 / HZ },
+                                              { new FixedStepSolver.Euler(), 0.001 },
+                                              { new FixedStepSolver.RK2(), 0.001 },
+                                              { new FixedStepSolver.RK4(), 0.001 } };
+        // warm up every configuration before timing any
+        for (Object s[] : solvers)
+            drive((FixedStepSolver) s[0], (Double) s[1], ticks, 20, null);
+
+        for (Object s[] : solvers) {
+            FixedStepSolver solver = (FixedStepSolver) s[0];
+            double stepSize = (Double) s[1];
+
+            int reps = 20;
+            long stats[] = new long[2];
+            double xyt[] = drive(solver, stepSize, ticks, reps, stats);
+            double elapsed = stats[1] / 1.0E9;
+
+            double err = Math.sqrt(LinAlg.sq(xyt[0] - reference[0]) + LinAlg.sq(xyt[1] - reference[1]));
+            System.out.printf("%-8s %10.1f %16.0f %14.1f %14.3f\n", solver.getClass().getSimpleName(), stepSize*1000,
+                              reps*ticks / elapsed, (double) stats[0] / (reps*ticks), err*1.0E6);
+        }
+    }
+
+    /** Drive from rest reps times, returning the final xyt. Counts
+     * the bytes step() allocates into stats[0], and the nanoseconds
+     * it takes into stats[1]. **/
+    static double[] drive(FixedStepSolver solver, double stepSize, int ticks, int reps, long stats[])
+    {
+        SimWorld sw = new SimWorld(new april.config.Config());
+        SimBox robot = new SimBox(sw);
+        robot.sxyz = new double[] { 0.6, 0.4, 0.4 };
+        robot.last_sxyz = robot.sxyz;
+        robot.shape = new BoxShape(robot.sxyz);
+        robot.setPose(LinAlg.identity(4));
+        sw.objects.add(robot);
+        sw.commit();
+
+        double xyt[] = null;
+        if (stats != null)
+            stats[0] = stats[1] = 0;
+
+        for (int rep = 0; rep < reps; rep++) {
+            DifferentialDrive dd = new DifferentialDrive(sw, robot, new double[3]);
+            dd.solver = solver;
+            dd.stepSize = stepSize;
+            dd.translation_noise = 0;
+            dd.rotation_noise = 0;
+            long before = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < ticks; i++) {
+                boolean first = (i / HZ) % 2 == 0;
+                dd.motorCommands[0] = first ? 0.5 : 0.9;
+                dd.motorCommands[1] = first ? 0.8 : -0.3;
+                dd.step(1.0 / HZ);
+            }
+            long end = System.nanoTime();
+            if (stats != null) {
+                stats[0] += allocatedBytes() - before;
+                stats[1] += end - start;
+            }
+
+            xyt = LinAlg.quatPosToXYT(dd.poseTruth.orientation, dd.poseTruth.pos);
+        }
+        return xyt;
+    }
+
+    static long allocatedBytes()
+    {
+        return ((com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean())
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /** Benchmark: the cost of one tick's collision check versus world
+     * size, comparing the index and PosedShape against testing every
+     * object with Collisions. Also counts any disagreements. **/
+    static void benchmarkCollisions()
+    {
+        int counts[] = new int[] { 10, 100, 1000, 5000 };
+        int nposes = 2000;
+
+        System.out.printf("%8s %16s %16s %10s %10s\n", "objects", "linear us/tick", "index us/tick", "hits", "disagree");
+
+        for (int n : counts) {
+            Random rand = new Random(n);
+            SimWorld sw = new SimWorld(new april.config.Config());
+
+            // Roughly constant density: ~one object per 4 m^2.
+            double side = 2*Math.sqrt(n);
+            for (int i = 0; i < n; i++) {
+                SimBox box = new SimBox(sw);
+                box.sxyz = new double[] { 0.2 + rand.nextDouble(), 0.2 + rand.nextDouble(), 0.5 + rand.nextDouble() };
+                box.last_sxyz = box.sxyz;
+                box.shape = new BoxShape(box.sxyz);
+                box.setPose(LinAlg.xyzrpyToMatrix(new double[] { side*rand.nextDouble(), side*rand.nextDouble(), 0.25,
+                                                                 0, 0, 2*Math.PI*rand.nextDouble() }));
+                sw.objects.add(box);
+            }
+
+            // A robot-like compound: a body with a sphere on top.
+            final Shape robotShape = new CompoundShape(LinAlg.translate(0, 0, 0.2),
+                                                       new BoxShape(new double[] { 0.6, 0.4, 0.4 }),
+                                                       LinAlg.translate(0.1, 0, 0.3),
+                                                       new SphereShape(0.15));
+            SimBox robot = new SimBox(sw) {
+                public Shape getShape()
+                {
+                    return robotShape;
+                }
+            };
+            robot.setPose(LinAlg.identity(4));
+            sw.objects.add(robot);
+            sw.commit();
+
+            DifferentialDrive dd = new DifferentialDrive(sw, robot, new double[] { side/2, side/2, 0 });
+
+            double T[][][] = new double[nposes][][];
+            for (int i = 0; i < nposes; i++)
+                T[i] = LinAlg.xyzrpyToMatrix(new double[] { side*rand.nextDouble(), side*rand.nextDouble(), 0,
+                                                            0, 0, 2*Math.PI*rand.nextDouble() });
+
+            boolean linear[] = new boolean[nposes];
+            WorldSnapshot ws = sw.getSnapshot();
+            Tic tic = new Tic();
+            for (int i = 0; i < nposes; i++) {
+                for (int j = 0; j < ws.size() && !linear[i]; j++) {
+                    if (ws.getObject(j) != robot)
+                        linear[i] = Collisions.collision(ws.getShape(j), ws.getPose(j), robot.getShape(), T[i]);
+                }
+            }
+            double linearTime = tic.toc() / nposes;
+
+            int hits = 0, disagree = 0;
+            tic = new Tic();
+            for (int i = 0; i < nposes; i++) {
+                dd.robotShape.set(robot.getShape(), T[i]);
+                boolean hit = dd.collides(dd.robotShape);
+                if (hit)
+                    hits++;
+                if (hit != linear[i])
+                    disagree++;
+            }
+            double indexTime = tic.toc() / nposes;
+
+            System.out.printf("%8d %16.2f %16.2f %10d %10d\n", n, linearTime*1.0E6, indexTime*1.0E6, hits, disagree);
+        }
+
+    }
 }
@@ -0,0 +1,113 @@
+package april.sim;
+
+/** Advances a system of first-order ordinary differential equations,
+ * dx/dt = f(x), by one step of a given size. The state is updated in
+ * place, and a solver only allocates the first time it sees a system
+ * larger than any before, so one can be called at a high rate.
+ *
+ * A solver keeps scratch space, so each thread (or each integrated
+ * object) should have its own.
+ **/
+public abstract class FixedStepSolver
+{
+    /** A system of first-order ODEs. **/
+    public interface ODE
+    {
+        /** Write dx/dt, evaluated at x, into dxdt. Both have the
+         * length of the state. **/
+        public void derivative(double x[], double dxdt[]);
+    }
+
+    /** Advance x by dt. **/
+    public abstract void step(ODE ode, double x[], double dt);
+
+    /** The order of the method: halving the step divides the error of
+     * a fixed-length integration by about 2^order. **/
+    public abstract int getOrder();
+
+    double k1[] = new double[0], k2[] = k1, k3[] = k1, k4[] = k1, tmp[] = k1;
+
+    void ensureSize(int n)
+    {
+        if (k1.length < n) {
+            k1 = new double[n];
+            k2 = new double[n];
+            k3 = new double[n];
+            k4 = new double[n];
+            tmp = new double[n];
+        }
+    }
+
+    /** Forward Euler. **/
+    public static class Euler extends FixedStepSolver
+    {
+        public void step(ODE ode, double x[], double dt)
+        {
+            int n = x.length;
+            ensureSize(n);
+
+            ode.derivative(x, k1);
+            for (int i = 0; i < n; i++)
+                x[i] += dt*k1[i];
+        }
+
+        public int getOrder()
+        {
+            return 1;
+        }
+    }
+
+    /** The explicit midpoint method, a second-order Runge-Kutta. **/
+    public static class RK2 extends FixedStepSolver
+    {
+        public void step(ODE ode, double x[], double dt)
+        {
+            int n = x.length;
+            ensureSize(n);
+
+            ode.derivative(x, k1);
+            for (int i = 0; i < n; i++)
+                tmp[i] = x[i] + dt/2*k1[i];
+
+            ode.derivative(tmp, k2);
+            for (int i = 0; i < n; i++)
+                x[i] += dt*k2[i];
+        }
+
+        public int getOrder()
+        {
+            return 2;
+        }
+    }
+
+    /** The classic fourth-order Runge-Kutta. **/
+    public static class RK4 extends FixedStepSolver
+    {
+        public void step(ODE ode, double x[], double dt)
+        {
+            int n = x.length;
+            ensureSize(n);
+
+            ode.derivative(x, k1);
+            for (int i = 0; i < n; i++)
+                tmp[i] = x[i] + dt/2*k1[i];
+
+            ode.derivative(tmp, k2);
+            for (int i = 0; i < n; i++)
+                tmp[i] = x[i] + dt/2*k2[i];
+
+            ode.derivative(tmp, k3);
+            for (int i = 0; i < n; i++)
+                tmp[i] = x[i] + dt*k3[i];
+
+            ode.derivative(tmp, k4);
+            for (int i = 0; i < n; i++)
+                x[i] += dt/6*(k1[i] + 2*k2[i] + 2*k3[i] + k4[i]);
+        }
+
+        public int getOrder()
+        {
+            return 4;
+        }
+    }
+}
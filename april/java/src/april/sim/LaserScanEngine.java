@@ -0,0 +1,648 @@
+package april.sim;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import april.config.*;
+import april.jmat.*;
+import april.util.*;
+
+/** Casts laser scans against a SimWorld in parallel.
+ *
+ * Each scan refits the engine's own SpatialIndex to the world's latest
+ * WorldSnapshot (no SimWorld lock is taken) and copies the object
+ * poses, flattened shapes and grid into flat arrays owned by the
+ * engine. The beams are then split into ranges across a ForkJoinPool,
+ * with each worker using its own preallocated scratch space. The per-beam
+ * arithmetic mirrors Sensors and Collisions operation for operation,
+ * so the ranges are identical to Sensors.laser(), variableLaser() and
+ * hoopskirt().
+ *
+ * Scans on one engine are serialized; use one engine per simulated
+ * sensor to run several sensors concurrently.
+ **/
+public class LaserScanEngine
+{
+    static final int GRAIN = 64; // beams per fork-join leaf
+
+    static final int BOX = 0, SPHERE = 1;
+
+    SimWorld sw;
+    SpatialIndex index;
+    ForkJoinPool pool;
+
+    ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        protected Scratch initialValue()
+        {
+            return new Scratch();
+        }
+    };
+
+    ////////////////////////////////////////////
+    // Snapshot of the world, rebuilt every scan
+
+    int nobjs;
+    double objXyz[] = new double[0];    // 3 per object
+    double objR[] = new double[0];      // bounding radius
+    int objPrim0[] = new int[0];        // first primitive; objPrim0[i+1] is one past the last
+
+    int nprims;
+    int primType[] = new int[0];
+    double primT[] = new double[0];     // top three rows of the 4x4 pose, 12 per primitive
+    double primScale[] = new double[0]; // 1/scale of the pose, as in LinAlg.transformInverse
+    double primSize[] = new double[0];  // box sxyz or sphere radius, 3 per primitive
+
+    double x0, y0, cellSize;
+    int width, height;
+    int cellStart[] = new int[1];       // objects of cell c are cellObjs[cellStart[c] .. cellStart[c+1])
+    int cellObjs[] = new int[0];
+    int unbounded[] = new int[0];
+    int nunbounded;
+
+    // Scratch used while flattening compound shapes: the pose, and a
+    // copy of it for each level of nesting, to restore it from
+    double M[][] = new double[4][4];
+    ArrayList<double[]> backups = new ArrayList<double[]>();
+
+    ////////////////////////////////////////////
+    // Per-scan beam parameters
+
+    double eye[] = new double[3];
+    double R[][] = new double[4][4];
+    double maxrange;
+    double ranges[];
+
+    // Beam directions in the sensor frame, 3 per beam. Cached between
+    // scans with the same layout: (LASER or HOOPSKIRT, nranges, pitch,
+    // rad0, radstep), or layoutKind NONE if not cached.
+    static final int NONE = 0, LASER = 1, HOOPSKIRT = 2;
+    double local[] = new double[0];
+    int layoutKind = NONE, layoutRanges;
+    double layoutPitch, layoutRad0, layoutRadstep;
+
+    static class Scratch
+    {
+        int stamps[] = new int[0];
+        int stamp;
+
+        double dir[] = new double[3];
+        double pos[] = new double[3];
+        double pdir[] = new double[3];
+    }
+
+    public LaserScanEngine(SimWorld sw)
+    {
+        this(sw, ForkJoinPool.commonPool());
+    }
+
+    public LaserScanEngine(SimWorld sw, ForkJoinPool pool)
+    {
+        this.sw = sw;
+        this.index = new SpatialIndex(sw);
+        this.pool = pool;
+    }
+
+    /** Equivalent to Sensors.laser(). If ranges is non-null, it is
+     * filled in and returned; otherwise a new array is allocated. **/
+    public synchronized double[] laser(HashSet<SimObject> ignore,
+                                       double T[][],
+                                       int nranges,
+                                       double rad0,
+                                       double radstep,
+                                       double maxrange,
+                                       double ranges[])
+    {
+        if (!setLayout(LASER, nranges, 0, rad0, radstep)) {
+            for (int i = 0; i < nranges; i++) {
+                local[3*i+0] = Math.cos(rad0 + i*radstep);
+                local[3*i+1] = Math.sin(rad0 + i*radstep);
+                local[3*i+2] = 0;
+            }
+        }
+
+        return scan(ignore, T, nranges, maxrange, ranges);
+    }
+
+    /** Equivalent to Sensors.hoopskirt(). **/
+    public synchronized double[] hoopskirt(HashSet<SimObject> ignore,
+                                           double T[][],
+                                           int nranges,
+                                           double pitch,
+                                           double rad0,
+                                           double radstep,
+                                           double maxrange,
+                                           double ranges[])
+    {
+        if (!setLayout(HOOPSKIRT, nranges, pitch, rad0, radstep)) {
+            for (int i = 0; i < nranges; i++) {
+                double[] rpy = new double[] {0,0,0,0,pitch,rad0+i*radstep};
+                double[] dir = LinAlg.transform(LinAlg.xyzrpyToMatrix(rpy), new double[] {1, 0, 0});
+                System.arraycopy(dir, 0, local, 3*i, 3);
+            }
+        }
+
+        return scan(ignore, T, nranges, maxrange, ranges);
+    }
+
+    /** Equivalent to Sensors.variableLaser(). The rays are re-read
+     * from rg on every scan. **/
+    public synchronized double[] variableLaser(HashSet<SimObject> ignore,
+                                               double T[][],
+                                               double maxrange,
+                                               RayGenerator rg,
+                                               double ranges[])
+    {
+        int nranges = rg.numRanges();
+        if (local.length < 3*nranges)
+            local = new double[3*nranges];
+        layoutKind = NONE;
+
+        for (int i = 0; i < nranges; i++)
+            System.arraycopy(rg.getRay(i), 0, local, 3*i, 3);
+
+        return scan(ignore, T, nranges, maxrange, ranges);
+    }
+
+    /** Whether local already holds the beams of this layout. If not,
+     * makes room for them, and the caller fills them in. **/
+    boolean setLayout(int kind, int nranges, double pitch, double rad0, double radstep)
+    {
+        if (layoutKind == kind && layoutRanges == nranges && layoutPitch == pitch &&
+            layoutRad0 == rad0 && layoutRadstep == radstep)
+            return true;
+
+        if (local.length < 3*nranges)
+            local = new double[3*nranges];
+        layoutKind = kind;
+        layoutRanges = nranges;
+        layoutPitch = pitch;
+        layoutRad0 = rad0;
+        layoutRadstep = radstep;
+        return false;
+    }
+
+    double[] scan(HashSet<SimObject> ignore, double T[][], int nranges, double maxrange, double ranges[])
+    {
+        if (ranges == null || ranges.length < nranges)
+            ranges = new double[nranges];
+
+        for (int i = 0; i < 3; i++) {
+            eye[i] = T[i][3];
+            for (int j = 0; j < 4; j++)
+                R[i][j] = (j == 3) ? 0 : T[i][j];
+        }
+        this.maxrange = maxrange;
+        this.ranges = ranges;
+
+        index.refit();
+        snapshot(index, ignore);
+
+        if (nranges <= GRAIN)
+            cast(0, nranges);
+        else
+            pool.invoke(new CastTask(0, nranges));
+
+        this.ranges = null;
+        return ranges;
+    }
+
+    class CastTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        int i0, i1;
+
+        CastTask(int i0, int i1)
+        {
+            this.i0 = i0;
+            this.i1 = i1;
+        }
+
+        protected void compute()
+        {
+            if (i1 - i0 <= GRAIN) {
+                cast(i0, i1);
+                return;
+            }
+
+            int mid = (i0 + i1) / 2;
+            invokeAll(new CastTask(i0, mid), new CastTask(mid, i1));
+        }
+    }
+
+    ////////////////////////////////////////////
+    // Snapshot
+
+    void snapshot(SpatialIndex index, HashSet<SimObject> ignore)
+    {
+        ArrayList<SpatialIndex.Entry> entries = index.entries;
+        nobjs = entries.size();
+        nprims = 0;
+
+        if (objR.length < nobjs) {
+            objXyz = new double[3*nobjs];
+            objR = new double[nobjs];
+            objPrim0 = new int[nobjs+1];
+        }
+
+        for (int i = 0; i < nobjs; i++) {
+            SpatialIndex.Entry e = entries.get(i);
+            objPrim0[i] = nprims;
+
+            if (e.r < 0 || (ignore != null && ignore.contains(e.so)))
+                continue;
+
+            objXyz[3*i+0] = e.xyz[0];
+            objXyz[3*i+1] = e.xyz[1];
+            objXyz[3*i+2] = e.xyz[2];
+            objR[i] = e.r;
+
+            for (int r = 0; r < 4; r++)
+                for (int c = 0; c < 4; c++)
+                    M[r][c] = e.T[r][c];
+            flatten(e.shape, M, 0);
+        }
+        objPrim0[nobjs] = nprims;
+
+        // grid, skipping objects that have no primitives
+        x0 = index.x0;
+        y0 = index.y0;
+        cellSize = index.cellSize;
+        width = index.width;
+        height = index.height;
+
+        int ncells = width*height;
+        if (cellStart.length < ncells+1)
+            cellStart = new int[ncells+1];
+
+        int n = 0;
+        for (int c = 0; c < ncells; c++) {
+            cellStart[c] = n;
+            ArrayList<SpatialIndex.Entry> cell = index.cells.get(c);
+            for (int k = 0, sz = cell.size(); k < sz; k++) {
+                int id = cell.get(k).id;
+                if (objPrim0[id] == objPrim0[id+1])
+                    continue;
+                if (n == cellObjs.length)
+                    cellObjs = Arrays.copyOf(cellObjs, Math.max(16, 2*n));
+                cellObjs[n++] = id;
+            }
+        }
+        cellStart[ncells] = n;
+
+        nunbounded = 0;
+        if (unbounded.length < index.unbounded.size())
+            unbounded = new int[index.unbounded.size()];
+        for (SpatialIndex.Entry e : index.unbounded) {
+            if (objPrim0[e.id] != objPrim0[e.id+1])
+                unbounded[nunbounded++] = e.id;
+        }
+    }
+
+    // Mirrors Collisions.collisionDistance(CompoundShape), which
+    // accumulates the ops into T and restores it afterwards.
+    void flatten(Shape s, double T[][], int depth)
+    {
+        if (s instanceof CompoundShape) {
+            if (backups.size() == depth)
+                backups.add(new double[16]);
+            double tmp[] = backups.get(depth);
+            Collisions.backup(T, tmp);
+
+            for (Object op : ((CompoundShape) s).ops) {
+                if (op instanceof double[][])
+                    LinAlg.timesEquals(T, (double[][]) op);
+                else if (op instanceof Shape)
+                    flatten((Shape) op, T, depth+1);
+            }
+
+            Collisions.restore(T, tmp);
+            return;
+        }
+
+        if (nprims == primType.length) {
+            int sz = Math.max(16, 2*nprims);
+            primType = Arrays.copyOf(primType, sz);
+            primT = Arrays.copyOf(primT, 12*sz);
+            primScale = Arrays.copyOf(primScale, sz);
+            primSize = Arrays.copyOf(primSize, 3*sz);
+        }
+
+        int p = nprims++;
+        for (int r = 0; r < 3; r++)
+            for (int c = 0; c < 4; c++)
+                primT[12*p + 4*r + c] = T[r][c];
+        primScale[p] = 1.0 / Math.sqrt(LinAlg.sq(T[0][0]) + LinAlg.sq(T[1][0]) + LinAlg.sq(T[2][0]));
+
+        if (s instanceof BoxShape) {
+            BoxShape bs = (BoxShape) s;
+            primType[p] = BOX;
+            primSize[3*p+0] = bs.sxyz[0];
+            primSize[3*p+1] = bs.sxyz[1];
+            primSize[3*p+2] = bs.sxyz[2];
+        } else {
+            assert(s instanceof SphereShape);
+            primType[p] = SPHERE;
+            primSize[3*p+0] = ((SphereShape) s).r;
+        }
+    }
+
+    ////////////////////////////////////////////
+    // Casting
+
+    void cast(int i0, int i1)
+    {
+        Scratch sc = scratch.get();
+        if (sc.stamps.length < nobjs)
+            sc.stamps = new int[Math.max(nobjs, 2*sc.stamps.length)];
+
+        double dir[] = sc.dir;
+
+        for (int i = i0; i < i1; i++) {
+            double lx = local[3*i+0], ly = local[3*i+1], lz = local[3*i+2];
+
+            // LinAlg.transform(R, local)
+            dir[0] = R[0][0]*lx + R[0][1]*ly + R[0][2]*lz + R[0][3];
+            dir[1] = R[1][0]*lx + R[1][1]*ly + R[1][2]*lz + R[1][3];
+            dir[2] = R[2][0]*lx + R[2][1]*ly + R[2][2]*lz + R[2][3];
+
+            ranges[i] = collisionDistance(sc, dir);
+        }
+    }
+
+    // Sensors.collisionDistance with SpatialIndex.collisionDistance inlined
+    double collisionDistance(Scratch sc, double dir[])
+    {
+        double dist = maxrange;
+
+        // Ground collision check, as GRay3D.intersectPlaneXY
+        if (dir[2] < 0) {
+            double mag = Math.sqrt(LinAlg.sq(dir[0]) + LinAlg.sq(dir[1]) + LinAlg.sq(dir[2]));
+            double nx = dir[0] / mag, ny = dir[1] / mag, nz = dir[2] / mag;
+            double t = (eye[2] - 0) / nz;
+            double gx = eye[0] - nx*t, gy = eye[1] - ny*t;
+            double d = Math.sqrt(LinAlg.sq(gx - eye[0]) + LinAlg.sq(gy - eye[1]) + LinAlg.sq(0 - eye[2]));
+            dist = Math.min(dist, d);
+        }
+
+        sc.stamp++;
+        if (sc.stamp == 0) {
+            Arrays.fill(sc.stamps, 0);
+            sc.stamp = 1;
+        }
+
+        for (int k = 0; k < nunbounded; k++)
+            dist = test(sc, unbounded[k], dir, dist);
+
+        double dx = dir[0], dy = dir[1];
+
+        if (Math.abs(dx) < 1e-12 && Math.abs(dy) < 1e-12) {
+            int ix = (int) Math.floor((eye[0] - x0) / cellSize);
+            int iy = (int) Math.floor((eye[1] - y0) / cellSize);
+            if (ix >= 0 && iy >= 0 && ix < width && iy < height)
+                dist = testCell(sc, iy*width + ix, dir, dist);
+            return dist;
+        }
+
+        double tmin = 0, tmax = dist;
+        double x1 = x0 + width*cellSize, y1 = y0 + height*cellSize;
+
+        if (dx == 0) {
+            if (eye[0] < x0 || eye[0] >= x1)
+                return dist;
+        } else {
+            double ta = (x0 - eye[0]) / dx, tb = (x1 - eye[0]) / dx;
+            tmin = Math.max(tmin, Math.min(ta, tb));
+            tmax = Math.min(tmax, Math.max(ta, tb));
+        }
+
+        if (dy == 0) {
+            if (eye[1] < y0 || eye[1] >= y1)
+                return dist;
+        } else {
+            double ta = (y0 - eye[1]) / dy, tb = (y1 - eye[1]) / dy;
+            tmin = Math.max(tmin, Math.min(ta, tb));
+            tmax = Math.min(tmax, Math.max(ta, tb));
+        }
+
+        if (tmin > tmax)
+            return dist;
+
+        int ix = SpatialIndex.clamp((int) Math.floor((eye[0] + tmin*dx - x0) / cellSize), 0, width-1);
+        int iy = SpatialIndex.clamp((int) Math.floor((eye[1] + tmin*dy - y0) / cellSize), 0, height-1);
+
+        int stepx = dx > 0 ? 1 : -1;
+        int stepy = dy > 0 ? 1 : -1;
+
+        double tdeltax = dx == 0 ? Double.MAX_VALUE : cellSize / Math.abs(dx);
+        double tdeltay = dy == 0 ? Double.MAX_VALUE : cellSize / Math.abs(dy);
+
+        double tnextx = dx == 0 ? Double.MAX_VALUE : (x0 + (ix + (dx > 0 ? 1 : 0))*cellSize - eye[0]) / dx;
+        double tnexty = dy == 0 ? Double.MAX_VALUE : (y0 + (iy + (dy > 0 ? 1 : 0))*cellSize - eye[1]) / dy;
+
+        double tenter = tmin;
+
+        while (tenter <= dist) {
+            dist = testCell(sc, iy*width + ix, dir, dist);
+
+            if (tnextx < tnexty) {
+                tenter = tnextx;
+                tnextx += tdeltax;
+                ix += stepx;
+                if (ix < 0 || ix >= width)
+                    break;
+            } else {
+                tenter = tnexty;
+                tnexty += tdeltay;
+                iy += stepy;
+                if (iy < 0 || iy >= height)
+                    break;
+            }
+        }
+
+        return dist;
+    }
+
+    double testCell(Scratch sc, int c, double dir[], double dist)
+    {
+        for (int k = cellStart[c], end = cellStart[c+1]; k < end; k++)
+            dist = test(sc, cellObjs[k], dir, dist);
+        return dist;
+    }
+
+    double test(Scratch sc, int id, double dir[], double dist)
+    {
+        if (sc.stamps[id] == sc.stamp)
+            return dist;
+        sc.stamps[id] = sc.stamp;
+
+        double d = Math.sqrt(LinAlg.sq(eye[0] - objXyz[3*id+0]) +
+                             LinAlg.sq(eye[1] - objXyz[3*id+1]) +
+                             LinAlg.sq(eye[2] - objXyz[3*id+2])) - objR[id];
+        if (d > dist)
+            return dist;
+
+        double best = Double.MAX_VALUE;
+        for (int p = objPrim0[id], end = objPrim0[id+1]; p < end; p++) {
+            if (primType[p] == BOX)
+                best = Math.min(best, boxDistance(sc, p, dir));
+            else
+                best = Math.min(best, sphereDistance(p, dir));
+        }
+
+        return Math.min(dist, best);
+    }
+
+    // Collisions.collisionDistance(BoxShape): transformInverse,
+    // transformInverseRotateOnly, then LinAlg.rayCollisionBox
+    double boxDistance(Scratch sc, int p, double dir[])
+    {
+        double T[] = primT;
+        int o = 12*p;
+        double scale = primScale[p];
+
+        double px = (eye[0] - T[o+3]) * scale;
+        double py = (eye[1] - T[o+7]) * scale;
+        double pz = (eye[2] - T[o+11]) * scale;
+
+        double pos[] = sc.pos;
+        pos[0] = scale*(T[o+0]*px + T[o+4]*py + T[o+8]*pz);
+        pos[1] = scale*(T[o+1]*px + T[o+5]*py + T[o+9]*pz);
+        pos[2] = scale*(T[o+2]*px + T[o+6]*py + T[o+10]*pz);
+
+        double dx = dir[0] * scale;
+        double dy = dir[1] * scale;
+        double dz = dir[2] * scale;
+
+        double pdir[] = sc.pdir;
+        pdir[0] = scale*(T[o+0]*dx + T[o+4]*dy + T[o+8]*dz);
+        pdir[1] = scale*(T[o+1]*dx + T[o+5]*dy + T[o+9]*dz);
+        pdir[2] = scale*(T[o+2]*dx + T[o+6]*dy + T[o+10]*dz);
+
+        double u0 = -Double.MAX_VALUE;
+        double u1 = Double.MAX_VALUE;
+
+        for (int i = 0; i < 3; i++) {
+            double s = primSize[3*p+i];
+            if (pdir[i] == 0) {
+                if (Math.abs(pos[i]) > s/2)
+                    return Double.MAX_VALUE;
+                continue;
+            }
+
+            double a = (s/2 - pos[i]) / pdir[i];
+            double b = (-s/2 - pos[i]) / pdir[i];
+
+            u0 = Math.max(u0, Math.min(a, b));
+            u1 = Math.min(u1, Math.max(a, b));
+        }
+
+        if (u1 < u0)
+            return Double.MAX_VALUE;
+
+        if (u0 < 0)
+            return Double.MAX_VALUE;
+
+        return u0;
+    }
+
+    // Collisions.collisionDistance(SphereShape)
+    double sphereDistance(int p, double dir[])
+    {
+        int o = 12*p;
+        double ex = primT[o+3] - eye[0];
+        double ey = primT[o+7] - eye[1];
+        double ez = primT[o+11] - eye[2];
+
+        double mag = Math.sqrt(LinAlg.sq(ex) + LinAlg.sq(ey) + LinAlg.sq(ez));
+        double costheta = (ex / mag)*dir[0] + (ey / mag)*dir[1] + (ez / mag)*dir[2];
+
+        double d = Math.sqrt(LinAlg.sq(eye[0] - primT[o+3]) +
+                             LinAlg.sq(eye[1] - primT[o+7]) +
+                             LinAlg.sq(eye[2] - primT[o+11]));
+
+        double r = primSize[3*p];
+        double A = 1;
+        double B = -2*d*costheta;
+        double C = d*d - r*r;
+
+        if (B*B - 4*A*C < 0)
+            return Double.MAX_VALUE;
+
+        double x1 = (-B - Math.sqrt(B*B - 4 * A * C)) / (2*A);
+        if (x1 >= 0)
+            return x1;
+
+        double x2 = (-B + Math.sqrt(B*B - 4 * A * C)) / (2*A);
+        if (x2 >= 0)
+            return x2;
+
+        return Double.MAX_VALUE;
+    }
+
+    /** Benchmark: serial Sensors.laser versus this engine, checking
+     * that the ranges are identical. **/
+    public static void main(String args[])
+    {
+        int counts[] = new int[] { 100, 1000, 5000 };
+        int beams[] = new int[] { 2700, 10800 };
+        int nscans = 20;
+
+        double rad0 = Math.toRadians(-135);
+        double maxrange = 29.9;
+
+        System.out.printf("%d cores\n", Runtime.getRuntime().availableProcessors());
+        System.out.printf("%8s %8s %15s %15s %10s\n", "objects", "beams", "serial ms/scan", "engine ms/scan", "identical");
+
+        for (int n : counts) {
+            Random rand = new Random(n);
+            SimWorld sw = new SimWorld(new Config());
+
+            double side = 2*Math.sqrt(n);
+            for (int i = 0; i < n; i++) {
+                SimBox box = new SimBox(sw);
+                box.sxyz = new double[] { 0.2 + rand.nextDouble(), 0.2 + rand.nextDouble(), 0.5 + rand.nextDouble() };
+                box.last_sxyz = box.sxyz;
+                box.shape = new BoxShape(box.sxyz);
+                box.setPose(LinAlg.xyzrpyToMatrix(new double[] { side*rand.nextDouble(), side*rand.nextDouble(), 0.25,
+                                                                 0, 0, 2*Math.PI*rand.nextDouble() }));
+                sw.objects.add(box);
+            }
+
+            for (int i = 0; i < n / 10; i++) {
+                SimSphere sphere = new SimSphere(sw);
+                sphere.r = 0.1 + 0.5*rand.nextDouble();
+                sphere.setPose(LinAlg.translate(side*rand.nextDouble(), side*rand.nextDouble(), 0.25));
+                sw.objects.add(sphere);
+            }
+            sw.commit();
+
+            LaserScanEngine engine = new LaserScanEngine(sw);
+            double T[][] = LinAlg.xyzrpyToMatrix(new double[] { side/2, side/2, 0.25, 0, -0.01, 0 });
+
+            for (int nranges : beams) {
+                double radstep = Math.toRadians(270) / nranges;
+
+                double serial[] = null;
+                Tic tic = new Tic();
+                for (int scan = 0; scan < nscans; scan++)
+                    serial = Sensors.laser(sw, null, T, nranges, rad0, radstep, maxrange);
+                double serialTime = tic.toc() / nscans;
+
+                double ranges[] = new double[nranges];
+                for (int scan = 0; scan < nscans; scan++) // warm up
+                    engine.laser(null, T, nranges, rad0, radstep, maxrange, ranges);
+
+                tic = new Tic();
+                for (int scan = 0; scan < nscans; scan++)
+                    engine.laser(null, T, nranges, rad0, radstep, maxrange, ranges);
+                double engineTime = tic.toc() / nscans;
+
+                System.out.printf("%8d %8d %15.3f %15.3f %10s\n", sw.objects.size(), nranges,
+                                  serialTime*1000, engineTime*1000, Arrays.equals(serial, ranges));
+            }
+        }
+
+        System.exit(0);
+    }
+}
@@ -38,21 +38,45 @@ public class Motor
         return amps;
     }
 
+    /** Advance the motor by dt with one (forward Euler) step. **/
     public void update(double dt)
     {
-        double volts_emf = rad_per_sec * emf_constant;
-        this.amps = (input_volts - volts_emf) / winding_resistance;
+        double acceleration = getAcceleration(rad_per_sec);
+        this.amps = getAmps(rad_per_sec);
+
+        rad_per_sec += acceleration * dt;
+    }
 
+    /** The current the motor would draw if it were turning at
+     * rad_per_sec, given the present input. **/
+    public double getAmps(double rad_per_sec)
+    {
         if (!input_connected)
-            this.amps = 0;
+            return 0;
+
+        double volts_emf = rad_per_sec * emf_constant;
+        return (input_volts - volts_emf) / winding_resistance;
+    }
 
-        double torque0 = this.amps * torque_constant;
+    /** The angular acceleration (rad/s^2) of the motor if it were
+     * turning at rad_per_sec, given the present input. This is the
+     * motor's ODE, for integrating it with other methods than
+     * update(). **/
+    public double getAcceleration(double rad_per_sec)
+    {
+        double torque0 = getAmps(rad_per_sec) * torque_constant;
         double torque_drag = rad_per_sec * drag_constant;
 
         double torque_net = torque0 - torque_drag;
-        double acceleration = torque_net / inertia;
+        return torque_net / inertia;
+    }
 
-        rad_per_sec += acceleration * dt;
+    /** Set the motor's state, after integrating getAcceleration()
+     * externally. **/
+    public void setRadPerSec(double rad_per_sec)
+    {
+        this.rad_per_sec = rad_per_sec;
+        this.amps = getAmps(rad_per_sec);
     }
 
     public static void main(String args[])
@@ -0,0 +1,289 @@
+package april.sim;
+
+/** A Shape placed at a pose, flattened into world-frame boxes and
+ * spheres so that it can be tested against other PosedShapes many
+ * times without allocating.
+ *
+ * Boxes are stored as a center, three unit axes, and half-extents,
+ * and are tested against each other with the separating axis theorem
+ * (15 axes). Like Collisions, the transforms must be rigid-body plus
+ * a uniform scaling.
+ *
+ * A PosedShape can be reused: set() only allocates when the shape has
+ * more primitives than any shape it held before.
+ **/
+public final class PosedShape
+{
+    static final int BOX_STRIDE = 16;    // center, 3 axes, 3 half-extents, radius
+    static final int SPHERE_STRIDE = 4;  // center, radius
+
+    static final double EPS = 1e-9;
+
+    // bounding sphere of the whole shape; radius < 0 if not collidable
+    double bxyz[] = new double[3];
+    double br = -1;
+
+    int nboxes, nspheres;
+    double boxes[] = new double[BOX_STRIDE];
+    double spheres[] = new double[SPHERE_STRIDE];
+
+    // scratch transforms for walking CompoundShapes, one per depth
+    double stack[][][] = new double[0][][];
+
+    public PosedShape()
+    {
+    }
+
+    public PosedShape(Shape s, double T[][])
+    {
+        set(s, T);
+    }
+
+    public boolean isCollidable()
+    {
+        return br >= 0;
+    }
+
+    /** The radius of a sphere around getCenter() enclosing the shape. **/
+    public double getBoundingRadius()
+    {
+        return br;
+    }
+
+    public double[] getCenter()
+    {
+        return bxyz;
+    }
+
+    public void set(Shape s, double T[][])
+    {
+        nboxes = 0;
+        nspheres = 0;
+
+        bxyz[0] = T[0][3];
+        bxyz[1] = T[1][3];
+        bxyz[2] = T[2][3];
+
+        double r = s.getBoundingRadius();
+        if (r < 0) {
+            br = -1;
+            return;
+        }
+
+        br = scale(T) * r;
+        add(s, T, 0);
+    }
+
+    static final double scale(double T[][])
+    {
+        return Math.sqrt(T[0][0]*T[0][0] + T[1][0]*T[1][0] + T[2][0]*T[2][0]);
+    }
+
+    void add(Shape s, double T[][], int depth)
+    {
+        // non-collidable parts of a compound never collide
+        if (s.getBoundingRadius() < 0)
+            return;
+
+        if (s instanceof CompoundShape) {
+            if (stack.length <= depth) {
+                double nstack[][][] = new double[depth+1][][];
+                System.arraycopy(stack, 0, nstack, 0, stack.length);
+                for (int i = stack.length; i <= depth; i++)
+                    nstack[i] = new double[4][4];
+                stack = nstack;
+            }
+
+            double M[][] = stack[depth];
+            for (int i = 0; i < 4; i++)
+                for (int j = 0; j < 4; j++)
+                    M[i][j] = T[i][j];
+
+            for (Object op : ((CompoundShape) s).ops) {
+                if (op instanceof double[][])
+                    timesEquals(M, (double[][]) op);
+                else
+                    add((Shape) op, M, depth+1);
+            }
+        } else if (s instanceof BoxShape) {
+            addBox((BoxShape) s, T);
+        } else if (s instanceof SphereShape) {
+            addSphere((SphereShape) s, T);
+        } else {
+            assert(false);
+        }
+    }
+
+    void addBox(BoxShape s, double T[][])
+    {
+        if ((nboxes+1)*BOX_STRIDE > boxes.length) {
+            double grown[] = new double[2*boxes.length];
+            System.arraycopy(boxes, 0, grown, 0, boxes.length);
+            boxes = grown;
+        }
+
+        double scale = scale(T);
+        int o = nboxes*BOX_STRIDE;
+        boxes[o+0] = T[0][3];
+        boxes[o+1] = T[1][3];
+        boxes[o+2] = T[2][3];
+        for (int a = 0; a < 3; a++) {
+            boxes[o+3+3*a+0] = T[0][a] / scale;
+            boxes[o+3+3*a+1] = T[1][a] / scale;
+            boxes[o+3+3*a+2] = T[2][a] / scale;
+            boxes[o+12+a] = s.sxyz[a]/2 * scale;
+        }
+        boxes[o+15] = s.getBoundingRadius() * scale;
+        nboxes++;
+    }
+
+    void addSphere(SphereShape s, double T[][])
+    {
+        if ((nspheres+1)*SPHERE_STRIDE > spheres.length) {
+            double grown[] = new double[2*spheres.length];
+            System.arraycopy(spheres, 0, grown, 0, spheres.length);
+            spheres = grown;
+        }
+
+        int o = nspheres*SPHERE_STRIDE;
+        spheres[o+0] = T[0][3];
+        spheres[o+1] = T[1][3];
+        spheres[o+2] = T[2][3];
+        spheres[o+3] = s.getRadius() * scale(T);
+        nspheres++;
+    }
+
+    // A = A*B for 4x4 matrices, without allocating.
+    static final void timesEquals(double A[][], double B[][])
+    {
+        for (int i = 0; i < 4; i++) {
+            double t0 = A[i][0], t1 = A[i][1], t2 = A[i][2], t3 = A[i][3];
+            for (int j = 0; j < 4; j++)
+                A[i][j] = t0*B[0][j] + t1*B[1][j] + t2*B[2][j] + t3*B[3][j];
+        }
+    }
+
+    /** Do the two shapes intersect? Agrees with Collisions.collision,
+     * up to floating point differences for shapes that are just
+     * touching. **/
+    public boolean collides(PosedShape b)
+    {
+        PosedShape a = this;
+        if (a.br < 0 || b.br < 0)
+            return false;
+
+        if (!spheresOverlap(a.bxyz, 0, a.br, b.bxyz, 0, b.br))
+            return false;
+
+        for (int i = 0; i < a.nboxes; i++) {
+            int ao = i*BOX_STRIDE;
+            for (int j = 0; j < b.nboxes; j++) {
+                int bo = j*BOX_STRIDE;
+                if (spheresOverlap(a.boxes, ao, a.boxes[ao+15], b.boxes, bo, b.boxes[bo+15]) &&
+                    boxBox(a.boxes, ao, b.boxes, bo))
+                    return true;
+            }
+            for (int j = 0; j < b.nspheres; j++) {
+                if (boxSphere(a.boxes, ao, b.spheres, j*SPHERE_STRIDE))
+                    return true;
+            }
+        }
+
+        for (int i = 0; i < a.nspheres; i++) {
+            int ao = i*SPHERE_STRIDE;
+            for (int j = 0; j < b.nboxes; j++) {
+                if (boxSphere(b.boxes, j*BOX_STRIDE, a.spheres, ao))
+                    return true;
+            }
+            for (int j = 0; j < b.nspheres; j++) {
+                int bo = j*SPHERE_STRIDE;
+                if (spheresOverlap(a.spheres, ao, a.spheres[ao+3], b.spheres, bo, b.spheres[bo+3]))
+                    return true;
+            }
+        }
+
+        return false;
+    }
+
+    static final boolean spheresOverlap(double a[], int ao, double ar, double b[], int bo, double br)
+    {
+        double dx = a[ao+0] - b[bo+0];
+        double dy = a[ao+1] - b[bo+1];
+        double dz = a[ao+2] - b[bo+2];
+        double r = ar + br;
+        return dx*dx + dy*dy + dz*dz <= r*r;
+    }
+
+    // Sphere center projected onto the box's axes, clamped to the box.
+    static final boolean boxSphere(double b[], int bo, double s[], int so)
+    {
+        double dx = s[so+0] - b[bo+0];
+        double dy = s[so+1] - b[bo+1];
+        double dz = s[so+2] - b[bo+2];
+
+        double e2 = 0;
+        for (int a = 0; a < 3; a++) {
+            double p = dx*b[bo+3+3*a] + dy*b[bo+3+3*a+1] + dz*b[bo+3+3*a+2];
+            double e = Math.max(0, Math.abs(p) - b[bo+12+a]);
+            e2 += e*e;
+        }
+
+        double r = s[so+3];
+        return e2 < r*r;
+    }
+
+    // Separating axis test for two oriented boxes (see Ericson,
+    // Real-Time Collision Detection, 4.4.1). The axes of b are
+    // expressed in a's frame; EPS keeps the edge-edge axes sane when
+    // two edges are nearly parallel.
+    static final boolean boxBox(double a[], int ao, double b[], int bo)
+    {
+        double ae0 = a[ao+12], ae1 = a[ao+13], ae2 = a[ao+14];
+        double be0 = b[bo+12], be1 = b[bo+13], be2 = b[bo+14];
+
+        // R[i][j] = a.axis[i] . b.axis[j]
+        double R00 = dot(a, ao+3, b, bo+3), R01 = dot(a, ao+3, b, bo+6), R02 = dot(a, ao+3, b, bo+9);
+        double R10 = dot(a, ao+6, b, bo+3), R11 = dot(a, ao+6, b, bo+6), R12 = dot(a, ao+6, b, bo+9);
+        double R20 = dot(a, ao+9, b, bo+3), R21 = dot(a, ao+9, b, bo+6), R22 = dot(a, ao+9, b, bo+9);
+
+        double A00 = Math.abs(R00)+EPS, A01 = Math.abs(R01)+EPS, A02 = Math.abs(R02)+EPS;
+        double A10 = Math.abs(R10)+EPS, A11 = Math.abs(R11)+EPS, A12 = Math.abs(R12)+EPS;
+        double A20 = Math.abs(R20)+EPS, A21 = Math.abs(R21)+EPS, A22 = Math.abs(R22)+EPS;
+
+        // translation, in a's frame
+        double dx = b[bo+0] - a[ao+0], dy = b[bo+1] - a[ao+1], dz = b[bo+2] - a[ao+2];
+        double t0 = dx*a[ao+3] + dy*a[ao+4] + dz*a[ao+5];
+        double t1 = dx*a[ao+6] + dy*a[ao+7] + dz*a[ao+8];
+        double t2 = dx*a[ao+9] + dy*a[ao+10] + dz*a[ao+11];
+
+        // a's face normals
+        if (Math.abs(t0) > ae0 + be0*A00 + be1*A01 + be2*A02) return false;
+        if (Math.abs(t1) > ae1 + be0*A10 + be1*A11 + be2*A12) return false;
+        if (Math.abs(t2) > ae2 + be0*A20 + be1*A21 + be2*A22) return false;
+
+        // b's face normals
+        if (Math.abs(t0*R00 + t1*R10 + t2*R20) > ae0*A00 + ae1*A10 + ae2*A20 + be0) return false;
+        if (Math.abs(t0*R01 + t1*R11 + t2*R21) > ae0*A01 + ae1*A11 + ae2*A21 + be1) return false;
+        if (Math.abs(t0*R02 + t1*R12 + t2*R22) > ae0*A02 + ae1*A12 + ae2*A22 + be2) return false;
+
+        // edge cross products
+        if (Math.abs(t2*R10 - t1*R20) > ae1*A20 + ae2*A10 + be1*A02 + be2*A01) return false;
+        if (Math.abs(t2*R11 - t1*R21) > ae1*A21 + ae2*A11 + be0*A02 + be2*A00) return false;
+        if (Math.abs(t2*R12 - t1*R22) > ae1*A22 + ae2*A12 + be0*A01 + be1*A00) return false;
+
+        if (Math.abs(t0*R20 - t2*R00) > ae0*A20 + ae2*A00 + be1*A12 + be2*A11) return false;
+        if (Math.abs(t0*R21 - t2*R01) > ae0*A21 + ae2*A01 + be0*A12 + be2*A10) return false;
+        if (Math.abs(t0*R22 - t2*R02) > ae0*A22 + ae2*A02 + be0*A11 + be1*A10) return false;
+
+        if (Math.abs(t1*R00 - t0*R10) > ae0*A10 + ae1*A00 + be1*A22 + be2*A21) return false;
+        if (Math.abs(t1*R01 - t0*R11) > ae0*A11 + ae1*A01 + be0*A22 + be2*A20) return false;
+        if (Math.abs(t1*R02 - t0*R12) > ae0*A12 + ae1*A02 + be0*A21 + be1*A20) return false;
+
+        return true;
+    }
+
+    static final double dot(double a[], int ao, double b[], int bo)
+    {
+        return a[ao]*b[bo] + a[ao+1]*b[bo+1] + a[ao+2]*b[bo+2];
+    }
+}
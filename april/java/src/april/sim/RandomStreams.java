@@ -0,0 +1,206 @@
+package april.sim;
+
+import java.io.*;
+import java.util.*;
+
+import april.util.*;
+
+/** The random numbers of one simulated world, as a set of named,
+ * independent streams: one per noise source, e.g. "robot3.drive".
+ *
+ * Each stream's seed is derived from the world's seed and the
+ * stream's name alone, so a stream produces the same numbers however
+ * many other streams there are and in whatever order they are
+ * created or used. Given the seed, a run can be reproduced exactly.
+ *
+ * Streams are meant to be used by one thread at a time; give each
+ * noise source its own rather than sharing one.
+ **/
+public class RandomStreams
+{
+    long seed;
+    HashMap<String, Stream> streams = new HashMap<String, Stream>();
+
+    public RandomStreams(long seed)
+    {
+        this.seed = seed;
+    }
+
+    public synchronized long getSeed()
+    {
+        return seed;
+    }
+
+    /** Reseed every stream, including those already handed out, as if
+     * they had been created with this seed. **/
+    public synchronized void setSeed(long seed)
+    {
+        this.seed = seed;
+        for (Map.Entry<String, Stream> e : streams.entrySet())
+            e.getValue().setSeed(streamSeed(seed, e.getKey()));
+    }
+
+    /** The stream with the given name, created on first use. Every
+     * call with the same name returns the same stream. **/
+    public synchronized Random get(String name)
+    {
+        Stream s = streams.get(name);
+        if (s == null) {
+            s = new Stream(streamSeed(seed, name));
+            streams.put(name, s);
+        }
+        return s;
+    }
+
+    /** Save the seed and where every stream is (see WorldCheckpoint). **/
+    public synchronized void writeState(StructureWriter outs) throws IOException
+    {
+        outs.writeLong(seed);
+        outs.writeInt(streams.size());
+        for (Map.Entry<String, Stream> e : streams.entrySet()) {
+            outs.writeString(e.getKey());
+            e.getValue().writeState(outs);
+        }
+    }
+
+    /** Put the seed and every stream back where writeState() found
+     * them. Streams created since start over from their seeds, as if
+     * they had just been created. **/
+    public synchronized void readState(StructureReader ins) throws IOException
+    {
+        seed = ins.readLong();
+
+        HashSet<String> saved = new HashSet<String>();
+        int n = ins.readInt();
+        for (int i = 0; i < n; i++) {
+            String name = ins.readString();
+            ((Stream) get(name)).readState(ins);
+            saved.add(name);
+        }
+
+        for (Map.Entry<String, Stream> e : streams.entrySet()) {
+            if (!saved.contains(e.getKey()))
+                e.getValue().setSeed(streamSeed(seed, e.getKey()));
+        }
+    }
+
+    /** A seed that depends on every character of name. Unlike
+     * String.hashCode, nearby names give unrelated seeds. **/
+    public static long streamSeed(long seed, String name)
+    {
+        long h = mix(seed);
+        for (int i = 0; i < name.length(); i++)
+            h = mix(h ^ name.charAt(i));
+        return h;
+    }
+
+    /** A seed for the i'th of a family of worlds, e.g. the runs of a
+     * Monte-Carlo sweep. **/
+    public static long streamSeed(long seed, long i)
+    {
+        return mix(mix(seed) ^ i);
+    }
+
+    // The SplitMix64 finalizer: a bijection that scrambles every bit.
+    static long mix(long z)
+    {
+        z += 0x9e3779b97f4a7c15L;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /** xoroshiro128**: a small, fast generator with good statistics.
+     * As a java.util.Random, it provides nextInt() and friends, but
+     * none of Random's own (shared, atomically updated) state is used.
+     * nextGaussian() is Random's, with its spare value kept here, so
+     * that it can be saved along with the rest.
+     *
+     * Every method that touches the state is synchronized, so that, as
+     * with Random, a stream shared between threads by mistake still
+     * gives well-formed numbers (if not reproducible ones). **/
+    static class Stream extends Random
+    {
+        private static final long serialVersionUID = 1L;
+
+        // Not initialized here: Random's constructor calls setSeed
+        // before this class's field initializers would run.
+        long s0, s1;
+
+        // The second of the last pair of Gaussians, not yet returned
+        boolean haveGaussian;
+        double gaussian;
+
+        Stream(long seed)
+        {
+            super(seed);
+        }
+
+        public synchronized void setSeed(long seed)
+        {
+            super.setSeed(seed);
+            s0 = mix(seed);
+            s1 = mix(s0);
+            haveGaussian = false;
+        }
+
+        protected int next(int bits)
+        {
+            return (int) (nextLong() >>> (64 - bits));
+        }
+
+        public synchronized long nextLong()
+        {
+            long a = s0, b = s1;
+            long result = Long.rotateLeft(a * 5, 7) * 9;
+
+            b ^= a;
+            s0 = Long.rotateLeft(a, 24) ^ b ^ (b << 16);
+            s1 = Long.rotateLeft(b, 37);
+            return result;
+        }
+
+        public double nextDouble()
+        {
+            return (nextLong() >>> 11) * 0x1.0p-53;
+        }
+
+        /** Exactly as Random's (the polar method), to keep the same
+         * numbers for a seed. **/
+        public synchronized double nextGaussian()
+        {
+            if (haveGaussian) {
+                haveGaussian = false;
+                return gaussian;
+            }
+
+            double v1, v2, s;
+            do {
+                v1 = 2 * nextDouble() - 1;
+                v2 = 2 * nextDouble() - 1;
+                s = v1 * v1 + v2 * v2;
+            } while (s >= 1 || s == 0);
+
+            double multiplier = StrictMath.sqrt(-2 * StrictMath.log(s) / s);
+            gaussian = v2 * multiplier;
+            haveGaussian = true;
+            return v1 * multiplier;
+        }
+
+        synchronized void writeState(StructureWriter outs) throws IOException
+        {
+            outs.writeLong(s0);
+            outs.writeLong(s1);
+            outs.writeInt(haveGaussian ? 1 : 0);
+            outs.writeDouble(gaussian);
+        }
+
+        synchronized void readState(StructureReader ins) throws IOException
+        {
+            s0 = ins.readLong();
+            s1 = ins.readLong();
+            haveGaussian = (ins.readInt() != 0);
+            gaussian = ins.readDouble();
+        }
+    }
+}
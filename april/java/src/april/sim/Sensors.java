@@ -66,16 +66,14 @@ public class Sensors
         R[1][3] = 0;
         R[2][3] = 0;
 
-        synchronized(sw) {
-            for (int i = 0; i < ranges.length; i++) {
-                double dir[] = LinAlg.transform(R, new double[] { Math.cos(rad0 + i*radstep),
-                                                                  Math.sin(rad0 + i*radstep),
-                                                                  0 });
-
-                ranges[i] = collisionDistance(sw, eye, dir, maxrange, ignore);
-            }
+        double dirs[][] = new double[nranges][];
+        for (int i = 0; i < ranges.length; i++) {
+            dirs[i] = LinAlg.transform(R, new double[] { Math.cos(rad0 + i*radstep),
+                                                         Math.sin(rad0 + i*radstep),
+                                                         0 });
         }
 
+        collisionDistances(sw, eye, dirs, maxrange, ignore, ranges);
         return ranges;
     }
 
@@ -92,15 +90,13 @@ public class Sensors
         R[1][3] = 0;
         R[2][3] = 0;
 
-        synchronized (sw) {
-            for (int i = 0; i < ranges.length; i++) {
-                double[] dir = rg.getRay(i);
-                dir = LinAlg.transform(R, dir);
-
-                ranges[i] = collisionDistance(sw, eye, dir, maxRange, ignore);
-            }
+        double[][] dirs = new double[ranges.length][];
+        for (int i = 0; i < ranges.length; i++) {
+            double[] dir = rg.getRay(i);
+            dirs[i] = LinAlg.transform(R, dir);
         }
 
+        collisionDistances(sw, eye, dirs, maxRange, ignore, ranges);
         return ranges;
     }
 
@@ -122,22 +118,41 @@ public class Sensors
         R[1][3] = 0;
         R[2][3] = 0;
 
-        synchronized (sw) {
-            for (int i = 0; i < ranges.length; i++) {
-                double[] rpy = new double[] {0,0,0,0,pitch,rad0+i*radstep};
-                double[] dir = LinAlg.transform(LinAlg.xyzrpyToMatrix(rpy), new double[] {1, 0, 0});
-                dir = LinAlg.transform(R, dir);
-
-                ranges[i] = collisionDistance(sw, eye, dir, maxrange, ignore);
-            }
+        double[][] dirs = new double[nranges][];
+        for (int i = 0; i < ranges.length; i++) {
+            double[] rpy = new double[] {0,0,0,0,pitch,rad0+i*radstep};
+            double[] dir = LinAlg.transform(LinAlg.xyzrpyToMatrix(rpy), new double[] {1, 0, 0});
+            dirs[i] = LinAlg.transform(R, dir);
         }
 
+        collisionDistances(sw, eye, dirs, maxrange, ignore, ranges);
         return ranges;
     }
 
 
 
-    private static double collisionDistance(SimWorld sw,
+    /** Casts every beam of a scan against one snapshot of the world:
+     * sw.index is refit once and held for the whole scan, so the
+     * ranges are consistent with each other. (Scans that must not wait
+     * on each other should each use a LaserScanEngine.) **/
+    private static void collisionDistances(SimWorld sw,
+                                           double[] eye,
+                                           double[][] dirs,
+                                           double maxrange,
+                                           HashSet<SimObject> ignore,
+                                           double[] ranges)
+    {
+        WorldSnapshot ws = sw.getSnapshot();
+
+        synchronized (sw.index) {
+            sw.index.refit(ws);
+
+            for (int i = 0; i < dirs.length; i++)
+                ranges[i] = collisionDistance(sw.index, eye, dirs[i], maxrange, ignore);
+        }
+    }
+
+    private static double collisionDistance(SpatialIndex index,
                                             double[] eye,
                                             double[] dir,
                                             double maxrange,
@@ -154,25 +169,7 @@ public class Sensors
             dist = Math.min(dist, LinAlg.distance(eye, xy0));
         }
 
-        for (SimObject so: sw.objects) {
-            if (ignore != null && ignore.contains(so))
-                continue;
-
-            // Non-collidable check
-            Shape s = so.getShape();
-            if (s.getBoundingRadius() < 0)
-                continue;
-
-            // Range check
-            double[][] T = so.getPose();
-            double[] xyzrpy = LinAlg.matrixToXyzrpy(T);
-            double d = LinAlg.distance(xyzrpy, eye, 3) - s.getBoundingRadius();
-            if (d > dist)
-                continue;
-
-            dist = Math.min(dist, Collisions.collisionDistance(eye, dir, s, T));
-        }
-
-        return dist;
+        // Only the objects near the ray are tested; see SpatialIndex.
+        return index.collisionDistance(eye, dir, dist, ignore);
     }
 }
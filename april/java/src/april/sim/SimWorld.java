@@ -2,8 +2,11 @@ package april.sim;
 
 import java.awt.*;
 import java.io.*;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import april.vis.*;
 import april.jmat.*;
@@ -19,45 +22,74 @@ public class SimWorld
 
     public ArrayList<SimObject> objects = new ArrayList<SimObject>();
 
+    // Latest published state of objects; see commit().
+    AtomicReference<WorldSnapshot> snapshot =
+        new AtomicReference<WorldSnapshot>(WorldSnapshot.capture(0, new ArrayList<SimObject>()));
+
+    // Broad-phase index over the latest snapshot, used by Sensors.
+    SpatialIndex index = new SpatialIndex(this);
+
+    // The world's noise sources; see getRandom().
+    RandomStreams random;
+
     // Tracks the most recent file (either load or write) for this world
     String path = null;
 
+    // As last set by setRunning()
+    boolean running = false;
+
+    // Constructors of the SimObject classes created so far, by name
+    static ConcurrentHashMap<String, Constructor<?>> constructors =
+        new ConcurrentHashMap<String, Constructor<?>>();
+
     public SimWorld(Config config)
     {
         this.config = config;
         handleConfig();
     }
 
+    /** Load a world from a file, in either the text or the binary
+     * form (see WorldFile). Objects of a text file that can't be read
+     * are skipped, with a warning. **/
     public SimWorld(String path, Config config) throws IOException
     {
         this.path = path;
         this.config = config;
         handleConfig();
 
-        StructureReader ins = new TextStructureReader(new BufferedReader(new FileReader(path)));
+        if (WorldFile.isWorldFile(path)) {
+            new WorldFile(path).materialize(this);
+            return;
+        }
+
+        TextStructureReader ins = new TextStructureReader(new BufferedReader(new FileReader(path)));
 
-        while (true) {
-            String cls = ins.readString();
+        try {
+            while (true) {
+                String cls = ins.readString();
 
-            if (cls == null) // EOF?
-                break;
+                if (cls == null) // EOF?
+                    break;
 
-            try {
-                SimObject so = createObject(this, cls);
-                if (so != null) {
+                int line = ins.getLineNumber();
+                try {
+                    SimObject so = newObject(this, cls);
                     ins.blockBegin();
                     so.read(ins);
+                    ins.blockEnd();
                     synchronized(this) {
                         objects.add(so);
                     }
-                    ins.blockEnd();
+                } catch (Exception ex) {
+                    String why = (ex instanceof IOException) ? ex.getMessage() : ex.toString();
+                    System.out.println("WRN: "+path+":"+line+": Skipping "+cls+": "+why);
+                    ins.skipBlock(0);
                 }
-            } catch (Exception ex) {
-                System.out.println("ex: "+ex);
             }
+        } finally {
+            ins.close();
         }
-
-        ins.close();
+        commit();
     }
 
     void handleConfig()
@@ -65,6 +97,10 @@ public class SimWorld
         if (config == null)
             config = new Config();
 
+        // Without a seed, a world is different every time, as before
+        long seed = config.getLong("simulator.seed", new Random().nextLong());
+        random = new RandomStreams(seed);
+
         double ll[] = config.getDoubles("simulator.latlon", null);
         if (ll != null)
             gpslin = new GPSLinearization(ll);
@@ -86,32 +122,148 @@ public class SimWorld
 
     }
 
+    /** Create an object of class cls, or print why not and return
+     * null. **/
     public static SimObject createObject(SimWorld sw, String cls)
     {
         try {
-            Object obj = Class.forName(cls).getConstructor(SimWorld.class).newInstance(sw);
-            assert (obj instanceof SimObject);
-            SimObject so = (SimObject) obj;
-            return so;
+            return newObject(sw, cls);
+        } catch (IOException ex) {
+            System.out.println("ex: "+ex);
+        }
+
+        return null;
+    }
+
+    /** Create an object of class cls, which must be a SimObject with a
+     * constructor taking a SimWorld. Each class is only looked up
+     * once. **/
+    public static SimObject newObject(SimWorld sw, String cls) throws IOException
+    {
+        Constructor<?> constructor = constructors.get(cls);
+        if (constructor == null) {
+            try {
+                Class<?> c = Class.forName(cls);
+                if (!SimObject.class.isAssignableFrom(c))
+                    throw new IOException(cls+" is not a SimObject");
+                constructor = c.getConstructor(SimWorld.class);
+            } catch (ClassNotFoundException ex) {
+                throw new IOException("No class "+cls);
+            } catch (NoSuchMethodException ex) {
+                throw new IOException(cls+" has no constructor taking a SimWorld");
+            }
+            constructors.put(cls, constructor);
+        }
 
+        try {
+            return (SimObject) constructor.newInstance(sw);
         } catch (InvocationTargetException ex) {
-            System.out.printf("ex: %s (%s)\n", ex, ex.getTargetException());
+            throw new IOException("Could not create "+cls+": "+ex.getTargetException(), ex.getTargetException());
         } catch (Exception ex) {
-            System.out.println("ex: "+ex);
+            throw new IOException("Could not create "+cls+": "+ex, ex);
         }
+    }
 
-        return null;
+    /** The named random number stream for one source of noise in
+     * this world (see RandomStreams). The streams are seeded from the
+     * config's simulator.seed, if given. **/
+    public Random getRandom(String name)
+    {
+        return random.get(name);
+    }
+
+    /** The seed from which every stream is derived. Log it to be able
+     * to reproduce a run. **/
+    public long getSeed()
+    {
+        return random.getSeed();
+    }
+
+    /** Reseed every stream, e.g. to reproduce a run. **/
+    public void setSeed(long seed)
+    {
+        random.setSeed(seed);
+    }
+
+    /** Save the state of the whole world, to restore() later. **/
+    public WorldCheckpoint checkpoint() throws IOException
+    {
+        return WorldCheckpoint.capture(this);
+    }
+
+    /** Put the world back the way it was at a checkpoint() of it. **/
+    public void restore(WorldCheckpoint checkpoint) throws IOException
+    {
+        checkpoint.restore(this);
+    }
+
+    /** The most recently committed state of the world. Readers may
+     * use it without synchronizing on the SimWorld. **/
+    public WorldSnapshot getSnapshot()
+    {
+        return snapshot.get();
+    }
+
+    /** Publish a new snapshot of every object. Call this after
+     * modifying objects (or the objects list) while holding the lock
+     * on this SimWorld. **/
+    public synchronized WorldSnapshot commit()
+    {
+        while (true) {
+            WorldSnapshot prev = snapshot.get();
+            WorldSnapshot next = WorldSnapshot.capture(prev.version + 1, objects, prev);
+            if (snapshot.compareAndSet(prev, next))
+                return next;
+        }
+    }
+
+    /** Publish a new snapshot in which only so's pose and shape have
+     * been re-read. Does not take the lock on this SimWorld unless so
+     * has not been committed before. **/
+    public WorldSnapshot commit(SimObject so)
+    {
+        while (true) {
+            WorldSnapshot prev = snapshot.get();
+            WorldSnapshot next = prev.update(prev.version + 1, so);
+            if (next == null)
+                return commit();
+            if (snapshot.compareAndSet(prev, next))
+                return next;
+        }
+    }
+
+    /** Callers must synchronize on the index and call refit() before
+     * querying. **/
+    public SpatialIndex getIndex()
+    {
+        return index;
     }
 
     public synchronized void setRunning(boolean b)
     {
+        running = b;
         for (SimObject so : objects)
             so.setRunning(b);
     }
 
+    /** Whether setRunning() last started the world's objects. **/
+    public synchronized boolean isRunning()
+    {
+        return running;
+    }
+
+    /** Write the world to path: in the binary form if it ends with
+     * WorldFile.EXTENSION, otherwise as text. **/
     public void write(String path) throws IOException
     {
         this.path = path;
+        if (path.endsWith(WorldFile.EXTENSION)) {
+            synchronized(this) {
+                WorldFile.write(objects, path);
+            }
+            return;
+        }
+
         FileWriter outs = new FileWriter(path);
         write(new BufferedWriter(outs));
         outs.close();
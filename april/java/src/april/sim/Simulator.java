@@ -447,12 +447,13 @@ public class Simulator implements VisConsole.Listener
                 // translate
                 if ((mods & InputEvent.BUTTON1_DOWN_MASK) == 0)
                     return false;
-                double T[][] = selectedObject.getPose();
+                double T[][] = LinAlg.copy(selectedObject.getPose());
                 T[0][3] += xy[0] - lastxy[0];
                 T[1][3] += xy[1] - lastxy[1];
                 selectedObject.setPose(T);
             }
 
+            world.commit();
             draw();
             lastxy = xy;
             return true;
@@ -508,6 +509,7 @@ public class Simulator implements VisConsole.Listener
                 selectedObject.setRunning(false);
                 synchronized(world) {
                     world.objects.remove(selectedObject);
+                    world.commit();
                 }
 
                 selectedObject = null;
@@ -548,6 +550,7 @@ public class Simulator implements VisConsole.Listener
 
                 synchronized(world) {
                     world.objects.add(selectedObject);
+                    world.commit();
                 }
 
             } else {
@@ -0,0 +1,505 @@
+package april.sim;
+
+import java.util.*;
+
+import april.config.*;
+import april.jmat.*;
+import april.util.*;
+
+/** A broad-phase index over the objects of a SimWorld. Each object's
+ * bounding sphere is rasterized into a uniform grid on the XY plane,
+ * and rays are walked through the grid cell by cell so that only the
+ * objects near the ray are tested with the exact (narrow-phase)
+ * Collisions code.
+ *
+ * Call refit() before querying: it reads the world's latest
+ * WorldSnapshot and only moves the objects whose footprint changed, so
+ * no lock on the SimWorld is needed. The index itself is not thread
+ * safe; each user either owns one or synchronizes on it.
+ **/
+public class SpatialIndex
+{
+    public static final double MIN_CELL_SIZE = 1.0; // meters
+    static final int MAX_GRID_DIM = 1024;            // cells per axis
+    static final int MAX_CELLS_PER_OBJECT = 256;     // bigger objects are always tested
+
+    SimWorld sw;
+
+    // Grid geometry. Cell (ix,iy) covers [x0 + ix*cellSize, x0 + (ix+1)*cellSize).
+    double x0, y0;
+    double cellSize = MIN_CELL_SIZE;
+    int width, height;
+    ArrayList<ArrayList<Entry>> cells = new ArrayList<ArrayList<Entry>>();
+
+    // One entry per object in the snapshot, in the same order.
+    ArrayList<Entry> entries = new ArrayList<Entry>();
+
+    // Version of the snapshot the index was last fit to.
+    long version = -1;
+
+    // Collidable objects too large to rasterize; tested by every query.
+    ArrayList<Entry> unbounded = new ArrayList<Entry>();
+
+    // Incremented per query so that objects spanning several cells
+    // are only tested once.
+    int stamp;
+
+    // Incremented whenever an object's pose or shape changes.
+    long changes;
+
+    // A point, for containment tests.
+    static final SphereShape POINT = new SphereShape(1e-6);
+
+    static class Entry
+    {
+        int id;         // position in entries (and the snapshot)
+        SimObject so;
+        Shape shape;
+        double T[][];
+        PosedShape posed;
+        double xyz[] = new double[3];
+        double r;       // bounding radius of the shape, as reported
+        double reach;   // bounding radius including the pose's scale
+
+        boolean inGrid, isUnbounded;
+        int ix0, iy0, ix1, iy1;
+        int stamp;
+    }
+
+    public SpatialIndex(SimWorld sw)
+    {
+        this.sw = sw;
+    }
+
+    /** Bring the index up to date with the world's latest snapshot.
+     * Cheap when few objects have moved. **/
+    public void refit()
+    {
+        refit(sw.getSnapshot());
+    }
+
+    public void refit(WorldSnapshot ws)
+    {
+        if (ws.version == version)
+            return;
+
+        if (ws.size() != entries.size()) {
+            rebuild(ws);
+            return;
+        }
+
+        version = ws.version;
+
+        for (int i = 0; i < entries.size(); i++) {
+            Entry e = entries.get(i);
+            if (e.so != ws.getObject(i)) {
+                rebuild(ws);
+                return;
+            }
+
+            int ix0 = e.ix0, iy0 = e.iy0, ix1 = e.ix1, iy1 = e.iy1;
+            boolean wasInGrid = e.inGrid, wasUnbounded = e.isUnbounded;
+            double T[][] = e.T;
+            Shape shape = e.shape;
+
+            read(e, ws);
+
+            // Snapshots share the pose of an object that hasn't moved
+            if (e.T != T || e.shape != shape)
+                changes++;
+
+            boolean collidable = e.r >= 0;
+            boolean unbounded = collidable && isUnbounded(e);
+
+            if (collidable && !unbounded && !contains(e)) {
+                rebuild(ws);
+                return;
+            }
+
+            if (wasInGrid == (collidable && !unbounded) && wasUnbounded == unbounded &&
+                ix0 == e.ix0 && iy0 == e.iy0 && ix1 == e.ix1 && iy1 == e.iy1)
+                continue;
+
+            // footprint changed: move the entry
+            int nx0 = e.ix0, ny0 = e.iy0, nx1 = e.ix1, ny1 = e.iy1;
+            e.ix0 = ix0; e.iy0 = iy0; e.ix1 = ix1; e.iy1 = iy1;
+            remove(e);
+
+            e.ix0 = nx0; e.iy0 = ny0; e.ix1 = nx1; e.iy1 = ny1;
+            insert(e, collidable, unbounded);
+        }
+    }
+
+    /** Discard the index and rebuild it from scratch, sizing the grid
+     * to the current extent of the world. **/
+    public void rebuild(WorldSnapshot ws)
+    {
+        version = ws.version;
+        changes++;
+        entries.clear();
+        unbounded.clear();
+        cells.clear();
+
+        double xmin = Double.MAX_VALUE, ymin = Double.MAX_VALUE;
+        double xmax = -Double.MAX_VALUE, ymax = -Double.MAX_VALUE;
+        int ncollidable = 0;
+
+        for (int i = 0; i < ws.size(); i++) {
+            Entry e = new Entry();
+            e.id = i;
+            e.so = ws.getObject(i);
+            read(e, ws);
+            entries.add(e);
+
+            if (e.r < 0)
+                continue;
+
+            xmin = Math.min(xmin, e.xyz[0] - e.reach);
+            ymin = Math.min(ymin, e.xyz[1] - e.reach);
+            xmax = Math.max(xmax, e.xyz[0] + e.reach);
+            ymax = Math.max(ymax, e.xyz[1] + e.reach);
+            ncollidable++;
+        }
+
+        if (ncollidable == 0) {
+            xmin = ymin = 0;
+            xmax = ymax = MIN_CELL_SIZE;
+        }
+
+        // Pad by a few cells so that small motions don't force a rebuild.
+        double extent = Math.max(xmax - xmin, ymax - ymin);
+        cellSize = Math.max(MIN_CELL_SIZE, extent / (MAX_GRID_DIM - 8));
+
+        x0 = xmin - 4*cellSize;
+        y0 = ymin - 4*cellSize;
+        width = (int) Math.ceil((xmax - xmin) / cellSize) + 8;
+        height = (int) Math.ceil((ymax - ymin) / cellSize) + 8;
+
+        for (int i = 0; i < width*height; i++)
+            cells.add(new ArrayList<Entry>());
+
+        for (Entry e : entries) {
+            footprint(e);
+            boolean collidable = e.r >= 0;
+            insert(e, collidable, collidable && isUnbounded(e));
+        }
+    }
+
+    /** Distance along the unit vector dir from eye to the first
+     * object surface, or maxrange if nothing closer is hit. Objects in
+     * ignore and non-collidable objects are skipped. **/
+    public double collisionDistance(double eye[], double dir[], double maxrange, HashSet<SimObject> ignore)
+    {
+        stamp++;
+        double dist = maxrange;
+
+        for (Entry e : unbounded)
+            dist = test(e, eye, dir, dist, ignore);
+
+        double dx = dir[0], dy = dir[1];
+
+        // A vertical ray never leaves the cell it starts in.
+        if (Math.abs(dx) < 1e-12 && Math.abs(dy) < 1e-12) {
+            int ix = (int) Math.floor((eye[0] - x0) / cellSize);
+            int iy = (int) Math.floor((eye[1] - y0) / cellSize);
+            if (ix >= 0 && iy >= 0 && ix < width && iy < height)
+                dist = testCell(ix, iy, eye, dir, dist, ignore);
+            return dist;
+        }
+
+        // Clip the ray against the grid's bounds.
+        double tmin = 0, tmax = dist;
+        double x1 = x0 + width*cellSize, y1 = y0 + height*cellSize;
+
+        if (dx == 0) {
+            if (eye[0] < x0 || eye[0] >= x1)
+                return dist;
+        } else {
+            double ta = (x0 - eye[0]) / dx, tb = (x1 - eye[0]) / dx;
+            tmin = Math.max(tmin, Math.min(ta, tb));
+            tmax = Math.min(tmax, Math.max(ta, tb));
+        }
+
+        if (dy == 0) {
+            if (eye[1] < y0 || eye[1] >= y1)
+                return dist;
+        } else {
+            double ta = (y0 - eye[1]) / dy, tb = (y1 - eye[1]) / dy;
+            tmin = Math.max(tmin, Math.min(ta, tb));
+            tmax = Math.min(tmax, Math.max(ta, tb));
+        }
+
+        if (tmin > tmax)
+            return dist;
+
+        // Walk the cells (Amanatides & Woo)
+        int ix = clamp((int) Math.floor((eye[0] + tmin*dx - x0) / cellSize), 0, width-1);
+        int iy = clamp((int) Math.floor((eye[1] + tmin*dy - y0) / cellSize), 0, height-1);
+
+        int stepx = dx > 0 ? 1 : -1;
+        int stepy = dy > 0 ? 1 : -1;
+
+        double tdeltax = dx == 0 ? Double.MAX_VALUE : cellSize / Math.abs(dx);
+        double tdeltay = dy == 0 ? Double.MAX_VALUE : cellSize / Math.abs(dy);
+
+        double tnextx = dx == 0 ? Double.MAX_VALUE : (x0 + (ix + (dx > 0 ? 1 : 0))*cellSize - eye[0]) / dx;
+        double tnexty = dy == 0 ? Double.MAX_VALUE : (y0 + (iy + (dy > 0 ? 1 : 0))*cellSize - eye[1]) / dy;
+
+        double tenter = tmin;
+
+        while (tenter <= dist) {
+            dist = testCell(ix, iy, eye, dir, dist, ignore);
+
+            if (tnextx < tnexty) {
+                tenter = tnextx;
+                tnextx += tdeltax;
+                ix += stepx;
+                if (ix < 0 || ix >= width)
+                    break;
+            } else {
+                tenter = tnexty;
+                tnexty += tdeltay;
+                iy += stepy;
+                if (iy < 0 || iy >= height)
+                    break;
+            }
+        }
+
+        return dist;
+    }
+
+    /** Counts the changes to the poses and shapes of the objects seen
+     * by refit(). While it stays the same, nothing has moved. **/
+    public long getChanges()
+    {
+        return changes;
+    }
+
+    /** Add to out the objects whose shapes contain the point xyz. **/
+    public void containing(double xyz[], Collection<SimObject> out)
+    {
+        ArrayList<Entry> nearby = new ArrayList<Entry>();
+        overlapping(xyz, 0, nearby);
+
+        double T[][] = LinAlg.translate(xyz[0], xyz[1], xyz[2]);
+        for (Entry e : nearby) {
+            if (Collisions.collision(e.shape, e.T, POINT, T))
+                out.add(e.so);
+        }
+    }
+
+    /** Add to out the collidable objects whose bounding spheres may
+     * overlap a sphere of radius r around xyz. Only the XY plane is
+     * considered, so the result is a superset; each object appears at
+     * most once. **/
+    void overlapping(double xyz[], double r, ArrayList<Entry> out)
+    {
+        stamp++;
+
+        for (Entry e : unbounded)
+            overlapping(e, xyz, r, out);
+
+        int ix0 = Math.max(0, (int) Math.floor((xyz[0] - r - x0) / cellSize));
+        int iy0 = Math.max(0, (int) Math.floor((xyz[1] - r - y0) / cellSize));
+        int ix1 = Math.min(width-1, (int) Math.floor((xyz[0] + r - x0) / cellSize));
+        int iy1 = Math.min(height-1, (int) Math.floor((xyz[1] + r - y0) / cellSize));
+
+        for (int iy = iy0; iy <= iy1; iy++) {
+            for (int ix = ix0; ix <= ix1; ix++) {
+                ArrayList<Entry> cell = cells.get(iy*width + ix);
+                for (int i = 0, n = cell.size(); i < n; i++)
+                    overlapping(cell.get(i), xyz, r, out);
+            }
+        }
+    }
+
+    final void overlapping(Entry e, double xyz[], double r, ArrayList<Entry> out)
+    {
+        if (e.stamp == stamp)
+            return;
+        e.stamp = stamp;
+
+        double dx = e.xyz[0] - xyz[0], dy = e.xyz[1] - xyz[1];
+        double d = e.reach + r;
+        if (dx*dx + dy*dy <= d*d)
+            out.add(e);
+    }
+
+    double testCell(int ix, int iy, double eye[], double dir[], double dist, HashSet<SimObject> ignore)
+    {
+        ArrayList<Entry> cell = cells.get(iy*width + ix);
+        for (int i = 0, n = cell.size(); i < n; i++)
+            dist = test(cell.get(i), eye, dir, dist, ignore);
+        return dist;
+    }
+
+    // The same range check and narrow phase the Sensors used to run
+    // against every object.
+    final double test(Entry e, double eye[], double dir[], double dist, HashSet<SimObject> ignore)
+    {
+        if (e.stamp == stamp)
+            return dist;
+        e.stamp = stamp;
+
+        if (ignore != null && ignore.contains(e.so))
+            return dist;
+
+        double d = LinAlg.distance(e.xyz, eye, 3) - e.r;
+        if (d > dist)
+            return dist;
+
+        return Math.min(dist, Collisions.collisionDistance(eye, dir, e.shape, e.T));
+    }
+
+    /** The shape of object i of ws, as far as this index is concerned.
+     * Subclasses can index some other shape than the one objects
+     * collide with; one with a negative bounding radius is left out.
+     **/
+    protected Shape getShape(WorldSnapshot ws, int i)
+    {
+        return ws.getShape(i);
+    }
+
+    void read(Entry e, WorldSnapshot ws)
+    {
+        e.shape = getShape(ws, e.id);
+        e.T = ws.getPose(e.id);
+        e.posed = (e.shape == ws.getShape(e.id)) ? ws.getPosedShape(e.id) : null;
+        e.xyz[0] = e.T[0][3];
+        e.xyz[1] = e.T[1][3];
+        e.xyz[2] = e.T[2][3];
+        e.r = e.shape.getBoundingRadius();
+
+        double scale = Math.sqrt(LinAlg.sq(e.T[0][0]) + LinAlg.sq(e.T[1][0]) + LinAlg.sq(e.T[2][0]));
+        e.reach = Math.max(1, scale) * e.r;
+
+        if (cells.size() > 0)
+            footprint(e);
+    }
+
+    void footprint(Entry e)
+    {
+        e.ix0 = (int) Math.floor((e.xyz[0] - e.reach - x0) / cellSize);
+        e.iy0 = (int) Math.floor((e.xyz[1] - e.reach - y0) / cellSize);
+        e.ix1 = (int) Math.floor((e.xyz[0] + e.reach - x0) / cellSize);
+        e.iy1 = (int) Math.floor((e.xyz[1] + e.reach - y0) / cellSize);
+    }
+
+    boolean contains(Entry e)
+    {
+        return e.ix0 >= 0 && e.iy0 >= 0 && e.ix1 < width && e.iy1 < height;
+    }
+
+    boolean isUnbounded(Entry e)
+    {
+        long ncells = (long) (e.ix1 - e.ix0 + 1) * (e.iy1 - e.iy0 + 1);
+        return ncells > MAX_CELLS_PER_OBJECT;
+    }
+
+    void insert(Entry e, boolean collidable, boolean isUnbounded)
+    {
+        e.inGrid = collidable && !isUnbounded;
+        e.isUnbounded = isUnbounded;
+
+        if (isUnbounded) {
+            unbounded.add(e);
+        } else if (e.inGrid) {
+            for (int iy = e.iy0; iy <= e.iy1; iy++)
+                for (int ix = e.ix0; ix <= e.ix1; ix++)
+                    cells.get(iy*width + ix).add(e);
+        }
+    }
+
+    void remove(Entry e)
+    {
+        if (e.isUnbounded) {
+            unbounded.remove(e);
+        } else if (e.inGrid) {
+            for (int iy = e.iy0; iy <= e.iy1; iy++)
+                for (int ix = e.ix0; ix <= e.ix1; ix++)
+                    cells.get(iy*width + ix).remove(e);
+        }
+        e.inGrid = false;
+        e.isUnbounded = false;
+    }
+
+    static final int clamp(int v, int min, int max)
+    {
+        return Math.max(min, Math.min(max, v));
+    }
+
+    /** Benchmark: per-scan laser latency versus object count, comparing
+     * the index against testing every object for every beam. **/
+    public static void main(String args[])
+    {
+        int counts[] = new int[] { 10, 100, 1000, 5000 };
+        int nscans = 20;
+
+        // Same beam layout as SimRobot's laser
+        double radstep = Math.atan2(0.1, 10);
+        double rad0 = Math.toRadians(-135);
+        int nranges = (int) (Math.toRadians(270) / radstep);
+        double maxrange = 29.9;
+
+        System.out.printf("%8s %15s %15s %12s\n", "objects", "linear ms/scan", "index ms/scan", "max error");
+
+        for (int n : counts) {
+            Random rand = new Random(n);
+            SimWorld sw = new SimWorld(new Config());
+
+            // Roughly constant density: ~one object per 4 m^2.
+            double side = 2*Math.sqrt(n);
+            for (int i = 0; i < n; i++) {
+                SimBox box = new SimBox(sw);
+                box.sxyz = new double[] { 0.2 + rand.nextDouble(), 0.2 + rand.nextDouble(), 0.5 + rand.nextDouble() };
+                box.last_sxyz = box.sxyz;
+                box.shape = new BoxShape(box.sxyz);
+                box.setPose(LinAlg.xyzrpyToMatrix(new double[] { side*rand.nextDouble(), side*rand.nextDouble(), 0.25,
+                                                                 0, 0, 2*Math.PI*rand.nextDouble() }));
+                sw.objects.add(box);
+            }
+            sw.commit();
+
+            double T[][] = LinAlg.xyzrpyToMatrix(new double[] { side/2, side/2, 0.25, 0, 0, 0 });
+            double eye[] = new double[] { T[0][3], T[1][3], T[2][3] };
+            double R[][] = LinAlg.copy(T);
+            R[0][3] = 0;
+            R[1][3] = 0;
+            R[2][3] = 0;
+
+            double linear[] = null;
+            Tic tic = new Tic();
+            for (int scan = 0; scan < nscans; scan++) {
+                linear = new double[nranges];
+                for (int i = 0; i < nranges; i++) {
+                    double dir[] = LinAlg.transform(R, new double[] { Math.cos(rad0 + i*radstep),
+                                                                     Math.sin(rad0 + i*radstep),
+                                                                     0 });
+                    double dist = maxrange;
+                    for (SimObject so : sw.objects) {
+                        Shape s = so.getShape();
+                        double P[][] = so.getPose();
+                        double d = LinAlg.distance(LinAlg.matrixToXyzrpy(P), eye, 3) - s.getBoundingRadius();
+                        if (d > dist)
+                            continue;
+                        dist = Math.min(dist, Collisions.collisionDistance(eye, dir, s, P));
+                    }
+                    linear[i] = dist;
+                }
+            }
+            double linearTime = tic.toc() / nscans;
+
+            double indexed[] = null;
+            tic = new Tic();
+            for (int scan = 0; scan < nscans; scan++)
+                indexed = Sensors.laser(sw, null, T, nranges, rad0, radstep, maxrange);
+            double indexTime = tic.toc() / nscans;
+
+            double err = 0;
+            for (int i = 0; i < nranges; i++)
+                err = Math.max(err, Math.abs(linear[i] - indexed[i]));
+
+            System.out.printf("%8d %15.3f %15.3f %12g\n", n, linearTime*1000, indexTime*1000, err);
+        }
+    }
+}
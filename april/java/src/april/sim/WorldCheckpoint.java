@@ -0,0 +1,208 @@
+package april.sim;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+import april.util.*;
+
+/** The state of a running world at one moment, in memory, so that the
+ *  world can later be put back the way it was: e.g., to start each
+ *  episode of a batch from the same state, or to try several actions
+ *  from one state and keep the best.
+ *
+ *  A checkpoint holds the objects themselves (not copies) and, in one
+ *  compact buffer, the state of each, as written by Checkpointable
+ *  objects (others are saved by their pose alone). It also holds the
+ *  world's random number streams and any static state registered with
+ *  addGlobal(), such as counters that hand out ids.
+ *
+ *  Restoring puts back the world's list of objects as it was (objects
+ *  added since are stopped and dropped, and those removed since are
+ *  returned, and started if the world is running) and then each
+ *  object's state. Simulated time does not go
+ *  back, so objects should keep times relative to it (e.g., how long
+ *  an alarm has been ringing) rather than absolute.
+ *
+ *  Capture and restore with the world quiet (e.g., between the steps
+ *  of a LockstepScheduler): each object is saved consistently, but
+ *  objects that move each other may be saved at slightly different
+ *  moments while the world is running. A checkpoint can be restored
+ *  any number of times, but only to the world it was captured from.
+ **/
+public class WorldCheckpoint
+{
+    /** Static state, shared by every world, that belongs in a
+     * checkpoint. **/
+    public interface Global
+    {
+        public void writeState(StructureWriter outs) throws IOException;
+        public void readState(StructureReader ins) throws IOException;
+    }
+
+    static LinkedHashMap<String, Global> globals = new LinkedHashMap<String, Global>();
+
+    /** Save g in every checkpoint from now on, under the given name. **/
+    public static synchronized void addGlobal(String name, Global g)
+    {
+        globals.put(name, g);
+    }
+
+    static synchronized LinkedHashMap<String, Global> getGlobals()
+    {
+        return new LinkedHashMap<String, Global>(globals);
+    }
+
+    ArrayList<SimObject> objects;
+    IdentityHashMap<SimObject, Integer> indices = new IdentityHashMap<SimObject, Integer>();
+
+    byte data[];
+
+    // Where each part of the state is in data: [start, end) of each
+    // global (by name), the random streams, and each object
+    LinkedHashMap<String, int[]> globalRanges = new LinkedHashMap<String, int[]>();
+    int randomRange[];
+    int objectStart[];
+
+    WorldCheckpoint(ArrayList<SimObject> objects)
+    {
+        this.objects = new ArrayList<SimObject>(objects);
+        for (int i = 0; i < this.objects.size(); i++)
+            indices.put(this.objects.get(i), i);
+    }
+
+    /** Save the state of sw. **/
+    public static WorldCheckpoint capture(SimWorld sw) throws IOException
+    {
+        synchronized(sw) {
+            WorldCheckpoint cp = new WorldCheckpoint(sw.objects);
+            cp.write(sw);
+            return cp;
+        }
+    }
+
+    void write(SimWorld sw) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryStructureWriter outs = new BinaryStructureWriter(new BufferedOutputStream(bytes));
+
+        for (Map.Entry<String, Global> e : getGlobals().entrySet()) {
+            int start = bytes.size();
+            e.getValue().writeState(outs);
+            outs.flush();
+            globalRanges.put(e.getKey(), new int[] { start, bytes.size() });
+        }
+
+        int start = bytes.size();
+        sw.random.writeState(outs);
+        outs.flush();
+        randomRange = new int[] { start, bytes.size() };
+
+        objectStart = new int[objects.size() + 1];
+        for (int i = 0; i < objects.size(); i++) {
+            objectStart[i] = bytes.size();
+            SimObject so = objects.get(i);
+            if (so instanceof Checkpointable)
+                ((Checkpointable) so).writeState(outs, this);
+            else
+                outs.writeMatrix(so.getPose());
+            outs.flush();
+        }
+        objectStart[objects.size()] = bytes.size();
+
+        data = bytes.toByteArray();
+    }
+
+    /** Put sw back the way it was when this checkpoint was captured. **/
+    public void restore(SimWorld sw) throws IOException
+    {
+        synchronized(sw) {
+            IdentityHashMap<SimObject, Boolean> present = new IdentityHashMap<SimObject, Boolean>();
+            for (SimObject so : sw.objects) {
+                present.put(so, Boolean.TRUE);
+                if (!indices.containsKey(so))
+                    so.setRunning(false);
+            }
+            sw.objects.clear();
+            sw.objects.addAll(objects);
+
+            LinkedHashMap<String, Global> current = getGlobals();
+            for (Map.Entry<String, int[]> e : globalRanges.entrySet()) {
+                Global g = current.get(e.getKey());
+                if (g == null)
+                    continue;
+                ByteBufferStructureReader ins = reader(e.getValue()[0], e.getValue()[1]);
+                g.readState(ins);
+                check(ins, e.getValue(), e.getKey());
+            }
+
+            ByteBufferStructureReader ins = reader(randomRange[0], randomRange[1]);
+            sw.random.readState(ins);
+            check(ins, randomRange, "the random streams");
+
+            for (int i = 0; i < objects.size(); i++) {
+                SimObject so = objects.get(i);
+                String what = "object "+i+" ("+so.getClass().getName()+")";
+
+                ins = reader(objectStart[i], objectStart[i+1]);
+                try {
+                    if (so instanceof Checkpointable)
+                        ((Checkpointable) so).readState(ins, this);
+                    else
+                        so.setPose(ins.readMatrix());
+                } catch (IOException ex) {
+                    throw new IOException("Could not restore "+what+": "+ex.getMessage(), ex);
+                }
+                check(ins, new int[] { objectStart[i], objectStart[i+1] }, what);
+            }
+
+            sw.commit();
+
+            // Start the returned objects once they are as they were
+            if (sw.isRunning()) {
+                for (SimObject so : objects) {
+                    if (!present.containsKey(so))
+                        so.setRunning(true);
+                }
+            }
+        }
+    }
+
+    ByteBufferStructureReader reader(int start, int end)
+    {
+        return new ByteBufferStructureReader(ByteBuffer.wrap(data, start, end - start).slice());
+    }
+
+    static void check(ByteBufferStructureReader ins, int range[], String what) throws IOException
+    {
+        if (ins.getPosition() != range[1] - range[0])
+            throw new IOException("Restoring "+what+" read "+ins.getPosition()+
+                                  " of its "+(range[1] - range[0])+" bytes");
+    }
+
+    /** The index of so among the checkpoint's objects, for saving a
+     * reference to it; -1 for null (or an object not in the world). **/
+    public int indexOf(SimObject so)
+    {
+        Integer i = (so == null) ? null : indices.get(so);
+        return (i == null) ? -1 : i;
+    }
+
+    /** The object at an index from indexOf(), or null for -1. **/
+    public SimObject getObject(int i)
+    {
+        return (i < 0) ? null : objects.get(i);
+    }
+
+    /** The number of objects in the checkpoint. **/
+    public int getNumObjects()
+    {
+        return objects.size();
+    }
+
+    /** The size of the saved state, in bytes. **/
+    public int size()
+    {
+        return data.length;
+    }
+}
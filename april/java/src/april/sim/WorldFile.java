@@ -0,0 +1,363 @@
+package april.sim;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import april.config.*;
+import april.jmat.*;
+import april.util.*;
+
+/** A world in a compact binary form, for worlds too large to load
+ *  quickly from text. SimWorld reads either form (and writes this one
+ *  to paths ending in EXTENSION); "WorldFile in out" converts between
+ *  them.
+ *
+ *  The file is a header, an index with one entry per object, and then
+ *  each object as its write() method wrote it, through a
+ *  BinaryStructureWriter. All numbers are big-endian.
+ *
+ *  <pre>
+ *  long      MAGIC
+ *  int       VERSION
+ *  int       number of classes, then each class name (int length, UTF-8)
+ *  int       number of objects, then for each object:
+ *    int     class (index into the class names)
+ *    long    offset of the object's data, from the start of the file
+ *    int     length of the object's data
+ *    double  x, y, z of the object's center, and its bounding radius
+ *  </pre>
+ *
+ *  The file is memory-mapped, and objects are only created when asked
+ *  for (materialize), so that, e.g., just the part of a large world
+ *  around the robot can be loaded, and the rest later as it is needed.
+ *  A WorldFile remembers which objects it has created, so each is only
+ *  created once; use a WorldFile for only one SimWorld.
+ **/
+public class WorldFile
+{
+    public static final long MAGIC = 0x53494d574f524c44L; // "SIMWORLD"
+    public static final int VERSION = 1;
+
+    public static final String EXTENSION = ".bworld";
+
+    String path;
+    ByteBuffer buf;
+
+    String classes[];
+
+    // For each object
+    int cls[];
+    long offset[];
+    int length[];
+    double bounds[]; // x, y, z, radius
+
+    BitSet materialized;
+
+    public WorldFile(String path) throws IOException
+    {
+        this.path = path;
+
+        RandomAccessFile raf = new RandomAccessFile(path, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException(path+": Too large ("+channel.size()+" bytes)");
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+
+        try {
+            readIndex();
+        } catch (BufferUnderflowException ex) {
+            throw new EOFException(path+": Truncated index");
+        }
+    }
+
+    void readIndex() throws IOException
+    {
+        if (buf.remaining() < 12 || buf.getLong() != MAGIC)
+            throw new IOException(path+": Not a binary world file");
+        int version = buf.getInt();
+        if (version != VERSION)
+            throw new IOException(path+": Unsupported version "+version+" (expected "+VERSION+")");
+
+        classes = new String[buf.getInt()];
+        for (int i = 0; i < classes.length; i++) {
+            byte b[] = new byte[buf.getInt()];
+            buf.get(b);
+            classes[i] = new String(b, "UTF-8");
+        }
+
+        int n = buf.getInt();
+        cls = new int[n];
+        offset = new long[n];
+        length = new int[n];
+        bounds = new double[4*n];
+        for (int i = 0; i < n; i++) {
+            cls[i] = buf.getInt();
+            offset[i] = buf.getLong();
+            length[i] = buf.getInt();
+            for (int j = 0; j < 4; j++)
+                bounds[4*i+j] = buf.getDouble();
+
+            if (cls[i] < 0 || cls[i] >= classes.length || offset[i] < 0 || length[i] < 0 ||
+                offset[i] + length[i] > buf.capacity())
+                throw new IOException(path+": Bad index entry for object "+i);
+        }
+
+        materialized = new BitSet(n);
+    }
+
+    /** Whether the file at path is a binary world file (rather than
+     * text). **/
+    public static boolean isWorldFile(String path) throws IOException
+    {
+        DataInputStream ins = new DataInputStream(new FileInputStream(path));
+        try {
+            return ins.readLong() == MAGIC;
+        } catch (EOFException ex) {
+            return false;
+        } finally {
+            ins.close();
+        }
+    }
+
+    /** The number of objects in the file. **/
+    public int size()
+    {
+        return cls.length;
+    }
+
+    public String getClassName(int i)
+    {
+        return classes[cls[i]];
+    }
+
+    /** The center (x, y, z) of object i when the file was written, and
+     * its bounding radius. **/
+    public double[] getBounds(int i)
+    {
+        return Arrays.copyOfRange(bounds, 4*i, 4*i+4);
+    }
+
+    /** Whether object i has been created by materialize. **/
+    public boolean isMaterialized(int i)
+    {
+        return materialized.get(i);
+    }
+
+    /** Create object i, for the world sw. It is not added to sw. **/
+    public SimObject read(SimWorld sw, int i) throws IOException
+    {
+        String name = getClassName(i);
+
+        ByteBuffer data = buf.duplicate();
+        data.position((int) offset[i]);
+        data.limit((int) offset[i] + length[i]);
+        ByteBufferStructureReader ins = new ByteBufferStructureReader(data.slice());
+
+        SimObject so;
+        try {
+            so = SimWorld.newObject(sw, name);
+            so.read(ins);
+        } catch (Exception ex) {
+            String why = (ex instanceof IOException) ? ex.getMessage() : ex.toString();
+            throw new IOException(path+": Could not read object "+i+" ("+name+"): "+why, ex);
+        }
+        if (ins.getPosition() != length[i])
+            throw new IOException(path+": Object "+i+" ("+name+") read "+ins.getPosition()+
+                                  " of its "+length[i]+" bytes");
+        return so;
+    }
+
+    /** Create every object not yet created, and add them to sw. **/
+    public ArrayList<SimObject> materialize(SimWorld sw) throws IOException
+    {
+        return materialize(sw, null, 0);
+    }
+
+    /** Create the objects not yet created that are within radius of
+     * xyz (that is, whose bounding spheres reach within radius of it),
+     * and add them to sw. Returns the objects added. **/
+    public ArrayList<SimObject> materialize(SimWorld sw, double xyz[], double radius) throws IOException
+    {
+        ArrayList<SimObject> added = new ArrayList<SimObject>();
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        for (int i = materialized.nextClearBit(0); i < size(); i = materialized.nextClearBit(i+1)) {
+            if (xyz != null) {
+                double dx = bounds[4*i+0] - xyz[0];
+                double dy = bounds[4*i+1] - xyz[1];
+                double dz = bounds[4*i+2] - xyz[2];
+                double r = radius + Math.max(0, bounds[4*i+3]);
+                if (dx*dx + dy*dy + dz*dz > r*r)
+                    continue;
+            }
+            added.add(read(sw, i));
+            ids.add(i);
+        }
+
+        if (added.size() > 0) {
+            synchronized(sw) {
+                sw.objects.addAll(added);
+                sw.commit();
+            }
+            for (int i : ids)
+                materialized.set(i);
+        }
+        return added;
+    }
+
+    /** Write objects to path in the binary form. **/
+    public static void write(Collection<SimObject> objects, String path) throws IOException
+    {
+        ArrayList<String> classes = new ArrayList<String>();
+        HashMap<String, Integer> classIds = new HashMap<String, Integer>();
+
+        // Each object's data, all in one buffer
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        BinaryStructureWriter dataOuts = new BinaryStructureWriter(new BufferedOutputStream(data));
+
+        int n = objects.size();
+        int cls[] = new int[n];
+        long offset[] = new long[n];
+        int length[] = new int[n];
+        double bounds[][] = new double[n][];
+
+        int i = 0;
+        for (SimObject so : objects) {
+            String name = so.getClass().getName();
+            Integer id = classIds.get(name);
+            if (id == null) {
+                id = classes.size();
+                classes.add(name);
+                classIds.put(name, id);
+            }
+            cls[i] = id;
+
+            dataOuts.flush();
+            offset[i] = data.size();
+            so.write(dataOuts);
+            dataOuts.flush();
+            length[i] = (int) (data.size() - offset[i]);
+
+            double T[][] = so.getPose();
+            Shape shape = so.getShape();
+            bounds[i] = new double[] { T[0][3], T[1][3], T[2][3],
+                                       shape == null ? 0 : shape.getBoundingRadius() };
+            i++;
+        }
+
+        byte classNames[][] = new byte[classes.size()][];
+        long headerSize = 8 + 4 + 4 + 4;
+        for (int c = 0; c < classNames.length; c++) {
+            classNames[c] = classes.get(c).getBytes("UTF-8");
+            headerSize += 4 + classNames[c].length;
+        }
+        headerSize += (long) n * (4 + 8 + 4 + 4*8);
+
+        DataOutputStream outs = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+        try {
+            outs.writeLong(MAGIC);
+            outs.writeInt(VERSION);
+            outs.writeInt(classNames.length);
+            for (byte name[] : classNames) {
+                outs.writeInt(name.length);
+                outs.write(name);
+            }
+            outs.writeInt(n);
+            for (i = 0; i < n; i++) {
+                outs.writeInt(cls[i]);
+                outs.writeLong(headerSize + offset[i]);
+                outs.writeInt(length[i]);
+                for (double v : bounds[i])
+                    outs.writeDouble(v);
+            }
+            data.writeTo(outs);
+        } finally {
+            outs.close();
+        }
+    }
+
+    /** Convert a world file from text to binary or back, according to
+     * the extension of out (see EXTENSION).
+     *
+     * With -b, a benchmark instead: the time to load a generated world
+     * of boxes from text, from binary, and just the part of it near
+     * one corner.
+     *
+     * Usage: WorldFile in out
+     *        WorldFile -b [objects]
+     **/
+    public static void main(String args[]) throws IOException
+    {
+        if (args.length >= 1 && args[0].equals("-b")) {
+            benchmark(args.length > 1 ? Integer.parseInt(args[1]) : 100000);
+            System.exit(0);
+        }
+
+        if (args.length != 2) {
+            System.out.println("Usage: WorldFile in out");
+            System.out.println("       WorldFile -b [objects]");
+            System.exit(1);
+        }
+
+        Tic tic = new Tic();
+        SimWorld world = new SimWorld(args[0], new Config());
+        double readTime = tic.toctic();
+        world.write(args[1]);
+        double writeTime = tic.toc();
+
+        System.out.printf("%d objects: read %s in %.3f s, wrote %s in %.3f s\n",
+                          world.objects.size(), args[0], readTime, args[1], writeTime);
+        System.exit(0);
+    }
+
+    static void benchmark(int n) throws IOException
+    {
+        SimWorld world = new SimWorld(new Config());
+        int side = (int) Math.ceil(Math.sqrt(n));
+        for (int i = 0; i < n; i++) {
+            SimBox box = new SimBox(world);
+            box.T = LinAlg.xyzrpyToMatrix(new double[] { i % side, i / side, 0.5, 0, 0, 0.1*i });
+            box.sxyz = new double[] { 0.5, 0.5, 1.0 };
+            world.objects.add(box);
+        }
+
+        File text = File.createTempFile("world", ".world");
+        File binary = File.createTempFile("world", EXTENSION);
+        text.deleteOnExit();
+        binary.deleteOnExit();
+        world.write(text.getPath());
+        world.write(binary.getPath());
+
+        System.out.printf("%d objects: %.1f MB as text, %.1f MB as binary\n", n,
+                          text.length()/1.0e6, binary.length()/1.0e6);
+        System.out.printf("%-24s %12s %10s\n", "load", "time (ms)", "objects");
+
+        // Each twice, to warm up; the second is reported
+        for (int rep = 0; rep < 2; rep++) {
+            Tic tic = new Tic();
+            SimWorld w = new SimWorld(text.getPath(), new Config());
+            double textTime = tic.toc();
+
+            tic = new Tic();
+            SimWorld wb = new SimWorld(binary.getPath(), new Config());
+            double binaryTime = tic.toc();
+
+            tic = new Tic();
+            SimWorld wl = new SimWorld(new Config());
+            WorldFile file = new WorldFile(binary.getPath());
+            file.materialize(wl, new double[] { 0, 0, 0 }, 20);
+            double lazyTime = tic.toc();
+
+            if (rep == 1) {
+                System.out.printf("%-24s %12.1f %10d\n", "text", textTime*1000, w.objects.size());
+                System.out.printf("%-24s %12.1f %10d\n", "binary", binaryTime*1000, wb.objects.size());
+                System.out.printf("%-24s %12.1f %10d\n", "binary, 20 m of corner", lazyTime*1000, wl.objects.size());
+            }
+        }
+    }
+}
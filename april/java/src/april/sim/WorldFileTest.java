@@ -0,0 +1,222 @@
+package april.sim;
+
+import java.awt.*;
+import java.io.*;
+import java.util.*;
+
+import april.config.*;
+import april.jmat.*;
+import april.util.*;
+
+/** Checks that a world survives being written and read back in the
+ * binary form (see WorldFile): the same objects, in the same order,
+ * where they were; that loading part of a binary world loads just the
+ * objects near a point; and that a text world with objects that can't
+ * be read still loads the rest. Exits with a non-zero status if a check
+ * fails. **/
+public class WorldFileTest
+{
+    public static void main(String args[])
+    {
+        try {
+            testRoundTrip();
+            testTextToBinary();
+            testMaterializeNear();
+            testSkipUnreadable();
+            testNotAWorldFile();
+        } catch (Exception ex) {
+            Checks.fail(ex);
+        } finally {
+            Checks.exit();
+        }
+    }
+
+    /** A world of boxes and spheres, scattered over side x side meters. **/
+    static SimWorld makeWorld(int n, double side)
+    {
+        SimWorld world = new SimWorld(new Config());
+        Random r = new Random(n);
+
+        for (int i = 0; i < n; i++) {
+            double xyzrpy[] = new double[] { side*r.nextDouble(), side*r.nextDouble(), r.nextDouble(),
+                                             0, 0, 2*Math.PI*r.nextDouble() - Math.PI };
+            Color color = new Color(r.nextFloat(), r.nextFloat(), r.nextFloat());
+
+            if (i % 3 == 2) {
+                SimSphere sphere = new SimSphere(world);
+                sphere.T = LinAlg.xyzrpyToMatrix(xyzrpy);
+                sphere.r = 0.1 + r.nextDouble();
+                sphere.color = color;
+                world.objects.add(sphere);
+            } else {
+                SimBox box = new SimBox(world);
+                box.T = LinAlg.xyzrpyToMatrix(xyzrpy);
+                box.sxyz = new double[] { 0.1 + r.nextDouble(), 0.1 + r.nextDouble(), 0.1 + r.nextDouble() };
+                box.color = color;
+                world.objects.add(box);
+            }
+        }
+        return world;
+    }
+
+    /** Binary, and back: every object, as it was. **/
+    static void testRoundTrip() throws IOException
+    {
+        SimWorld world = makeWorld(100, 20);
+        File f = tempFile(WorldFile.EXTENSION);
+        world.write(f.getPath());
+
+        Checks.check(WorldFile.isWorldFile(f.getPath()), "written as binary");
+        SimWorld loaded = new SimWorld(f.getPath(), new Config());
+
+        Checks.check(loaded.objects.size() == world.objects.size(),
+                     "round trip: "+loaded.objects.size()+" of "+world.objects.size()+" objects");
+        for (int i = 0; i < Math.min(world.objects.size(), loaded.objects.size()); i++) {
+            SimObject a = world.objects.get(i), b = loaded.objects.get(i);
+            Checks.check(a.getClass() == b.getClass(), "object "+i+" is a "+b.getClass().getName());
+            double dT[][] = LinAlg.subtract(a.getPose(), b.getPose());
+            Checks.check(Math.max(LinAlg.max(dT), -LinAlg.min(dT)) < 1e-9, "object "+i+" pose");
+            Checks.check(Math.abs(a.getShape().getBoundingRadius() - b.getShape().getBoundingRadius()) < 1e-9,
+                         "object "+i+" size");
+        }
+
+        // Poses are stored as xyzrpy, so the first trip may round them,
+        // but no further trip changes anything
+        File f2 = tempFile(WorldFile.EXTENSION);
+        loaded.write(f2.getPath());
+        SimWorld reloaded = new SimWorld(f2.getPath(), new Config());
+        Checks.check(toText(reloaded).equals(toText(loaded)), "second round trip: same text");
+    }
+
+    /** A text world converted to binary loads as the text does. **/
+    static void testTextToBinary() throws IOException
+    {
+        File text = tempFile(".world");
+        makeWorld(50, 10).write(text.getPath());
+
+        SimWorld fromText = new SimWorld(text.getPath(), new Config());
+        File binary = tempFile(WorldFile.EXTENSION);
+        fromText.write(binary.getPath());
+        SimWorld fromBinary = new SimWorld(binary.getPath(), new Config());
+
+        Checks.check(fromBinary.objects.size() == 50, "text to binary: "+fromBinary.objects.size()+" objects");
+        Checks.check(toText(fromBinary).equals(toText(fromText)), "text to binary: same text");
+    }
+
+    /** Loading near a point loads exactly the objects that reach within
+     * the radius, each once. **/
+    static void testMaterializeNear() throws IOException
+    {
+        SimWorld world = makeWorld(400, 40);
+        File f = tempFile(WorldFile.EXTENSION);
+        world.write(f.getPath());
+
+        double xyz[] = new double[] { 10, 10, 0 };
+        double radius = 5;
+
+        int near = 0;
+        for (SimObject so : world.objects) {
+            double T[][] = so.getPose();
+            double d = LinAlg.distance(xyz, new double[] { T[0][3], T[1][3], T[2][3] });
+            if (d <= radius + so.getShape().getBoundingRadius())
+                near++;
+        }
+
+        SimWorld partial = new SimWorld(new Config());
+        WorldFile file = new WorldFile(f.getPath());
+        ArrayList<SimObject> added = file.materialize(partial, xyz, radius);
+        Checks.check(near > 0 && near < world.objects.size(), "some but not all objects near: "+near);
+        Checks.check(added.size() == near, "loaded "+added.size()+" objects near, expected "+near);
+        Checks.check(partial.objects.size() == near, "world has just the near objects");
+
+        // Again: nothing new
+        Checks.check(file.materialize(partial, xyz, radius).isEmpty(), "near objects loaded once");
+
+        file.materialize(partial);
+        Checks.check(partial.objects.size() == world.objects.size(),
+                     "the rest loaded: "+partial.objects.size()+" of "+world.objects.size());
+        for (int i = 0; i < file.size(); i++)
+            Checks.check(file.isMaterialized(i), "object "+i+" loaded");
+    }
+
+    /** Objects of unknown classes, or whose data can't be read, are
+     * skipped, nested blocks and all. **/
+    static void testSkipUnreadable() throws IOException
+    {
+        File f = tempFile(".world");
+        PrintWriter outs = new PrintWriter(new FileWriter(f));
+        outs.println("\"april.sim.SimBox\"");
+        outs.println("{");
+        outs.println("  vec 6");
+        outs.println("    1 2 0.5 0 0 0");
+        outs.println("  vec 3");
+        outs.println("    1 1 1");
+        outs.println("  vec 4");
+        outs.println("    0.5 0.5 0.5 1");
+        outs.println("}");
+        outs.println("\"april.sim.NoSuchObject\"");
+        outs.println("{");
+        outs.println("  {");
+        outs.println("    3");
+        outs.println("  }");
+        outs.println("}");
+        outs.println("\"april.sim.SimSphere\"");
+        outs.println("{");
+        outs.println("  not a number");
+        outs.println("}");
+        outs.println("\"april.sim.SimBox\"");
+        outs.println("{");
+        outs.println("  vec 6");
+        outs.println("    3 4 0.5 0 0 0");
+        outs.println("  vec 3");
+        outs.println("    1 1 1");
+        outs.println("  vec 4");
+        outs.println("    0.5 0.5 0.5 1");
+        outs.println("}");
+        outs.close();
+
+        SimWorld world = new SimWorld(f.getPath(), new Config());
+        Checks.check(world.objects.size() == 2, "skipped the unreadable objects: "+world.objects.size()+" loaded");
+        if (world.objects.size() == 2) {
+            Checks.check(world.objects.get(0).getPose()[0][3] == 1, "first box");
+            Checks.check(world.objects.get(1).getPose()[0][3] == 3, "box after the skipped objects");
+        }
+    }
+
+    /** A text file is not mistaken for a binary one, and a binary one
+     * from another version is refused. **/
+    static void testNotAWorldFile() throws IOException
+    {
+        File text = tempFile(".world");
+        makeWorld(3, 1).write(text.getPath());
+        Checks.check(!WorldFile.isWorldFile(text.getPath()), "text is not binary");
+
+        File f = tempFile(WorldFile.EXTENSION);
+        DataOutputStream outs = new DataOutputStream(new FileOutputStream(f));
+        outs.writeLong(WorldFile.MAGIC);
+        outs.writeInt(WorldFile.VERSION + 1);
+        outs.writeInt(0);
+        outs.writeInt(0);
+        outs.close();
+
+        try {
+            new WorldFile(f.getPath());
+            Checks.check(false, "other version refused");
+        } catch (IOException ex) {
+        }
+    }
+
+    static String toText(SimWorld world) throws IOException
+    {
+        StringWriter sw = new StringWriter();
+        world.write(new BufferedWriter(sw));
+        return sw.toString();
+    }
+
+    static File tempFile(String extension) throws IOException
+    {
+        File f = File.createTempFile("worldfiletest", extension);
+        f.deleteOnExit();
+        return f;
+    }
+}
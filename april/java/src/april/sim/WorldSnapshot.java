@@ -0,0 +1,261 @@
+package april.sim;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import april.config.*;
+import april.jmat.*;
+import april.util.*;
+
+/** An immutable, versioned copy of the objects in a SimWorld along
+ * with their poses and shapes. SimWorld publishes a new snapshot each
+ * time a writer calls commit(), so readers (sensors, detectors, region
+ * lookups) can use getSnapshot() without taking the world's lock.
+ *
+ * The pose matrices are private copies and must not be modified.
+ * Shapes are shared with the objects; they are treated as immutable.
+ **/
+public final class WorldSnapshot
+{
+    public final long version;
+
+    final SimObject objects[];
+    final double poses[][][];
+    final Shape shapes[];
+    final PosedShape posed[];
+
+    // Shared by every snapshot with the same objects array. Never
+    // modified once built, so any thread may read them.
+    final IdentityHashMap<SimObject, Integer> indices;
+    final List<SimObject> objectList;
+
+    WorldSnapshot(long version, SimObject objects[], double poses[][][], Shape shapes[], PosedShape posed[])
+    {
+        this.version = version;
+        this.objects = objects;
+        this.poses = poses;
+        this.shapes = shapes;
+        this.posed = posed;
+
+        indices = new IdentityHashMap<SimObject, Integer>();
+        for (int i = 0; i < objects.length; i++)
+            indices.put(objects[i], i);
+        objectList = Collections.unmodifiableList(Arrays.asList(objects));
+    }
+
+    /** A snapshot of the same objects as prev. **/
+    WorldSnapshot(long version, WorldSnapshot prev, double poses[][][], Shape shapes[], PosedShape posed[])
+    {
+        this.version = version;
+        this.objects = prev.objects;
+        this.poses = poses;
+        this.shapes = shapes;
+        this.posed = posed;
+
+        indices = prev.indices;
+        objectList = prev.objectList;
+    }
+
+    /** Read every object's pose and shape. The caller must prevent
+     * concurrent modification of sw.objects. **/
+    static WorldSnapshot capture(long version, ArrayList<SimObject> objs)
+    {
+        return capture(version, objs, null);
+    }
+
+    /** As capture(version, objs), but objects whose shape (by
+     * identity) and pose (by value) are unchanged since prev share
+     * prev's copies, so that committing a mostly static world
+     * allocates little. **/
+    static WorldSnapshot capture(long version, ArrayList<SimObject> objs, WorldSnapshot prev)
+    {
+        int n = objs.size();
+        SimObject objects[] = new SimObject[n];
+        double poses[][][] = new double[n][][];
+        Shape shapes[] = new Shape[n];
+        PosedShape posed[] = new PosedShape[n];
+
+        boolean sameObjects = prev != null && prev.objects.length == n;
+
+        for (int i = 0; i < n; i++) {
+            SimObject so = objs.get(i);
+            objects[i] = so;
+
+            double T[][] = so.getPose();
+            Shape shape = so.getShape();
+
+            int j = prev == null ? -1 : prev.indexOf(so);
+            sameObjects &= (j == i);
+
+            if (j >= 0 && prev.shapes[j] == shape && equals(prev.poses[j], T)) {
+                poses[i] = prev.poses[j];
+                shapes[i] = shape;
+                posed[i] = prev.posed[j];
+            } else {
+                poses[i] = LinAlg.copy(T);
+                shapes[i] = shape;
+                posed[i] = new PosedShape(shape, poses[i]);
+            }
+        }
+
+        if (sameObjects)
+            return new WorldSnapshot(version, prev, poses, shapes, posed);
+
+        return new WorldSnapshot(version, objects, poses, shapes, posed);
+    }
+
+    static final boolean equals(double A[][], double B[][])
+    {
+        for (int i = 0; i < 4; i++)
+            for (int j = 0; j < 4; j++)
+                if (A[i][j] != B[i][j])
+                    return false;
+        return true;
+    }
+
+    /** A copy of this snapshot with the pose and shape of a single
+     * object re-read. Returns null if so is not in this snapshot. **/
+    WorldSnapshot update(long version, SimObject so)
+    {
+        int idx = indexOf(so);
+        if (idx < 0)
+            return null;
+
+        double newPoses[][][] = poses.clone();
+        Shape newShapes[] = shapes.clone();
+        PosedShape newPosed[] = posed.clone();
+        newPoses[idx] = LinAlg.copy(so.getPose());
+        newShapes[idx] = so.getShape();
+        newPosed[idx] = new PosedShape(newShapes[idx], newPoses[idx]);
+
+        return new WorldSnapshot(version, this, newPoses, newShapes, newPosed);
+    }
+
+    public int size()
+    {
+        return objects.length;
+    }
+
+    public SimObject getObject(int i)
+    {
+        return objects[i];
+    }
+
+    /** The object's pose when the snapshot was taken. Do not modify. **/
+    public double[][] getPose(int i)
+    {
+        return poses[i];
+    }
+
+    public Shape getShape(int i)
+    {
+        return shapes[i];
+    }
+
+    /** The object's shape flattened into world-frame primitives at
+     * its snapshot pose. Do not modify. **/
+    public PosedShape getPosedShape(int i)
+    {
+        return posed[i];
+    }
+
+    public int indexOf(SimObject so)
+    {
+        Integer i = indices.get(so);
+        return i == null ? -1 : i;
+    }
+
+    /** An unmodifiable view of the objects, in sw.objects order. **/
+    public List<SimObject> getObjects()
+    {
+        return objectList;
+    }
+
+    /** Benchmark: how long does a 50 Hz writer (like
+     * DifferentialDrive) wait while readers scan the world, with the
+     * readers holding the world lock versus reading snapshots? **/
+    public static void main(String args[]) throws Exception
+    {
+        int nobjects = 1000;
+        int nreaders = 3;
+        int nticks = 250;
+
+        for (int mode = 0; mode < 2; mode++) {
+            final boolean useSnapshots = (mode == 1);
+            final SimWorld sw = new SimWorld(new Config());
+            Random rand = new Random(0);
+
+            for (int i = 0; i < nobjects; i++) {
+                SimBox box = new SimBox(sw);
+                box.sxyz = new double[] { 0.5, 0.5, 1 };
+                box.last_sxyz = box.sxyz;
+                box.shape = new BoxShape(box.sxyz);
+                box.setPose(LinAlg.translate(60*rand.nextDouble(), 60*rand.nextDouble(), 0.5));
+                sw.objects.add(box);
+            }
+            sw.commit();
+
+            final AtomicBoolean done = new AtomicBoolean(false);
+            final AtomicLong scans = new AtomicLong();
+            ArrayList<Thread> readers = new ArrayList<Thread>();
+
+            for (int r = 0; r < nreaders; r++) {
+                Thread t = new Thread() {
+                    public void run()
+                    {
+                        double eye[] = new double[] { 30, 30, 0.5 };
+                        while (!done.get()) {
+                            // one 270 degree scan, every beam against every object
+                            if (useSnapshots) {
+                                WorldSnapshot ws = sw.getSnapshot();
+                                for (int i = 0; i < 270; i++) {
+                                    double dir[] = new double[] { Math.cos(Math.toRadians(i)), Math.sin(Math.toRadians(i)), 0 };
+                                    for (int j = 0; j < ws.size(); j++)
+                                        Collisions.collisionDistance(eye, dir, ws.getShape(j), ws.getPose(j));
+                                }
+                            } else {
+                                synchronized(sw) {
+                                    for (int i = 0; i < 270; i++) {
+                                        double dir[] = new double[] { Math.cos(Math.toRadians(i)), Math.sin(Math.toRadians(i)), 0 };
+                                        for (SimObject so : sw.objects)
+                                            Collisions.collisionDistance(eye, dir, so.getShape(), so.getPose());
+                                    }
+                                }
+                            }
+                            scans.incrementAndGet();
+                        }
+                    }
+                };
+                t.start();
+                readers.add(t);
+            }
+
+            // The writer moves one object per tick and commits.
+            SimObject moving = sw.objects.get(0);
+            double waits[] = new double[nticks];
+            for (int tick = 0; tick < nticks; tick++) {
+                Tic tic = new Tic();
+                if (useSnapshots) {
+                    moving.setPose(LinAlg.translate(tick*0.01, 0, 0.5));
+                    sw.commit(moving);
+                } else {
+                    synchronized(sw) {
+                        moving.setPose(LinAlg.translate(tick*0.01, 0, 0.5));
+                    }
+                }
+                waits[tick] = tic.toc();
+                Thread.sleep(20);
+            }
+
+            done.set(true);
+            for (Thread t : readers)
+                t.join();
+
+            Arrays.sort(waits);
+            System.out.printf("%-9s writer wait: median %8.3f ms, p99 %8.3f ms, max %8.3f ms; reader scans %d\n",
+                              useSnapshots ? "snapshot" : "locking",
+                              waits[nticks/2]*1000, waits[nticks*99/100]*1000, waits[nticks-1]*1000, scans.get());
+        }
+    }
+}
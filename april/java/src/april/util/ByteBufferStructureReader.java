@@ -0,0 +1,149 @@
+package april.util;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/** Reads what a BinaryStructureWriter wrote, straight from a ByteBuffer
+ *  (e.g., a memory-mapped file), without copying it to a stream first.
+ *  Reading past the end of the buffer throws an EOFException.
+ **/
+public class ByteBufferStructureReader implements StructureReader
+{
+    ByteBuffer buf;
+
+    public ByteBufferStructureReader(ByteBuffer buf)
+    {
+        this.buf = buf.duplicate();
+        this.buf.order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /** The number of bytes read so far. **/
+    public int getPosition()
+    {
+        return buf.position();
+    }
+
+    public int readInt() throws IOException
+    {
+        need(4);
+        return buf.getInt();
+    }
+
+    public int[] readInts() throws IOException
+    {
+        int length = readInt();
+        if (length < 0)
+            return null;
+
+        need(4L*length);
+        int v[] = new int[length];
+        buf.asIntBuffer().get(v);
+        buf.position(buf.position() + 4*length);
+        return v;
+    }
+
+    public long readLong() throws IOException
+    {
+        need(8);
+        return buf.getLong();
+    }
+
+    public float readFloat() throws IOException
+    {
+        need(4);
+        return buf.getFloat();
+    }
+
+    public float[] readFloats() throws IOException
+    {
+        int length = readInt();
+        if (length < 0)
+            return null;
+
+        need(4L*length);
+        float v[] = new float[length];
+        buf.asFloatBuffer().get(v);
+        buf.position(buf.position() + 4*length);
+        return v;
+    }
+
+    public double readDouble() throws IOException
+    {
+        need(8);
+        return buf.getDouble();
+    }
+
+    public double[] readDoubles() throws IOException
+    {
+        int length = readInt();
+        if (length < 0)
+            return null;
+
+        need(8L*length);
+        double v[] = new double[length];
+        buf.asDoubleBuffer().get(v);
+        buf.position(buf.position() + 8*length);
+        return v;
+    }
+
+    public double[][] readMatrix() throws IOException
+    {
+        int rows = readInt();
+        int cols = readInt();
+        if (rows < 0 || cols < 0)
+            return null;
+
+        need(8L*rows*cols);
+        double v[][] = new double[rows][cols];
+        for (int i = 0; i < rows; i++)
+            for (int j = 0; j < cols; j++)
+                v[i][j] = buf.getDouble();
+        return v;
+    }
+
+    public String readString() throws IOException
+    {
+        byte b[] = readBytes();
+        if (b == null)
+            return null;
+        return new String(b);
+    }
+
+    public byte[] readBytes() throws IOException
+    {
+        int length = readInt();
+        if (length < 0)
+            return null;
+
+        need(length);
+        byte b[] = new byte[length];
+        buf.get(b);
+        return b;
+    }
+
+    public void blockBegin() throws IOException
+    {
+        long v = readLong();
+        if (v != BinaryStructureWriter.BRACKET_BEGIN)
+            throw new IOException("Expected the beginning of a block at byte "+(buf.position()-8));
+    }
+
+    public void blockEnd() throws IOException
+    {
+        long v = readLong();
+        if (v != BinaryStructureWriter.BRACKET_END)
+            throw new IOException("Expected the end of a block at byte "+(buf.position()-8));
+    }
+
+    public void close() throws IOException
+    {
+    }
+
+    void need(long nbytes) throws IOException
+    {
+        if (nbytes < 0 || nbytes > buf.remaining())
+            throw new EOFException("Read of "+nbytes+" bytes at byte "+buf.position()+
+                                   ", with "+buf.remaining()+" left");
+    }
+}
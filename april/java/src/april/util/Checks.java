@@ -0,0 +1,48 @@
+package april.util;
+
+/** Counts the failed checks of a test program (a *Test class run as
+ * main()). Each check that fails is printed as it happens; exit()
+ * prints the total and exits with a non-zero status if any failed:
+ *
+ * <pre>
+ * try {
+ *     Checks.check(x == 1, "x is 1");
+ * } catch (Exception ex) {
+ *     Checks.fail(ex);
+ * } finally {
+ *     Checks.exit();
+ * }
+ * </pre>
+ **/
+public class Checks
+{
+    static int failures = 0;
+
+    public static synchronized void check(boolean ok, String what)
+    {
+        if (!ok) {
+            System.out.println("FAILED: "+what);
+            failures++;
+        }
+    }
+
+    /** Count an exception that ended the checks early. **/
+    public static synchronized void fail(Throwable ex)
+    {
+        ex.printStackTrace();
+        failures++;
+    }
+
+    public static synchronized int getFailures()
+    {
+        return failures;
+    }
+
+    /** Print the result, and exit. **/
+    public static void exit()
+    {
+        int n = getFailures();
+        System.out.println(n == 0 ? "OK" : n+" checks failed");
+        System.exit(n == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,290 @@
+package april.util;
+
+import java.util.*;
+
+/** Runs PeriodicTasks on a single thread against a simulated clock
+ * instead of on worker threads against the wall clock.
+ *
+ * Once a scheduler is installed, every PeriodicTasks created afterwards
+ * hands its tasks to the scheduler, and TimeUtil.utime() reports the
+ * simulated time. Each call to step() advances the clock to the next
+ * deadline and runs every task that is due, ordered by stage (see
+ * PeriodicTasks.setStage) and then by the order in which the tasks were
+ * added. Tasks take no simulated time to run, so a run is reproducible
+ * and, with a real time factor of 0, proceeds as fast as the tasks can
+ * execute.
+ *
+ * Messages exchanged over LCM are still delivered on LCM's threads.
+ * Anything else that hands work to another thread can keep runs
+ * reproducible by doing that work in a barrier instead (see
+ * addBarrier).
+ **/
+public class LockstepScheduler implements TimeUtil.Clock
+{
+    /** Stages, in the order in which due tasks are run. **/
+    public static final int STAGE_DRIVE = 0, STAGE_SENSE = 1, STAGE_DYNAMICS = 2,
+        STAGE_CONTROL = 3, STAGE_OTHER = 4;
+
+    /** Simulated time starts here rather than at zero, since a zero
+     * utime often means "never". **/
+    public static final long DEFAULT_START_UTIME = 1000000;
+
+    static volatile LockstepScheduler global;
+    static final ThreadLocal<LockstepScheduler> local = new ThreadLocal<LockstepScheduler>();
+
+    ArrayList<Record> records = new ArrayList<Record>();
+    long nextSeq;
+
+    // Replaced, never modified, by addBarrier
+    volatile Runnable barriers[] = new Runnable[0];
+
+    volatile long now;
+
+    // simulated seconds per wall second; 0 means as fast as possible
+    double realTimeFactor = 0;
+    long wallStart, simStart;
+
+    static class Record implements Comparable<Record>
+    {
+        PeriodicTasks owner;
+        PeriodicTasks.Task task;
+        int stage;
+        long seq;
+        long period;      // microseconds
+        boolean fixedRate;
+
+        boolean running;
+        int generation;   // incremented each time the owner is started or stopped
+        boolean started;  // has run since the owner was last started
+        long lastRunTime; // simulated microseconds
+        long nextRunTime; // simulated microseconds
+
+        public int compareTo(Record r)
+        {
+            if (stage != r.stage)
+                return stage < r.stage ? -1 : 1;
+            if (seq != r.seq)
+                return seq < r.seq ? -1 : 1;
+            return 0;
+        }
+    }
+
+    public LockstepScheduler()
+    {
+        this(DEFAULT_START_UTIME);
+    }
+
+    public LockstepScheduler(long startUtime)
+    {
+        this.now = startUtime;
+    }
+
+    /** The scheduler that newly created PeriodicTasks should use, or
+     * null if they should use their own threads. **/
+    public static LockstepScheduler getDefault()
+    {
+        LockstepScheduler s = local.get();
+        return s != null ? s : global;
+    }
+
+    /** Make this scheduler, and its clock, the default for every
+     * thread. **/
+    public void install()
+    {
+        global = this;
+        TimeUtil.setClock(this);
+    }
+
+    /** Make this scheduler, and its clock, the default for the calling
+     * thread only. Objects created on other threads (e.g., in LCM
+     * callbacks) will not see it. **/
+    public void installForThread()
+    {
+        local.set(this);
+        TimeUtil.setThreadClock(this);
+    }
+
+    public static void uninstall()
+    {
+        if (local.get() != null) {
+            local.remove();
+            TimeUtil.setThreadClock(null);
+        } else {
+            global = null;
+            TimeUtil.setClock(null);
+        }
+    }
+
+    /** The simulated time. **/
+    public long utime()
+    {
+        return now;
+    }
+
+    /** Pace the simulation at factor simulated seconds per wall-clock
+     * second. 0 (the default) runs as fast as possible. **/
+    public synchronized void setRealTimeFactor(double factor)
+    {
+        this.realTimeFactor = factor;
+        this.wallStart = System.nanoTime();
+        this.simStart = now;
+    }
+
+    synchronized void add(PeriodicTasks owner, PeriodicTasks.Task task, double dt, boolean fixedRate,
+                          int stage, boolean running)
+    {
+        Record r = new Record();
+        r.owner = owner;
+        r.task = task;
+        r.stage = stage;
+        r.seq = nextSeq++;
+        r.period = Math.max(1, (long) (dt * 1000000));
+        r.fixedRate = fixedRate;
+        r.running = running;
+        r.nextRunTime = now;
+        records.add(r);
+    }
+
+    synchronized void setRunning(PeriodicTasks owner, boolean b)
+    {
+        for (Record r : records) {
+            if (r.owner != owner || r.running == b)
+                continue;
+
+            r.running = b;
+            r.generation++;
+            r.started = false;
+            r.nextRunTime = now;
+        }
+    }
+
+    /** Run r on the stepping thread at the start of every step and
+     * after every task, e.g. to deliver the messages published since,
+     * so that their subscribers see the world as it is between tasks
+     * rather than whenever another thread gets to them. **/
+    public synchronized void addBarrier(Runnable r)
+    {
+        Runnable next[] = Arrays.copyOf(barriers, barriers.length + 1);
+        next[barriers.length] = r;
+        barriers = next;
+    }
+
+    void barrier()
+    {
+        for (Runnable r : barriers)
+            r.run();
+    }
+
+    /** Advance the clock to the next deadline and run the tasks that are
+     * due. Returns false (without advancing) if no task is running. **/
+    public boolean step()
+    {
+        return step(Long.MAX_VALUE);
+    }
+
+    /** As step(), but never advances the clock beyond limit. If no task
+     * is due by then, the clock is set to limit. **/
+    boolean step(long limit)
+    {
+        ArrayList<Record> due = new ArrayList<Record>();
+        long t;
+
+        synchronized(this) {
+            t = Long.MAX_VALUE;
+            for (Record r : records) {
+                if (r.running)
+                    t = Math.min(t, r.nextRunTime);
+            }
+
+            if (t == Long.MAX_VALUE && limit == Long.MAX_VALUE)
+                return false;
+
+            if (t > limit) {
+                now = Math.max(now, limit);
+                return true;
+            }
+
+            now = Math.max(now, t);
+            t = now;
+
+            for (Record r : records) {
+                if (r.running && r.nextRunTime <= t)
+                    due.add(r);
+            }
+        }
+
+        pace(t);
+        barrier();
+
+        Collections.sort(due);
+        for (Record r : due) {
+            int generation;
+            double dt;
+
+            synchronized(this) {
+                // another task may have stopped this one
+                if (!r.running)
+                    continue;
+
+                generation = r.generation;
+                dt = r.started ? (t - r.lastRunTime) / 1000000.0 : 0;
+            }
+
+            r.task.run(dt);
+            barrier();
+
+            synchronized(this) {
+                // stopped or restarted while running; leave the new
+                // schedule alone.
+                if (r.generation != generation)
+                    continue;
+
+                if (r.started && r.fixedRate)
+                    r.nextRunTime += r.period;
+                else
+                    r.nextRunTime = t + r.period;
+
+                r.started = true;
+                r.lastRunTime = t;
+            }
+        }
+
+        return true;
+    }
+
+    /** Run for the given number of simulated seconds. **/
+    public void run(double seconds)
+    {
+        long end = now + (long) (seconds * 1000000);
+        while (now < end)
+            step(end);
+    }
+
+    /** Run until the calling thread is interrupted. **/
+    public void run()
+    {
+        while (!Thread.currentThread().isInterrupted()) {
+            if (!step())
+                TimeUtil.sleep(1);
+        }
+    }
+
+    void pace(long t)
+    {
+        double factor;
+        long wall0, sim0;
+        synchronized(this) {
+            factor = realTimeFactor;
+            wall0 = wallStart;
+            sim0 = simStart;
+        }
+
+        if (factor <= 0)
+            return;
+
+        long wallTarget = wall0 + (long) ((t - sim0) * 1000 / factor);
+        long delay = (wallTarget - System.nanoTime()) / 1000000;
+        if (delay > 0)
+            TimeUtil.sleep((int) delay);
+    }
+}
@@ -8,12 +8,27 @@ import java.util.*;
  * timer.
  *
  * At creation, it is in the non-running state.
+ *
+ * If a LockstepScheduler is installed when the PeriodicTasks is
+ * created, no threads are used: the tasks are run by the scheduler
+ * against its simulated clock. Otherwise, if a SharedScheduler is
+ * installed, the tasks are run by its pool of threads.
  **/
 public class PeriodicTasks
 {
     PriorityBlockingQueue<Record> queue = new PriorityBlockingQueue<Record>();
     int nthreads;
 
+    LockstepScheduler lockstep;
+    int stage = LockstepScheduler.STAGE_OTHER;
+    boolean lockstepRunning;
+
+    SharedScheduler shared;
+    boolean sharedRunning;
+
+    // every task not run by a LockstepScheduler
+    ArrayList<Record> records = new ArrayList<Record>();
+
     ArrayList<WorkerThread> workers = new ArrayList<WorkerThread>();
 
     static class Record implements Comparable<Record>
@@ -24,6 +39,18 @@ public class PeriodicTasks
         int period; // milliseconds
         boolean fixedRate; // true: constant rate. false: constant delay.
 
+        Metrics metrics;
+
+        // used by SharedScheduler
+        int generation;   // incremented each time the task is started or stopped
+        boolean started;  // has run since it was last started
+        boolean running;  // a run is in progress
+        boolean restart;  // started during that run; schedule when it ends
+        long periodNanos;  // the period, not rounded to milliseconds
+        long lastRunNanos; // nanoseconds, ala System.nanoTime()
+        long nextRunNanos; // nanoseconds, ala System.nanoTime()
+        ScheduledFuture<?> future;
+
         public int compareTo(Record t)
         {
             long v = nextRunTime - t.nextRunTime;
@@ -43,6 +70,69 @@ public class PeriodicTasks
         public void run(double dt);
     }
 
+    /** How closely a task has kept to its schedule. Times are in
+     * microseconds. Not kept for tasks run by a LockstepScheduler. **/
+    public static class Metrics
+    {
+        public final Task task;
+        public final boolean fixedRate;
+
+        public long runs;
+        public long overruns;     // runs that took longer than the period
+        public long totalJitter;  // sum over runs of (start - scheduled start)
+        public long maxJitter;
+        public long totalRunTime;
+        public long maxRunTime;
+
+        Metrics(Task task, boolean fixedRate)
+        {
+            this.task = task;
+            this.fixedRate = fixedRate;
+        }
+
+        synchronized void record(long scheduled, long start, long end, long period)
+        {
+            long jitter = Math.max(0, start - scheduled);
+            long runTime = end - start;
+
+            runs++;
+            if (runTime > period)
+                overruns++;
+            totalJitter += jitter;
+            maxJitter = Math.max(maxJitter, jitter);
+            totalRunTime += runTime;
+            maxRunTime = Math.max(maxRunTime, runTime);
+        }
+
+        public synchronized double getMeanJitter()
+        {
+            return runs == 0 ? 0 : totalJitter / (double) runs;
+        }
+
+        public synchronized double getMeanRunTime()
+        {
+            return runs == 0 ? 0 : totalRunTime / (double) runs;
+        }
+
+        public synchronized Metrics copy()
+        {
+            Metrics m = new Metrics(task, fixedRate);
+            m.runs = runs;
+            m.overruns = overruns;
+            m.totalJitter = totalJitter;
+            m.maxJitter = maxJitter;
+            m.totalRunTime = totalRunTime;
+            m.maxRunTime = maxRunTime;
+            return m;
+        }
+
+        public synchronized String toString()
+        {
+            return String.format("%-40s %8d %8d %12.1f %12d %12d", task.getClass().getName(),
+                                 runs, overruns, getMeanJitter(), maxJitter, maxRunTime);
+        }
+    }
+
     public PeriodicTasks()
     {
         this(1);
@@ -51,36 +141,102 @@ public class PeriodicTasks
     public PeriodicTasks(int nthreads)
     {
         this.nthreads = nthreads;
+        this.lockstep = LockstepScheduler.getDefault();
+        if (lockstep == null)
+            this.shared = SharedScheduler.getDefault();
         setRunning(false);
     }
 
+    /** When run by a LockstepScheduler, tasks that are due at the same
+     * time run in order of stage (LockstepScheduler.STAGE_*). Applies
+     * to tasks added after this call. Has no effect otherwise. **/
+    public synchronized void setStage(int stage)
+    {
+        this.stage = stage;
+    }
+
     public synchronized void addFixedRate(Task task, double dt)
     {
+        if (lockstep != null) {
+            lockstep.add(this, task, dt, true, stage, lockstepRunning);
+            return;
+        }
+
         Record r = new Record();
         r.task = task;
         r.period = (int) (dt * 1000);
+        r.periodNanos = Math.max(1, (long) (dt * 1000000000L));
         r.fixedRate = true;
+        r.metrics = new Metrics(task, r.fixedRate);
+        records.add(r);
+
+        if (shared != null) {
+            shared.register(this);
+            if (sharedRunning)
+                shared.start(r);
+            return;
+        }
 
         queue.put(r);
     }
 
     public synchronized void addFixedDelay(Task task, double dt)
     {
+        if (lockstep != null) {
+            lockstep.add(this, task, dt, false, stage, lockstepRunning);
+            return;
+        }
+
         Record r = new Record();
         r.task = task;
         r.period = (int) (dt * 1000);
+        r.periodNanos = Math.max(1, (long) (dt * 1000000000L));
         r.fixedRate = false;
+        r.metrics = new Metrics(task, r.fixedRate);
+        records.add(r);
+
+        if (shared != null) {
+            shared.register(this);
+            if (sharedRunning)
+                shared.start(r);
+            return;
+        }
 
         queue.put(r);
     }
 
     public synchronized boolean isRunning()
     {
+        if (lockstep != null)
+            return lockstepRunning;
+
+        if (shared != null)
+            return sharedRunning;
+
         return workers.size() > 0;
     }
 
     public synchronized void setRunning(boolean b)
     {
+        if (lockstep != null) {
+            lockstepRunning = b;
+            lockstep.setRunning(this, b);
+            return;
+        }
+
+        if (shared != null) {
+            if (b != sharedRunning) {
+                sharedRunning = b;
+                for (Record r : records) {
+                    if (b)
+                        shared.start(r);
+                    else
+                        shared.stop(r);
+                }
+            }
+            return;
+        }
+
         if (b) {
             if (workers.size() == 0) {
 
@@ -105,6 +261,15 @@ public class PeriodicTasks
         }
     }
 
+    /** A copy of the metrics of each task. **/
+    public synchronized ArrayList<Metrics> getMetrics()
+    {
+        ArrayList<Metrics> metrics = new ArrayList<Metrics>();
+        for (Record r : records)
+            metrics.add(r.metrics.copy());
+        return metrics;
+    }
+
     class WorkerThread extends Thread
     {
         public void run()
@@ -139,10 +304,13 @@ public class PeriodicTasks
                     r.nextRunTime = now;
                 }
 
+                long scheduled = r.nextRunTime;
                 double dt = (now - r.lastRunTime) / 1000.0;
                 r.task.run(dt);
                 long end = System.currentTimeMillis();
 
+                r.metrics.record(scheduled*1000, now*1000, end*1000, r.period*1000L);
+
                 r.lastRunTime = now;
 
                 if (r.fixedRate)
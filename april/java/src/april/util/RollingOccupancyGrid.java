@@ -0,0 +1,270 @@
+package april.util;
+
+import java.util.*;
+
+/** An occupancy grid centered on a moving sensor, accumulating log-odds
+ * evidence from laser scans.
+ *
+ * The grid is a window onto an infinite plane of cells. Cell (gx, gy)
+ * of the plane is stored at ring position (gx mod width, gy mod
+ * height), so scrolling the window with recenter() only clears the
+ * rows and columns that come into view; the cells that stay in view
+ * are not moved.
+ *
+ * Each cell holds an integer log-odds value. A beam lowers the value
+ * of every cell it passes through and raises the value of the cell it
+ * ends in, unless it ended at the sensor's maximum range. Beams are
+ * traced with Bresenham's algorithm.
+ **/
+public final class RollingOccupancyGrid
+{
+    public final double metersPerPixel;
+    public final int width, height; // in pixels. Always a multiple of four.
+
+    // log-odds model, in fixed point
+    public int hitIncrement = 12;
+    public int missDecrement = 3;
+    public int minValue = -60;
+    public int maxValue = 60;
+
+    // the plane coordinates of the lower-left cell of the window
+    int gx0, gy0;
+
+    // ring positions of column gx0 and row gy0
+    int rx0, ry0;
+
+    byte data[];
+
+    /** sizex and sizey are in meters, and are rounded up like
+     * GridMap.makeMeters. **/
+    public RollingOccupancyGrid(double sizex, double sizey, double metersPerPixel)
+    {
+        this.metersPerPixel = metersPerPixel;
+
+        int w = (int) (sizex / metersPerPixel + 1);
+        int h = (int) (sizey / metersPerPixel + 1);
+        this.width = w + 4 - (w%4);
+        this.height = h + 4 - (h%4);
+
+        data = new byte[width*height];
+    }
+
+    public void clear()
+    {
+        Arrays.fill(data, (byte) 0);
+    }
+
+    /** The coordinates of the lower-left corner of the window. **/
+    public double[] getXY0()
+    {
+        return new double[] { gx0 * metersPerPixel, gy0 * metersPerPixel };
+    }
+
+    /** Scroll the window so that (cx, cy) is near its center. Cells
+     * that scroll into view are unknown (0). **/
+    public void recenter(double cx, double cy)
+    {
+        int ngx0 = (int) Math.floor(cx / metersPerPixel) - width/2;
+        int ngy0 = (int) Math.floor(cy / metersPerPixel) - height/2;
+
+        int dx = ngx0 - gx0;
+        int dy = ngy0 - gy0;
+        if (dx == 0 && dy == 0)
+            return;
+
+        if (Math.abs(dx) >= width || Math.abs(dy) >= height) {
+            clear();
+        } else {
+            // rows leaving at one edge are reused for the rows
+            // entering at the other.
+            for (int i = 0; i < Math.abs(dy); i++) {
+                int gy = dy > 0 ? gy0 + i : gy0 + height - 1 - i;
+                int ry = mod(gy - gy0 + ry0, height);
+                Arrays.fill(data, ry*width, (ry+1)*width, (byte) 0);
+            }
+
+            for (int i = 0; i < Math.abs(dx); i++) {
+                int gx = dx > 0 ? gx0 + i : gx0 + width - 1 - i;
+                int rx = mod(gx - gx0 + rx0, width);
+                for (int ry = 0; ry < height; ry++)
+                    data[ry*width + rx] = 0;
+            }
+        }
+
+        gx0 = ngx0;
+        gy0 = ngy0;
+        rx0 = mod(gx0, width);
+        ry0 = mod(gy0, height);
+    }
+
+    /** Add a scan taken from (sx, sy) at heading theta. Beams with
+     * negative ranges are ignored; beams at or beyond maxRange mark
+     * free space only. **/
+    public void addScan(double sx, double sy, double theta, double ranges[],
+                        double rad0, double radstep, double maxRange)
+    {
+        int lx0 = (int) Math.floor(sx / metersPerPixel) - gx0;
+        int ly0 = (int) Math.floor(sy / metersPerPixel) - gy0;
+        if (lx0 < 0 || lx0 >= width || ly0 < 0 || ly0 >= height)
+            return;
+
+        for (int i = 0; i < ranges.length; i++) {
+            double r = ranges[i];
+            if (r < 0)
+                continue;
+
+            boolean hit = r < maxRange;
+            r = Math.min(r, maxRange);
+
+            double t = theta + rad0 + i*radstep;
+            int lx1 = (int) Math.floor((sx + r*Math.cos(t)) / metersPerPixel) - gx0;
+            int ly1 = (int) Math.floor((sy + r*Math.sin(t)) / metersPerPixel) - gy0;
+
+            addBeam(lx0, ly0, lx1, ly1, hit);
+        }
+    }
+
+    /** Trace a beam between two window coordinates, stopping if it
+     * leaves the window. **/
+    void addBeam(int lx, int ly, int lx1, int ly1, boolean hit)
+    {
+        int adx = Math.abs(lx1 - lx), ady = Math.abs(ly1 - ly);
+        int sx = lx1 > lx ? 1 : -1, sy = ly1 > ly ? 1 : -1;
+        int err = adx - ady;
+
+        while (true) {
+            if (lx < 0 || lx >= width || ly < 0 || ly >= height)
+                return;
+
+            int idx = index(lx, ly);
+
+            if (lx == lx1 && ly == ly1) {
+                if (hit)
+                    data[idx] = (byte) Math.min(maxValue, data[idx] + hitIncrement);
+                else
+                    data[idx] = (byte) Math.max(minValue, data[idx] - missDecrement);
+                return;
+            }
+
+            data[idx] = (byte) Math.max(minValue, data[idx] - missDecrement);
+
+            int e2 = 2*err;
+            if (e2 > -ady) {
+                err -= ady;
+                lx += sx;
+            }
+            if (e2 < adx) {
+                err += adx;
+                ly += sy;
+            }
+        }
+    }
+
+    /** The log-odds value at (x, y), or 0 if outside the window. **/
+    public int getValue(double x, double y)
+    {
+        int lx = (int) Math.floor(x / metersPerPixel) - gx0;
+        int ly = (int) Math.floor(y / metersPerPixel) - gy0;
+        if (lx < 0 || lx >= width || ly < 0 || ly >= height)
+            return 0;
+        return data[index(lx, ly)];
+    }
+
+    /** Make a new GridMap of the window, with value occupied in
+     * cells whose log-odds exceed threshold and 0 elsewhere. **/
+    public GridMap toGridMap(int threshold, byte occupied)
+    {
+        GridMap gm = GridMap.makePixels(gx0 * metersPerPixel, gy0 * metersPerPixel,
+                                        width, height, metersPerPixel, 0, false);
+
+        byte out[] = gm.data;
+        for (int ly = 0; ly < height; ly++) {
+            int row = mod(ly + ry0, height)*width;
+            int outrow = ly*width;
+
+            // each row of the window is two runs of a ring row
+            int n0 = width - rx0;
+            for (int i = 0; i < n0; i++) {
+                if (data[row + rx0 + i] > threshold)
+                    out[outrow + i] = occupied;
+            }
+            for (int i = 0; i < rx0; i++) {
+                if (data[row + i] > threshold)
+                    out[outrow + n0 + i] = occupied;
+            }
+        }
+
+        return gm;
+    }
+
+    int index(int lx, int ly)
+    {
+        int rx = lx + rx0;
+        if (rx >= width)
+            rx -= width;
+        int ry = ly + ry0;
+        if (ry >= height)
+            ry -= height;
+        return ry*width + rx;
+    }
+
+    static int mod(int a, int b)
+    {
+        int m = a % b;
+        return m < 0 ? m + b : m;
+    }
+
+    /** Update cost per scan, versus rebuilding a map of endpoints. **/
+    public static void main(String args[])
+    {
+        Random r = new Random(0);
+        double rad0 = Math.toRadians(-135), rad1 = Math.toRadians(135);
+        double radstep = Math.atan2(0.1, 10);
+        int nranges = (int) ((rad1 - rad0) / radstep);
+        double maxRange = 29.9;
+
+        int nscans = 100;
+        double scans[][] = new double[nscans][nranges];
+        for (int s = 0; s < nscans; s++)
+            for (int i = 0; i < nranges; i++)
+                scans[s][i] = r.nextInt(10) == 0 ? maxRange : 1 + 8*r.nextDouble();
+
+        int iters = 2000;
+
+        Tic tic = new Tic();
+        for (int it = 0; it < iters; it++) {
+            double s[] = scans[it % nscans];
+            double x = it*0.01, y = it*0.005;
+            GridMap map = GridMap.makeMeters(x - 5, y - 5, 10.0, 10.0, 0.1, 0);
+            for (int i = 0; i < nranges; i++) {
+                double t = rad0 + i*radstep;
+                map.setValue(x + s[i]*Math.cos(t), y + s[i]*Math.sin(t), (byte) 1);
+            }
+        }
+        System.out.printf("rebuild 10 m, endpoints only: %8.1f us/scan\n", tic.toc()*1.0E6/iters);
+
+        for (double size = 10; size <= 80; size *= 2) {
+            RollingOccupancyGrid grid = new RollingOccupancyGrid(size, size, 0.1);
+
+            double recenterTime = 0, scanTime = 0, exportTime = 0;
+            for (int it = 0; it < iters; it++) {
+                double s[] = scans[it % nscans];
+                double x = it*0.01, y = it*0.005;
+
+                tic.tic();
+                grid.recenter(x, y);
+                recenterTime += tic.toctic();
+                grid.addScan(x, y, 0, s, rad0, radstep, maxRange);
+                scanTime += tic.toctic();
+                if (it % 4 == 0) {
+                    grid.toGridMap(0, (byte) 1);
+                    exportTime += tic.toc();
+                }
+            }
+
+            System.out.printf("rolling %2.0f m (%4d px): recenter %6.1f us  scan %8.1f us  toGridMap %8.1f us\n",
+                              size, grid.width, recenterTime*1.0E6/iters, scanTime*1.0E6/iters,
+                              exportTime*1.0E6/(iters/4));
+        }
+    }
+}
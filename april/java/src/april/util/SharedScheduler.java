@@ -0,0 +1,206 @@
+package april.util;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** A pool of threads shared by many PeriodicTasks, so that a process
+ * with dozens of periodic objects does not need dozens of threads that
+ * mostly sleep.
+ *
+ * Once a scheduler is installed, every PeriodicTasks created afterwards
+ * (unless a LockstepScheduler is also installed) hands its tasks to the
+ * pool. Fixed-rate and fixed-delay semantics and pausing are the same
+ * as with dedicated threads, a task never runs concurrently with
+ * itself, and deadlines are kept to the nanosecond rather than the
+ * millisecond. Each task's timing is recorded in a PeriodicTasks.Metrics.
+ **/
+public class SharedScheduler
+{
+    static volatile SharedScheduler global;
+
+    ScheduledThreadPoolExecutor executor;
+
+    // every PeriodicTasks that has added a task, for getMetrics()
+    WeakHashMap<PeriodicTasks, Boolean> owners = new WeakHashMap<PeriodicTasks, Boolean>();
+
+    public SharedScheduler()
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public SharedScheduler(int nthreads)
+    {
+        executor = new ScheduledThreadPoolExecutor(nthreads, new ThreadFactory() {
+            int count;
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SharedScheduler-"+(count++));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /** The scheduler that newly created PeriodicTasks should use, or
+     * null if they should use their own threads. **/
+    public static SharedScheduler getDefault()
+    {
+        return global;
+    }
+
+    /** Make this scheduler the default for every thread. **/
+    public void install()
+    {
+        global = this;
+    }
+
+    public static void uninstall()
+    {
+        global = null;
+    }
+
+    /** Stop the pool's threads. Tasks that have not been stopped will
+     * no longer run. **/
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    /** A copy of the metrics of every task in the pool. **/
+    public ArrayList<PeriodicTasks.Metrics> getMetrics()
+    {
+        ArrayList<PeriodicTasks> ps;
+        synchronized(owners) {
+            ps = new ArrayList<PeriodicTasks>(owners.keySet());
+        }
+
+        ArrayList<PeriodicTasks.Metrics> metrics = new ArrayList<PeriodicTasks.Metrics>();
+        for (PeriodicTasks p : ps)
+            metrics.addAll(p.getMetrics());
+        return metrics;
+    }
+
+    public void printMetrics(PrintStream outs)
+    {
+        outs.printf("%-40s %8s %8s %12s %12s %12s\n", "task", "runs", "overruns",
+                    "jitter(us)", "max jitter", "max run(us)");
+        for (PeriodicTasks.Metrics m : getMetrics())
+            outs.println(m);
+    }
+
+    void register(PeriodicTasks owner)
+    {
+        synchronized(owners) {
+            owners.put(owner, Boolean.TRUE);
+        }
+    }
+
+    /** Start (or restart) running r's task immediately, or as soon as
+     * a run that is already in progress completes. **/
+    void start(PeriodicTasks.Record r)
+    {
+        int generation;
+        synchronized(r) {
+            r.generation++;
+            r.started = false;
+            generation = r.generation;
+
+            // execute() schedules it, so the runs never overlap
+            if (r.running) {
+                r.restart = true;
+                return;
+            }
+        }
+        schedule(r, generation, 0);
+    }
+
+    /** The task will not run again until start() is called. A run that
+     * is already in progress completes. **/
+    void stop(PeriodicTasks.Record r)
+    {
+        synchronized(r) {
+            r.generation++;
+            r.restart = false;
+            if (r.future != null)
+                r.future.cancel(false);
+            r.future = null;
+        }
+    }
+
+    void schedule(final PeriodicTasks.Record r, final int generation, long delay)
+    {
+        Runnable runnable = new Runnable() {
+            public void run() {
+                execute(r, generation);
+            }
+        };
+
+        synchronized(r) {
+            if (r.generation != generation || executor.isShutdown())
+                return;
+            r.future = executor.schedule(runnable, Math.max(0, delay), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    void execute(PeriodicTasks.Record r, int generation)
+    {
+        long now = System.nanoTime();
+        long scheduled;
+        double dt;
+
+        synchronized(r) {
+            if (r.generation != generation)
+                return;
+
+            // if the first time we're running the task, set the run time.
+            if (!r.started) {
+                r.started = true;
+                r.lastRunNanos = now;
+                r.nextRunNanos = now;
+            }
+
+            scheduled = r.nextRunNanos;
+            dt = (now - r.lastRunNanos) / 1.0E9;
+            r.running = true;
+        }
+
+        try {
+            r.task.run(dt);
+        } catch (RuntimeException ex) {
+            // a dedicated thread would die here; keep the task alive.
+            System.out.println("WRN: SharedScheduler: "+r.task+" threw "+ex);
+            ex.printStackTrace();
+        }
+
+        long end = System.nanoTime();
+        long period = r.periodNanos;
+        r.metrics.record(scheduled / 1000, now / 1000, end / 1000, period / 1000);
+
+        long delay;
+        synchronized(r) {
+            r.running = false;
+
+            // restarted while running: start over now, as start() would have
+            if (r.restart) {
+                r.restart = false;
+                generation = r.generation;
+                delay = 0;
+            } else {
+                // stopped while running
+                if (r.generation != generation)
+                    return;
+
+                r.lastRunNanos = now;
+
+                if (r.fixedRate)
+                    r.nextRunNanos += period;
+                else
+                    r.nextRunNanos = end + period;
+
+                delay = r.nextRunNanos - System.nanoTime();
+            }
+        }
+
+        schedule(r, generation, delay);
+    }
+}
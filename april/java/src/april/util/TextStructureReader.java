@@ -12,6 +12,7 @@ public class TextStructureReader implements StructureReader
     {
         BufferedReader ins;
         int lineNumber = 0;
+        int depth = 0; // blocks begun and not yet ended
 
         CommentReader(BufferedReader ins)
         {
@@ -31,6 +32,12 @@ public class TextStructureReader implements StructureReader
                 if (line.startsWith("#") || line.length()==0)
                     continue;
 
+                // strings are quoted, so these can only be blocks
+                if (line.equals("{"))
+                    depth++;
+                else if (line.equals("}"))
+                    depth--;
+
                 return line;
             }
         }
@@ -246,4 +253,26 @@ public class TextStructureReader implements StructureReader
     {
         return ins.lineNumber;
     }
+
+    /** The number of blocks begun and not yet ended. **/
+    public int getDepth()
+    {
+        return ins.depth;
+    }
+
+    /** Skip ahead until every block deeper than depth has ended, or if
+     * none has begun, past the next block. Lets a reader carry on with
+     * the next structure after failing partway through one. **/
+    public void skipBlock(int depth) throws IOException
+    {
+        while (ins.depth <= depth) {
+            if (ins.readLine() == null)
+                return;
+        }
+
+        while (ins.depth > depth) {
+            if (ins.readLine() == null)
+                return;
+        }
+    }
 }
@@ -3,8 +3,41 @@ package april.util;
 /** Simple time utilities. **/
 public class TimeUtil
 {
+    /** A source of time other than the wall clock, e.g. the simulated
+     * clock of a LockstepScheduler. **/
+    public interface Clock
+    {
+        public long utime();
+    }
+
+    static volatile Clock clock;
+    static final ThreadLocal<Clock> threadClock = new ThreadLocal<Clock>();
+
+    /** Replace the wall clock for every thread. Pass null to restore
+     * the wall clock. **/
+    public static void setClock(Clock c)
+    {
+        clock = c;
+    }
+
+    /** Replace the clock for the calling thread only; takes precedence
+     * over setClock(). Pass null to remove. **/
+    public static void setThreadClock(Clock c)
+    {
+        if (c == null)
+            threadClock.remove();
+        else
+            threadClock.set(c);
+    }
+
     public static long utime()
     {
+        Clock c = threadClock.get();
+        if (c == null)
+            c = clock;
+        if (c != null)
+            return c.utime();
+
         return System.currentTimeMillis()*1000;
     }
 
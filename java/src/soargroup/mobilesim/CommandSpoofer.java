@@ -23,7 +23,7 @@ import soargroup.mobilesim.lcmtypes.condition_test_t;
 
 public class CommandSpoofer extends JFrame
 {
-    private LCM lcm = LCM.getSingleton();
+    private Transport transport = Transport.getSingleton();
     static final String NAME_PARAM = "__NAME__";
 
     Map<String, TypedValue> lawMap = new HashMap<String, TypedValue>();
@@ -39,11 +39,14 @@ public class CommandSpoofer extends JFrame
         {
             while (true) {
                 TimeUtil.sleep(1000/hz);
-                if (currentMessage == null)
+                control_law_t msg = currentMessage;
+                if (msg == null)
                     continue;
 
-                currentMessage.utime = TimeUtil.utime();
-                lcm.publish("SOAR_COMMAND_TX", currentMessage);
+                // A published message must not change, so send a copy
+                msg = msg.copy();
+                msg.utime = TimeUtil.utime();
+                transport.publish("SOAR_COMMAND_TX", msg);
             }
         }
     }
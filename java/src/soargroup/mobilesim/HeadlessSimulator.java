@@ -0,0 +1,706 @@
+package soargroup.mobilesim;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import april.config.Config;
+import april.jmat.LinAlg;
+import april.sim.RandomStreams;
+import april.sim.SimObject;
+import april.sim.SimWorld;
+import april.sim.WorldCheckpoint;
+import april.util.*;
+
+import soargroup.mobilesim.commands.CommandCoordinator.Status;
+import soargroup.mobilesim.commands.CommandInterpreter;
+import soargroup.mobilesim.commands.TypedValue;
+import soargroup.mobilesim.sim.*;
+import soargroup.mobilesim.util.Transport;
+
+// LCM Types
+import lcm.lcm.*;
+import soargroup.mobilesim.lcmtypes.classification_t;
+import soargroup.mobilesim.lcmtypes.condition_test_t;
+import soargroup.mobilesim.lcmtypes.control_law_t;
+import soargroup.mobilesim.lcmtypes.object_data_t;
+import soargroup.mobilesim.lcmtypes.typed_value_t;
+
+/** Runs MobileSimulator without a GUI on a LockstepScheduler, as fast
+ *  as possible, replaying a script of control_law_t commands. Reports
+ *  the final state of every object and the simulated/wall-clock time.
+ *
+ *  Several runs can proceed in parallel. Each run is loaded by its own
+ *  class loader, so the static state of the simulator (the Transport,
+ *  object ids, random number generators, the lockstep clock) is private
+ *  to the run. Its components pass messages with the in-process
+ *  Transport, and its LCM is an in-memory ("memq://") bus. When the run
+ *  ends, its threads are stopped and its loader closed. Each run's
+ *  random numbers are seeded from --seed and the run's index, and the
+ *  report gives the seed, so any run can be reproduced.
+ *
+ *  Script lines look like
+ *
+ *    # seconds  name  [param=value ...]  [until test [param=value ...]]
+ *    0.5  drive-xy x=2.0 y=-1.5 until stabilized timeout=10
+ *    12   pick-up object-id=7
+ *
+ *  Values are sent as ints, doubles or booleans where they parse as
+ *  such, otherwise as strings.
+ *
+ *  With --reset, the runs are instead made one after another by one
+ *  simulator, which puts the world back to a checkpoint of its initial
+ *  state before each, rather than loading it again.
+ **/
+public class HeadlessSimulator
+{
+    static final String COMMAND_CHANNEL = "SOAR_COMMAND_TX";
+
+    SimWorld world;
+    MobileSimulator simulator;
+    LockstepScheduler scheduler;
+
+    // The in-memory bus of the run in this loader; see useMemoryLCM()
+    static LCM memoryLCM;
+
+    public HeadlessSimulator(String worldPath, boolean fullyObservable) throws IOException
+    {
+        this(worldPath, fullyObservable, null);
+    }
+
+    /** seed: the seed of the world's random numbers, or null for a
+     * new one each time. **/
+    public HeadlessSimulator(String worldPath, boolean fullyObservable, Long seed) throws IOException
+    {
+        // must precede the creation of any simulator object
+        scheduler = new LockstepScheduler();
+        scheduler.install();
+
+        HashMap<String, String[]> keys = new HashMap<String, String[]>();
+        if (seed != null)
+            keys.put("simulator.seed", new String[] { seed.toString() });
+
+        world = new SimWorld(worldPath, new Config(keys));
+        simulator = new MobileSimulator(world, fullyObservable);
+    }
+
+    public static class Command
+    {
+        public double time;
+        public control_law_t controlLaw;
+    }
+
+    /** Parse a script (see class comment). Commands are returned in
+     * time order. **/
+    public static ArrayList<Command> parseScript(List<String> lines) throws IOException
+    {
+        ArrayList<Command> commands = new ArrayList<Command>();
+
+        for (String line : lines) {
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#"))
+                continue;
+
+            String toks[] = line.split("\\s+");
+            if (toks.length < 2)
+                throw new IOException("Bad script line: "+line);
+
+            int until = toks.length;
+            for (int i = 2; i < toks.length; i++) {
+                if (toks[i].equals("until"))
+                    until = i;
+            }
+
+            Command cmd = new Command();
+            cmd.time = Double.parseDouble(toks[0]);
+
+            control_law_t cl = new control_law_t();
+            cl.id = commands.size() + 1;
+            cl.name = toks[1];
+            HashMap<String, typed_value_t> params = parseParams(toks, 2, until);
+            cl.num_params = params.size();
+            cl.param_names = params.keySet().toArray(new String[0]);
+            cl.param_values = params.values().toArray(new typed_value_t[0]);
+
+            condition_test_t ct = new condition_test_t();
+            if (until + 1 < toks.length) {
+                ct.name = toks[until+1];
+                params = parseParams(toks, until+2, toks.length);
+                ct.compare_type = condition_test_t.CMP_GT;
+                ct.compared_value = (new TypedValue(0)).toLCM();
+            } else {
+                ct.name = "NONE";
+                params = new HashMap<String, typed_value_t>();
+                ct.compare_type = condition_test_t.CMP_EQ;
+                ct.compared_value = (new TypedValue("")).toLCM();
+            }
+            ct.num_params = params.size();
+            ct.param_names = params.keySet().toArray(new String[0]);
+            ct.param_values = params.values().toArray(new typed_value_t[0]);
+            cl.termination_condition = ct;
+
+            cmd.controlLaw = cl;
+            commands.add(cmd);
+        }
+
+        Collections.sort(commands, new Comparator<Command>() {
+            public int compare(Command a, Command b)
+            {
+                return Double.compare(a.time, b.time);
+            }
+        });
+
+        return commands;
+    }
+
+    static HashMap<String, typed_value_t> parseParams(String toks[], int start, int end) throws IOException
+    {
+        // keep the script's order so that runs are repeatable
+        LinkedHashMap<String, typed_value_t> params = new LinkedHashMap<String, typed_value_t>();
+
+        for (int i = start; i < end; i++) {
+            int eq = toks[i].indexOf('=');
+            if (eq <= 0)
+                throw new IOException("Expected param=value: "+toks[i]);
+
+            String name = toks[i].substring(0, eq);
+            String value = toks[i].substring(eq+1);
+            params.put(name, parseValue(value).toLCM());
+        }
+
+        return params;
+    }
+
+    static TypedValue parseValue(String s)
+    {
+        if (s.equals("true") || s.equals("false"))
+            return new TypedValue(Boolean.valueOf(s));
+        try {
+            return new TypedValue(Integer.valueOf(s));
+        } catch (NumberFormatException ex) {
+        }
+        try {
+            return new TypedValue(Double.valueOf(s));
+        } catch (NumberFormatException ex) {
+        }
+        return new TypedValue(s);
+    }
+
+    /** Step the simulation for duration simulated seconds, publishing
+     * each command when its time comes. Returns the report. **/
+    public String run(List<Command> script, double duration)
+    {
+        Tic tic = new Tic();
+        simulate(script, duration, null);
+        double wall = tic.toc();
+
+        world.setRunning(false);
+
+        return report(duration, wall);
+    }
+
+    /** Stop the world and the robots' command interpreters, whose
+     * listener threads would otherwise run forever. The simulator can't
+     * be used after this. **/
+    public void close()
+    {
+        world.setRunning(false);
+        synchronized (world) {
+            for (SimObject so : world.objects) {
+                if (so instanceof SimRobot)
+                    ((SimRobot) so).getCommandInterpreter().close();
+            }
+        }
+    }
+
+    /** How a command of a script turned out. **/
+    public static class Outcome
+    {
+        public Status status = Status.UNKNOWN;
+
+        /** Simulated seconds from the start of the run until the
+         * command finished, or NaN if it did not. **/
+        public double finishTime = Double.NaN;
+
+        public boolean isFinished()
+        {
+            return !Double.isNaN(finishTime);
+        }
+    }
+
+    /** Save the state of the world, to begin more runs from it (see
+     * restore()). **/
+    public WorldCheckpoint checkpoint() throws IOException
+    {
+        return world.checkpoint();
+    }
+
+    /** Put the world back the way it was at checkpoint and start it
+     * again (a run stops it when it ends), with the given seed for its
+     * random numbers. The robot forgets every command it was sent, so
+     * that a script can be run again. **/
+    public void restore(WorldCheckpoint checkpoint, long seed) throws IOException
+    {
+        world.restore(checkpoint);
+        simulator.forgetCommands();
+        world.setSeed(seed);
+        world.setRunning(true);
+    }
+
+    /** Simulated seconds between checks of the commands' statuses. **/
+    public static final double STATUS_PERIOD = 0.1;
+
+    /** run(), but rather than a report, returns the outcome of each
+     * command of the script, in the order of the script. **/
+    public Outcome[] runOutcomes(List<Command> script, double duration)
+    {
+        Outcome outcomes[] = new Outcome[script.size()];
+        for (int i = 0; i < outcomes.length; i++)
+            outcomes[i] = new Outcome();
+
+        simulate(script, duration, outcomes);
+        world.setRunning(false);
+
+        return outcomes;
+    }
+
+    /** If outcomes is not null, the robot's status for each command
+     * published so far is checked every STATUS_PERIOD. **/
+    void simulate(List<Command> script, double duration, Outcome outcomes[])
+    {
+        Transport transport = Transport.getSingleton();
+        long start = scheduler.utime();
+        long end = start + (long) (duration * 1000000);
+
+        int next = 0;
+        while (scheduler.utime() < end) {
+            long t = end;
+            if (next < script.size())
+                t = Math.min(t, start + (long) (script.get(next).time * 1000000));
+            if (outcomes != null)
+                t = Math.min(t, scheduler.utime() + (long) (STATUS_PERIOD * 1000000));
+
+            if (t > scheduler.utime())
+                scheduler.run((t - scheduler.utime()) / 1000000.0);
+
+            if (outcomes != null)
+                updateOutcomes(script, next, outcomes, (scheduler.utime() - start) / 1000000.0);
+
+            while (next < script.size() &&
+                   start + (long) (script.get(next).time * 1000000) <= scheduler.utime()) {
+                // The script's own copy is published again by later runs
+                control_law_t cl = script.get(next++).controlLaw.copy();
+                cl.utime = TimeUtil.utime();
+                transport.publish(COMMAND_CHANNEL, cl);
+            }
+        }
+    }
+
+    void updateOutcomes(List<Command> script, int published, Outcome outcomes[], double time)
+    {
+        SimRobot robot = simulator.getRobot();
+        if (robot == null)
+            return;
+
+        CommandInterpreter ci = robot.getCommandInterpreter();
+        for (int i = 0; i < published; i++) {
+            Outcome outcome = outcomes[i];
+            outcome.status = ci.getCommandStatus(script.get(i).controlLaw.id);
+            if (!outcome.isFinished() && isFinal(outcome.status))
+                outcome.finishTime = time;
+        }
+    }
+
+    static boolean isFinal(Status status)
+    {
+        return (status != Status.UNKNOWN && status != Status.RECEIVED && status != Status.EXECUTING);
+    }
+
+    String report(double simSeconds, double wallSeconds)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("time %.3f %.3f\n", simSeconds, wallSeconds));
+        sb.append(String.format("seed %d\n", world.getSeed()));
+
+        SimRobot robot = simulator.getRobot();
+        if (robot != null) {
+            double xyt[] = LinAlg.matrixToXYT(robot.getPose());
+            RosieSimObject grabbed = robot.getGrabbedObject();
+            sb.append(String.format("robot %.4f %.4f %.4f %s\n", xyt[0], xyt[1], xyt[2],
+                                    grabbed == null ? "-" : grabbed.getID().toString()));
+        }
+
+        ArrayList<RosieSimObject> objs = new ArrayList<RosieSimObject>(simulator.getRosieObjects());
+        Collections.sort(objs, new Comparator<RosieSimObject>() {
+            public int compare(RosieSimObject a, RosieSimObject b)
+            {
+                return a.getID().compareTo(b.getID());
+            }
+        });
+
+        for (RosieSimObject obj : objs) {
+            object_data_t od = obj.getObjectData();
+            sb.append(String.format("object %d %s %.4f %.4f %.4f", od.id, obj.getDesc(),
+                                    od.xyzrpy[0], od.xyzrpy[1], od.xyzrpy[2]));
+
+            TreeMap<String, String> props = new TreeMap<String, String>();
+            for (int i = 0; i < od.num_classifications; i++) {
+                classification_t cls = od.classifications[i];
+                props.put(cls.category, cls.name);
+            }
+            for (Map.Entry<String, String> e : props.entrySet())
+                sb.append(" "+e.getKey()+"="+e.getValue());
+            sb.append("\n");
+        }
+
+        return sb.toString();
+    }
+
+    /** Entry point for a run inside an IsolatedLoader. Only java.*
+     * types cross the loader boundary. **/
+    public static String runIsolated(String worldPath, boolean fullyObservable, Long seed,
+                                     List<String> script, double duration) throws Exception
+    {
+        useMemoryLCM();
+
+        HeadlessSimulator hs = null;
+        try {
+            hs = new HeadlessSimulator(worldPath, fullyObservable, seed);
+            return hs.run(parseScript(script), duration);
+        } finally {
+            closeIsolated(hs);
+        }
+    }
+
+    /** Entry point for nruns runs, one after another, inside one
+     * IsolatedLoader. The world is loaded once, and restored from a
+     * checkpoint before every run but the first. Run i is seeded as
+     * it would be in its own loader. Returns the report of each. **/
+    public static List<String> runIsolatedResets(String worldPath, boolean fullyObservable, long baseSeed,
+                                                 List<String> script, double duration, int nruns) throws Exception
+    {
+        useMemoryLCM();
+
+        ArrayList<Command> commands = parseScript(script);
+
+        HeadlessSimulator hs = null;
+        try {
+            Tic tic = new Tic();
+            hs = new HeadlessSimulator(worldPath, fullyObservable, RandomStreams.streamSeed(baseSeed, 0));
+            double loadTime = tic.toctic();
+            WorldCheckpoint checkpoint = hs.checkpoint();
+            double captureTime = tic.toc();
+
+            ArrayList<String> reports = new ArrayList<String>();
+            double restoreTime = 0;
+            for (int i = 0; i < nruns; i++) {
+                if (i > 0) {
+                    tic = new Tic();
+                    hs.restore(checkpoint, RandomStreams.streamSeed(baseSeed, i));
+                    restoreTime += tic.toc();
+                }
+                reports.add(hs.run(commands, duration));
+            }
+
+            System.out.printf("Loaded the world in %.1f ms; checkpoint of %d objects, %d bytes, captured in %.2f ms, restored in %.2f ms\n",
+                              loadTime*1000, checkpoint.getNumObjects(), checkpoint.size(), captureTime*1000,
+                              nruns > 1 ? restoreTime*1000/(nruns - 1) : 0.0);
+            return reports;
+        } finally {
+            closeIsolated(hs);
+        }
+    }
+
+    /** Entry point for one run of a ScenarioSweep inside an
+     * IsolatedLoader. The robot starts displaced by startOffset (x, y,
+     * theta) from its pose in the world file. Returns the run's row
+     * of results, column by column. **/
+    public static Map<String, String> runIsolatedTrial(String worldPath, boolean fullyObservable, Long seed,
+                                                       double startOffset[], List<String> script,
+                                                       double duration) throws Exception
+    {
+        useMemoryLCM();
+
+        HeadlessSimulator hs = null;
+        try {
+            hs = new HeadlessSimulator(worldPath, fullyObservable, seed);
+            SimRobot robot = hs.simulator.getRobot();
+            if (robot != null) {
+                double xyt[] = LinAlg.matrixToXYT(robot.getPose());
+                synchronized (hs.world) {
+                    robot.setPose(LinAlg.xytToMatrix(new double[] { xyt[0] + startOffset[0],
+                                                                    xyt[1] + startOffset[1],
+                                                                    xyt[2] + startOffset[2] }));
+                    hs.world.commit();
+                }
+            }
+
+            ArrayList<Command> commands = parseScript(script);
+            Tic tic = new Tic();
+            Outcome outcomes[] = hs.runOutcomes(commands, duration);
+            double wall = tic.toc();
+
+            LinkedHashMap<String, String> row = new LinkedHashMap<String, String>();
+            row.put("sim_s", String.format("%.3f", duration));
+            row.put("wall_s", String.format("%.3f", wall));
+
+            int succeeded = 0;
+            double finish = 0;
+            for (Outcome outcome : outcomes) {
+                if (outcome.status == Status.SUCCESS)
+                    succeeded++;
+                finish = Math.max(finish, outcome.finishTime);
+            }
+            boolean success = (succeeded == outcomes.length);
+            row.put("success", success ? "1" : "0");
+            row.put("commands_succeeded", Integer.toString(succeeded));
+            row.put("finish_s", success && outcomes.length > 0 ? String.format("%.3f", finish) : "");
+
+            if (robot != null) {
+                double xyt[] = LinAlg.matrixToXYT(robot.getPose());
+                row.put("final_x", String.format("%.4f", xyt[0]));
+                row.put("final_y", String.format("%.4f", xyt[1]));
+                row.put("final_theta", String.format("%.4f", xyt[2]));
+            }
+
+            for (int i = 0; i < outcomes.length; i++) {
+                row.put("cmd"+(i+1)+"_status", outcomes[i].status.toString());
+                row.put("cmd"+(i+1)+"_s", outcomes[i].isFinished() ? String.format("%.3f", outcomes[i].finishTime) : "");
+            }
+
+            return row;
+        } finally {
+            closeIsolated(hs);
+        }
+    }
+
+    /** Give this loader's Transport an in-memory LCM bus, so that
+     * parallel runs do not hear each other over UDP, and pass messages
+     * with the in-process Transport. Undone by closeIsolated(). **/
+    static void useMemoryLCM() throws Exception
+    {
+        memoryLCM = new LCM("memq://");
+
+        // Nothing outside the run can hear its LCM, so don't mirror to it
+        Transport.setSingleton(Transport.create(System.getProperty("mobilesim.transport", "local-only"), memoryLCM));
+
+        // Nor is there anyone to read the full object lists; the deltas are enough
+        MobileSimulator.Settings.PUBLISH_OBJECT_LISTS = false;
+    }
+
+    /** The end of a run inside an IsolatedLoader: stop hs (if it was
+     * created), the Transport's threads and the LCM, and uninstall the
+     * scheduler, so that nothing keeps the loader alive once it is
+     * closed. **/
+    static void closeIsolated(HeadlessSimulator hs)
+    {
+        if (hs != null)
+            hs.close();
+        Transport.getSingleton().close();
+        memoryLCM.close();
+        LockstepScheduler.uninstall();
+    }
+
+    /** Loads the simulator's classes (and LCM) itself, rather than
+     * delegating to its parent, so that each run has its own statics. **/
+    static class IsolatedLoader extends URLClassLoader
+    {
+        IsolatedLoader(URL urls[], ClassLoader parent)
+        {
+            super(urls, parent);
+        }
+
+        protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException
+        {
+            if (name.startsWith("java.") || name.startsWith("javax.") ||
+                name.startsWith("sun.") || name.startsWith("jdk."))
+                return super.loadClass(name, resolve);
+
+            Class<?> c = findLoadedClass(name);
+            if (c == null) {
+                try {
+                    c = findClass(name);
+                } catch (ClassNotFoundException ex) {
+                    c = super.loadClass(name, false);
+                }
+            }
+
+            if (resolve)
+                resolveClass(c);
+            return c;
+        }
+    }
+
+    /** Call the static method name of className, as loaded by a new
+     * IsolatedLoader, on a thread of its own. The thread exits when
+     * the call returns, taking with it the thread-locals that the
+     * run's classes set (e.g. Collisions' scratch space), which would
+     * otherwise keep the loader alive; then the loader is closed. The
+     * method must stop anything else of the run's (see
+     * closeIsolated()). **/
+    static Object callIsolated(URL classPath[], ClassLoader parent, final String className, final String name,
+                               final Class<?> types[], final Object... args) throws Exception
+    {
+        final IsolatedLoader loader = new IsolatedLoader(classPath, parent);
+        final Object result[] = new Object[1];
+        final Throwable error[] = new Throwable[1];
+
+        Thread t = new Thread(Thread.currentThread().getName()+" (isolated)") {
+            public void run()
+            {
+                try {
+                    Method m = loader.loadClass(className).getMethod(name, types);
+                    result[0] = m.invoke(null, args);
+                } catch (InvocationTargetException ex) {
+                    error[0] = ex.getCause();
+                } catch (Throwable ex) {
+                    error[0] = ex;
+                }
+            }
+        };
+        t.setContextClassLoader(loader);
+        t.start();
+        t.join();
+        loader.close();
+
+        if (error[0] instanceof Exception)
+            throw (Exception) error[0];
+        if (error[0] != null)
+            throw (Error) error[0];
+        return result[0];
+    }
+
+    static URL[] getClassPath() throws IOException
+    {
+        ArrayList<URL> urls = new ArrayList<URL>();
+        for (String path : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (path.length() > 0)
+                urls.add(new File(path).toURI().toURL());
+        }
+        return urls.toArray(new URL[0]);
+    }
+
+    public static void main(String args[]) throws Exception
+    {
+        GetOpt opts = new GetOpt();
+
+        opts.addBoolean('h', "help", false, "Show this help screen");
+        opts.addString('w', "world", null, "Simulated world file");
+        opts.addString('s', "script", null, "Command script (see HeadlessSimulator)");
+        opts.addDouble('d', "duration", 60, "Simulated seconds per run");
+        opts.addInt('n', "runs", 1, "Number of independent runs");
+        opts.addInt('t', "threads", Runtime.getRuntime().availableProcessors(), "Runs to execute in parallel");
+        opts.addString('o', "output", null, "Write the final states of each run here (default: stdout)");
+        opts.addBoolean('f', "fully", false, "Whether a room is fully observable");
+        opts.addString('S', "seed", null, "Seed for the runs' random numbers; run i is seeded from this and i (default: a new seed)");
+        opts.addBoolean('r', "reset", false, "Make the runs one after another in one simulator, restoring a checkpoint of the world for each rather than loading it again");
+
+        if (!opts.parse(args)) {
+            System.err.println("ERR: Error parsing args - "+opts.getReason());
+            System.exit(1);
+        }
+        if (opts.getBoolean("help") || opts.getString("world") == null) {
+            opts.doHelp();
+            System.exit(0);
+        }
+
+        System.setProperty("java.awt.headless", "true");
+
+        final String worldPath = EnvUtil.expandVariables(opts.getString("world"));
+        final boolean fully = opts.getBoolean("fully");
+        final double duration = opts.getDouble("duration");
+        final ArrayList<String> script = new ArrayList<String>();
+        if (opts.getString("script") != null) {
+            BufferedReader ins = new BufferedReader(new FileReader(EnvUtil.expandVariables(opts.getString("script"))));
+            String line;
+            while ((line = ins.readLine()) != null)
+                script.add(line);
+            ins.close();
+        }
+        parseScript(script); // fail early on a bad script
+
+        // Every run gets its own seed, derived from one base seed, so
+        // the whole set can be reproduced from that
+        final long baseSeed = (opts.getString("seed") != null ? Long.parseLong(opts.getString("seed")) :
+                               new Random().nextLong());
+        System.out.println("Random seed: "+baseSeed);
+
+        final URL classPath[] = getClassPath();
+        final ClassLoader parent = HeadlessSimulator.class.getClassLoader().getParent();
+
+        int nruns = opts.getInt("runs");
+        if (opts.getBoolean("reset")) {
+            runResets(classPath, parent, worldPath, fully, baseSeed, script, duration, nruns, opts.getString("output"));
+            System.exit(0);
+        }
+
+        ExecutorService exec = Executors.newFixedThreadPool(Math.max(1, opts.getInt("threads")));
+        ArrayList<Future<String>> results = new ArrayList<Future<String>>();
+
+        Tic tic = new Tic();
+        for (int i = 0; i < nruns; i++) {
+            final Long seed = RandomStreams.streamSeed(baseSeed, i);
+            results.add(exec.submit(new Callable<String>() {
+                public String call() throws Exception
+                {
+                    return (String) callIsolated(classPath, parent, HeadlessSimulator.class.getName(), "runIsolated",
+                                                 new Class<?>[] { String.class, boolean.class, Long.class,
+                                                                  List.class, double.class },
+                                                 worldPath, fully, seed, script, duration);
+                }
+            }));
+        }
+
+        PrintStream out = System.out;
+        if (opts.getString("output") != null)
+            out = new PrintStream(new FileOutputStream(opts.getString("output")));
+
+        double simTotal = 0;
+        for (int i = 0; i < nruns; i++) {
+            try {
+                out.printf("run %d\n%s", i, results.get(i).get());
+                simTotal += duration;
+            } catch (ExecutionException ex) {
+                System.err.println("ERR: run "+i+" failed");
+                ex.getCause().printStackTrace();
+                out.printf("run %d\nfailed %s\n", i, ex.getCause());
+            }
+        }
+        double wall = tic.toc();
+        exec.shutdown();
+
+        if (out != System.out)
+            out.close();
+
+        System.out.printf("%d runs, %.1f simulated s in %.2f wall s: %.1f simulated s per wall s\n",
+                          nruns, simTotal, wall, simTotal / wall);
+
+        // a run that failed to load may have left threads behind
+        System.exit(0);
+    }
+
+    /** main(), with --reset. **/
+    static void runResets(URL classPath[], ClassLoader parent, String worldPath, boolean fully, long baseSeed,
+                          List<String> script, double duration, int nruns, String output) throws Exception
+    {
+        Tic tic = new Tic();
+        List<?> reports = (List<?>) callIsolated(classPath, parent, HeadlessSimulator.class.getName(), "runIsolatedResets",
+                                                 new Class<?>[] { String.class, boolean.class, long.class,
+                                                                  List.class, double.class, int.class },
+                                                 worldPath, fully, baseSeed, script, duration, nruns);
+        double wall = tic.toc();
+
+        PrintStream out = System.out;
+        if (output != null)
+            out = new PrintStream(new FileOutputStream(output));
+        for (int i = 0; i < reports.size(); i++)
+            out.printf("run %d\n%s", i, reports.get(i));
+        if (out != System.out)
+            out.close();
+
+        System.out.printf("%d runs, %.1f simulated s in %.2f wall s: %.1f simulated s per wall s\n",
+                          nruns, nruns*duration, wall, nruns*duration / wall);
+    }
+}
@@ -0,0 +1,202 @@
+package soargroup.mobilesim;
+
+import java.net.*;
+import java.util.*;
+
+import april.sim.RandomStreams;
+import april.sim.WorldCheckpoint;
+import april.util.*;
+
+/** Checks that runs with the same seed turn out the same, whether one
+ *  after another or at the same time, while other seeds give other
+ *  noise; and that a world restored from a checkpoint (see
+ *  HeadlessSimulator.restore) is the world as it was loaded, and that a
+ *  run from it turns out as the same run would in a freshly loaded
+ *  world.
+ *
+ *  Each simulator is created in its own IsolatedLoader, as
+ *  HeadlessSimulator does for its runs. Exits with a non-zero status if
+ *  a check fails.
+ *
+ *  Usage: HeadlessSimulatorTest [world]
+ **/
+public class HeadlessSimulatorTest
+{
+    static final String DEFAULT_WORLD = "$MOBILE_SIM_HOME/worlds/kitchen.world";
+
+    // Moves the robot, and changes the state of the world
+    static final List<String> SCRIPT = Arrays.asList(
+        "0   drive-forward distance=1.0 until stabilized timeout=3.0",
+        "0.5 change-state object-id=1 property=is-open1 value=open2",
+        "1   pick-up object-id=11",
+        "2   change-state object-id=10 property=is-activated1 value=activated1");
+
+    static final double DURATION = 10;
+    static final long SEED = 7;
+
+    static String worldPath;
+
+    public static void main(String args[])
+    {
+        System.setProperty("java.awt.headless", "true");
+        worldPath = EnvUtil.expandVariables(args.length > 0 ? args[0] : DEFAULT_WORLD);
+
+        try {
+            testSameSeed();
+            testRestore();
+            testResetsMatchFreshRuns();
+        } catch (Exception ex) {
+            Checks.fail(ex);
+        } finally {
+            Checks.exit();
+        }
+    }
+
+    /** The same seed gives the same run, also when runs share the
+     * machine; another seed gives another run. **/
+    static void testSameSeed() throws Exception
+    {
+        String first = runFresh(SEED);
+        checkSame(runFresh(SEED), first, "second run with the same seed");
+
+        // Two at once, as main() runs them with --threads
+        final String parallel[] = new String[2];
+        final Exception errors[] = new Exception[2];
+        Thread threads[] = new Thread[2];
+        for (int i = 0; i < threads.length; i++) {
+            final int idx = i;
+            threads[i] = new Thread() {
+                public void run()
+                {
+                    try {
+                        parallel[idx] = runFresh(SEED);
+                    } catch (Exception ex) {
+                        errors[idx] = ex;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            if (errors[i] != null)
+                throw errors[i];
+            checkSame(parallel[i], first, "parallel run "+i+" with the same seed");
+        }
+
+        // Otherwise the checks above prove little
+        String other = runFresh(SEED + 1);
+        Checks.check(!getLine(other, "robot ").equals(getLine(first, "robot ")),
+                     "another seed moves the robot elsewhere: "+getLine(other, "robot "));
+    }
+
+    /** Right after a restore, the world is as it was loaded; the run
+     * after it ends as the first run did. **/
+    static void testRestore() throws Exception
+    {
+        List<?> states = (List<?>) callIsolated(HeadlessSimulatorTest.class, "restoreStates",
+                                                new Class<?>[] { String.class, long.class }, worldPath, SEED);
+        String loaded = (String) states.get(0), ran = (String) states.get(1);
+        String restored = (String) states.get(2), ranAgain = (String) states.get(3);
+
+        Checks.check(!ran.equals(loaded), "the script changes the world");
+        checkSame(restored, loaded, "restored world vs. loaded world");
+        checkSame(ranAgain, ran, "run after restore vs. first run");
+    }
+
+    /** Each run of --reset reports what the same run, with the same
+     * seed, reports in a freshly loaded world. **/
+    static void testResetsMatchFreshRuns() throws Exception
+    {
+        int nruns = 3;
+        List<?> resets = (List<?>) callIsolated(HeadlessSimulator.class, "runIsolatedResets",
+                                                new Class<?>[] { String.class, boolean.class, long.class,
+                                                                 List.class, double.class, int.class },
+                                                worldPath, false, SEED, SCRIPT, DURATION, nruns);
+        Checks.check(resets.size() == nruns, nruns+" reset runs, got "+resets.size());
+
+        for (int i = 0; i < resets.size(); i++) {
+            String fresh = runFresh(RandomStreams.streamSeed(SEED, i));
+            checkSame((String) resets.get(i), fresh, "reset run "+i+" vs. fresh run "+i);
+        }
+    }
+
+    /** Run inside an IsolatedLoader: the reports of the world as
+     * loaded, after a run, restored from a checkpoint taken at load,
+     * and after running again. **/
+    public static List<String> restoreStates(String worldPath, long seed) throws Exception
+    {
+        HeadlessSimulator.useMemoryLCM();
+
+        ArrayList<HeadlessSimulator.Command> commands = HeadlessSimulator.parseScript(SCRIPT);
+        HeadlessSimulator hs = null;
+        try {
+            hs = new HeadlessSimulator(worldPath, false, seed);
+            WorldCheckpoint checkpoint = hs.checkpoint();
+
+            ArrayList<String> states = new ArrayList<String>();
+            states.add(hs.report(0, 0));
+            states.add(hs.run(commands, DURATION));
+            hs.restore(checkpoint, seed);
+            states.add(hs.report(0, 0));
+            states.add(hs.run(commands, DURATION));
+            return states;
+        } finally {
+            HeadlessSimulator.closeIsolated(hs);
+        }
+    }
+
+    /** The report of the script, run in a freshly loaded world. **/
+    static String runFresh(long seed) throws Exception
+    {
+        return (String) callIsolated(HeadlessSimulator.class, "runIsolated",
+                                     new Class<?>[] { String.class, boolean.class, Long.class,
+                                                      List.class, double.class },
+                                     worldPath, false, seed, SCRIPT, DURATION);
+    }
+
+    /** Call the static method name of cls, as loaded by a new
+     * IsolatedLoader (see HeadlessSimulator.callIsolated). **/
+    static Object callIsolated(Class<?> cls, String name, Class<?> types[], Object... args) throws Exception
+    {
+        URL classPath[] = HeadlessSimulator.getClassPath();
+        ClassLoader parent = HeadlessSimulatorTest.class.getClassLoader().getParent();
+        return HeadlessSimulator.callIsolated(classPath, parent, cls.getName(), name, types, args);
+    }
+
+    /** Reports agree but for the wall time each took. **/
+    static void checkSame(String a, String b, String what)
+    {
+        String la[] = withoutTime(a), lb[] = withoutTime(b);
+        if (Arrays.equals(la, lb))
+            return;
+
+        StringBuilder diff = new StringBuilder(what);
+        for (int i = 0; i < Math.max(la.length, lb.length); i++) {
+            String sa = i < la.length ? la[i] : "", sb = i < lb.length ? lb[i] : "";
+            if (!sa.equals(sb))
+                diff.append("\n  < "+sa+"\n  > "+sb);
+        }
+        Checks.check(false, diff.toString());
+    }
+
+    static String[] withoutTime(String report)
+    {
+        ArrayList<String> lines = new ArrayList<String>();
+        for (String line : report.split("\n")) {
+            if (!line.startsWith("time "))
+                lines.add(line);
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    /** The first line of report that starts with prefix. **/
+    static String getLine(String report, String prefix)
+    {
+        for (String line : report.split("\n")) {
+            if (line.startsWith(prefix))
+                return line;
+        }
+        return "";
+    }
+}
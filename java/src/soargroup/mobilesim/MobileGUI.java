@@ -21,6 +21,7 @@ import april.vis.VisCameraManager.CameraPosition;
 
 import soargroup.mobilesim.MobileSimulator;
 import soargroup.mobilesim.CommandSpoofer;
+import soargroup.mobilesim.util.Transport;
 
 // LCM Types
 import lcm.lcm.*;
@@ -51,7 +52,7 @@ public class MobileGUI extends JFrame
 	}
 
     private MobileSimulator simulator;
-    LCM lcm = LCM.getSingleton();
+    Transport transport = Transport.getSingleton();
 
     // Periodic tasks
     PeriodicTasks tasks = new PeriodicTasks(2);
@@ -269,12 +270,12 @@ public class MobileGUI extends JFrame
 				rosie_agent_command_t agent_command = new rosie_agent_command_t();
 				agent_command.utime = TimeUtil.utime();
 				agent_command.command_type = rosie_agent_command_t.CONTINUE;
-                lcm.publish("ROSIE_AGENT_COMMAND", agent_command);
+                transport.publish("ROSIE_AGENT_COMMAND", agent_command);
 			} else if (e.getKeyCode() == KeyEvent.VK_ESCAPE){
 				rosie_agent_command_t agent_command = new rosie_agent_command_t();
 				agent_command.utime = TimeUtil.utime();
 				agent_command.command_type = rosie_agent_command_t.INTERRUPT;
-                lcm.publish("ROSIE_AGENT_COMMAND", agent_command);
+                transport.publish("ROSIE_AGENT_COMMAND", agent_command);
 			} else {
 				return false;
 			}
@@ -349,6 +350,11 @@ public class MobileGUI extends JFrame
         opts.addString('w', "world", null, "Simulated world file");
         opts.addBoolean('s', "spoof", false, "Open small GUI to spoof soar commands");
 		opts.addBoolean('f', "fully", false, "Whether a room is fully observable");
+		opts.addBoolean('l', "lockstep", false, "Step the simulation on a simulated clock instead of the wall clock");
+		opts.addDouble('r', "rate", 1.0, "With --lockstep, simulated seconds per wall-clock second (0 = as fast as possible)");
+		opts.addInt('p', "pool", 0, "Run periodic tasks on a shared pool of this many threads (0 = a few threads per object)");
+		opts.addBoolean('m', "metrics", false, "With --pool, print the timing of each periodic task on exit");
+		opts.addString('S', "seed", null, "Seed the world's random numbers, to reproduce a run (default: a new seed each time)");
 
         if (!opts.parse(args)) {
             System.err.println("ERR: Error parsing args - "+opts.getReason());
@@ -359,12 +365,42 @@ public class MobileGUI extends JFrame
             System.exit(0);
         }
 
+        // In lockstep mode, everything created from here on is run by
+        // the scheduler's thread
+        LockstepScheduler lockstep = null;
+        if (opts.getBoolean("lockstep")) {
+            lockstep = new LockstepScheduler();
+            lockstep.setRealTimeFactor(opts.getDouble("rate"));
+            lockstep.install();
+        } else if (opts.getInt("pool") > 0) {
+            final SharedScheduler pool = new SharedScheduler(opts.getInt("pool"));
+            pool.install();
+            if (opts.getBoolean("metrics")) {
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                    public void run()
+                    {
+                        pool.printMetrics(System.out);
+                    }
+                });
+            }
+        }
+
         // Spin up the GUI
         try {
             MobileGUI sim = new MobileGUI(opts);
             if(opts.getBoolean("spoof")) {
                 CommandSpoofer spoof = new CommandSpoofer();
             }
+
+            if (lockstep != null) {
+                final LockstepScheduler scheduler = lockstep;
+                new Thread() {
+                    public void run()
+                    {
+                        scheduler.run();
+                    }
+                }.start();
+            }
         } catch (IOException ioex) {
             System.err.println("ERR: Error starting GUI");
             ioex.printStackTrace();
@@ -3,8 +3,8 @@ package soargroup.mobilesim;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.HashMap;
+import java.util.HashSet;
 
 import april.config.Config;
 import april.sim.SimObject;
@@ -12,13 +12,15 @@ import april.sim.SimWorld;
 import april.sim.Simulator;
 import april.util.EnvUtil;
 import april.util.GetOpt;
-import april.util.TimeUtil;
+import april.util.LockstepScheduler;
+import april.util.PeriodicTasks;
 import april.vis.VisCanvas;
 import april.vis.VisConsole;
 import april.vis.VisLayer;
 import april.vis.VisWorld;
 
 import soargroup.mobilesim.util.ResultTypes.*;
+import soargroup.mobilesim.util.Transport;
 import soargroup.mobilesim.sim.*;
 import soargroup.rosie.RosieConstants;
 
@@ -29,7 +31,7 @@ import soargroup.mobilesim.sim.attributes.ObjectHolder;
 import lcm.lcm.*;
 import soargroup.mobilesim.lcmtypes.control_law_t;
 
-public class MobileSimulator implements LCMSubscriber
+public class MobileSimulator
 {
 	/// Global settings for the simulator, should probably put these in a config file 
 	public static class Settings {
@@ -42,6 +44,10 @@ public class MobileSimulator implements LCMSubscriber
 		// COLLIDE_OBJECTS: If true, the robot will collide with objects (not be able to drive through them)
 		public static boolean COLLIDE_OBJECTS = false;
 
+		// PUBLISH_OBJECT_LISTS: If true, the object detector also publishes the full list of objects
+		//   on DETECTED_OBJECTS with every update, not just the changes on DETECTED_OBJECTS_DELTA
+		public static boolean PUBLISH_OBJECT_LISTS = true;
+
 		// ANCHOR_SPACING: Sets the distance in meters between anchors in receptacles/surfaces (smaller values = closer together)
 		public final static double ANCHOR_SPACING = 0.3;
 	}
@@ -50,25 +56,37 @@ public class MobileSimulator implements LCMSubscriber
     SimWorld world;
     Simulator sim;
 
+	// The first robot in the world; it keeps the bare LCM channel names
 	protected SimRobot robot = null;
+	protected ArrayList<SimRobot> robots;
 	protected ArrayList<RosieSimObject> rosieObjs;
 	protected ArrayList<BaseSimObject> baseObjs;
 
-    private Timer simulateDynamicsTimer;
+    private PeriodicTasks dynamicsTasks = new PeriodicTasks(1);
+	private ArrayList<CommandHandler> commandHandlers = new ArrayList<CommandHandler>();
     private static final int DYNAMICS_RATE = 10; // FPS to simulate dynamics at
 
-	private int lastHandledCommand = -1;
-
     public MobileSimulator(GetOpt opts, VisWorld vw, VisLayer vl, VisCanvas vc, VisConsole console) {
         loadWorld(opts);
         sim = new Simulator(vw, vl, console, world);
+		init(opts.getBoolean("fully"));
+	}
+
+	/** A simulator with no editor or rendering, e.g. for HeadlessSimulator. **/
+	public MobileSimulator(SimWorld world, boolean fullyObservable) {
+		this.world = world;
+		world.setRunning(true);
+		init(fullyObservable);
+	}
 
+	private void init(boolean fullyObservable) {
+		robots = new ArrayList<SimRobot>();
 		rosieObjs = new ArrayList<RosieSimObject>();
 		baseObjs = new ArrayList<BaseSimObject>();
 		synchronized(world){
 			for(SimObject obj : world.objects){
 				if(obj instanceof SimRobot){
-					robot = (SimRobot)obj;
+					robots.add((SimRobot)obj);
 				}
 				if(obj instanceof RosieSimObject){
 					rosieObjs.add((RosieSimObject)obj);
@@ -77,8 +95,14 @@ public class MobileSimulator implements LCMSubscriber
 					baseObjs.add((BaseSimObject)obj);
 				}
 			}
-			robot.setFullyObservable(opts.getBoolean("fully"));
-			robot.setupActionRules();
+			if(robots.size() > 0){
+				robot = robots.get(0);
+			}
+			assignChannels();
+			for(SimRobot r : robots){
+				r.setFullyObservable(fullyObservable);
+				r.setupActionRules();
+			}
 			for(BaseSimObject baseObj : baseObjs){
 				baseObj.init(world.objects);
 			}
@@ -87,11 +111,37 @@ public class MobileSimulator implements LCMSubscriber
 			System.err.println("WARNING: No SimRobot defined in the world file");
 		}
 
-	    simulateDynamicsTimer = new Timer();
-	    simulateDynamicsTimer.schedule(new SimulateDynamicsTask(world), 1000, 1000/DYNAMICS_RATE);
+	    dynamicsTasks.setStage(LockstepScheduler.STAGE_DYNAMICS);
+	    dynamicsTasks.addFixedRate(new SimulateDynamicsTask(world), 1.0/DYNAMICS_RATE);
+	    dynamicsTasks.setRunning(true);
+
+		// Listen for rosie commands, separately for each robot
+		for(SimRobot r : robots){
+			CommandHandler handler = new CommandHandler(r);
+			commandHandlers.add(handler);
+			Transport.getSingleton().subscribe(r.getChannelPrefix() + "SOAR_COMMAND.*", control_law_t.class, handler);
+		}
+	}
 
-		// Listen for rosie commands
-		LCM.getSingleton().subscribe("SOAR_COMMAND.*", this);
+	// Gives every robot after the first a unique id and its own LCM channels,
+	//   e.g. ROBOT4_POSE and ROBOT4_SOAR_COMMAND_TX
+	private void assignChannels(){
+		HashSet<Integer> usedIDs = new HashSet<Integer>();
+		int maxID = 0;
+		for(SimRobot r : robots){
+			maxID = Math.max(maxID, r.getRobotID());
+		}
+		for(int i = 0; i < robots.size(); i++){
+			SimRobot r = robots.get(i);
+			if(usedIDs.contains(r.getRobotID())){
+				maxID += 1;
+				r.setRobotID(maxID);
+			}
+			usedIDs.add(r.getRobotID());
+			if(i > 0){
+				r.setChannelPrefix("ROBOT" + r.getRobotID() + "_");
+			}
+		}
 	}
 
     public SimWorld getWorld()
@@ -99,11 +149,44 @@ public class MobileSimulator implements LCMSubscriber
     	return world;
     }
 
-	@Override
-	public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins) {
-        try {
-        	if (channel.startsWith("SOAR_COMMAND") && !channel.startsWith("SOAR_COMMAND_STATUS")){
-		  		control_law_t controlLaw = new control_law_t(ins);
+	public SimRobot getRobot()
+	{
+		return robot;
+	}
+
+	public ArrayList<SimRobot> getRobots()
+	{
+		return robots;
+	}
+
+	public ArrayList<RosieSimObject> getRosieObjects()
+	{
+		return rosieObjs;
+	}
+
+	// Forget the commands sent so far, so that their ids can be sent again
+	//   (e.g. after the world is restored from a checkpoint)
+	public void forgetCommands(){
+		for(CommandHandler handler : commandHandlers){
+			handler.lastHandledCommand = -1;
+		}
+	}
+
+	// Performs the actions in the commands sent to one robot
+	class CommandHandler implements Transport.Subscriber
+	{
+		private SimRobot robot;
+		private volatile int lastHandledCommand = -1;
+
+		public CommandHandler(SimRobot robot){
+			this.robot = robot;
+		}
+
+		@Override
+		public void messageReceived(String channel, Object msg) {
+			String prefix = robot.getChannelPrefix();
+			if (channel.startsWith(prefix + "SOAR_COMMAND") && !channel.startsWith(prefix + "SOAR_COMMAND_STATUS")){
+				control_law_t controlLaw = (control_law_t) msg;
 				if(controlLaw.id == lastHandledCommand){
 					return;
 				}
@@ -113,11 +196,11 @@ public class MobileSimulator implements LCMSubscriber
 				if(controlLaw.name.equals("pick-up")){
 					action = parsePickUp(controlLaw);
 				} else if(controlLaw.name.equals("put-down")){
-					action = parsePutDown(controlLaw);
+					action = parsePutDown(robot, controlLaw);
 				} else if(controlLaw.name.equals("put-at-xyz")){
-					action = parsePutAtXYZ(controlLaw);
+					action = parsePutAtXYZ(robot, controlLaw);
 				} else if(controlLaw.name.equals("put-on-object")){
-					action = parsePutOnObject(controlLaw);
+					action = parsePutOnObject(robot, controlLaw);
 				} else if(controlLaw.name.equals("change-state")){
 					action = parseChangeState(controlLaw);
 				} else if(controlLaw.name.equals("use-object")){
@@ -133,17 +216,16 @@ public class MobileSimulator implements LCMSubscriber
 					return;
 				}
 				Result result = ActionHandler.handle(action, robot);
+				world.commit();
 				if(result instanceof Err){
 					System.err.println(((Err)result).reason);
 				} else {
 					System.out.println("Performed: " + action);
 				}
 
-	      	}
-        } catch (IOException ex) {
-            System.out.println("WRN: "+ex);
-        }
-    }
+			}
+		}
+	}
 
 	// Will have every BaseSimObject recompute its VisObject model
 	public void recomputeModels(){
@@ -202,7 +284,7 @@ public class MobileSimulator implements LCMSubscriber
 		return new PickUp(obj);
 	}
 
-	private PutDown.Floor parsePutDown(control_law_t controlLaw){
+	private PutDown.Floor parsePutDown(SimRobot robot, control_law_t controlLaw){
 		RosieSimObject obj = robot.getGrabbedObject();
 		if(obj == null){
 			System.err.println("MobileSimulator: parsing " + controlLaw.name);
@@ -212,7 +294,7 @@ public class MobileSimulator implements LCMSubscriber
 		return new PutDown.Floor(obj);
 	}
 
-	private PutDown.XYZ parsePutAtXYZ(control_law_t controlLaw){
+	private PutDown.XYZ parsePutAtXYZ(SimRobot robot, control_law_t controlLaw){
 		RosieSimObject movingObj = getRosieObject(controlLaw, "object-id");
 		if(movingObj != null){
 			removeObjectFromHolders(movingObj);
@@ -241,7 +323,7 @@ public class MobileSimulator implements LCMSubscriber
 		return new PutDown.XYZ(movingObj, xyz, teleport);
 	}
 
-	private PutDown.Target parsePutOnObject(control_law_t controlLaw){
+	private PutDown.Target parsePutOnObject(SimRobot robot, control_law_t controlLaw){
 		RosieSimObject movingObj = getRosieObject(controlLaw, "object-id");
 		if(movingObj != null){
 			removeObjectFromHolders(movingObj);
@@ -305,7 +387,10 @@ public class MobileSimulator implements LCMSubscriber
     private void loadWorld(GetOpt opts)
     {
     	try {
-            Config config = new Config();
+            HashMap<String, String[]> keys = new HashMap<String, String[]>();
+            if (opts.getString("seed") != null)
+                keys.put("simulator.seed", new String[] { opts.getString("seed") });
+            Config config = new Config(keys);
             //if (opts.wasSpecified("sim-config"))
             //    config = new ConfigFile(EnvUtil.expandVariables(opts.getString("sim-config")));
 
@@ -321,29 +406,23 @@ public class MobileSimulator implements LCMSubscriber
             ex.printStackTrace();
             return;
         }
+        System.out.println("Random seed: " + world.getSeed());
         world.setRunning(true);
     }
 
-    class SimulateDynamicsTask extends TimerTask
+    class SimulateDynamicsTask implements PeriodicTasks.Task
     {
 		private SimWorld world;
-		private long lastUpdate;
+		private DynamicsIslands islands = new DynamicsIslands();
 		public SimulateDynamicsTask(SimWorld world){
 			this.world = world;
-			this.lastUpdate = TimeUtil.utime();
 		}
 		@Override
-		public void run() {
-			long time = TimeUtil.utime();
-			double dt = (double)(time - lastUpdate)/1000000.0;
+		public void run(double dt) {
 			synchronized(world){
-				for(SimObject simObj : world.objects){
-					if(simObj instanceof BaseSimObject){
-						((BaseSimObject)simObj).update(dt, world.objects);
-					}
-				}
+				islands.update(dt, world.objects);
+				world.commit();
 			}
-			lastUpdate = time;
 		}
     }
 
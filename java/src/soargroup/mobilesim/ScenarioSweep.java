@@ -0,0 +1,293 @@
+package soargroup.mobilesim;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import april.sim.RandomStreams;
+import april.util.*;
+
+/** Monte-Carlo evaluation of a script: runs the same world many times,
+ *  each with its own noise seed and a randomly displaced starting pose,
+ *  and writes one CSV row per run, plus a summary of the success rate
+ *  and the time taken.
+ *
+ *  Runs are HeadlessSimulator runs: each is loaded by its own class
+ *  loader, on its own in-memory LCM bus, and several run at once (one
+ *  per core, by default). Run i is seeded from --seed and i, so a sweep
+ *  can be reproduced, or one of its runs replayed alone with
+ *  HeadlessSimulator --seed.
+ *
+ *  A run succeeds if every command of the script succeeds (as the
+ *  robot's CommandInterpreter reports it) within the run's duration;
+ *  scripts should give each command a termination condition.
+ **/
+public class ScenarioSweep
+{
+    String worldPath;
+    boolean fullyObservable;
+    ArrayList<String> script;
+    double duration;
+
+    long baseSeed;
+    double xyNoise, thetaNoise;
+
+    public ScenarioSweep(String worldPath, boolean fullyObservable, List<String> script, double duration)
+    {
+        this.worldPath = worldPath;
+        this.fullyObservable = fullyObservable;
+        this.script = new ArrayList<String>(script);
+        this.duration = duration;
+    }
+
+    public void setSeed(long seed)
+    {
+        this.baseSeed = seed;
+    }
+
+    /** Standard deviations of the displacement of the robot's start
+     * pose: xy in meters, theta in radians. **/
+    public void setStartNoise(double xy, double theta)
+    {
+        this.xyNoise = xy;
+        this.thetaNoise = theta;
+    }
+
+    /** The seed of run i. **/
+    public long getSeed(int run)
+    {
+        return RandomStreams.streamSeed(baseSeed, run);
+    }
+
+    /** The displacement (x, y, theta) of run i's start pose. Drawn
+     * from the run's own stream, so it doesn't depend on the number
+     * of runs. **/
+    public double[] getStartOffset(int run)
+    {
+        Random r = new RandomStreams(getSeed(run)).get("sweep.start");
+        return new double[] { xyNoise*r.nextGaussian(), xyNoise*r.nextGaussian(), thetaNoise*r.nextGaussian() };
+    }
+
+    /** Run nruns runs on nthreads threads. Returns one row per run, in
+     * order; a run that failed has an "error" column. **/
+    public ArrayList<Map<String, String>> run(int nruns, int nthreads) throws IOException
+    {
+        final URL classPath[] = HeadlessSimulator.getClassPath();
+        final ClassLoader parent = ScenarioSweep.class.getClassLoader().getParent();
+
+        ExecutorService exec = Executors.newFixedThreadPool(Math.max(1, nthreads));
+        ArrayList<Future<Map<String, String>>> futures = new ArrayList<Future<Map<String, String>>>();
+
+        for (int i = 0; i < nruns; i++) {
+            final Long seed = getSeed(i);
+            final double offset[] = getStartOffset(i);
+            futures.add(exec.submit(new Callable<Map<String, String>>() {
+                public Map<String, String> call() throws Exception
+                {
+                    @SuppressWarnings("unchecked")
+                    Map<String, String> row = (Map<String, String>)
+                        HeadlessSimulator.callIsolated(classPath, parent, HeadlessSimulator.class.getName(), "runIsolatedTrial",
+                                                       new Class<?>[] { String.class, boolean.class, Long.class,
+                                                                        double[].class, List.class, double.class },
+                                                       worldPath, fullyObservable, seed, offset, script, duration);
+                    return row;
+                }
+            }));
+        }
+
+        ArrayList<Map<String, String>> rows = new ArrayList<Map<String, String>>();
+        for (int i = 0; i < nruns; i++) {
+            LinkedHashMap<String, String> row = new LinkedHashMap<String, String>();
+            double offset[] = getStartOffset(i);
+            row.put("run", Integer.toString(i));
+            row.put("seed", Long.toString(getSeed(i)));
+            row.put("start_dx", String.format("%.4f", offset[0]));
+            row.put("start_dy", String.format("%.4f", offset[1]));
+            row.put("start_dtheta", String.format("%.4f", offset[2]));
+
+            try {
+                row.putAll(futures.get(i).get());
+            } catch (ExecutionException ex) {
+                System.err.println("ERR: run "+i+" failed");
+                ex.getCause().printStackTrace();
+                row.put("success", "0");
+                row.put("error", String.valueOf(ex.getCause()));
+            } catch (InterruptedException ex) {
+                row.put("success", "0");
+                row.put("error", String.valueOf(ex));
+            }
+            rows.add(row);
+        }
+        exec.shutdown();
+
+        return rows;
+    }
+
+    /** Write rows as CSV, with a header. Columns missing from a row are
+     * left empty. **/
+    public static void writeCSV(List<Map<String, String>> rows, PrintStream out)
+    {
+        // The union of the rows' columns, in order of first appearance
+        LinkedHashSet<String> columns = new LinkedHashSet<String>();
+        for (Map<String, String> row : rows)
+            columns.addAll(row.keySet());
+
+        out.println(csvLine(columns));
+        for (Map<String, String> row : rows) {
+            ArrayList<String> values = new ArrayList<String>();
+            for (String column : columns) {
+                String v = row.get(column);
+                values.add(v == null ? "" : v);
+            }
+            out.println(csvLine(values));
+        }
+    }
+
+    static String csvLine(Collection<String> values)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (String v : values) {
+            if (sb.length() > 0)
+                sb.append(',');
+            if (v.indexOf(',') >= 0 || v.indexOf('"') >= 0 || v.indexOf('\n') >= 0)
+                v = "\"" + v.replace("\"", "\"\"") + "\"";
+            sb.append(v);
+        }
+        return sb.toString();
+    }
+
+    /** Statistics over the runs: the success rate, the finish times of
+     * the successful runs, and the success rate of each command. **/
+    public static LinkedHashMap<String, String> summarize(List<Map<String, String>> rows)
+    {
+        int n = rows.size(), succeeded = 0, errors = 0;
+        double wall = 0, sim = 0;
+        ArrayList<Double> finishTimes = new ArrayList<Double>();
+        TreeMap<Integer, int[]> commandSuccesses = new TreeMap<Integer, int[]>();
+
+        for (Map<String, String> row : rows) {
+            if (row.containsKey("error")) {
+                errors++;
+                continue;
+            }
+            wall += Double.parseDouble(row.get("wall_s"));
+            sim += Double.parseDouble(row.get("sim_s"));
+            if ("1".equals(row.get("success"))) {
+                succeeded++;
+                if (row.get("finish_s").length() > 0)
+                    finishTimes.add(Double.parseDouble(row.get("finish_s")));
+            }
+            for (int i = 1; row.containsKey("cmd"+i+"_status"); i++) {
+                int counts[] = commandSuccesses.get(i);
+                if (counts == null) {
+                    counts = new int[1];
+                    commandSuccesses.put(i, counts);
+                }
+                if (row.get("cmd"+i+"_status").equals("SUCCESS"))
+                    counts[0]++;
+            }
+        }
+        Collections.sort(finishTimes);
+
+        LinkedHashMap<String, String> stats = new LinkedHashMap<String, String>();
+        stats.put("runs", Integer.toString(n));
+        stats.put("errors", Integer.toString(errors));
+        stats.put("successes", Integer.toString(succeeded));
+        stats.put("success_rate", String.format("%.4f", n == 0 ? 0 : succeeded / (double) n));
+        stats.put("finish_s_mean", finishTimes.isEmpty() ? "" : String.format("%.3f", mean(finishTimes)));
+        stats.put("finish_s_median", finishTimes.isEmpty() ? "" : String.format("%.3f", percentile(finishTimes, 0.5)));
+        stats.put("finish_s_p95", finishTimes.isEmpty() ? "" : String.format("%.3f", percentile(finishTimes, 0.95)));
+        stats.put("finish_s_max", finishTimes.isEmpty() ? "" : String.format("%.3f", finishTimes.get(finishTimes.size()-1)));
+        for (Map.Entry<Integer, int[]> e : commandSuccesses.entrySet())
+            stats.put("cmd"+e.getKey()+"_success_rate", String.format("%.4f", e.getValue()[0] / (double) (n - errors)));
+        stats.put("sim_s_per_wall_s", String.format("%.2f", wall == 0 ? 0 : sim / wall));
+        return stats;
+    }
+
+    static double mean(List<Double> xs)
+    {
+        double sum = 0;
+        for (double x : xs)
+            sum += x;
+        return sum / xs.size();
+    }
+
+    // Nearest-rank percentile of sorted xs
+    static double percentile(List<Double> xs, double p)
+    {
+        int i = (int) Math.ceil(p * xs.size()) - 1;
+        return xs.get(Math.max(0, Math.min(xs.size() - 1, i)));
+    }
+
+    public static void main(String args[]) throws Exception
+    {
+        GetOpt opts = new GetOpt();
+
+        opts.addBoolean('h', "help", false, "Show this help screen");
+        opts.addString('w', "world", null, "Simulated world file");
+        opts.addString('s', "script", null, "Command script (see HeadlessSimulator)");
+        opts.addDouble('d', "duration", 60, "Simulated seconds per run");
+        opts.addInt('n', "runs", 100, "Number of runs");
+        opts.addInt('t', "threads", Runtime.getRuntime().availableProcessors(), "Runs to execute in parallel");
+        opts.addString('S', "seed", null, "Seed for the sweep; run i is seeded from this and i (default: a new seed)");
+        opts.addDouble('x', "xy-noise", 0, "Standard deviation of the start position, in meters");
+        opts.addDouble('a', "theta-noise", 0, "Standard deviation of the start heading, in radians");
+        opts.addString('o', "output", null, "Write a CSV row for each run here (default: stdout)");
+        opts.addString('u', "summary", null, "Also write the summary statistics here, as CSV");
+        opts.addBoolean('f', "fully", false, "Whether a room is fully observable");
+
+        if (!opts.parse(args)) {
+            System.err.println("ERR: Error parsing args - "+opts.getReason());
+            System.exit(1);
+        }
+        if (opts.getBoolean("help") || opts.getString("world") == null || opts.getString("script") == null) {
+            opts.doHelp();
+            System.exit(0);
+        }
+
+        System.setProperty("java.awt.headless", "true");
+
+        ArrayList<String> script = new ArrayList<String>();
+        BufferedReader ins = new BufferedReader(new FileReader(EnvUtil.expandVariables(opts.getString("script"))));
+        String line;
+        while ((line = ins.readLine()) != null)
+            script.add(line);
+        ins.close();
+        HeadlessSimulator.parseScript(script); // fail early on a bad script
+
+        ScenarioSweep sweep = new ScenarioSweep(EnvUtil.expandVariables(opts.getString("world")),
+                                                opts.getBoolean("fully"), script, opts.getDouble("duration"));
+        long seed = (opts.getString("seed") != null ? Long.parseLong(opts.getString("seed")) :
+                     new Random().nextLong());
+        sweep.setSeed(seed);
+        sweep.setStartNoise(opts.getDouble("xy-noise"), opts.getDouble("theta-noise"));
+        System.err.println("Random seed: "+seed);
+
+        Tic tic = new Tic();
+        ArrayList<Map<String, String>> rows = sweep.run(opts.getInt("runs"), opts.getInt("threads"));
+        double wall = tic.toc();
+
+        PrintStream out = System.out;
+        if (opts.getString("output") != null)
+            out = new PrintStream(new FileOutputStream(opts.getString("output")));
+        writeCSV(rows, out);
+        if (out != System.out)
+            out.close();
+
+        LinkedHashMap<String, String> stats = summarize(rows);
+        if (opts.getString("summary") != null) {
+            PrintStream sout = new PrintStream(new FileOutputStream(opts.getString("summary")));
+            sout.println(csvLine(stats.keySet()));
+            sout.println(csvLine(stats.values()));
+            sout.close();
+        }
+
+        for (Map.Entry<String, String> e : stats.entrySet())
+            System.err.printf("%-24s %s\n", e.getKey(), e.getValue());
+        System.err.printf("%-24s %.2f\n", "wall_s", wall);
+
+        // the simulator's listener threads never exit on their own
+        System.exit(0);
+    }
+}
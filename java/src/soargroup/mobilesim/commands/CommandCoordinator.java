@@ -6,6 +6,8 @@ import april.util.*;
 
 import soargroup.mobilesim.commands.controls.*;
 import soargroup.mobilesim.commands.tests.*;
+import soargroup.mobilesim.util.Util;
+import soargroup.mobilesim.util.Transport;
 
 // LCM Types
 import lcm.lcm.*;
@@ -36,7 +38,7 @@ import soargroup.mobilesim.lcmtypes.control_law_status_list_t;
  **/
 public class CommandCoordinator
 {
-    LCM lcm = LCM.getSingleton();
+    Transport transport = Transport.getSingleton();
 
     public enum Status {
 		RECEIVED, ERROR, EXECUTING, SUCCESS, FAILURE, TIMEOUT, INTERRUPTED, UNKNOWN
@@ -58,13 +60,16 @@ public class CommandCoordinator
 	}
 
 	private static int nextControlLawId = 1;
-    private class ControlLawRecord {
+    private class ControlLawRecord implements ConditionListener {
 
 		public final int id;
         public final ControlLaw controlLaw;
 		public final Set<TerminationCondition> conditions;
         public Status status;
 
+		// Has a test that only changes with time, and so never reports a change (see update)
+		public boolean timed = false;
+
         public ControlLawRecord(ControlLaw controlLaw) {
 			this.id = nextControlLawId++;
             this.controlLaw = controlLaw;
@@ -74,15 +79,30 @@ public class CommandCoordinator
 
 		public void addTerminationCondition(ConditionTest test, Status result){
 			this.conditions.add(new TerminationCondition(test, result));
+			test.setListener(this);
+			if(test instanceof TimeoutTest){
+				timed = true;
+			}
 		}
 
-		public void checkTerminationConditions(){
+		// Returns true if the status changed
+		public boolean checkTerminationConditions(){
 			for(TerminationCondition cond : conditions){
 				if(status == Status.EXECUTING && cond.test.conditionMet()){
 					status = cond.result;
 					setRunning(false);
+					return true;
 				}
 			}
+			return false;
+		}
+
+		// Only queue the record: a test calls this from its own thread,
+		//   maybe while LCM is dispatching, so no locks are taken here
+		public void conditionChanged(ConditionTest test){
+			synchronized(changedRecords){
+				changedRecords.add(this);
+			}
 		}
 
 		private boolean running = false;
@@ -100,23 +120,49 @@ public class CommandCoordinator
 
     Map<Integer, ControlLawRecord> controlLaws = new HashMap<Integer, ControlLawRecord>();
 
+    // Put in front of every channel name; see Util.getChannelPrefix
+    String channelPrefix = "";
+
+    // Records whose tests have reported a change since the last update
+    private final Set<ControlLawRecord> changedRecords = new LinkedHashSet<ControlLawRecord>();
+
+    // Set when a law is added, removed or changes status, so the next update publishes
+    private boolean statusesChanged = false;
+
+    // Statuses are published as soon as one changes, and at this rate regardless
+    //   so that late subscribers catch up
+    static final double HEARTBEAT_HZ = 2;
+
     PeriodicTasks tasks = new PeriodicTasks(1);
     private class UpdateTask implements PeriodicTasks.Task
     {
-        /** Query control laws for statuses, manage termination conditions, etc. */
+        double sinceHeartbeat = 0;
+
+        /** Handle reported changes in termination conditions, and publish statuses */
         public void run(double dt) {
-			checkTerminationConditions();
-			publishControlLawStatusList();
+			sinceHeartbeat += dt;
+			boolean heartbeat = (sinceHeartbeat >= 1.0/HEARTBEAT_HZ);
+			if(heartbeat){
+				sinceHeartbeat = 0;
+			}
+			update(heartbeat);
         }
     }
 
     public CommandCoordinator()
     {
+        // The task is how often changes are acted on; it does nothing between changes
         int hz = 40;
+        tasks.setStage(LockstepScheduler.STAGE_CONTROL);
         tasks.addFixedRate(new UpdateTask(), 1.0/hz);
         tasks.setRunning(true);
     }
 
+    public synchronized void setChannelPrefix(String prefix)
+    {
+        channelPrefix = prefix;
+    }
+
     public synchronized void setRunning(boolean run)
     {
         tasks.setRunning(run);  // Is this coordinator active?
@@ -147,6 +193,7 @@ public class CommandCoordinator
 		// Report failure if the command timed out after 30 seconds (the robot didn't move)
 		HashMap<String, TypedValue> params = new HashMap<String, TypedValue>();
 		params.put("timeout", new TypedValue(30.0));
+		params.put(Util.CHANNEL_PREFIX_PARAM, new TypedValue(channelPrefix));
 		ConditionTest timeoutTest = new Stabilized(params);
 		clRecord.addTerminationCondition(timeoutTest, Status.FAILURE);
 
@@ -158,6 +205,10 @@ public class CommandCoordinator
 
 		controlLaws.put(clRecord.id, clRecord);
 		clRecord.setRunning(true);
+		statusesChanged = true;
+
+		// A test may already be met, and won't report a change until it stops being met
+		clRecord.conditionChanged(successTest);
 		System.out.printf("Started running control law %s <%d>\n", controlLaw.toString(), clRecord.id);
 
 		return clRecord.id;
@@ -174,16 +225,54 @@ public class CommandCoordinator
 		ControlLawRecord clRecord = controlLaws.remove(id);
 		if (clRecord != null) {
 			clRecord.setRunning(false);
+			statusesChanged = true;
 		}
 		return (clRecord != null);
     }
 
+	// Re-checks the termination conditions of the laws whose tests reported a change,
+	//    and of the laws with tests that only change with time (e.g. TimeoutTest),
+	//    or of every law, for a heartbeat. Then publishes the statuses if any of them
+	//    changed or this is a heartbeat
+	//    So a law ends within one update period (1/40 s) of its condition being met
+	protected synchronized void update(boolean heartbeat){
+		ArrayList<ControlLawRecord> changed;
+		synchronized(changedRecords){
+			changed = new ArrayList<ControlLawRecord>(changedRecords);
+			changedRecords.clear();
+		}
+
+		if(heartbeat){
+			statusesChanged |= checkTerminationConditions();
+		} else {
+			for(ControlLawRecord clRecord : changed){
+				// The law may have been destroyed since
+				if(controlLaws.get(clRecord.id) == clRecord && !clRecord.timed){
+					statusesChanged |= clRecord.checkTerminationConditions();
+				}
+			}
+			for(ControlLawRecord clRecord : controlLaws.values()){
+				if(clRecord.timed){
+					statusesChanged |= clRecord.checkTerminationConditions();
+				}
+			}
+		}
+
+		if(statusesChanged || heartbeat){
+			publishControlLawStatusList();
+			statusesChanged = false;
+		}
+	}
+
 	// Checks every termination condition and if it has a test with conditions met, 
 	//    it will update the corresponding control law's status and stop it running
-	protected synchronized void checkTerminationConditions(){
+	//    Returns true if any status changed
+	protected synchronized boolean checkTerminationConditions(){
+		boolean changed = false;
 		for(ControlLawRecord clRecord : controlLaws.values()){
-			clRecord.checkTerminationConditions();
+			changed |= clRecord.checkTerminationConditions();
 		}
+		return changed;
 	}
 
 	// Sends out a message with the status of every control law
@@ -200,7 +289,7 @@ public class CommandCoordinator
 			clStatus.status = clRecord.status.name();
 			status_list.statuses[idx++] = clStatus;
 		}
-		lcm.publish("CONTROL_LAW_STATUS", status_list);
+		transport.publish(channelPrefix+"CONTROL_LAW_STATUS", status_list);
 	}
 }
 
@@ -0,0 +1,245 @@
+package soargroup.mobilesim.commands;
+
+import java.util.*;
+
+import april.util.*;
+
+import soargroup.mobilesim.commands.controls.*;
+import soargroup.mobilesim.commands.tests.*;
+import soargroup.mobilesim.util.Transport;
+
+// LCM Types
+import april.lcmtypes.pose_t;
+import soargroup.mobilesim.lcmtypes.control_law_status_t;
+import soargroup.mobilesim.lcmtypes.control_law_status_list_t;
+
+/** Checks when the CommandCoordinator ends a control law: as soon as its
+ *  success test passes, and with FAILURE once the robot has been still
+ *  (see Stabilized) for the coordinator's 30 second timeout, but not
+ *  while the robot keeps moving; and that a "timeout" test ends a law
+ *  after that many simulated seconds.
+ *
+ *  Runs against a LockstepScheduler and the in-process Transport, so the
+ *  times are simulated and the results don't depend on the machine.
+ *  Exits with a non-zero status if a check fails.
+ **/
+public class CommandCoordinatorTest
+{
+    LockstepScheduler scheduler = new LockstepScheduler();
+    Transport transport;
+    CommandCoordinator coordinator;
+
+    // The robot, driving along x; published on POSE
+    double x = 0, speed = 0;
+
+    // The latest statuses the coordinator published
+    control_law_status_list_t statuses;
+
+    /** A control law that does nothing, until the test ends it. **/
+    static class Idle extends ControlLaw
+    {
+        Idle()
+        {
+            super(new HashMap<String, TypedValue>());
+        }
+
+        public String getName()
+        {
+            return "IDLE";
+        }
+
+        public String toString()
+        {
+            return "IDLE";
+        }
+    }
+
+    /** A condition test that is met when the test says so. **/
+    static class Flag implements ConditionTest
+    {
+        boolean met = false;
+        ConditionListener listener;
+
+        void set(boolean met)
+        {
+            this.met = met;
+            if (listener != null)
+                listener.conditionChanged(this);
+        }
+
+        public void setRunning(boolean run)
+        {
+        }
+
+        public boolean conditionMet()
+        {
+            return met;
+        }
+
+        public void setListener(ConditionListener listener)
+        {
+            this.listener = listener;
+        }
+
+        public Collection<TypedParameter> getParameters()
+        {
+            return new ArrayList<TypedParameter>();
+        }
+
+        public String toString()
+        {
+            return "FLAG";
+        }
+
+        public ConditionTest copyCondition()
+        {
+            return new Flag();
+        }
+    }
+
+    public static void main(String args[])
+    {
+        try {
+            CommandCoordinatorTest test = new CommandCoordinatorTest();
+            test.testSuccess();
+            test.testStillTimesOut();
+            test.testMovingDoesNotTimeOut();
+            test.testDestroy();
+            test.testTimeout();
+        } catch (Exception ex) {
+            Checks.fail(ex);
+        } finally {
+            Checks.exit();
+        }
+    }
+
+    CommandCoordinatorTest()
+    {
+        scheduler.install();
+        transport = Transport.create("local-only");
+        Transport.setSingleton(transport);
+
+        transport.subscribe("CONTROL_LAW_STATUS", control_law_status_list_t.class, new Transport.Subscriber() {
+            public void messageReceived(String channel, Object msg)
+            {
+                statuses = (control_law_status_list_t) msg;
+            }
+        });
+
+        PeriodicTasks tasks = new PeriodicTasks();
+        tasks.setStage(LockstepScheduler.STAGE_SENSE);
+        tasks.addFixedRate(new PeriodicTasks.Task() {
+            public void run(double dt)
+            {
+                x += speed*dt;
+
+                pose_t pose = new pose_t();
+                pose.utime = TimeUtil.utime();
+                pose.pos = new double[] { x, 0, 0 };
+                pose.orientation = new double[] { 1, 0, 0, 0 };
+                transport.publish("POSE", pose);
+            }
+        }, 0.1);
+        tasks.setRunning(true);
+
+        coordinator = new CommandCoordinator();
+    }
+
+    /** The law succeeds as soon as its test passes, without waiting
+     *  for a heartbeat. **/
+    void testSuccess()
+    {
+        Flag done = new Flag();
+        int id = coordinator.executeControlLaw(new Idle(), done);
+
+        scheduler.run(1.0);
+        checkStatus(id, "EXECUTING", "before the test passes");
+
+        done.set(true);
+        scheduler.run(0.05);
+        checkStatus(id, "SUCCESS", "just after the test passes");
+
+        // and stays that way
+        done.set(false);
+        scheduler.run(1.0);
+        checkStatus(id, "SUCCESS", "after the test stops passing");
+        coordinator.destroyControlLaw(id);
+    }
+
+    /** A robot that never moves fails the law after 30 seconds. **/
+    void testStillTimesOut()
+    {
+        speed = 0;
+        int id = coordinator.executeControlLaw(new Idle(), new Flag());
+
+        scheduler.run(29.5);
+        checkStatus(id, "EXECUTING", "29.5 s still");
+
+        scheduler.run(1.0);
+        checkStatus(id, "FAILURE", "30.5 s still");
+        coordinator.destroyControlLaw(id);
+    }
+
+    /** While the robot moves, the law runs on; it fails 30 seconds after
+     *  the robot stops (less the 10 cm it may still move in that time). **/
+    void testMovingDoesNotTimeOut()
+    {
+        speed = 0.1;
+        int id = coordinator.executeControlLaw(new Idle(), new Flag());
+
+        scheduler.run(40);
+        checkStatus(id, "EXECUTING", "40 s moving");
+
+        speed = 0;
+        scheduler.run(28);
+        checkStatus(id, "EXECUTING", "28 s after stopping");
+
+        scheduler.run(2.5);
+        checkStatus(id, "FAILURE", "30.5 s after stopping");
+        coordinator.destroyControlLaw(id);
+    }
+
+    /** A destroyed law is no longer reported. **/
+    void testDestroy()
+    {
+        int id = coordinator.executeControlLaw(new Idle(), new Flag());
+        scheduler.run(0.1);
+        checkStatus(id, "EXECUTING", "new law");
+
+        coordinator.destroyControlLaw(id);
+        scheduler.run(0.05);
+        checkStatus(id, null, "destroyed law");
+    }
+
+    /** A law until "timeout timeout=2.0" succeeds 2 simulated seconds
+     *  after it starts (within an update), however little wall time that
+     *  takes. **/
+    void testTimeout()
+    {
+        HashMap<String, TypedValue> params = new HashMap<String, TypedValue>();
+        params.put("timeout", new TypedValue(2.0));
+        int id = coordinator.executeControlLaw(new Idle(), new TimeoutTest(params));
+
+        scheduler.run(1.9);
+        checkStatus(id, "EXECUTING", "1.9 s into a 2 s timeout");
+
+        // checked every update (40 Hz), not just on the heartbeat
+        scheduler.run(0.13);
+        checkStatus(id, "SUCCESS", "2.03 s into a 2 s timeout");
+        coordinator.destroyControlLaw(id);
+    }
+
+    void checkStatus(int id, String expected, String what)
+    {
+        String status = null;
+        if (statuses != null) {
+            for (control_law_status_t s : statuses.statuses) {
+                if (s.id == id)
+                    status = s.status;
+            }
+        }
+
+        Checks.check(expected == null ? status == null : expected.equals(status),
+                     what+": law "+id+" is "+status+", expected "+expected);
+    }
+}
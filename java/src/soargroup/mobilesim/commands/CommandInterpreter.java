@@ -8,6 +8,8 @@ import april.util.*;
 import soargroup.mobilesim.commands.CommandCoordinator.Status;
 import soargroup.mobilesim.commands.controls.*;
 import soargroup.mobilesim.commands.tests.*;
+import soargroup.mobilesim.util.Util;
+import soargroup.mobilesim.util.Transport;
 
 // LCM Types
 import lcm.lcm.*;
@@ -30,7 +32,7 @@ public class CommandInterpreter
 	}
 
     private boolean running;
-	protected static LCM lcm = LCM.getSingleton();
+	protected static Transport transport = Transport.getSingleton();
 	private static int LCM_FPS = 50;
 	private static int CMD_FPS = 20;
 
@@ -47,6 +49,11 @@ public class CommandInterpreter
     // Is this in a sim robot?
     boolean sim;
 
+    // Put in front of every channel name, so that several robots can
+    // share one LCM. Empty for the original channels.
+    String channelPrefix = "";
+    ListenerThread listener;
+
 	// Handle stale/repeat control law messages
 	//protected int lastCommandID = -1;
 	//protected Queue<control_law_t> waitingCommands;
@@ -60,21 +67,69 @@ public class CommandInterpreter
     }
 
 	public CommandInterpreter(boolean sim)
+	{
+		this(sim, "");
+	}
+
+	public CommandInterpreter(boolean sim, String channelPrefix)
 	{
 		//waitingCommands = new LinkedList<control_law_t>();
         this.sim = sim;
+        this.channelPrefix = channelPrefix;
+        coordinator.setChannelPrefix(channelPrefix);
 
         running = true;
-		new ListenerThread().start();
+		listener = new ListenerThread();
+		listener.start();
 		//new CommandThread().start();
 	}
 
+	/** Move to a different set of channels (see Util.getChannelPrefix).
+	 *  Affects control laws created from now on. **/
+	public void setChannelPrefix(String prefix)
+	{
+		synchronized(commandLock){
+			listener.unsubscribe();
+			channelPrefix = prefix;
+			coordinator.setChannelPrefix(prefix);
+			listener.subscribe();
+		}
+	}
+
     public void setRunning(boolean run)
     {
         running = run;
         coordinator.setRunning(run);
     }
 
+	// Stop taking commands for good, and let the listener thread exit
+	public void close(){
+		setRunning(false);
+		synchronized(commandLock){
+			listener.unsubscribe();
+		}
+		listener.finish();
+	}
+
+	// Interrupt the command in progress and forget every command received,
+	//   so that ids can start over (e.g. after a world checkpoint is restored)
+	public void reset(){
+		synchronized(commandLock){
+			stopActiveCommand(Status.INTERRUPTED);
+			highestCommandID = -1;
+		}
+		synchronized(statuses){
+			statuses.clear();
+		}
+	}
+
+	// The latest status of the command with the given id, UNKNOWN if it hasn't been received
+	public Status getCommandStatus(int commandId){
+		synchronized(statuses){
+			return statuses.getOrDefault(commandId, Status.UNKNOWN);
+		}
+	}
+
 	protected void setCommandStatus(Integer commandId, Status status){
 		synchronized(statuses){
 			statuses.put(commandId, status);
@@ -140,9 +195,11 @@ public class CommandInterpreter
             if (sim) {
                 params.put("sim", new TypedValue(1));
             }
+			params.put(Util.CHANNEL_PREFIX_PARAM, new TypedValue(channelPrefix));
 
 			// Get termination condition parameters
 			Map<String, TypedValue> termParams = collectParams(controlLaw.termination_condition);
+			termParams.put(Util.CHANNEL_PREFIX_PARAM, new TypedValue(channelPrefix));
 
 			// Attempt to create and register control law and test condition
 			CommandInfo commandInfo;
@@ -186,7 +243,7 @@ public class CommandInterpreter
 		}
 		status.name = clName;
 
-		lcm.publish("STATUS__SOAR_COMMAND_TX", status);
+		transport.publish(channelPrefix+"STATUS__SOAR_COMMAND_TX", status);
 	}
 
 	protected void updateControlLawStatus(control_law_status_list_t status_list){
@@ -204,47 +261,60 @@ public class CommandInterpreter
 		}
 	}
 
-	class ListenerThread extends Thread implements LCMSubscriber
+	class ListenerThread extends Thread implements Transport.Subscriber
 	{
-		LCM lcm = LCM.getSingleton();
+		volatile boolean done = false;
 
 		public ListenerThread()
 		{
-			lcm.subscribe("SOAR_COMMAND.*", this);
-			lcm.subscribe("CONTROL_LAW_STATUS.*", this);
+			subscribe();
+		}
+
+		void subscribe()
+		{
+			transport.subscribe(channelPrefix+"SOAR_COMMAND.*", control_law_t.class, this);
+			transport.subscribe(channelPrefix+"CONTROL_LAW_STATUS.*", control_law_status_list_t.class, this);
+		}
+
+		void unsubscribe()
+		{
+			transport.unsubscribe(channelPrefix+"SOAR_COMMAND.*", this);
+			transport.unsubscribe(channelPrefix+"CONTROL_LAW_STATUS.*", this);
 		}
 
 		public void run()
 		{
-			while(true) {
+			while(!done) {
 				TimeUtil.sleep(1000/LCM_FPS);
 			}
 		}
 
-		public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins)
+		void finish()
+		{
+			done = true;
+			interrupt();
+			if(Thread.currentThread() != this){
+				try {
+					join();
+				} catch (InterruptedException ex){
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		public void messageReceived(String channel, Object msg)
 		{
 			//System.out.println("CommandInterpreter::messageReceived(" + channel + ") [" + TimeUtil.utime() + "]");
             if (!running){
                 return;
 			}
 
-			try {
-				messageReceivedEx(lcm, channel, ins);
-			} catch (IOException ioex) {
-				System.out.println("ERR: LCM channel " + channel);
-				ioex.printStackTrace();
-			}
-		}
-
-		public void messageReceivedEx(LCM lcm, String channel, LCMDataInputStream ins)
-			throws IOException
-		{
-			if (channel.startsWith("SOAR_COMMAND")) {
-				control_law_t controlLaw = new control_law_t(ins);
+			if (channel.startsWith(channelPrefix+"SOAR_COMMAND")) {
+				control_law_t controlLaw = (control_law_t) msg;
 				interpretCommand(controlLaw);
 				sendCommandStatus(controlLaw);
-			} else if (channel.startsWith("CONTROL_LAW_STATUS")) {
-				control_law_status_list_t sl = new control_law_status_list_t(ins);
+			} else if (channel.startsWith(channelPrefix+"CONTROL_LAW_STATUS")) {
+				control_law_status_list_t sl = (control_law_status_list_t) msg;
 				updateControlLawStatus(sl);
 			}
 		}
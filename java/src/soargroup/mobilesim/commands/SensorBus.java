@@ -0,0 +1,173 @@
+package soargroup.mobilesim.commands;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import april.util.*;
+
+import soargroup.mobilesim.util.Transport;
+
+/** A single, process-wide subscriber for the sensor channels that control
+ *  laws and condition tests read (POSE, LASER, ROBOT_MAP_DATA, ...).
+ *
+ *  Each channel is subscribed to once, the first time anyone asks for it,
+ *  and stays subscribed. Each message (decoded once, if the Transport
+ *  decodes at all) is kept as the channel's latest value, along with a
+ *  short history. The same message is handed to every consumer, so
+ *  consumers must treat messages as immutable.
+ *
+ *  Consumers either read the latest value when they need it (like an
+ *  ExpiringMessageCache), or add a Listener to see every message. Adding
+ *  and removing listeners is cheap and doesn't touch the Transport.
+ **/
+public class SensorBus implements Transport.Subscriber
+{
+    public static final int HISTORY_SIZE = 16;
+
+    private static SensorBus singleton = null;
+
+    public static synchronized SensorBus getSingleton()
+    {
+        if (singleton == null)
+            singleton = new SensorBus(Transport.getSingleton());
+        return singleton;
+    }
+
+    /** Called for every message on a topic, from the Transport thread
+     *  that delivered it, after the message has become the topic's
+     *  latest. */
+    public interface Listener<T>
+    {
+        public void messageReceived(Topic<T> topic, T msg);
+    }
+
+    Transport transport;
+    HashMap<String, Topic<?>> topics = new HashMap<String, Topic<?>>();
+
+    public SensorBus(Transport transport)
+    {
+        this.transport = transport;
+    }
+
+    /** The topic for channel, whose messages are of the given LCM type.
+     *  The first call for a channel subscribes to it. */
+    public synchronized <T> Topic<T> getTopic(String channel, Class<T> type)
+    {
+        Topic<?> topic = topics.get(channel);
+        if (topic == null) {
+            topic = new Topic<T>(channel, type);
+            topics.put(channel, topic);
+            transport.subscribe(channel, type, this);
+        } else if (topic.type != type) {
+            throw new IllegalArgumentException("Channel "+channel+" carries "+topic.type.getName()+
+                                               ", not "+type.getName());
+        }
+
+        @SuppressWarnings("unchecked")
+        Topic<T> t = (Topic<T>) topic;
+        return t;
+    }
+
+    public void messageReceived(String channel, Object msg)
+    {
+        Topic<?> topic;
+        synchronized (this) {
+            topic = topics.get(channel);
+        }
+        if (topic == null)
+            return;
+
+        topic.receive(msg);
+    }
+
+    /** The messages received on one channel. */
+    public static class Topic<T>
+    {
+        public final String channel;
+        final Class<T> type;
+
+        // The last HISTORY_SIZE messages; latest is at (head + size - 1)
+        Object history[] = new Object[HISTORY_SIZE];
+        long receivedUtimes[] = new long[HISTORY_SIZE];
+        int head = 0, size = 0;
+
+        CopyOnWriteArrayList<Listener<T>> listeners = new CopyOnWriteArrayList<Listener<T>>();
+
+        Topic(String channel, Class<T> type)
+        {
+            this.channel = channel;
+            this.type = type;
+        }
+
+        void receive(Object msg)
+        {
+            put(type.cast(msg), TimeUtil.utime());
+        }
+
+        /** Make msg the latest message, as if it had just been received. */
+        public void put(T msg, long receivedUtime)
+        {
+            synchronized (this) {
+                int i;
+                if (size < history.length) {
+                    i = (head + size) % history.length;
+                    size++;
+                } else {
+                    i = head;
+                    head = (head + 1) % history.length;
+                }
+                history[i] = msg;
+                receivedUtimes[i] = receivedUtime;
+            }
+
+            for (Listener<T> listener : listeners)
+                listener.messageReceived(this, msg);
+        }
+
+        /** The latest message, or null if none has been received. */
+        public synchronized T get()
+        {
+            if (size == 0)
+                return null;
+            return cast(history[(head + size - 1) % history.length]);
+        }
+
+        /** The latest message, or null if none was received in the last
+         *  maxAge seconds. */
+        public synchronized T get(double maxAge)
+        {
+            if (size == 0)
+                return null;
+            int i = (head + size - 1) % history.length;
+            double age = (TimeUtil.utime() - receivedUtimes[i]) / 1000000.0;
+            if (age > maxAge)
+                return null;
+            return cast(history[i]);
+        }
+
+        /** The recent messages, oldest first. */
+        public synchronized List<T> getHistory()
+        {
+            ArrayList<T> msgs = new ArrayList<T>(size);
+            for (int i = 0; i < size; i++)
+                msgs.add(cast(history[(head + i) % history.length]));
+            return msgs;
+        }
+
+        public void addListener(Listener<T> listener)
+        {
+            listeners.addIfAbsent(listener);
+        }
+
+        public void removeListener(Listener<T> listener)
+        {
+            listeners.remove(listener);
+        }
+
+        @SuppressWarnings("unchecked")
+        private T cast(Object o)
+        {
+            return (T) o;
+        }
+    }
+}
@@ -3,15 +3,18 @@ package soargroup.mobilesim.commands.controls;
 import java.util.*;
 
 import soargroup.mobilesim.commands.*;
+import soargroup.mobilesim.util.Util;
 
 import soargroup.mobilesim.lcmtypes.diff_drive_t;
 
 public abstract class ControlLaw {
 
 	protected final Map<String, TypedValue> inputParams;
+	protected final String channelPrefix;  // put in front of every channel; see Util.getChannelPrefix
 	protected boolean is_running = false;
     public ControlLaw(Map<String, TypedValue> parameters) {
 		inputParams = parameters;
+		channelPrefix = Util.getChannelPrefix(parameters);
 	}
 
 	/** Will assert that each parameter condition is met in the given map of params
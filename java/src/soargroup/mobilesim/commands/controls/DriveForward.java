@@ -15,7 +15,7 @@ import lcm.lcm.*;
 import april.lcmtypes.pose_t;
 import soargroup.mobilesim.lcmtypes.diff_drive_t;
 
-public class DriveForward extends ControlLaw implements LCMSubscriber
+public class DriveForward extends ControlLaw
 {
     /** Get the parameters that can be set for this control law.
      *
@@ -40,9 +40,11 @@ public class DriveForward extends ControlLaw implements LCMSubscriber
 
     // XXX This needs to change
     double centerOffsetX_m = Util.getConfig().requireDouble("robot.geometry.centerOffsetX_m");
-    private ExpiringMessageCache<pose_t> poseCache = new ExpiringMessageCache<pose_t>(0.2);
 
-    LCM lcm = LCM.getSingleton();
+    Transport transport = Transport.getSingleton();
+    String poseChannel = channelPrefix + "POSE";
+    String driveChannel = channelPrefix + "DIFF_DRIVE";
+    SensorBus.Topic<pose_t> poses = SensorBus.getSingleton().getTopic(poseChannel, pose_t.class);
 
     PeriodicTasks tasks = new PeriodicTasks(1);
 
@@ -51,6 +53,7 @@ public class DriveForward extends ControlLaw implements LCMSubscriber
 		super(parameters);
 		ControlLaw.validateParameters(parameters, DriveForward.getParameters());
 
+        tasks.setStage(LockstepScheduler.STAGE_CONTROL);
         tasks.addFixedRate(new DriveTask(), 1.0/DB_HZ);
     }
 
@@ -70,12 +73,6 @@ public class DriveForward extends ControlLaw implements LCMSubscriber
     public void setRunning(boolean run) {
 		if(run == is_running) return;
 		super.setRunning(run);
-
-        if (run) {
-            lcm.subscribe("POSE", this);
-        } else {
-            lcm.unsubscribe("POSE", this);
-        }
         tasks.setRunning(run);
     }
 
@@ -94,7 +91,7 @@ public class DriveForward extends ControlLaw implements LCMSubscriber
         {
             // Get the most recent position
             DriveParams params = new DriveParams();
-            params.pose = poseCache.get();
+            params.pose = poses.get(0.2);
             params.dt = dt;
             diff_drive_t dd = drive(params);
 
@@ -155,25 +152,7 @@ public class DriveForward extends ControlLaw implements LCMSubscriber
         path.add(goal2D);
     }
 
-    public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins)
-    {
-        try {
-            messageReceivedEx(lcm, channel, ins);
-        } catch (IOException ex) {
-            System.err.println("WRN: Error receving message from channel " + channel + ": "+ex);
-        }
-    }
-
-    synchronized void messageReceivedEx(LCM lcm, String channel,
-            LCMDataInputStream ins) throws IOException
-    {
-        if (channel.equals("POSE")) {
-            pose_t msg = new pose_t(ins);
-            poseCache.put(msg, msg.utime);
-        }
-    }
-
-    private static void publishDiff(diff_drive_t diff_drive)
+    private void publishDiff(diff_drive_t diff_drive)
     {
         // We may get a null if there are no poses yet
         // We should throw a WRN elsewhere if that is the case
@@ -184,6 +163,6 @@ public class DriveForward extends ControlLaw implements LCMSubscriber
         assert(diff_drive.right <= 1 && diff_drive.right >= -1);
 
         diff_drive.utime = TimeUtil.utime();
-        LCM.getSingleton().publish("DIFF_DRIVE", diff_drive);
+        transport.publish(driveChannel, diff_drive);
     }
 }
@@ -29,7 +29,7 @@ import java.awt.image.*;
 import javax.swing.*;
 import april.vis.*;
 
-public class DriveToXY extends ControlLaw implements LCMSubscriber {
+public class DriveToXY extends ControlLaw {
     /** Get the parameters that can be set for this control law.
      *
      *  @return An iterable, immutable collection of all possible parameters
@@ -68,16 +68,15 @@ public class DriveToXY extends ControlLaw implements LCMSubscriber {
     double REAR_AXLE_OFFSET = 0.20;
 
     private PeriodicTasks tasks = new PeriodicTasks(1);
-    private ExpiringMessageCache<pose_t> poseCache =
-        new ExpiringMessageCache<pose_t>(.2);
-    private ExpiringMessageCache<grid_map_t> gmCache =
-        new ExpiringMessageCache<grid_map_t>(1.5);
+    SensorBus.Topic<pose_t> poses;
+    SensorBus.Topic<robot_map_data_t> maps;
+    SensorBus.Topic<lcmdoubles_t> l2gs;
 
-    LCM lcm = LCM.getSingleton();
-    String mapChannel = Util.getConfig().getString("robot.lcm.map_channel", "ROBOT_MAP_DATA");
-    String poseChannel = Util.getConfig().getString("robot.lcm.pose_channel", "POSE");
-    String l2gChannel = Util.getConfig().getString("robot.lcm.l2g_channel", "L2G");
-    String driveChannel = Util.getConfig().getString("robot.lcm.drive_channel", "DIFF_DRIVE");
+    Transport transport = Transport.getSingleton();
+    String mapChannel = channelPrefix + Util.getConfig().getString("robot.lcm.map_channel", "ROBOT_MAP_DATA");
+    String poseChannel = channelPrefix + Util.getConfig().getString("robot.lcm.pose_channel", "POSE");
+    String l2gChannel = channelPrefix + Util.getConfig().getString("robot.lcm.l2g_channel", "L2G");
+    String driveChannel = channelPrefix + Util.getConfig().getString("robot.lcm.drive_channel", "DIFF_DRIVE");
 
     boolean sim = false;
 
@@ -114,6 +113,12 @@ public class DriveToXY extends ControlLaw implements LCMSubscriber {
         if (parameters.containsKey("alpha"))
             alpha = parameters.get("alpha").getDouble();
 
+        SensorBus bus = SensorBus.getSingleton();
+        poses = bus.getTopic(poseChannel, pose_t.class);
+        maps = bus.getTopic(mapChannel, robot_map_data_t.class);
+        l2gs = bus.getTopic(l2gChannel, lcmdoubles_t.class);
+
+        tasks.setStage(LockstepScheduler.STAGE_CONTROL);
         tasks.addFixedRate(new UpdateTask(), 1.0/HZ);
 
         if (DEBUG) {
@@ -146,16 +151,6 @@ public class DriveToXY extends ControlLaw implements LCMSubscriber {
     public void setRunning(boolean run) {
 		if(run == is_running) return;
 		super.setRunning(run);
-
-        if (run) {
-            lcm.subscribe(mapChannel, this);
-            lcm.subscribe(poseChannel, this);
-            lcm.subscribe(l2gChannel, this);
-        } else {
-            lcm.unsubscribe(mapChannel, this);
-            lcm.unsubscribe(poseChannel, this);
-            lcm.unsubscribe(l2gChannel, this);
-        }
         tasks.setRunning(run);
         if (!run) {
             sendNullCmd();
@@ -167,24 +162,32 @@ public class DriveToXY extends ControlLaw implements LCMSubscriber {
     {
         public void run(double dt)
         {
-            pose_t pose = poseCache.get();
+            pose_t pose = poses.get(.2);
             if (pose == null) {
                 return;
             }
 
-            grid_map_t gm = gmCache.get();
-            if (gm == null) {
+            robot_map_data_t rmd = maps.get(1.5);
+            if (rmd == null) {
                 return;
             }
 
+            lcmdoubles_t l2g_ = l2gs.get();
+            if (l2g_ != null) {
+                assert (l2g_.ndata == 3);
+                synchronized (l2g) {
+                    System.arraycopy(l2g_.data, 0, l2g, 0, 3);
+                }
+            }
+
             DriveParams params = new DriveParams();
             params.pose = pose;
-            params.gm = gm;
+            params.gm = rmd.gridmap;
             diff_drive_t dd = drive(params);
 
             if (dd != null) {
                 dd.utime = TimeUtil.utime();
-                lcm.publish(driveChannel, dd);
+                transport.publish(driveChannel, dd);
             }
         }
     }
@@ -199,33 +202,6 @@ public class DriveToXY extends ControlLaw implements LCMSubscriber {
         }
     }
 
-    public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins) {
-        try {
-            messageReceivedEx(lcm, channel, ins);
-        } catch (IOException ex) {
-            System.err.println("WRN: Error receving message from channel " + channel + ": "+ex);
-        }
-    }
-
-    synchronized void messageReceivedEx(LCM lcm, String channel,
-            LCMDataInputStream ins) throws IOException
-    {
-        if (poseChannel.equals(channel)) {
-            pose_t pose = new pose_t(ins);
-            poseCache.put(pose, TimeUtil.utime());
-        } else if (mapChannel.equals(channel)) {
-            robot_map_data_t rmd = new robot_map_data_t(ins);
-            gmCache.put((grid_map_t)rmd.gridmap.copy(), TimeUtil.utime());
-        } else if (l2gChannel.equals(channel)) {
-            lcmdoubles_t l2g_ = new lcmdoubles_t(ins);
-            assert (l2g_.ndata == 3);
-            synchronized (l2g) {
-                System.arraycopy(l2g_.data, 0, l2g, 0, 3);
-            }
-        }
-    }
-
-
     // Return true if we see a hazard in the map
     private boolean evaluatePath(GridMap gm, double[] xy0, double[] xy1)
     {
@@ -264,9 +240,9 @@ public class DriveToXY extends ControlLaw implements LCMSubscriber {
         msg.ndparams = 0;
         msg.niparams = 0;
 
-        lcm.publish("CMDS_STOP", msg);
-        lcm.publish("CMDS_STOP", msg);
-        lcm.publish("CMDS_STOP", msg);
+        transport.publish("CMDS_STOP", msg);
+        transport.publish("CMDS_STOP", msg);
+        transport.publish("CMDS_STOP", msg);
     }
 
     /** Marshal data to robotDrive from magic2 */
@@ -297,7 +273,7 @@ public class DriveToXY extends ControlLaw implements LCMSubscriber {
         msg.niparams = 1;
         msg.iparams = new byte[] {0};
 
-            lcm.publish("CMDS", msg);
+            transport.publish("CMDS", msg);
 
         return null;
     }
@@ -309,43 +285,15 @@ public class DriveToXY extends ControlLaw implements LCMSubscriber {
         dd.left_enabled = dd.right_enabled = true;
         dd.left = dd.right = 0.0;
 
-        // Decode map data if necessary
-        byte[] gmdata;
-        if (params.gm.encoding == grid_map_t.ENCODING_GZIP) {
-            try {
-                ByteArrayInputStream bytes = new ByteArrayInputStream(params.gm.data);
-                GZIPInputStream gzis = new GZIPInputStream(bytes);
-
-                gmdata = new byte[params.gm.width*params.gm.height];
-                int readSoFar = 0;
-                while (readSoFar < gmdata.length) {
-                    int read = gzis.read(gmdata, readSoFar, gmdata.length-readSoFar);
-                    if (read < 0)
-                        break;
-                    readSoFar += read;
-                }
-                gzis.close();
-            } catch (ZipException ex) {
-                System.err.println("ERR: GZIP'd map data is corrupted");
-                ex.printStackTrace();
-                return dd;
-            }
-            catch (IOException ex) {
-                System.err.println("ERR: Could not extract GZIP'd map");
-                ex.printStackTrace();
-                return dd;
-            }
-        } else {
-            gmdata = params.gm.data;
+        // Decode map data if necessary. The decoded map is cached, so
+        // this is only expensive once per map.
+        GridMap gm;
+        try {
+            gm = GridMapCodec.decode(params.gm);
+        } catch (IOException ex) {
+            System.err.println("ERR: Could not decode map: "+ex);
+            return dd;
         }
-
-        GridMap gm = GridMap.makePixels(params.gm.x0,
-                                        params.gm.y0,
-                                        params.gm.width,
-                                        params.gm.height,
-                                        params.gm.meters_per_pixel,
-                                        0,
-                                        gmdata);
         //grid_map_t map = new grid_map_t();
         //map.x0 = gm.x0;
         //map.y0 = gm.y0;
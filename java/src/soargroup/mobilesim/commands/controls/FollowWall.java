@@ -26,7 +26,7 @@ import soargroup.mobilesim.lcmtypes.robot_map_data_t;
  *  around because a person got in the way and 2) will typically converge to
  *  the same place as time approaches infinity.
  **/
-public class FollowWall extends ControlLaw implements LCMSubscriber {
+public class FollowWall extends ControlLaw {
     /** Get the parameters that can be set for this control law.
      *
      *  @return An iterable, immutable collection of all possible parameters
@@ -66,19 +66,16 @@ public class FollowWall extends ControlLaw implements LCMSubscriber {
     private static final double MAX_V = 0.6;
     private static final double MIN_V = 0.4;
 
-    LCM lcm = LCM.getSingleton();
-    String laserChannel = Util.getConfig().getString("robot.lcm.laser_channel", "LASER");
-    String poseChannel = Util.getConfig().getString("robot.lcm.pose_channel", "POSE");
-    String mapChannel = Util.getConfig().getString("robot.lcm.map_channel", "ROBOT_MAP_DATA");
-    String driveChannel = Util.getConfig().getString("robot.lcm.drive_channel", "DIFF_DRIVE");
+    Transport transport = Transport.getSingleton();
+    String laserChannel = channelPrefix + Util.getConfig().getString("robot.lcm.laser_channel", "LASER");
+    String poseChannel = channelPrefix + Util.getConfig().getString("robot.lcm.pose_channel", "POSE");
+    String mapChannel = channelPrefix + Util.getConfig().getString("robot.lcm.map_channel", "ROBOT_MAP_DATA");
+    String driveChannel = channelPrefix + Util.getConfig().getString("robot.lcm.drive_channel", "DIFF_DRIVE");
 
     private PeriodicTasks tasks = new PeriodicTasks(1);
-    private ExpiringMessageCache<laser_t> laserCache =
-        new ExpiringMessageCache<laser_t>(.2);
-    private ExpiringMessageCache<pose_t> poseCache =
-        new ExpiringMessageCache<pose_t>(.2);
-    private ExpiringMessageCache<grid_map_t> gmCache =
-        new ExpiringMessageCache<grid_map_t>(1.5);
+    SensorBus.Topic<laser_t> lasers;
+    SensorBus.Topic<pose_t> poses;
+    SensorBus.Topic<robot_map_data_t> maps;
 
     protected final Direction dir;
     private enum Direction { LEFT, RIGHT }
@@ -124,6 +121,13 @@ public class FollowWall extends ControlLaw implements LCMSubscriber {
         if (sim) {
             FRONT_THETA = 8*Math.PI/36;
         }
+
+        SensorBus bus = SensorBus.getSingleton();
+        lasers = bus.getTopic(laserChannel, laser_t.class);
+        poses = bus.getTopic(poseChannel, pose_t.class);
+        maps = bus.getTopic(mapChannel, robot_map_data_t.class);
+
+        tasks.setStage(LockstepScheduler.STAGE_CONTROL);
         tasks.addFixedRate(new UpdateTask(), 1.0/FW_HZ);
     }
 
@@ -161,16 +165,6 @@ public class FollowWall extends ControlLaw implements LCMSubscriber {
     public void setRunning(boolean run) {
 		if(run == is_running){ return; }
 		super.setRunning(run);
-
-        if (run) {
-            lcm.subscribe(laserChannel, this);
-            lcm.subscribe(poseChannel, this);
-            lcm.subscribe(mapChannel, this);
-        } else {
-            lcm.unsubscribe(laserChannel, this);
-            lcm.unsubscribe(poseChannel, this);
-            lcm.unsubscribe(mapChannel, this);
-        }
         tasks.setRunning(run);
     }
 
@@ -178,17 +172,18 @@ public class FollowWall extends ControlLaw implements LCMSubscriber {
     {
         public void run(double dt)
         {
-            laser_t laser = laserCache.get();
+            laser_t laser = lasers.get(.2);
             //if (laser == null) {
             //    return;
             //}
 
-            grid_map_t gm = gmCache.get();
-            if (gm == null) {
+            robot_map_data_t rmd = maps.get(1.5);
+            if (rmd == null) {
                 return;
             }
+            grid_map_t gm = rmd.gridmap;
 
-            pose_t pose = poseCache.get();
+            pose_t pose = poses.get(.2);
             if (pose == null) {
                 return;
             }
@@ -250,7 +245,7 @@ public class FollowWall extends ControlLaw implements LCMSubscriber {
         }
 
         dd.utime = TimeUtil.utime();
-        lcm.publish(driveChannel, dd);
+        transport.publish(driveChannel, dd);
     }
 
     private diff_drive_t orient(pose_t pose, double heading)
@@ -302,44 +297,16 @@ public class FollowWall extends ControlLaw implements LCMSubscriber {
         dd.left_enabled = dd.right_enabled = true;
         dd.left = dd.right = 0;
 
-        // Decode map data if necessary XXX To util
-        byte[] gmdata;
-        if (params.gm.encoding == grid_map_t.ENCODING_GZIP) {
-            try {
-                ByteArrayInputStream bytes = new ByteArrayInputStream(params.gm.data);
-                GZIPInputStream gzis = new GZIPInputStream(bytes);
-
-                gmdata = new byte[params.gm.width*params.gm.height];
-                int readSoFar = 0;
-                while (readSoFar < gmdata.length) {
-                    int read = gzis.read(gmdata, readSoFar, gmdata.length-readSoFar);
-                    if (read < 0)
-                        break;
-                    readSoFar += read;
-                }
-                gzis.close();
-            } catch (ZipException ex) {
-                System.err.println("ERR: GZIP'd map data is corrupted");
-                ex.printStackTrace();
-                return dd;
-            }
-            catch (IOException ex) {
-                System.err.println("ERR: Could not extract GZIP'd map");
-                ex.printStackTrace();
-                return dd;
-            }
-        } else {
-            gmdata = params.gm.data;
+        // Decode map data if necessary. The decoded map is cached, so
+        // this is only expensive once per map.
+        GridMap gm;
+        try {
+            gm = GridMapCodec.decode(params.gm);
+        } catch (IOException ex) {
+            System.err.println("ERR: Could not decode map: "+ex);
+            return dd;
         }
 
-        GridMap gm = GridMap.makePixels(params.gm.x0,
-                                        params.gm.y0,
-                                        params.gm.width,
-                                        params.gm.height,
-                                        params.gm.meters_per_pixel,
-                                        0,
-                                        gmdata);
-
         double[] poseXYT = LinAlg.matrixToXYT(LinAlg.quatPosToMatrix(params.pose.orientation,
                                                                      params.pose.pos));
 
@@ -538,30 +505,6 @@ public class FollowWall extends ControlLaw implements LCMSubscriber {
         return dd;
     }
 
-    public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins)
-    {
-        try {
-            messageReceivedEx(lcm, channel, ins);
-        } catch (IOException ex) {
-            System.err.println("WRN: Error receving message from channel " + channel + ": "+ex);
-        }
-    }
-
-    synchronized void messageReceivedEx(LCM lcm, String channel,
-            LCMDataInputStream ins) throws IOException
-    {
-        if (laserChannel.equals(channel)) {
-            laser_t laser = new laser_t(ins);
-            laserCache.put(laser, laser.utime);
-        } else if (poseChannel.equals(channel)) {
-            pose_t pose = new pose_t(ins);
-            poseCache.put(pose, pose.utime);
-        } else if (mapChannel.equals(channel)) {
-            robot_map_data_t rmd = new robot_map_data_t(ins);
-            gmCache.put(rmd.gridmap, rmd.utime);
-        }
-    }
-
     public control_law_t getLCM()
     {
         control_law_t cl = new control_law_t();
@@ -7,6 +7,7 @@ import april.util.*;
 import april.jmat.*;
 
 import soargroup.mobilesim.commands.*;
+import soargroup.mobilesim.util.Transport;
 
 // LCM Types
 import lcm.lcm.*;
@@ -18,7 +19,7 @@ import soargroup.mobilesim.lcmtypes.typed_value_t;
 /** Orient the robot to face along a particular heading. Automatically turns
  *  the most efficient direction.
  */
-public class Orient extends ControlLaw implements LCMSubscriber
+public class Orient extends ControlLaw
 {
     /** Get the parameters that can be set for this control law.
      *
@@ -39,7 +40,10 @@ public class Orient extends ControlLaw implements LCMSubscriber
 		return parameters;
     }
 
-    LCM lcm = LCM.getSingleton();
+    Transport transport = Transport.getSingleton();
+    String poseChannel = channelPrefix + "POSE";
+    String driveChannel = channelPrefix + "DIFF_DRIVE";
+    SensorBus.Topic<pose_t> poses = SensorBus.getSingleton().getTopic(poseChannel, pose_t.class);
 
     static final double SPEED_THRESH_RANGE_RAD = Math.PI/2;
     static final double MAX_SPEED = 0.30;
@@ -51,8 +55,6 @@ public class Orient extends ControlLaw implements LCMSubscriber
     boolean sim = false;
     protected final double goalYaw;
 
-    Object poseLock = new Object();
-    pose_t lastPose = null;
     private double lastSpeed = 0;       // Ramp up/down
 
     private PeriodicTasks tasks = new PeriodicTasks(1);
@@ -66,6 +68,7 @@ public class Orient extends ControlLaw implements LCMSubscriber
         if (parameters.containsKey("sim"))
             sim = true;
 
+        tasks.setStage(LockstepScheduler.STAGE_CONTROL);
         tasks.addFixedDelay(new OrientTask(), 1.0/HZ);
     }
 
@@ -77,13 +80,6 @@ public class Orient extends ControlLaw implements LCMSubscriber
     public void setRunning(boolean run) {
 		if(run == is_running) return;
 		super.setRunning(run);
-
-        if (run) {
-            // No-lcm?
-            lcm.subscribe("POSE", this);
-        } else {
-            lcm.unsubscribe("POSE", this);
-        }
         tasks.setRunning(run);
     }
 
@@ -102,13 +98,11 @@ public class Orient extends ControlLaw implements LCMSubscriber
         {
             DriveParams params = new DriveParams();
             params.dt = dt;
-            synchronized (poseLock) {
-                params.pose = lastPose;
-            }
+            params.pose = poses.get();
             diff_drive_t dd = drive(params);
             dd.utime = TimeUtil.utime();
 
-            lcm.publish("DIFF_DRIVE", dd);
+            transport.publish(driveChannel, dd);
         }
     }
 
@@ -157,26 +151,6 @@ public class Orient extends ControlLaw implements LCMSubscriber
     }
 
 
-    public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins)
-    {
-        try {
-            messageReceivedEx(lcm, channel, ins);
-        } catch (IOException ex) {
-            System.err.println("WRN: Error reading channel "+channel+": "+ex);
-        }
-    }
-
-    synchronized void messageReceivedEx(LCM lcm, String channel,
-            LCMDataInputStream ins) throws IOException
-    {
-        if (channel.equals("POSE")) {
-            pose_t msg = new pose_t(ins);
-            synchronized (poseLock) {
-                lastPose = msg;
-            }
-        }
-    }
-
     public control_law_t getLCM()
     {
         control_law_t cl = new control_law_t();
@@ -7,6 +7,7 @@ import april.util.*;
 import april.jmat.*;
 
 import soargroup.mobilesim.commands.*;
+import soargroup.mobilesim.util.Transport;
 
 // LCM Types
 import lcm.lcm.*;
@@ -15,7 +16,7 @@ import soargroup.mobilesim.lcmtypes.diff_drive_t;
 import soargroup.mobilesim.lcmtypes.control_law_t;
 import soargroup.mobilesim.lcmtypes.typed_value_t;
 
-public class Turn extends ControlLaw implements LCMSubscriber {
+public class Turn extends ControlLaw {
     /** Get the parameters that can be set for this control law.
      *
      *  @return An iterable, immutable collection of all possible parameters
@@ -35,7 +36,10 @@ public class Turn extends ControlLaw implements LCMSubscriber {
 		return parameters;
     }
 
-    LCM lcm = LCM.getSingleton();
+    Transport transport = Transport.getSingleton();
+    String poseChannel = channelPrefix + "POSE";
+    String driveChannel = channelPrefix + "DIFF_DRIVE";
+    SensorBus.Topic<pose_t> poses = SensorBus.getSingleton().getTopic(poseChannel, pose_t.class);
 
     static final int DD_HZ = 100;
     static final double MAX_SPEED = 0.5;
@@ -43,7 +47,6 @@ public class Turn extends ControlLaw implements LCMSubscriber {
     static final double SIM_SPEED = 0.20; 
 
     Object poseLock = new Object();
-    pose_t currPose = null;
     pose_t lastPose = null;
 
     boolean sim = false;
@@ -82,6 +85,7 @@ public class Turn extends ControlLaw implements LCMSubscriber {
         if (parameters.containsKey("sim"))
             sim = true;
 
+        tasks.setStage(LockstepScheduler.STAGE_CONTROL);
         tasks.addFixedDelay(new TurnTask(), 1.0/DD_HZ);
     }
 
@@ -101,13 +105,6 @@ public class Turn extends ControlLaw implements LCMSubscriber {
     public void setRunning(boolean run) {
 		if (run == is_running) return;
 		super.setRunning(run);
-
-        if (run) {
-            // no-lcm?
-            lcm.subscribe("POSE", this);
-        } else {
-            lcm.unsubscribe("POSE", this);
-        }
         tasks.setRunning(run);
     }
 
@@ -123,7 +120,7 @@ public class Turn extends ControlLaw implements LCMSubscriber {
             synchronized (poseLock) {
                 DriveParams params = new DriveParams();
                 params.dt = dt;
-                params.pose = currPose;
+                params.pose = poses.get();
                 diff_drive_t dd = drive(params);
                 publishDiff(dd);
             }
@@ -175,31 +172,10 @@ public class Turn extends ControlLaw implements LCMSubscriber {
 
     public void reset()
     {
-        currPose = null;
         lastPose = null;
         accYaw = 0;
     }
 
-    public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins)
-    {
-        try {
-            messageReceivedEx(lcm, channel, ins);
-        } catch (IOException ex) {
-            System.err.println("WRN: Error reading channel "+channel+": "+ex);
-        }
-    }
-
-    synchronized void messageReceivedEx(LCM lcm, String channel,
-            LCMDataInputStream ins) throws IOException
-    {
-        if (channel.equals("POSE")) {
-            pose_t msg = new pose_t(ins);
-            synchronized (poseLock) {
-                currPose = msg;
-            }
-        }
-    }
-
     public control_law_t getLCM()
     {
         control_law_t cl = new control_law_t();
@@ -216,7 +192,7 @@ public class Turn extends ControlLaw implements LCMSubscriber {
     }
 
     // XXX publishDiff is in two classes - can we consolidate?
-    static private void publishDiff(diff_drive_t diff_drive)
+    private void publishDiff(diff_drive_t diff_drive)
     {
         // We may get a null if there are no poses yet
         // We should throw a WRN elsewhere if that is the case
@@ -227,6 +203,6 @@ public class Turn extends ControlLaw implements LCMSubscriber {
         assert(diff_drive.right <= 1 && diff_drive.right >= -1);
 
         diff_drive.utime = TimeUtil.utime();
-        LCM.getSingleton().publish("DIFF_DRIVE", diff_drive);
+        transport.publish(driveChannel, diff_drive);
     }
 }
@@ -0,0 +1,11 @@
+package soargroup.mobilesim.commands.tests;
+
+/** Notified by a ConditionTest when the result of its conditionMet()
+ *  changes, so that its owner doesn't have to poll it.
+ **/
+public interface ConditionListener
+{
+    /** Called without any of the test's locks held. Implementations should
+     *  return quickly; they may be called from an LCM thread. */
+    public void conditionChanged(ConditionTest test);
+}
@@ -15,6 +15,11 @@ public interface ConditionTest
      **/
     public boolean conditionMet();
 
+    /** Set who to tell when conditionMet() changes. Tests that only change
+     *  with the passage of time (like TimeoutTest) don't report it; their
+     *  owner has to check them periodically. */
+    public void setListener(ConditionListener listener);
+
     /** Get the parameters that can be set for this condition test.
      *
      *  @return An iterable collection of all possible parameters.
@@ -7,27 +7,30 @@ import april.jmat.*;
 import april.util.*;
 
 import soargroup.mobilesim.commands.*;
+import soargroup.mobilesim.util.Util;
 
 // LCM Types
-import lcm.lcm.*;
 import april.lcmtypes.pose_t;
 import soargroup.mobilesim.lcmtypes.typed_value_t;
 import soargroup.mobilesim.lcmtypes.condition_test_t;
 
 /** Detects whether the robot has traveled a certain distance from the start. 
  **/
-public class DistanceTraveled implements ConditionTest, LCMSubscriber
+public class DistanceTraveled implements ConditionTest, SensorBus.Listener<pose_t>
 {
-    LCM lcm = LCM.getSingleton();
+    String poseChannel = "POSE";
 
 	double[] firstPose = null;
 	double curDistance = 0.0;
 	double threshold = 1.0;
+	boolean met = false;
+	ConditionListener listener = null;
 
     public DistanceTraveled() {}
 
     public DistanceTraveled(HashMap<String, TypedValue> parameters)
     {
+        poseChannel = Util.getChannelPrefix(parameters) + "POSE";
     	assert (parameters.containsKey("meters"));
 		threshold = parameters.get("meters").getDouble();
     }
@@ -37,55 +40,61 @@ public class DistanceTraveled implements ConditionTest, LCMSubscriber
     public void setRunning(boolean run)
     {
         if (run) {
-            // XXX LCM Subscription explosion
-            lcm.subscribe("POSE", this);
-			firstPose = null;
-			curDistance = 0.0;
-        } else {
-            lcm.unsubscribe("POSE", this);
+            synchronized (this) {
+                firstPose = null;
+                curDistance = 0.0;
+                met = false;
+            }
         }
+
+        SensorBus.Topic<pose_t> poses = SensorBus.getSingleton().getTopic(poseChannel, pose_t.class);
+        if (run)
+            poses.addListener(this);
+        else
+            poses.removeListener(this);
     }
 
-    public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins)
+    public void messageReceived(SensorBus.Topic<pose_t> topic, pose_t pose)
     {
-        try {
-            messageReceivedEx(lcm, channel, ins);
-        } catch (IOException ex) {
-            System.err.println("WRN: Error reading channel "+channel+": "+ex);
-        }
+        update(pose);
     }
 
-    synchronized void messageReceivedEx(LCM lcm, String channel,
-            LCMDataInputStream ins) throws IOException
+    public synchronized void setListener(ConditionListener listener)
     {
-        if (channel.equals("POSE")) {
-            pose_t msg = new pose_t(ins);
-            update(msg);
-        }
+        this.listener = listener;
     }
 
     // Add a new pose
     public void update(pose_t pose)
     {
         assert (pose != null);
-        double[] xyt = LinAlg.quatPosToXYT(pose.orientation, pose.pos);
-        if (firstPose == null) {
-			firstPose = xyt;
+        ConditionListener toNotify = null;
+
+        synchronized (this) {
+            double[] xyt = LinAlg.quatPosToXYT(pose.orientation, pose.pos);
+            if (firstPose == null) {
+                firstPose = xyt;
+            }
+
+            curDistance = LinAlg.distance(xyt, firstPose, 2);
+
+            boolean wasMet = met;
+            met = curDistance >= threshold;
+            if (met != wasMet)
+                toNotify = listener;
         }
 
-		curDistance = LinAlg.distance(xyt, firstPose, 2);
+        if (toNotify != null)
+            toNotify.conditionChanged(this);
     }
 
     /** Query whether or not the condition being tested for is currently true.
      *
      *  @return True if condition test is currently satisfied, else false
      **/
-    public boolean conditionMet()
+    public synchronized boolean conditionMet()
     {
-		if(firstPose == null){
-			return false;
-		}
-		return curDistance >= threshold;
+		return met;
     }
 
     /** Get the parameters that can be set for this condition test.
@@ -110,7 +119,7 @@ public class DistanceTraveled implements ConditionTest, LCMSubscriber
     public ConditionTest copyCondition()
     {
         DistanceTraveled test =  new DistanceTraveled();
-        test.lcm.subscribe("POSE", test); // XXX
+        test.poseChannel = poseChannel;
 
         return test;
     }
@@ -6,30 +6,33 @@ import java.util.*;
 import april.jmat.*;
 
 import soargroup.mobilesim.commands.*;
+import soargroup.mobilesim.util.Util;
 
 // LCM Types
-import lcm.lcm.*;
 import soargroup.mobilesim.lcmtypes.typed_value_t;
 import soargroup.mobilesim.lcmtypes.robot_info_t;
 import soargroup.mobilesim.lcmtypes.condition_test_t;
 
-public class Holding implements ConditionTest, LCMSubscriber
+public class Holding implements ConditionTest, SensorBus.Listener<robot_info_t>
 {
     static final double DEFAULT_STOPPING_DISTANCE = 0.25;
 
-    LCM lcm = LCM.getSingleton();
+    String infoChannel = "ROBOT_INFO";
 
     int objectId = -1;
     boolean held = false;
     
     boolean negated = false;
 
+    volatile ConditionListener listener = null;
+
     public Holding()
     {
     }
 
     public Holding(HashMap<String, TypedValue> parameters)
     {
+        infoChannel = Util.getChannelPrefix(parameters) + "ROBOT_INFO";
     	assert (parameters.containsKey("object-id"));
     	objectId = parameters.get("object-id").getInt();
     	
@@ -44,41 +47,45 @@ public class Holding implements ConditionTest, LCMSubscriber
         Holding hold = new Holding();
         hold.objectId = objectId;
         hold.negated = negated;
+        hold.infoChannel = infoChannel;
         return hold;
     }
 
     public void processRobotInfo(robot_info_t info)
     {
+    	boolean wasMet = conditionMet();
     	if(objectId == info.held_object){
     		held = true;
     	} else {
     		held = false;
     	}
+    	ConditionListener l = listener;
+    	if(l != null && conditionMet() != wasMet){
+    		l.conditionChanged(this);
+    	}
+    }
+
+    public void setListener(ConditionListener listener)
+    {
+        this.listener = listener;
     }
 
     public void setRunning(boolean run)
     {
+        SensorBus.Topic<robot_info_t> topic = SensorBus.getSingleton().getTopic(infoChannel, robot_info_t.class);
         if (run) {
-            lcm.subscribe("ROBOT_INFO", this);
+            topic.addListener(this);
         } else {
-            lcm.unsubscribe("ROBOT_INFO", this);
+            topic.removeListener(this);
         }
     }
 
-
-    public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins)
+    public void messageReceived(SensorBus.Topic<robot_info_t> topic, robot_info_t msg)
     {
-        try {
-            if (channel.startsWith("ROBOT_INFO")) {
-            	robot_info_t info = new robot_info_t(ins);
-            	processRobotInfo(info);
-            }
-        } catch (IOException ex) {
-            System.err.println("ERR: Could not handle message on channel - "+channel);
-            ex.printStackTrace();
-        }
+        processRobotInfo(msg);
     }
 
+
     /** Query whether or not the condition being tested for is currently true.
      *
      *  @return True if condition test is currently satisfied, else false
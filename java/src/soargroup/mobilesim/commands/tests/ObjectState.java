@@ -6,20 +6,20 @@ import java.util.*;
 import april.jmat.*;
 
 import soargroup.mobilesim.commands.*;
+import soargroup.mobilesim.util.Util;
 
 // LCM Types
-import lcm.lcm.*;
 import soargroup.mobilesim.lcmtypes.typed_value_t;
 import soargroup.mobilesim.lcmtypes.condition_test_t;
-import soargroup.mobilesim.lcmtypes.object_data_list_t;
+import soargroup.mobilesim.lcmtypes.object_data_delta_t;
 import soargroup.mobilesim.lcmtypes.object_data_t;
 import soargroup.mobilesim.lcmtypes.classification_t;
 
-public class ObjectState implements ConditionTest, LCMSubscriber
+public class ObjectState implements ConditionTest, SensorBus.Listener<object_data_delta_t>
 {
     static final double DEFAULT_STOPPING_DISTANCE = 0.25;
 
-    LCM lcm = LCM.getSingleton();
+    String objectsChannel = "DETECTED_OBJECTS_DELTA";
 
     int objectId = -1;
 	String property = "";
@@ -27,12 +27,15 @@ public class ObjectState implements ConditionTest, LCMSubscriber
 
 	boolean satisfied = false;
 
+    volatile ConditionListener listener = null;
+
     public ObjectState()
     {
     }
 
     public ObjectState(HashMap<String, TypedValue> parameters)
     {
+        objectsChannel = Util.getChannelPrefix(parameters) + "DETECTED_OBJECTS_DELTA";
     	assert (parameters.containsKey("object-id"));
     	objectId = parameters.get("object-id").getInt();
 
@@ -49,11 +52,15 @@ public class ObjectState implements ConditionTest, LCMSubscriber
         objState.objectId = objectId;
         objState.property = property;
         objState.value = value;
+        objState.objectsChannel = objectsChannel;
         return objState;
     }
 
-    public void processDetectedObjects(object_data_list_t objDatas){
-		for(object_data_t obj : objDatas.objects){
+    // Only the objects that changed are in a delta, but the object's latest data
+    //   is all that matters here, so no DetectedObjects is needed
+    public synchronized void processDetectedObjects(object_data_delta_t objDatas){
+		boolean wasSatisfied = satisfied;
+		for(object_data_t obj : objDatas.changed){
 			if(obj.id == objectId){
 				for(classification_t cls : obj.classifications){
 					if(cls.category.equals(property) && cls.name.equals(value)){
@@ -62,31 +69,37 @@ public class ObjectState implements ConditionTest, LCMSubscriber
 				}
 			}
 		}
+		ConditionListener l = listener;
+		if(l != null && satisfied != wasSatisfied){
+			l.conditionChanged(this);
+		}
+    }
+
+    public void setListener(ConditionListener listener)
+    {
+        this.listener = listener;
     }
 
     public void setRunning(boolean run)
     {
+        SensorBus.Topic<object_data_delta_t> topic = SensorBus.getSingleton().getTopic(objectsChannel, object_data_delta_t.class);
         if (run) {
-            lcm.subscribe("DETECTED_OBJECTS", this);
+            topic.addListener(this);
+            // The object may not change again; the recent history holds a
+            // keyframe with its current data
+            for (object_data_delta_t msg : topic.getHistory())
+                processDetectedObjects(msg);
         } else {
-            lcm.unsubscribe("DETECTED_OBJECTS", this);
+            topic.removeListener(this);
         }
     }
 
-
-    public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins)
+    public void messageReceived(SensorBus.Topic<object_data_delta_t> topic, object_data_delta_t msg)
     {
-        try {
-            if (channel.startsWith("DETECTED_OBJECTS")) {
-            	object_data_list_t objDatas = new object_data_list_t(ins);
-            	processDetectedObjects(objDatas);
-            }
-        } catch (IOException ex) {
-            System.err.println("ERR: Could not handle message on channel - "+channel);
-            ex.printStackTrace();
-        }
+        processDetectedObjects(msg);
     }
 
+
     /** Query whether or not the condition being tested for is currently true.
      *
      *  @return True if condition test is currently satisfied, else false
@@ -7,9 +7,9 @@ import april.jmat.*;
 import april.util.*;
 
 import soargroup.mobilesim.commands.*;
+import soargroup.mobilesim.util.Util;
 
 // LCM Types
-import lcm.lcm.*;
 import april.lcmtypes.pose_t;
 import soargroup.mobilesim.lcmtypes.typed_value_t;
 import soargroup.mobilesim.lcmtypes.condition_test_t;
@@ -18,21 +18,90 @@ import soargroup.mobilesim.lcmtypes.condition_test_t;
  *  other words, it has "stabilized." For now, no parameters, just
  *  built in thresholds!
  **/
-public class Stabilized implements ConditionTest, LCMSubscriber
+public class Stabilized implements ConditionTest, SensorBus.Listener<pose_t>
 {
-    LCM lcm = LCM.getSingleton();
+    String poseChannel = "POSE";
     private double PERIOD_S = 1.0;
     static final double THETA_THRESH_RAD = Math.toRadians(3);
     static final double DIST_THRESH_M = 0.10;
 
     boolean begun = false;
     long startTime = 0;
-    LinkedList<pose_t> poseQueue = new LinkedList<pose_t>();
+    ConditionListener listener = null;
+
+    // The poses in the last PERIOD_S seconds, numbered as they arrive. Only
+    // their times are kept; the extents of the window are tracked as poses
+    // come and go, so no update rescans the whole window.
+    ArrayDeque<Long> poseTimes = new ArrayDeque<Long>();
+    long firstPose = 0, nextPose = 0;
+    WindowExtremum minx = new WindowExtremum(false), maxx = new WindowExtremum(true);
+    WindowExtremum miny = new WindowExtremum(false), maxy = new WindowExtremum(true);
+    WindowExtremum mint = new WindowExtremum(false), maxt = new WindowExtremum(true);
+
+    boolean met = false;
+
+    /** The minimum (or maximum) of a sliding window of values. A value is
+     *  dropped as soon as a newer one is at least as extreme, since it can
+     *  never be the answer again, which makes each update O(1) amortized.
+     **/
+    static class WindowExtremum
+    {
+        final boolean max;
+        long seqs[] = new long[16];
+        double values[] = new double[16];
+        int head = 0, size = 0;
+
+        WindowExtremum(boolean max)
+        {
+            this.max = max;
+        }
+
+        // Add value v, numbered seq, and forget those numbered before firstSeq
+        void add(long firstSeq, long seq, double v)
+        {
+            while (size > 0 && seqs[head] < firstSeq) {
+                head = (head + 1) % values.length;
+                size--;
+            }
+
+            while (size > 0) {
+                double back = values[(head + size - 1) % values.length];
+                if (max ? back > v : back < v)
+                    break;
+                size--;
+            }
+            if (size == values.length)
+                grow();
+            int i = (head + size) % values.length;
+            seqs[i] = seq;
+            values[i] = v;
+            size++;
+        }
+
+        double get()
+        {
+            return values[head];
+        }
+
+        void grow()
+        {
+            long nseqs[] = new long[2*seqs.length];
+            double nvalues[] = new double[2*values.length];
+            for (int i = 0; i < size; i++) {
+                nseqs[i] = seqs[(head + i) % seqs.length];
+                nvalues[i] = values[(head + i) % values.length];
+            }
+            seqs = nseqs;
+            values = nvalues;
+            head = 0;
+        }
+    }
 
     public Stabilized() {}
 
     public Stabilized(HashMap<String, TypedValue> parameters)
     {
+        poseChannel = Util.getChannelPrefix(parameters) + "POSE";
         if (parameters.containsKey("timeout"))
             PERIOD_S = Math.abs(parameters.get("timeout").getDouble());
         else
@@ -43,89 +112,80 @@ public class Stabilized implements ConditionTest, LCMSubscriber
     public void setRunning(boolean run)
     {
         if (run) {
-            // XXX LCM Subscription explosion
-            lcm.subscribe("POSE", this);
-            begun = false;
-        } else {
-            lcm.unsubscribe("POSE", this);
+            synchronized (this) {
+                begun = false;
+                met = false;
+            }
         }
+
+        SensorBus.Topic<pose_t> poses = SensorBus.getSingleton().getTopic(poseChannel, pose_t.class);
+        if (run)
+            poses.addListener(this);
+        else
+            poses.removeListener(this);
     }
 
-    public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins)
+    public void messageReceived(SensorBus.Topic<pose_t> topic, pose_t pose)
     {
-        try {
-            messageReceivedEx(lcm, channel, ins);
-        } catch (IOException ex) {
-            System.err.println("WRN: Error reading channel "+channel+": "+ex);
-        }
+        update(pose);
     }
 
-    synchronized void messageReceivedEx(LCM lcm, String channel,
-            LCMDataInputStream ins) throws IOException
+    public synchronized void setListener(ConditionListener listener)
     {
-        if (channel.equals("POSE")) {
-            pose_t msg = new pose_t(ins);
-            update(msg);
-        }
+        this.listener = listener;
     }
 
     // Add a new pose
     public void update(pose_t pose)
     {
         assert (pose != null);
-        if (!begun) {
-            begun = true;
-            startTime = pose.utime;
-        }
+        ConditionListener toNotify = null;
 
-        synchronized(poseQueue) {
-            while (poseQueue.size() > 1) {
-                pose_t front = poseQueue.peek();
-                if ((pose.utime - front.utime) < PERIOD_S * 1000000)
+        synchronized (this) {
+            if (!begun) {
+                begun = true;
+                startTime = pose.utime;
+            }
+
+            while (poseTimes.size() > 1) {
+                if ((pose.utime - poseTimes.peekFirst()) < PERIOD_S * 1000000)
                     break;
-                poseQueue.poll();
+                poseTimes.pollFirst();
+                firstPose++;
             }
-            poseQueue.add(pose);
+
+            double[] xyt = LinAlg.quatPosToXYT(pose.orientation, pose.pos);
+            double t = MathUtil.mod2pi(xyt[2]) + Math.PI;
+            long seq = nextPose++;
+            poseTimes.addLast(pose.utime);
+
+            minx.add(firstPose, seq, xyt[0]);
+            maxx.add(firstPose, seq, xyt[0]);
+            miny.add(firstPose, seq, xyt[1]);
+            maxy.add(firstPose, seq, xyt[1]);
+            mint.add(firstPose, seq, t);
+            maxt.add(firstPose, seq, t);
+
+            boolean wasMet = met;
+            met = evaluate();
+            if (met != wasMet)
+                toNotify = listener;
         }
+
+        if (toNotify != null)
+            toNotify.conditionChanged(this);
     }
 
-    /** Query whether or not the condition being tested for is currently true.
-     *
-     *  @return True if condition test is currently satisfied, else false
-     **/
-    public boolean conditionMet()
+    boolean evaluate()
     {
-        if (!begun || poseQueue.size() < 2)
+        if (!begun || poseTimes.size() < 2)
+            return false;
+        if (poseTimes.peekLast() - startTime < PERIOD_S * 1000000)
             return false;
-        synchronized (poseQueue) {
-            pose_t last = poseQueue.peekLast();
-            if (last.utime - startTime < PERIOD_S * 1000000)
-                return false;
-        }
-
-        double minx = Double.POSITIVE_INFINITY;
-        double maxx = Double.NEGATIVE_INFINITY;
-        double miny = Double.POSITIVE_INFINITY;
-        double maxy = Double.NEGATIVE_INFINITY;
-        double mint = Double.POSITIVE_INFINITY;
-        double maxt = Double.NEGATIVE_INFINITY;
-        double avgt = 0;
-
-        synchronized (poseQueue) {
-            for (pose_t pose: poseQueue) {
-                double[] xyt = LinAlg.quatPosToXYT(pose.orientation, pose.pos);
-                minx = Math.min(minx, xyt[0]);
-                maxx = Math.max(maxx, xyt[0]);
-                miny = Math.min(miny, xyt[1]);
-                maxy = Math.max(maxy, xyt[1]);
-                mint = Math.min(mint, MathUtil.mod2pi(xyt[2]) + Math.PI);
-                maxt = Math.max(maxt, MathUtil.mod2pi(xyt[2]) + Math.PI);
-            }
-        }
-        double dx = maxx - minx;
-        double dy = maxy - miny;
-        double dt = maxt - mint;
 
+        double dx = maxx.get() - minx.get();
+        double dy = maxy.get() - miny.get();
+        double dt = maxt.get() - mint.get();
 
         boolean ret = Math.sqrt(dx*dx + dy*dy) < DIST_THRESH_M;
         ret = ret && dt < THETA_THRESH_RAD;
@@ -133,6 +193,15 @@ public class Stabilized implements ConditionTest, LCMSubscriber
         return ret;
     }
 
+    /** Query whether or not the condition being tested for is currently true.
+     *
+     *  @return True if condition test is currently satisfied, else false
+     **/
+    public synchronized boolean conditionMet()
+    {
+        return met;
+    }
+
     /** Get the parameters that can be set for this condition test.
      *
      *  @return An iterable collection of all possible parameters.
@@ -155,7 +224,7 @@ public class Stabilized implements ConditionTest, LCMSubscriber
     public ConditionTest copyCondition()
     {
         Stabilized test =  new Stabilized();
-        test.lcm.subscribe("POSE", test); // XXX
+        test.poseChannel = poseChannel;
 
         return test;
     }
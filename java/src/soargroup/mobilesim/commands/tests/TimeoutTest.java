@@ -11,13 +11,18 @@ import soargroup.mobilesim.lcmtypes.typed_value_t;
 import soargroup.mobilesim.lcmtypes.condition_test_t;
 
 
-// XXX IS this broken when not executed immediately? It would seem so, since
-// elapsed is initialized on creation.
+/** Met once it has been running for timeout seconds. Time is measured
+ *  with TimeUtil.utime(), so under a LockstepScheduler it is simulated
+ *  time. Counts from creation; setRunning(false) pauses the count, and
+ *  setRunning(true) resumes it.
+ **/
 public class TimeoutTest implements ConditionTest
 {
-    double timeSofar = 0;
     double timeout;
-    Tic elapsed;
+
+    long timeSofar = 0; // microseconds run before the last start
+    long startUtime;
+    boolean running = true;
 
     /** Strictly for use with parameter checking */
     public TimeoutTest()
@@ -28,25 +33,34 @@ public class TimeoutTest implements ConditionTest
     {
         assert (parameters.containsKey("timeout"));
         timeout = parameters.get("timeout").getDouble();
-        elapsed = new Tic();
+        startUtime = TimeUtil.utime();
     }
 
-    public void setRunning(boolean run)
+    public synchronized void setRunning(boolean run)
     {
-        if (run) {
-            elapsed = new Tic();
-        } else {
-            timeSofar += elapsed.toctic();
-        }
+        if (run == running)
+            return;
+
+        if (run)
+            startUtime = TimeUtil.utime();
+        else
+            timeSofar += TimeUtil.utime() - startUtime;
+        running = run;
     }
 
     /** Query whether or not the condition being tested for is currently true.
      *
      *  @return True if condition test is currently satisfied, else false
      **/
-    public boolean conditionMet()
+    public synchronized boolean conditionMet()
+    {
+        long elapsed = timeSofar + (running ? TimeUtil.utime() - startUtime : 0);
+        return elapsed >= timeout*1000000;
+    }
+
+    /** Only changes with time, so never reports a change */
+    public void setListener(ConditionListener listener)
     {
-        return timeSofar+elapsed.toc() > timeout;
     }
 
     /** Get the parameters that can be set for this condition test.
@@ -67,7 +81,7 @@ public class TimeoutTest implements ConditionTest
     {
         TimeoutTest tt = new TimeoutTest();
         tt.timeout = timeout;
-        tt.elapsed = new Tic();
+        tt.startUtime = TimeUtil.utime();
 
         return tt;
     }
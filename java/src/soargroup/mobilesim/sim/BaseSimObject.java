@@ -2,18 +2,21 @@ package soargroup.mobilesim.sim;
 
 import java.awt.Color;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 
 import soargroup.mobilesim.util.BoundingBox;
+import april.config.Config;
 import april.jmat.LinAlg;
+import april.util.EnvUtil;
 import april.util.StructureReader;
 import april.util.StructureWriter;
 import april.sim.*;
 import april.vis.*;
 
-public abstract class BaseSimObject implements SimObject{
+public abstract class BaseSimObject implements SimObject, Checkpointable{
 	// Pose is the center of the object's bounding box
 	protected double xyzrpy[] = new double[6];
 	// Scale is in relation to a unit cube centered at the xyz coordinate
@@ -24,6 +27,26 @@ public abstract class BaseSimObject implements SimObject{
 	protected boolean isRunning = false;
 	protected boolean collide = true;
 
+	// Shared by every object that doesn't collide
+	protected static final Shape NO_COLLISION = new april.sim.SphereShape(0.0);
+
+	// The pose matrix (and its inverse) and collision box, built on first use
+	//   Each is tagged with the array it was built from, so a new xyzrpy or
+	//   scale_xyz array is noticed even if it was assigned directly
+	private static class CachedPose {
+		final double[] xyzrpy;
+		final double[][] T;
+		volatile double[][] inverse;
+		CachedPose(double[] xyzrpy){
+			this.xyzrpy = xyzrpy;
+			this.T = LinAlg.xyzrpyToMatrix(xyzrpy);
+		}
+	}
+	private volatile CachedPose cachedPose = null;
+
+	private volatile double[] cachedShapeScale = null;
+	private volatile Shape cachedShape = null;
+
 	public BaseSimObject(SimWorld sw){
 	}
 	
@@ -34,11 +57,35 @@ public abstract class BaseSimObject implements SimObject{
 
 	public void setXYZRPY(double[] newpose){
 		this.xyzrpy = newpose;
+		this.cachedPose = null;
 	}
 
 	// Pose double[][]
+	//   The matrix is cached and shared, do not modify it
 	public double[][] getPose(){
-		return LinAlg.xyzrpyToMatrix(xyzrpy);
+		return getCachedPose().T;
+	}
+
+	// The inverse of getPose(), also shared
+	//   Threads that race to build it each build the same matrix
+	public double[][] getPoseInverse(){
+		CachedPose c = getCachedPose();
+		double[][] inv = c.inverse;
+		if(inv == null){
+			inv = LinAlg.inverse(c.T);
+			c.inverse = inv;
+		}
+		return inv;
+	}
+
+	private CachedPose getCachedPose(){
+		CachedPose c = cachedPose;
+		double[] pose = xyzrpy;
+		if(c == null || c.xyzrpy != pose){
+			c = new CachedPose(pose);
+			cachedPose = c;
+		}
+		return c;
 	}
 
 	public void setPose(double T[][]){
@@ -50,6 +97,11 @@ public abstract class BaseSimObject implements SimObject{
 		return LinAlg.copy(scale_xyz);
 	}
 	
+	// Call after changing scale_xyz in place
+	protected void scaleChanged(){
+		cachedShape = null;
+	}
+
 	public BoundingBox getBoundingBox(){
 		return new BoundingBox(scale_xyz, xyzrpy);
 	}
@@ -82,16 +134,34 @@ public abstract class BaseSimObject implements SimObject{
 	}
 
 	// Shape
+	//   The bounding box is cached until scale_xyz changes
 	public Shape getShape(){
 		if(collide){
 			// Use the bounding box 
-			return new BoxShape(scale_xyz);
+			return getBoxShape();
 		} else {
 			// Don't have collision on, otherwise the robot won't drive
-			return new april.sim.SphereShape(0.0);
+			return NO_COLLISION;
 		}
 	}
 
+	protected Shape getBoxShape(){
+		Shape shape = cachedShape;
+		double[] scale = scale_xyz;
+		if(shape == null || cachedShapeScale != scale){
+			shape = new BoxShape(scale);
+			cachedShapeScale = scale;
+			cachedShape = shape;
+		}
+		return shape;
+	}
+
+	// The shape that blocks the robot's view of what is behind it (see ObjectVisibility),
+	//   whether or not the object collides; null if it blocks nothing
+	public Shape getOcclusionShape(){
+		return getBoxShape();
+	}
+
 
 	// Read/Write
 	// [Dbl]x3 for xyz center
@@ -120,4 +190,93 @@ public abstract class BaseSimObject implements SimObject{
 		outs.writeDouble(xyzrpy[5]);
 		outs.writeDoubles(scale_xyz);
 	}
+
+	// Checkpoints (see april.sim.WorldCheckpoint): the pose, size, and whether it collides
+	public void writeState(StructureWriter outs, WorldCheckpoint checkpoint) throws IOException
+	{
+		outs.writeDoubles(xyzrpy);
+		outs.writeDoubles(scale_xyz);
+		outs.writeInt(collide ? 1 : 0);
+	}
+
+	// Sets the pose directly rather than with setXYZRPY, which could move other objects along
+	public void readState(StructureReader ins, WorldCheckpoint checkpoint) throws IOException
+	{
+		xyzrpy = ins.readDoubles();
+		cachedPose = null;
+		scale_xyz = ins.readDoubles();
+		scaleChanged();
+		collide = (ins.readInt() != 0);
+		recreateVisObject();
+	}
+
+	// Allocation benchmark: bytes allocated per getPose/getShape call and per
+	//   world commit, with the cached shapes and poses vs. rebuilding them
+	//   Usage: BaseSimObject [world]
+	public static void main(String args[]) throws IOException {
+		String path = args.length > 0 ? args[0] : EnvUtil.expandVariables("$MOBILE_SIM_HOME/worlds/test_env.world");
+		SimWorld world = new SimWorld(path, new Config());
+		ArrayList<BaseSimObject> objects = new ArrayList<BaseSimObject>();
+		for(SimObject obj : world.objects){
+			if(obj instanceof BaseSimObject){
+				objects.add((BaseSimObject)obj);
+			}
+		}
+		world.commit();
+
+		int iters = 200;
+		for(int rep = 0; rep < 3; rep++){
+			// Every call rebuilds, as getPose and getShape used to
+			long before = allocatedBytes();
+			for(int i = 0; i < iters; i++){
+				for(BaseSimObject obj : objects){
+					LinAlg.xyzrpyToMatrix(obj.xyzrpy);
+					new BoxShape(obj.scale_xyz);
+				}
+			}
+			long rebuilt = allocatedBytes() - before;
+
+			before = allocatedBytes();
+			for(int i = 0; i < iters; i++){
+				for(BaseSimObject obj : objects){
+					obj.getPose();
+					obj.getShape();
+				}
+			}
+			long cached = allocatedBytes() - before;
+
+			// A commit where every object looks new, vs. one where nothing moved
+			before = allocatedBytes();
+			for(int i = 0; i < iters; i++){
+				synchronized(world){
+					for(BaseSimObject obj : objects){
+						obj.setXYZRPY(obj.getXYZRPY());
+						obj.scaleChanged();
+					}
+					world.commit();
+				}
+			}
+			long commitAll = allocatedBytes() - before;
+
+			before = allocatedBytes();
+			for(int i = 0; i < iters; i++){
+				synchronized(world){
+					world.commit();
+				}
+			}
+			long commitStatic = allocatedBytes() - before;
+
+			long calls = (long)iters * objects.size();
+			System.out.printf("%d objects: getPose+getShape %7.1f -> %5.1f bytes/call, commit %9.0f -> %7.0f bytes\n",
+					objects.size(), (double)rebuilt / calls, (double)cached / calls,
+					(double)commitAll / iters, (double)commitStatic / iters);
+		}
+		// The world file may have started robots
+		System.exit(0);
+	}
+
+	private static long allocatedBytes(){
+		return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean())
+			.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
 }
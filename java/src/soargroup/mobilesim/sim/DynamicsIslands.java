@@ -0,0 +1,268 @@
+package soargroup.mobilesim.sim;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import april.config.Config;
+import april.sim.SimObject;
+import april.sim.SimWorld;
+import april.util.Tic;
+
+import soargroup.rosie.RosieConstants;
+import soargroup.mobilesim.sim.attributes.*;
+
+// Updates the dynamics of every object in a world, spreading the work over a ForkJoinPool
+//   An object's update may change the object and the objects it holds (e.g. a stove heating the pot on it),
+//   so the objects are grouped into islands: a holder along with everything it holds, directly or through
+//   other holders. Islands share no objects, so they are updated in parallel, while the objects in one island
+//   are updated in the order they appear in the world, as a serial loop would. So the result is the same
+//   however the islands happen to be scheduled.
+//   The grouping is kept until the world's objects change or a holder is given a new object
+public class DynamicsIslands {
+	// Worlds with fewer objects than this are updated serially, on the calling thread
+	public static final int PARALLEL_THRESHOLD = 256;
+
+	// A task updates its islands itself once it is down to about this many objects
+	static final int BATCH_SIZE = 64;
+
+	private final ForkJoinPool pool;
+
+	// The world's objects as they were when grouped, and the ObjectHolder edit count at the time
+	private SimObject[] grouped = new SimObject[0];
+	private int holderEdits = -1;
+
+	// The objects to update, island by island
+	//   Island i is order[islandStarts[i]] up to (not including) order[islandStarts[i+1]]
+	private BaseSimObject[] order;
+	private int[] islandStarts;
+
+	public DynamicsIslands(){
+		this(ForkJoinPool.commonPool());
+	}
+
+	public DynamicsIslands(ForkJoinPool pool){
+		this.pool = pool;
+	}
+
+	// Calls update on every BaseSimObject in the world
+	//   The caller must hold the world's lock, so nothing else changes the objects meanwhile
+	public void update(double dt, ArrayList<SimObject> worldObjects){
+		if(worldObjects.size() < PARALLEL_THRESHOLD){
+			updateSerial(dt, worldObjects);
+			return;
+		}
+		regroup(worldObjects);
+		pool.invoke(new UpdateTask(dt, worldObjects, 0, islandStarts.length - 1));
+	}
+
+	// The same, one object at a time
+	public static void updateSerial(double dt, ArrayList<SimObject> worldObjects){
+		for(SimObject simObj : worldObjects){
+			if(simObj instanceof BaseSimObject){
+				((BaseSimObject)simObj).update(dt, worldObjects);
+			}
+		}
+	}
+
+	public int getNumIslands(){
+		return islandStarts == null ? 0 : islandStarts.length - 1;
+	}
+
+	private class UpdateTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		final double dt;
+		final ArrayList<SimObject> worldObjects;
+		final int island0, island1;
+
+		UpdateTask(double dt, ArrayList<SimObject> worldObjects, int island0, int island1){
+			this.dt = dt;
+			this.worldObjects = worldObjects;
+			this.island0 = island0;
+			this.island1 = island1;
+		}
+
+		@Override
+		protected void compute(){
+			int start = islandStarts[island0], end = islandStarts[island1];
+			if(end - start <= BATCH_SIZE || island1 - island0 < 2){
+				for(int i = start; i < end; i++){
+					order[i].update(dt, worldObjects);
+				}
+				return;
+			}
+
+			// Split at the island boundary nearest the middle object
+			int mid = Arrays.binarySearch(islandStarts, island0, island1, (start + end) / 2);
+			if(mid < 0){
+				mid = -mid - 1;
+			}
+			mid = Math.max(island0 + 1, Math.min(island1 - 1, mid));
+			invokeAll(new UpdateTask(dt, worldObjects, island0, mid),
+					new UpdateTask(dt, worldObjects, mid, island1));
+		}
+	}
+
+	private void regroup(ArrayList<SimObject> worldObjects){
+		// Read the edit count first, so an edit made while grouping forces another grouping
+		int edits = ObjectHolder.getEdits();
+		if(edits == holderEdits && sameObjects(worldObjects)){
+			return;
+		}
+
+		int n = worldObjects.size();
+		IdentityHashMap<SimObject, Integer> indices = new IdentityHashMap<SimObject, Integer>(n);
+		for(int i = 0; i < n; i++){
+			indices.put(worldObjects.get(i), i);
+		}
+
+		// Union each holder with the objects it holds
+		int[] parent = new int[n];
+		for(int i = 0; i < n; i++){
+			parent[i] = i;
+		}
+		for(int i = 0; i < n; i++){
+			SimObject obj = worldObjects.get(i);
+			if(!(obj instanceof RosieSimObject)){
+				continue;
+			}
+			ObjectHolder holder = ((RosieSimObject)obj).as(ObjectHolder.class);
+			if(holder == null){
+				continue;
+			}
+			for(RosieSimObject held : holder.getHeldObjects()){
+				Integer j = indices.get(held);
+				if(j != null){
+					int ri = find(parent, i), rj = find(parent, j);
+					// Keep the earlier object as the root, so islands are numbered in world order
+					parent[Math.max(ri, rj)] = Math.min(ri, rj);
+				}
+			}
+		}
+
+		// Number the islands in the order their first objects appear, then lay them out in that order
+		int[] islandOf = new int[n];
+		int[] sizes = new int[n + 1];
+		int numIslands = 0, numObjects = 0;
+		for(int i = 0; i < n; i++){
+			islandOf[i] = -1;
+			if(!(worldObjects.get(i) instanceof BaseSimObject)){
+				continue;
+			}
+			// The root is the island's first object, so it has been numbered already
+			int root = find(parent, i);
+			islandOf[i] = (root == i ? numIslands++ : islandOf[root]);
+			sizes[islandOf[i]]++;
+			numObjects++;
+		}
+
+		islandStarts = new int[numIslands + 1];
+		for(int k = 0; k < numIslands; k++){
+			islandStarts[k + 1] = islandStarts[k] + sizes[k];
+		}
+		order = new BaseSimObject[numObjects];
+		int[] fill = Arrays.copyOf(islandStarts, numIslands);
+		for(int i = 0; i < n; i++){
+			if(islandOf[i] >= 0){
+				order[fill[islandOf[i]]++] = (BaseSimObject)worldObjects.get(i);
+			}
+		}
+
+		grouped = worldObjects.toArray(new SimObject[n]);
+		holderEdits = edits;
+	}
+
+	private boolean sameObjects(ArrayList<SimObject> worldObjects){
+		if(worldObjects.size() != grouped.length){
+			return false;
+		}
+		for(int i = 0; i < grouped.length; i++){
+			if(worldObjects.get(i) != grouped[i]){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int find(int[] parent, int i){
+		while(parent[i] != i){
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	// Benchmark: serial vs. island updates of a kitchen full of stoves, each heating a pot, and alarms
+	//   Usage: DynamicsIslands [appliances] [steps]
+	public static void main(String args[]){
+		int maxAppliances = args.length > 0 ? Integer.parseInt(args[0]) : 16000;
+		int steps = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+		System.out.printf("%d threads\n", ForkJoinPool.commonPool().getParallelism());
+		System.out.printf("%10s %10s %14s %14s %10s\n", "appliances", "islands", "serial (us)", "islands (us)", "agree");
+		for(int appliances = 1000; appliances <= maxAppliances; appliances *= 4){
+			SimWorld serialWorld = makeKitchen(appliances);
+			SimWorld islandWorld = makeKitchen(appliances);
+			DynamicsIslands islands = new DynamicsIslands();
+			double dt = 0.1;
+
+			double serialTime = 0, islandTime = 0;
+			Tic tic = new Tic();
+			for(int i = 0; i < steps; i++){
+				tic.tic();
+				updateSerial(dt, serialWorld.objects);
+				serialTime += tic.toctic();
+				islands.update(dt, islandWorld.objects);
+				islandTime += tic.toc();
+			}
+
+			int agree = 0, total = 0;
+			for(int i = 0; i < serialWorld.objects.size(); i++){
+				SimObject a = serialWorld.objects.get(i), b = islandWorld.objects.get(i);
+				if(a instanceof SimCup){
+					total++;
+					String ta = ((SimCup)a).getProperty(RosieConstants.TEMPERATURE);
+					String tb = ((SimCup)b).getProperty(RosieConstants.TEMPERATURE);
+					if(ta != null && ta.equals(tb)){
+						agree++;
+					}
+				}
+			}
+			System.out.printf("%10d %10d %14.1f %14.1f %5d/%d\n", appliances, islands.getNumIslands(),
+					serialTime*1e6/steps, islandTime*1e6/steps, agree, total);
+		}
+	}
+
+	// Half stoves with a pot on a burner, half alarms, on a grid
+	private static SimWorld makeKitchen(int appliances){
+		SimWorld world = new SimWorld(new Config());
+		ArrayList<RosieSimObject> objs = new ArrayList<RosieSimObject>();
+		for(int i = 0; i < appliances; i++){
+			double[] xyzrpy = new double[]{ 2.0*(i % 100), 2.0*(i / 100), 0.5, 0, 0, 0 };
+			if(i % 2 == 0){
+				SimStove stove = new SimStove(world);
+				stove.setProperty(RosieConstants.ACTIVATION, RosieConstants.ACT_ON);
+				stove.setXYZRPY(xyzrpy);
+				SimCup pot = new SimCup(world);
+				pot.setXYZRPY(xyzrpy);
+				pot.addAttribute(new HasTemp(pot));
+				objs.add(stove);
+				objs.add(pot);
+			} else {
+				SimAlarm alarm = new SimAlarm(world);
+				alarm.setXYZRPY(xyzrpy);
+				objs.add(alarm);
+			}
+		}
+		world.objects.addAll(objs);
+		for(RosieSimObject obj : objs){
+			obj.init(world.objects);
+		}
+		for(int i = 0; i < objs.size(); i++){
+			if(objs.get(i) instanceof SimStove){
+				((SimStove)objs.get(i)).surface.addObject(objs.get(i + 1));
+			}
+		}
+		return world;
+	}
+}
@@ -0,0 +1,309 @@
+package soargroup.mobilesim.sim;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import april.config.Config;
+import april.jmat.LinAlg;
+import april.sim.Shape;
+import april.sim.SimObject;
+import april.sim.SimWorld;
+import april.sim.SpatialIndex;
+import april.sim.SphereShape;
+import april.sim.WorldSnapshot;
+import april.util.Tic;
+
+// Decides which objects a robot can actually see: those in its view range
+//   (SimRobot.inViewRange) that aren't hidden behind walls, closed doors, or other objects
+//
+// A few rays are cast from the robot's eye to points on the object (its center, then the
+//   middle and corners of its top), against an index of the shapes that block the view
+//   (BaseSimObject.getOcclusionShape); the object is visible if any of them gets there.
+//   Shapes that contain the point aimed at (e.g. the shelves or drawer the object is in)
+//   don't block that ray
+//
+// Objects are tested in parallel, each thread with its own index. A result is reused
+//   until the robot, the object, or anything that could block the view moves
+public class ObjectVisibility {
+	// Height of the robot's camera above the floor (meters)
+	public static double EYE_HEIGHT = 1.2;
+
+	// Where the rays are aimed, in the object's frame, as fractions of its size
+	private static final double[][] TARGETS = new double[][]{
+		{  0.0,  0.0, 0.0 },
+		{  0.0,  0.0, 0.45 },
+		{  0.4,  0.4, 0.45 },
+		{ -0.4,  0.4, 0.45 },
+		{  0.4, -0.4, 0.45 },
+		{ -0.4, -0.4, 0.45 },
+	};
+
+	// With fewer objects to test than this, don't bother with other threads
+	private static final int MIN_PARALLEL_OBJECTS = 16;
+
+	private static ExecutorService exec = null;
+	private static int numThreads = Runtime.getRuntime().availableProcessors();
+
+	private static synchronized ExecutorService getExecutor(){
+		if(exec == null){
+			exec = Executors.newFixedThreadPool(numThreads, new ThreadFactory(){
+				public Thread newThread(Runnable r){
+					Thread t = new Thread(r, "ObjectVisibility");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return exec;
+	}
+
+	// Indexes what blocks the view, rather than what collides
+	private static class OcclusionIndex extends SpatialIndex {
+		static final Shape NOTHING = new SphereShape(-1);
+
+		OcclusionIndex(SimWorld sw){
+			super(sw);
+		}
+
+		@Override
+		protected Shape getShape(WorldSnapshot ws, int i){
+			SimObject so = ws.getObject(i);
+			Shape shape = (so instanceof BaseSimObject) ? ((BaseSimObject)so).getOcclusionShape() : null;
+			return shape == null ? NOTHING : shape;
+		}
+	}
+
+	// The last result for an object, and what it depended on
+	private static class Result {
+		int version;
+		long changes;
+		double[] robotPose;
+		boolean visible;
+
+		// Filled in on the detector's thread for the workers
+		double[][] targets;
+		HashSet<SimObject> ignore;
+	}
+
+	private final SimRobot robot;
+	private final SimWorld world;
+
+	// Used on the caller's thread, and to tell whether anything has moved
+	private final OcclusionIndex index;
+	private final ThreadLocal<OcclusionIndex> threadIndex = new ThreadLocal<OcclusionIndex>();
+
+	private HashMap<RosieSimObject, Result> results = new HashMap<RosieSimObject, Result>();
+
+	public ObjectVisibility(SimRobot robot, SimWorld world){
+		this.robot = robot;
+		this.world = world;
+		this.index = new OcclusionIndex(world);
+	}
+
+	// Bring the visibility of each of the given objects up to date (see isVisible)
+	//   Results for objects not given are forgotten
+	public void update(Collection<RosieSimObject> objs){
+		WorldSnapshot ws = world.getSnapshot();
+		index.refit(ws);
+		long changes = index.getChanges();
+
+		double[][] robotT = robot.getPose();
+		double[] robotPose = new double[]{ robotT[0][3], robotT[1][3], robotT[0][0], robotT[1][0] };
+		double[] eye = new double[]{ robotT[0][3], robotT[1][3], EYE_HEIGHT };
+
+		// What no ray is blocked by: the robot, what it holds, and anything it is standing in
+		HashSet<SimObject> ignore = new HashSet<SimObject>();
+		ignore.add(robot);
+		if(robot.getGrabbedObject() != null){
+			ignore.add(robot.getGrabbedObject());
+		}
+		index.containing(eye, ignore);
+
+		HashMap<RosieSimObject, Result> next = new HashMap<RosieSimObject, Result>();
+		final ArrayList<Result> stale = new ArrayList<Result>();
+		for(RosieSimObject obj : objs){
+			int version = obj.getVersion();
+			Result r = results.get(obj);
+			if(r == null){
+				r = new Result();
+			}
+			next.put(obj, r);
+			if(r.robotPose != null && r.version == version && r.changes == changes && Arrays.equals(r.robotPose, robotPose)){
+				continue;
+			}
+			r.version = version;
+			r.changes = changes;
+			r.robotPose = robotPose;
+
+			if(!robot.inViewRange(obj.getBoundingBox().xyzrpy)){
+				r.visible = false;
+				continue;
+			}
+			r.targets = getTargets(obj);
+			r.ignore = new HashSet<SimObject>(ignore);
+			r.ignore.add(obj);
+			stale.add(r);
+		}
+		results = next;
+
+		if(stale.size() < MIN_PARALLEL_OBJECTS || numThreads < 2){
+			castRays(index, eye, stale, 0, stale.size());
+			return;
+		}
+
+		// Split the objects evenly between the threads
+		final WorldSnapshot snapshot = ws;
+		final double[] eyeXYZ = eye;
+		int nchunks = Math.min(numThreads, stale.size());
+		ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+		for(int c = 0; c < nchunks; c += 1){
+			final int start = c*stale.size()/nchunks;
+			final int end = (c+1)*stale.size()/nchunks;
+			futures.add(getExecutor().submit(new Runnable(){
+				public void run(){
+					OcclusionIndex idx = threadIndex.get();
+					if(idx == null){
+						idx = new OcclusionIndex(world);
+						threadIndex.set(idx);
+					}
+					idx.refit(snapshot);
+					castRays(idx, eyeXYZ, stale, start, end);
+				}
+			}));
+		}
+		for(Future<?> f : futures){
+			try {
+				f.get();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException ex) {
+				throw new RuntimeException(ex.getCause());
+			}
+		}
+	}
+
+	// Whether obj was visible at the last update
+	public boolean isVisible(RosieSimObject obj){
+		Result r = results.get(obj);
+		return r != null && r.visible;
+	}
+
+	// The points on obj to aim at, in world coordinates
+	private static double[][] getTargets(RosieSimObject obj){
+		double[][] T = obj.getPose();
+		double[] scale = obj.getScale();
+		double[][] targets = new double[TARGETS.length][];
+		for(int i = 0; i < TARGETS.length; i += 1){
+			double[] p = new double[]{ TARGETS[i][0]*scale[0], TARGETS[i][1]*scale[1], TARGETS[i][2]*scale[2] };
+			targets[i] = LinAlg.transform(T, p);
+		}
+		return targets;
+	}
+
+	private static void castRays(SpatialIndex idx, double[] eye, List<Result> results, int start, int end){
+		for(int i = start; i < end; i += 1){
+			Result r = results.get(i);
+			r.visible = false;
+			for(double[] target : r.targets){
+				if(canSee(idx, eye, target, r.ignore)){
+					r.visible = true;
+					break;
+				}
+			}
+			r.targets = null;
+			r.ignore = null;
+		}
+	}
+
+	private static boolean canSee(SpatialIndex idx, double[] eye, double[] target, HashSet<SimObject> ignore){
+		double[] dir = LinAlg.subtract(target, eye);
+		double dist = LinAlg.magnitude(dir);
+		if(dist < 1e-6){
+			return true;
+		}
+		dir = LinAlg.scale(dir, 1.0/dist);
+
+		ArrayList<SimObject> around = new ArrayList<SimObject>();
+		idx.containing(target, around);
+		if(!around.isEmpty()){
+			ignore = new HashSet<SimObject>(ignore);
+			ignore.addAll(around);
+		}
+		return idx.collisionDistance(eye, dir, dist, ignore) >= dist;
+	}
+
+	// Benchmark: time per update with hundreds of objects scattered among walls, when the
+	//   robot turns every update (nothing can be reused) and when it stands still;
+	//   and how many of the objects in view range the walls and other objects hide
+	//   The objects are in a 30 x 30 m square, among a grid of short walls 6 m apart
+	//   Usage: ObjectVisibility [threads]
+	public static void main(String args[]){
+		if(args.length > 0){
+			numThreads = Integer.parseInt(args[0]);
+		}
+		soargroup.mobilesim.util.Transport.setSingleton(soargroup.mobilesim.util.Transport.create("local-only"));
+		int counts[] = new int[]{ 100, 300, 1000 };
+		int updates = 100;
+		System.out.printf("%d threads\n", numThreads);
+		System.out.printf("%8s %14s %14s %10s %10s\n", "objects", "turning (ms)", "still (ms)", "in range", "visible");
+		for(int n : counts){
+			SimWorld world = new SimWorld(new Config());
+			Random rand = new Random(n);
+			double size = 15;
+
+			// A grid of short walls, 6 m apart
+			for(double x = -size; x <= size; x += 6){
+				for(double y = -size; y <= size; y += 6){
+					SimRoomWall wall = new SimRoomWall(world);
+					wall.length = 3.0;
+					wall.occlusionShape = new april.sim.BoxShape(wall.length, SimRoomWall.thickness, SimRoomWall.height);
+					boolean alongX = rand.nextBoolean();
+					wall.setXYZRPY(new double[]{ x, y, SimRoomWall.height/2, 0, 0, alongX ? 0 : Math.PI/2 });
+					world.objects.add(wall);
+				}
+			}
+			ArrayList<RosieSimObject> objs = new ArrayList<RosieSimObject>();
+			for(int i = 0; i < n; i += 1){
+				RosieSimObject obj = new RosieSimObject(world);
+				obj.desc = "box";
+				obj.scale_xyz = new double[]{ 0.3, 0.3, 0.3 + 0.7*rand.nextDouble() };
+				obj.setXYZRPY(new double[]{ (2*rand.nextDouble()-1)*size, (2*rand.nextDouble()-1)*size,
+						obj.scale_xyz[2]/2, 0, 0, rand.nextDouble()*Math.PI });
+				world.objects.add(obj);
+				objs.add(obj);
+			}
+			SimRobot robot = new SimRobot(world);
+			world.objects.add(robot);
+			world.commit();
+
+			ObjectVisibility vis = new ObjectVisibility(robot, world);
+			double[] times = new double[2];
+			int inRange = 0, visible = 0;
+			for(int pass = 0; pass < 2; pass += 1){
+				for(int rep = 0; rep < 2; rep += 1){
+					Tic tic = new Tic();
+					for(int i = 0; i < updates; i += 1){
+						if(pass == 0){
+							// Turn a little; everything must be recomputed
+							robot.setPose(LinAlg.xyzrpyToMatrix(new double[]{ 0, 0, 0, 0, 0, 0.001*i }));
+							world.commit();
+						}
+						vis.update(objs);
+					}
+					times[pass] = tic.toc()*1000/updates;
+				}
+			}
+			for(RosieSimObject obj : objs){
+				if(robot.inViewRange(obj.getBoundingBox().xyzrpy)){
+					inRange += 1;
+					if(vis.isVisible(obj)){
+						visible += 1;
+					}
+				}
+			}
+			System.out.printf("%8d %14.2f %14.3f %10d %10d\n", n, times[0], times[1], inRange, visible);
+		}
+		System.exit(0);
+	}
+}
@@ -0,0 +1,258 @@
+package soargroup.mobilesim.sim;
+
+import java.io.IOException;
+import java.util.*;
+
+import april.config.Config;
+import april.sim.SimObject;
+import april.sim.SimWorld;
+import april.util.EnvUtil;
+import april.util.Tic;
+
+// Answers "which region is this point in?" without testing every region in the world
+//   The regions are bucketed into a uniform grid of cells, sized to the typical region,
+//   which is built from the world's latest snapshot and rebuilt whenever a region
+//   is edited or removed, or the objects in the world change (by identity, not count)
+public class RegionIndex {
+	private static WeakHashMap<SimWorld, RegionIndex> indices = new WeakHashMap<SimWorld, RegionIndex>();
+
+	// The shared index for the given world
+	public static synchronized RegionIndex get(SimWorld world){
+		RegionIndex index = indices.get(world);
+		if(index == null){
+			index = new RegionIndex(world);
+			indices.put(world, index);
+		}
+		return index;
+	}
+
+	private SimWorld world;
+	private volatile Grid grid = null;
+
+	public RegionIndex(SimWorld world){
+		this.world = world;
+	}
+
+	// An immutable bucketing of the regions
+	private static class Grid {
+		// The snapshot's object list; snapshots of the same objects share it
+		List<SimObject> objects;
+		int regionEdits;
+
+		SimRegion[] regions;
+
+		double x0, y0, cellSize;
+		int nx, ny;
+		SimRegion[][] cells;
+
+		SimRegion[] getCell(double[] p){
+			int ix = (int)Math.floor((p[0] - x0) / cellSize);
+			int iy = (int)Math.floor((p[1] - y0) / cellSize);
+			if(ix < 0 || ix >= nx || iy < 0 || iy >= ny){
+				return null;
+			}
+			return cells[iy*nx + ix];
+		}
+	}
+
+	// Return the closest region (by distance to its center) that contains the point
+	public SimRegion getRegion(double[] p){
+		SimRegion[] cell = refit().getCell(p);
+		if(cell == null){
+			return null;
+		}
+		return closestContaining(cell, p);
+	}
+
+	// All of the regions in the world
+	public List<SimRegion> getRegions(){
+		return Collections.unmodifiableList(Arrays.asList(refit().regions));
+	}
+
+	// Return the closest region from the list that contains the point
+	public static SimRegion closestContaining(SimRegion[] regions, double[] p){
+		double bestDist = Double.MAX_VALUE;
+		SimRegion best = null;
+		for(SimRegion region : regions){
+			if(region.contains(p)){
+				double dist2 = region.getDistanceSq(p);
+				if(dist2 < bestDist){
+					bestDist = dist2;
+					best = region;
+				}
+			}
+		}
+		return best;
+	}
+
+	private Grid refit(){
+		List<SimObject> objects = world.getSnapshot().getObjects();
+		Grid g = grid;
+		if(g != null && g.objects == objects && g.regionEdits == SimRegion.getEdits()){
+			return g;
+		}
+		synchronized(this){
+			g = grid;
+			if(g == null || g.objects != objects || g.regionEdits != SimRegion.getEdits()){
+				g = build(objects);
+				grid = g;
+			}
+			return g;
+		}
+	}
+
+	private static Grid build(List<SimObject> objects){
+		Grid g = new Grid();
+		// Read the edit count first, so an edit made during the build forces another one
+		g.regionEdits = SimRegion.getEdits();
+		g.objects = objects;
+
+		ArrayList<SimRegion> regions = new ArrayList<SimRegion>();
+		for(SimObject obj : objects){
+			if(obj instanceof SimRegion){
+				regions.add((SimRegion)obj);
+			}
+		}
+		g.regions = regions.toArray(new SimRegion[0]);
+
+		// Each region covers the square around its bounding circle
+		double xmin = Double.MAX_VALUE, ymin = Double.MAX_VALUE;
+		double xmax = -Double.MAX_VALUE, ymax = -Double.MAX_VALUE;
+		double totalSize = 0;
+		for(SimRegion region : g.regions){
+			double[] c = region.xyzrpy;
+			double r = region.getBoundingRadius();
+			xmin = Math.min(xmin, c[0] - r);
+			ymin = Math.min(ymin, c[1] - r);
+			xmax = Math.max(xmax, c[0] + r);
+			ymax = Math.max(ymax, c[1] + r);
+			totalSize += 2*r;
+		}
+		if(g.regions.length == 0){
+			g.cells = new SimRegion[0][];
+			return g;
+		}
+
+		// A cell about the size of an average region keeps each cell to a few regions,
+		//   but never let the grid get larger than a few cells per region
+		g.cellSize = Math.max(totalSize / g.regions.length, 0.1);
+		g.cellSize = Math.max(g.cellSize, Math.sqrt((xmax - xmin)*(ymax - ymin) / (16.0*g.regions.length)));
+		g.x0 = xmin;
+		g.y0 = ymin;
+		g.nx = (int)Math.ceil((xmax - xmin) / g.cellSize) + 1;
+		g.ny = (int)Math.ceil((ymax - ymin) / g.cellSize) + 1;
+
+		ArrayList<ArrayList<SimRegion>> cells = new ArrayList<ArrayList<SimRegion>>();
+		for(int i = 0; i < g.nx*g.ny; i++){
+			cells.add(null);
+		}
+		for(SimRegion region : g.regions){
+			double[] c = region.xyzrpy;
+			double r = region.getBoundingRadius();
+			int ix0 = (int)Math.floor((c[0] - r - g.x0) / g.cellSize);
+			int iy0 = (int)Math.floor((c[1] - r - g.y0) / g.cellSize);
+			int ix1 = Math.min(g.nx - 1, (int)Math.floor((c[0] + r - g.x0) / g.cellSize));
+			int iy1 = Math.min(g.ny - 1, (int)Math.floor((c[1] + r - g.y0) / g.cellSize));
+			for(int iy = Math.max(0, iy0); iy <= iy1; iy++){
+				for(int ix = Math.max(0, ix0); ix <= ix1; ix++){
+					ArrayList<SimRegion> cell = cells.get(iy*g.nx + ix);
+					if(cell == null){
+						cell = new ArrayList<SimRegion>(2);
+						cells.set(iy*g.nx + ix, cell);
+					}
+					cell.add(region);
+				}
+			}
+		}
+
+		g.cells = new SimRegion[g.nx*g.ny][];
+		SimRegion[] empty = new SimRegion[0];
+		for(int i = 0; i < g.cells.length; i++){
+			ArrayList<SimRegion> cell = cells.get(i);
+			g.cells[i] = (cell == null ? empty : cell.toArray(empty));
+		}
+		return g;
+	}
+
+	// Microbenchmark: region lookups with the index vs. testing every region
+	//   Usage: RegionIndex [world] [copies]
+	//   The world's regions are tiled copies x copies times to mimic a large floor plan
+	public static void main(String args[]) throws IOException {
+		String path = args.length > 0 ? args[0] : EnvUtil.expandVariables("$MOBILE_SIM_HOME/worlds/test_env.world");
+		int maxCopies = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+
+		SimWorld source = new SimWorld(path, new Config());
+		ArrayList<SimRegion> sourceRegions = new ArrayList<SimRegion>();
+		double xmin = Double.MAX_VALUE, ymin = Double.MAX_VALUE;
+		double xmax = -Double.MAX_VALUE, ymax = -Double.MAX_VALUE;
+		for(SimObject obj : source.objects){
+			if(obj instanceof SimRegion){
+				SimRegion region = (SimRegion)obj;
+				sourceRegions.add(region);
+				double r = region.getBoundingRadius();
+				xmin = Math.min(xmin, region.xyzrpy[0] - r);
+				ymin = Math.min(ymin, region.xyzrpy[1] - r);
+				xmax = Math.max(xmax, region.xyzrpy[0] + r);
+				ymax = Math.max(ymax, region.xyzrpy[1] + r);
+			}
+		}
+		if(sourceRegions.size() == 0){
+			System.err.println("ERR: No regions in " + path);
+			return;
+		}
+		double dx = xmax - xmin, dy = ymax - ymin;
+
+		System.out.printf("%8s %14s %14s %10s\n", "regions", "linear (ns)", "index (ns)", "agree");
+		for(int copies = 1; copies <= maxCopies; copies *= 2){
+			SimWorld world = new SimWorld(new Config());
+			for(int cx = 0; cx < copies; cx++){
+				for(int cy = 0; cy < copies; cy++){
+					for(SimRegion src : sourceRegions){
+						SimRegion region = new SimRegion(world);
+						region.handle = src.handle;
+						region.width = src.width;
+						region.length = src.length;
+						region.dist_threshold_sq = src.dist_threshold_sq;
+						double[] xyzrpy = src.getXYZRPY();
+						xyzrpy[0] += cx*dx;
+						xyzrpy[1] += cy*dy;
+						region.setXYZRPY(xyzrpy);
+						world.objects.add(region);
+					}
+				}
+			}
+			world.commit();
+
+			SimRegion[] regions = RegionIndex.get(world).getRegions().toArray(new SimRegion[0]);
+			Random rand = new Random(0);
+			int n = 200000;
+			double[][] points = new double[n][];
+			for(int i = 0; i < n; i++){
+				points[i] = new double[]{ xmin + rand.nextDouble()*dx*copies, ymin + rand.nextDouble()*dy*copies, 0 };
+			}
+
+			RegionIndex index = RegionIndex.get(world);
+			SimRegion[] linear = new SimRegion[n];
+			int agree = 0;
+			double linearTime = 0, indexTime = 0;
+			for(int rep = 0; rep < 3; rep++){
+				Tic tic = new Tic();
+				for(int i = 0; i < n; i++){
+					linear[i] = closestContaining(regions, points[i]);
+				}
+				linearTime = tic.toctic();
+				agree = 0;
+				for(int i = 0; i < n; i++){
+					if(index.getRegion(points[i]) == linear[i]){
+						agree++;
+					}
+				}
+				indexTime = tic.toc();
+			}
+			System.out.printf("%8d %14.1f %14.1f %9.1f%%\n", regions.length,
+					linearTime*1e9/n, indexTime*1e9/n, 100.0*agree/n);
+		}
+		// The world file may have started robots
+		System.exit(0);
+	}
+}
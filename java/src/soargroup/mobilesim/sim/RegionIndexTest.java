@@ -0,0 +1,79 @@
+package soargroup.mobilesim.sim;
+
+import april.config.Config;
+import april.sim.SimWorld;
+import april.util.Checks;
+
+// Checks that a RegionIndex follows the world: a region that is moved, removed,
+//   or swapped for another (leaving the number of objects the same) is found where
+//   it is now, and not where it was. Exits with a non-zero status if a check fails.
+public class RegionIndexTest {
+	public static void main(String args[]){
+		try {
+			testMove();
+			testRemove();
+			testReplace();
+		} catch (Exception ex){
+			Checks.fail(ex);
+		} finally {
+			Checks.exit();
+		}
+	}
+
+	// A region that is moved is found at its new place
+	static void testMove(){
+		SimWorld world = new SimWorld(new Config());
+		SimRegion a = region(world, "a", 0, 0);
+		world.objects.add(a);
+		world.commit();
+		RegionIndex index = new RegionIndex(world);
+		Checks.check(index.getRegion(new double[]{ 0, 0, 0 }) == a, "move: region at its start");
+
+		a.setXYZRPY(new double[]{ 5, 0, 0, 0, 0, 0 });
+		world.commit();
+		Checks.check(index.getRegion(new double[]{ 5, 0, 0 }) == a, "move: region at its new place");
+		Checks.check(index.getRegion(new double[]{ 0, 0, 0 }) == null, "move: nothing at its old place");
+	}
+
+	// A region that is removed is no longer found
+	static void testRemove(){
+		SimWorld world = new SimWorld(new Config());
+		SimRegion a = region(world, "a", 0, 0);
+		SimRegion b = region(world, "b", 5, 0);
+		world.objects.add(a);
+		world.objects.add(b);
+		world.commit();
+		RegionIndex index = new RegionIndex(world);
+		Checks.check(index.getRegion(new double[]{ 0, 0, 0 }) == a, "remove: region before removal");
+
+		a.setRunning(false);
+		world.objects.remove(a);
+		world.commit();
+		Checks.check(index.getRegion(new double[]{ 0, 0, 0 }) == null, "remove: removed region not found");
+		Checks.check(index.getRegions().size() == 1, "remove: one region left, got " + index.getRegions().size());
+	}
+
+	// One region swapped for another keeps the number of objects the same
+	static void testReplace(){
+		SimWorld world = new SimWorld(new Config());
+		SimRegion a = region(world, "a", 0, 0);
+		SimRegion b = region(world, "b", 5, 0);
+		world.objects.add(a);
+		world.commit();
+		RegionIndex index = new RegionIndex(world);
+		Checks.check(index.getRegion(new double[]{ 0, 0, 0 }) == a, "replace: region before the swap");
+
+		world.objects.set(0, b);
+		world.commit();
+		Checks.check(index.getRegion(new double[]{ 5, 0, 0 }) == b, "replace: new region found");
+		Checks.check(index.getRegion(new double[]{ 0, 0, 0 }) == null, "replace: old region not found");
+	}
+
+	// A 1x1 region centered at (x, y)
+	static SimRegion region(SimWorld world, String handle, double x, double y){
+		SimRegion region = new SimRegion(world);
+		region.setHandle(handle);
+		region.setXYZRPY(new double[]{ x, y, 0, 0, 0, 0 });
+		return region;
+	}
+}
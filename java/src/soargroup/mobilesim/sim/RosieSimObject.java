@@ -3,6 +3,7 @@ package soargroup.mobilesim.sim;
 import java.awt.Color;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import soargroup.mobilesim.util.BoundingBox;
 import april.jmat.LinAlg;
@@ -30,11 +31,17 @@ public class RosieSimObject extends BaseSimObject{
 	protected Color  color = Color.gray;
 	protected ModelType model = ModelType.BOX;
 	protected HashMap<String, String> properties = new HashMap<String, String>();
+	// The properties read that aren't property=value pairs (e.g. grabbable), to write back
+	protected ArrayList<String> flags = new ArrayList<String>();
 
 	private static int NEXT_ID = 1;
 
 	private boolean _isVisible = true;
 
+	// Counts the changes to what getObjectData() reports, so a detector can
+	//   tell which objects changed since it last looked without building their data
+	private final AtomicInteger version = new AtomicInteger(0);
+
 	public RosieSimObject(SimWorld sw){
 		super(sw);
 		id = RosieSimObject.NEXT_ID;
@@ -55,7 +62,7 @@ public class RosieSimObject extends BaseSimObject{
 	//    object.as(Grabbable.class).setGrabbed(false)
 	//
 	protected HashMap<Class<?>, Attribute> attributes = new HashMap<Class<?>, Attribute>();
-	private HashSet<Attribute> uniqueAttrs = new HashSet<Attribute>();
+	private LinkedHashSet<Attribute> uniqueAttrs = new LinkedHashSet<Attribute>();
 	public <T extends Attribute> boolean is(Class<T> cls){
 		return attributes.containsKey(cls);
 	}
@@ -105,7 +112,27 @@ public class RosieSimObject extends BaseSimObject{
 	}
 
 	public void setVisible(boolean isVisible){
-		this._isVisible = isVisible;
+		if(isVisible != _isVisible){
+			this._isVisible = isVisible;
+			changed();
+		}
+	}
+
+	// The version of the object's data, which changes whenever its pose, size,
+	//   properties, visibility, or contents do (see changed())
+	//   Only compare versions for equality, they don't just count up
+	public int getVersion(){
+		int v = version.get();
+		if(is(ObjectHolder.class)){
+			v = 31*v + as(ObjectHolder.class).getContentsVersion();
+		}
+		return v;
+	}
+
+	// Call after any change to the data reported by getObjectData()
+	//   (setXYZRPY, setProperty, setVisible and scaleChanged already do)
+	public void changed(){
+		version.incrementAndGet();
 	}
 
 	@Override
@@ -113,7 +140,16 @@ public class RosieSimObject extends BaseSimObject{
 		for(Attribute attr : uniqueAttrs){
 			attr.moveHandler(newpose);
 		}
-		this.xyzrpy = newpose;
+		if(!Arrays.equals(newpose, xyzrpy)){
+			changed();
+		}
+		super.setXYZRPY(newpose);
+	}
+
+	@Override
+	protected void scaleChanged(){
+		super.scaleChanged();
+		changed();
 	}
 
 	@Override
@@ -126,6 +162,16 @@ public class RosieSimObject extends BaseSimObject{
 
 	// Action Handling Rules
 	static {
+		// Ids handed out after a checkpoint are handed out again after it is restored
+		WorldCheckpoint.addGlobal("RosieSimObject.NEXT_ID", new WorldCheckpoint.Global() {
+			public void writeState(StructureWriter outs) throws IOException {
+				outs.writeInt(NEXT_ID);
+			}
+			public void readState(StructureReader ins) throws IOException {
+				NEXT_ID = ins.readInt();
+			}
+		});
+
 		// PickUp Apply: Make object non-collidable
 		ActionHandler.addApplyRule(PickUp.class, new ActionHandler.ApplyRule<PickUp>() {
 			public Result apply(PickUp pickup){
@@ -160,17 +206,26 @@ public class RosieSimObject extends BaseSimObject{
 	}
 
 	public void setProperty(String property, String value){
-		properties.put(property, value);
+		String old = properties.put(property, value);
+		if(old == null ? value != null : !old.equals(value)){
+			changed();
+		}
 	}
 
 	@Override
 	public Shape getShape(){
 		if(!soargroup.mobilesim.MobileSimulator.Settings.COLLIDE_OBJECTS){
-			return new april.sim.SphereShape(0.0);
+			return NO_COLLISION;
 		}
 		return super.getShape();
 	}
 
+	// Nothing can see an object that isn't visible, so it can't block the view of anything either
+	@Override
+	public Shape getOcclusionShape(){
+		return isVisible() ? super.getOcclusionShape() : null;
+	}
+
 	@Override
 	public VisObject getVisObject(){
 		if(visObject == null){
@@ -255,6 +310,42 @@ public class RosieSimObject extends BaseSimObject{
 	}
 
 	
+	// Checkpoints: besides the pose and size, the visibility, color, properties,
+	//   and the state of each attribute (in the order they were added)
+	@Override
+	public void writeState(StructureWriter outs, WorldCheckpoint checkpoint) throws IOException
+	{
+		super.writeState(outs, checkpoint);
+		outs.writeInt(_isVisible ? 1 : 0);
+		outs.writeInt(color.getRGB());
+		outs.writeInt(properties.size());
+		for(Map.Entry<String, String> e : properties.entrySet()){
+			outs.writeString(e.getKey());
+			outs.writeString(e.getValue());
+		}
+		for(Attribute attr : uniqueAttrs){
+			attr.writeState(outs, checkpoint);
+		}
+	}
+
+	@Override
+	public void readState(StructureReader ins, WorldCheckpoint checkpoint) throws IOException
+	{
+		super.readState(ins, checkpoint);
+		_isVisible = (ins.readInt() != 0);
+		color = new Color(ins.readInt(), true);
+		properties.clear();
+		int num_props = ins.readInt();
+		for(int i = 0; i < num_props; i += 1){
+			String prop = ins.readString();
+			properties.put(prop, ins.readString());
+		}
+		for(Attribute attr : uniqueAttrs){
+			attr.readState(ins, checkpoint);
+		}
+		changed();
+	}
+
 	/** Restore state that was previously written **/
 	public void read(StructureReader ins) throws IOException
 	{
@@ -272,6 +363,9 @@ public class RosieSimObject extends BaseSimObject{
 		// [Str]x2 for each property (property, value)
 		for(int i = 0; i < num_props; i += 1){
 			String prop = ins.readString().toLowerCase().trim();
+			if(!prop.contains("=")){
+				flags.add(prop);
+			}
 			if(prop.equals("grabbable")){
 				addAttribute(new Grabbable(this));
 			} else if(prop.equals("surface")){
@@ -306,6 +400,7 @@ public class RosieSimObject extends BaseSimObject{
 				}
 			}
 		}
+		changed();
 	}
 
 	/** Write one or more lines that serialize this instance. No line
@@ -318,10 +413,16 @@ public class RosieSimObject extends BaseSimObject{
 		int rgb[] = new int[]{ color.getRed(), color.getGreen(), color.getBlue() };
     	outs.writeInts(rgb);
 
-		outs.writeInt(properties.size());
+		// As read: one string per property
+		outs.writeInt(flags.size() + properties.size() + (tempId == null ? 0 : 1));
+		for(String flag : flags){
+			outs.writeString(flag);
+		}
+		if(tempId != null){
+			outs.writeString("temp_id=" + tempId);
+		}
 		for(Map.Entry<String, String> e : properties.entrySet()){
-			outs.writeString(e.getKey());
-			outs.writeString(e.getValue());
+			outs.writeString(e.getKey() + "=" + e.getValue());
 		}
 	}
 }
@@ -33,6 +33,21 @@ public class SimAlarm extends RosieSimObject {
 		super.init(worldObjects);
 	}
 
+	// The timer is saved as the time it has run, simulated time doesn't go back on a restore
+	@Override
+	public void writeState(StructureWriter outs, WorldCheckpoint checkpoint) throws IOException {
+		super.writeState(outs, checkpoint);
+		outs.writeInt(isOn ? 1 : 0);
+		outs.writeLong(TimeUtil.utime() - onTime);
+	}
+
+	@Override
+	public void readState(StructureReader ins, WorldCheckpoint checkpoint) throws IOException {
+		super.readState(ins, checkpoint);
+		isOn = (ins.readInt() != 0);
+		onTime = TimeUtil.utime() - ins.readLong();
+	}
+
 	@Override
 	public void update(double dt, ArrayList<SimObject> worldObjects){
 		super.update(dt, worldObjects);
@@ -43,6 +43,12 @@ public class SimDoor extends RosieSimObject {
 		}
 	}
 
+	// An open door doesn't block the view
+	@Override
+	public Shape getOcclusionShape(){
+		return collide ? super.getOcclusionShape() : null;
+	}
+
 	public boolean connectsRegion(SimRegion region){
 		if(region == null){
 			return false;
@@ -5,18 +5,25 @@ import java.util.*;
 
 import java.nio.ByteBuffer;
 
+import april.config.Config;
 import april.jmat.LinAlg;
 import april.jmat.MathUtil;
 import april.sim.SimObject;
 import april.sim.SimWorld;
+import april.util.LockstepScheduler;
 import april.util.PeriodicTasks;
+import april.util.EnvUtil;
 import april.util.TimeUtil;
+import april.util.Tic;
 
+import soargroup.mobilesim.MobileSimulator;
 import soargroup.mobilesim.sim.SimRobot;
 import soargroup.mobilesim.sim.RosieSimObject;
 import soargroup.mobilesim.sim.SimRegion;
 import soargroup.mobilesim.sim.attributes.InRegion;
 import soargroup.mobilesim.util.BoundingBox;
+import soargroup.mobilesim.util.DetectedObjects;
+import soargroup.mobilesim.util.Transport;
 import soargroup.mobilesim.util.Util;
 
 // LCM Types
@@ -24,18 +31,35 @@ import lcm.lcm.*;
 import april.lcmtypes.pose_t;
 import soargroup.mobilesim.lcmtypes.object_data_t;
 import soargroup.mobilesim.lcmtypes.object_data_list_t;
+import soargroup.mobilesim.lcmtypes.object_data_delta_t;
 
 
+// Publishes the objects in the robot's current region, as seen by the robot
+//   DETECTED_OBJECTS_DELTA (object_data_delta_t) has only the objects that changed, were
+//   added, or were removed since the last message, plus a keyframe with every object
+//   every KEYFRAME_PERIOD seconds (see DetectedObjects, which puts the list back together)
+//   DETECTED_OBJECTS (object_data_list_t) has the full list every time, for older tools,
+//   if MobileSimulator.Settings.PUBLISH_OBJECT_LISTS is set
 public class SimObjectDetector {
 	private static double MSG_PER_SEC = 10.0;
+	public static final double KEYFRAME_PERIOD = 1.0;
 
 	protected SimRobot robot;
 	protected SimWorld world;
 
-	protected HashSet<RosieSimObject> currentObjects;
-	protected List<SimRegion> regions = null;
+	protected RegionIndex regions;
+	protected ObjectVisibility visibility;
 
-    static Random classifierRandom = new Random(3611871);
+	// What was last published about each object in the current region, by id
+	//   The data is only rebuilt when the object's version or visibility changes
+	private static class Detection {
+		RosieSimObject obj;
+		int version;
+		object_data_t data;
+	}
+	private LinkedHashMap<Integer, Detection> detections = new LinkedHashMap<Integer, Detection>();
+	private long seq = 0;
+	private int messagesToKeyframe = 0;
 
     PeriodicTasks tasks = new PeriodicTasks(2);
 
@@ -44,13 +68,21 @@ public class SimObjectDetector {
 	public SimObjectDetector(SimRobot robot, SimWorld world){
 		this.robot = robot;
 		this.world = world;
-		this.currentObjects = new HashSet<RosieSimObject>();
+		this.regions = RegionIndex.get(world);
+		this.visibility = new ObjectVisibility(robot, world);
 
+		this.tasks.setStage(LockstepScheduler.STAGE_SENSE);
 		this.tasks.addFixedDelay(new DetectorTask(), 1.0/MSG_PER_SEC);
 
 	}
 
 	public void setRunning(boolean b){
+		if(b){
+			// Start with a keyframe, for anyone that missed messages while stopped
+			synchronized(detections){
+				messagesToKeyframe = 0;
+			}
+		}
 		tasks.setRunning(b);
 	}
 
@@ -60,22 +92,8 @@ public class SimObjectDetector {
 
 	protected class DetectorTask implements PeriodicTasks.Task {
         public void run(double dt){
-            ArrayList<SimObject> simObjects;
-            synchronized(world.objects){
-            	simObjects = (ArrayList<SimObject>)world.objects.clone();
-				if(regions == null){
-					regions = new ArrayList<SimRegion>();
-					for(SimObject obj : world.objects){
-						if(obj instanceof SimRegion){
-							regions.add((SimRegion)obj);
-						}
-					}
-				}
-            }
-			
-
-			updateCurrentObjects(simObjects);
-			sendObjectMessage();
+            List<SimObject> simObjects = world.getSnapshot().getObjects();
+			updateDetections(simObjects);
         }
 
 		private boolean inCurrentRegion(RosieSimObject obj, SimRobot robot, SimRegion curRegion){
@@ -107,46 +125,204 @@ public class SimObjectDetector {
 				// Object may report that it is not visible 
 				return false;
 			}
-			if(robot.inViewRange(obj.getBoundingBox().xyzrpy)){
-				// Otherwise, check that the object is actually visible from the robot's perspective
-				return true;
-			}
-			return false;
+			// Otherwise, check that the object is actually visible from the robot's perspective
+			//   (in view range and not hidden behind anything, see ObjectVisibility)
+			return visibility.isVisible(obj);
 		}
 
-		// Recompute the list of current objects (objects in the current region)
-        private void updateCurrentObjects(ArrayList<SimObject> simObjects){
-			HashSet<RosieSimObject> rosieObjects = new HashSet<RosieSimObject>();
-			for(SimObject obj : simObjects){
-				if(obj instanceof RosieSimObject){
-					rosieObjects.add((RosieSimObject)obj);
-				}
-			}
+		// Bring the detections up to date with the objects in the current region,
+		//   and publish what changed
+		private void updateDetections(List<SimObject> simObjects){
+			object_data_delta_t delta = new object_data_delta_t();
+			delta.utime = TimeUtil.utime();
+			ArrayList<object_data_t> changed = new ArrayList<object_data_t>();
+			ArrayList<Integer> removed = new ArrayList<Integer>();
+			object_data_list_t fullList = null;
 
-			synchronized(currentObjects){
-				currentObjects.clear();
+			synchronized(detections){
 				SimRegion robotRegion = robot.getRegion();
-				for(RosieSimObject obj : rosieObjects){
-					if(inCurrentRegion(obj, robot, robotRegion)){
-						currentObjects.add(obj);
+				ArrayList<RosieSimObject> regionObjects = new ArrayList<RosieSimObject>();
+				ArrayList<RosieSimObject> candidates = new ArrayList<RosieSimObject>();
+				for(SimObject simObj : simObjects){
+					if(simObj instanceof RosieSimObject){
+						RosieSimObject obj = (RosieSimObject)simObj;
+						if(inCurrentRegion(obj, robot, robotRegion)){
+							regionObjects.add(obj);
+							if(!fullyObservable && obj.isVisible()){
+								candidates.add(obj);
+							}
+						}
 					}
 				}
+				visibility.update(candidates);
+
+				HashSet<Integer> stale = new HashSet<Integer>(detections.keySet());
+				for(RosieSimObject obj : regionObjects){
+					stale.remove(obj.getID());
+
+					int version = obj.getVersion();
+					boolean visible = isVisible(obj, robot);
+					Detection det = detections.get(obj.getID());
+					if(det == null){
+						det = new Detection();
+						det.obj = obj;
+						detections.put(obj.getID(), det);
+					} else if(det.obj == obj && det.version == version && det.data.visible == visible){
+						continue;
+					}
+					// New or changed: published data is never modified, so build new data
+					det.obj = obj;
+					det.version = version;
+					det.data = obj.getObjectData();
+					det.data.visible = visible;
+					changed.add(det.data);
+				}
+				for(Integer id : stale){
+					detections.remove(id);
+					removed.add(id);
+				}
+
+				delta.seq = seq++;
+				delta.keyframe = (messagesToKeyframe <= 0);
+				if(delta.keyframe){
+					messagesToKeyframe = (int)Math.round(KEYFRAME_PERIOD*MSG_PER_SEC);
+					changed.clear();
+					removed.clear();
+					for(Detection det : detections.values()){
+						changed.add(det.data);
+					}
+				}
+				messagesToKeyframe -= 1;
+
+				if(MobileSimulator.Settings.PUBLISH_OBJECT_LISTS){
+					fullList = new object_data_list_t();
+					fullList.utime = delta.utime;
+					fullList.num_objects = detections.size();
+					fullList.objects = new object_data_t[fullList.num_objects];
+					int i = 0;
+					for(Detection det : detections.values()){
+						fullList.objects[i++] = det.data;
+					}
+				}
+			}
+
+			delta.num_changed = changed.size();
+			delta.changed = changed.toArray(new object_data_t[delta.num_changed]);
+			delta.num_removed = removed.size();
+			delta.removed = new int[delta.num_removed];
+			for(int i = 0; i < delta.num_removed; i += 1){
+				delta.removed[i] = removed.get(i);
+			}
+
+			Transport transport = Transport.getSingleton();
+			transport.publish(robot.getChannelPrefix()+"DETECTED_OBJECTS_DELTA", delta);
+			if(fullList != null){
+				transport.publish(robot.getChannelPrefix()+"DETECTED_OBJECTS", fullList);
+			}
+		}
+    }
+
+	// Benchmark: time per detector update, and objects sent per update, as more of
+	//   the objects move (each update used to build and send every object);
+	//   also checks that DetectedObjects rebuilds the full list from the deltas
+	//   Usage: SimObjectDetector [world]
+	public static void main(String args[]) throws IOException {
+		Transport.setSingleton(Transport.create("local-only"));
+		String path = args.length > 0 ? args[0] : EnvUtil.expandVariables("$MOBILE_SIM_HOME/worlds/kitchen.world");
+		SimWorld world = new SimWorld(path, new Config());
+		SimRobot robot = null;
+		final ArrayList<RosieSimObject> objects = new ArrayList<RosieSimObject>();
+		for(SimObject obj : world.objects){
+			if(obj instanceof SimRobot && robot == null){
+				robot = (SimRobot)obj;
+			} else if(obj instanceof RosieSimObject){
+				objects.add((RosieSimObject)obj);
+			}
+		}
+		for(SimObject obj : world.objects){
+			if(obj instanceof BaseSimObject){
+				((BaseSimObject)obj).init(world.objects);
 			}
 		}
+		// Put the robot in the same region as the first object that is in one
+		for(RosieSimObject obj : objects){
+			SimRegion region = obj.is(InRegion.class) ? obj.as(InRegion.class).getRegion(RegionIndex.get(world)) : null;
+			if(region != null){
+				robot.setPose(obj.getPose());
+				break;
+			}
+		}
+		world.commit();
+		SimObjectDetector detector = robot.objDetector;
+		detector.setFullyObservable(true);
+		MobileSimulator.Settings.PUBLISH_OBJECT_LISTS = true;
+
+		final DetectedObjects tracker = new DetectedObjects();
+		final long sent[] = new long[2]; // objects in deltas, in full lists
+		final int mismatches[] = new int[1];
+		Transport.getSingleton().subscribe(robot.getChannelPrefix()+"DETECTED_OBJECTS_DELTA", object_data_delta_t.class,
+				new Transport.Subscriber(){
+			public void messageReceived(String channel, Object msg){
+				object_data_delta_t delta = (object_data_delta_t)msg;
+				tracker.apply(delta);
+				sent[0] += delta.num_changed + delta.num_removed;
+			}
+		});
+		Transport.getSingleton().subscribe(robot.getChannelPrefix()+"DETECTED_OBJECTS", object_data_list_t.class,
+				new Transport.Subscriber(){
+			public void messageReceived(String channel, Object msg){
+				// Delivered after the delta published just before it
+				object_data_list_t full = (object_data_list_t)msg;
+				object_data_list_t rebuilt = tracker.getObjectList();
+				HashMap<Integer, object_data_t> byId = new HashMap<Integer, object_data_t>();
+				for(object_data_t obj : rebuilt.objects){
+					byId.put(obj.id, obj);
+				}
+				boolean same = (rebuilt.num_objects == full.num_objects);
+				for(object_data_t obj : full.objects){
+					same = same && byId.get(obj.id) == obj;
+				}
+				if(!same){
+					mismatches[0] += 1;
+				}
+				sent[1] += full.num_objects;
+			}
+		});
 
-        private void sendObjectMessage(){
-			object_data_list_t objectMessage = new object_data_list_t();
-			objectMessage.utime = TimeUtil.utime();
-			synchronized(currentObjects){
-				objectMessage.num_objects = 0;
-				objectMessage.objects = new object_data_t[currentObjects.size()];
-				for(RosieSimObject obj : currentObjects){
-					objectMessage.objects[objectMessage.num_objects] = obj.getObjectData();
-					objectMessage.objects[objectMessage.num_objects].visible = isVisible(obj, robot);
-					objectMessage.num_objects += 1;
+		DetectorTask task = detector.new DetectorTask();
+		int updates = 2000;
+		double fractions[] = new double[]{ 0.0, 0.01, 0.1, 1.0 };
+		task.run(1.0/MSG_PER_SEC);
+		System.out.printf("%d objects, %d in the robot's region\n", objects.size(), detector.detections.size());
+		System.out.printf("%-10s %14s %14s %14s\n", "moving", "us/update", "delta objs", "full objs");
+		for(int rep = 0; rep < 2; rep++){
+			for(double fraction : fractions){
+				int moving = (int)Math.ceil(fraction*objects.size());
+				sent[0] = sent[1] = 0;
+				long busy = 0;
+				for(int i = 0; i < updates; i++){
+					for(int j = 0; j < moving; j++){
+						RosieSimObject obj = objects.get((i*moving + j) % objects.size());
+						double[] pose = obj.getXYZRPY();
+						pose[5] += (i % 2 == 0 ? 1e-3 : -1e-3);
+						obj.setXYZRPY(pose);
+					}
+					world.commit();
+					Tic tic = new Tic();
+					task.run(1.0/MSG_PER_SEC);
+					busy += (long)(tic.toc()*1e9);
+				}
+				// Let the subscribers catch up
+				while(((soargroup.mobilesim.util.LocalTransport)Transport.getSingleton()).getBacklog() > 0){
+					Thread.yield();
+				}
+				if(rep == 1){
+					System.out.printf("%-10s %14.1f %14.1f %14.1f\n", String.format("%.0f%%", fraction*100),
+							busy/1e3/updates, sent[0]/(double)updates, sent[1]/(double)updates);
 				}
 			}
-            LCM.getSingleton().publish("DETECTED_OBJECTS", objectMessage);
-        }
-    }
+		}
+		System.out.printf("rebuilt list differed from the full list %d times\n", mismatches[0]);
+		System.exit(0);
+	}
 }
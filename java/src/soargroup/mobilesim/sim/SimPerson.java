@@ -36,6 +36,7 @@ public class SimPerson extends RosieSimObject {
 		scale_xyz[0] *= 0.25;
 		scale_xyz[1] *= 0.5;
 		scale_xyz[2] *= 1.8;
+		scaleChanged();
 
 		// measurements
 		head_r = scale_xyz[0]*0.8;
@@ -3,8 +3,10 @@ package soargroup.mobilesim.sim;
 import java.awt.Color;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import soargroup.mobilesim.util.BoundingBox;
 import april.jmat.LinAlg;
@@ -12,6 +14,7 @@ import april.sim.BoxShape;
 import april.sim.Shape;
 import april.sim.SimObject;
 import april.sim.SimWorld;
+import april.sim.WorldCheckpoint;
 import april.util.StructureReader;
 import april.util.StructureWriter;
 import april.vis.VisChain;
@@ -34,6 +37,13 @@ public class SimRegion extends BaseSimObject
 	protected String handle = null;
 	private String label = null;
 
+	// Counts changes to the geometry of any region, so a RegionIndex knows when to rebuild
+	private static AtomicInteger edits = new AtomicInteger(0);
+
+	public static int getEdits(){
+		return edits.get();
+	}
+
     public SimRegion(SimWorld sw)
     {
     	super(sw);
@@ -51,6 +61,17 @@ public class SimRegion extends BaseSimObject
 		return label;
 	}
     
+	@Override
+	public void setXYZRPY(double[] newpose){
+		super.setXYZRPY(newpose);
+		edits.incrementAndGet();
+	}
+
+	// Radius of a circle around the center that contains the whole region
+	public double getBoundingRadius(){
+		return Math.sqrt(dist_threshold_sq);
+	}
+
 	// Given a x,y point, returns the distance between the point and the 
 	public double getDistanceSq(double[] p){
 		double dx = p[0] - xyzrpy[0];
@@ -68,11 +89,9 @@ public class SimRegion extends BaseSimObject
 		if(dist_sq > dist_threshold_sq){ return false; }
 		
 		// Project the point into the region's coordinate frame (undo rotation)
-		double dist = Math.sqrt(dist_sq);
-		double theta = Math.atan2(dy, dx);
-		double localTheta = theta - xyzrpy[5];
-		double xproj = dist * Math.cos(localTheta);
-		double yproj = dist * Math.sin(localTheta);
+		double[][] Tinv = getPoseInverse();
+		double xproj = Tinv[0][0]*dx + Tinv[0][1]*dy;
+		double yproj = Tinv[1][0]*dx + Tinv[1][1]*dy;
 		return (Math.abs(xproj) < width/2 && Math.abs(yproj) < length/2);
 	}
 	
@@ -101,9 +120,32 @@ public class SimRegion extends BaseSimObject
 
     public Shape getShape()
     {
-    	return new april.sim.SphereShape(0.0);
+    	return NO_COLLISION;
     }
 
+	@Override
+	public Shape getOcclusionShape(){
+		return null;
+	}
+
+	@Override
+	public void writeState(StructureWriter outs, WorldCheckpoint checkpoint) throws IOException
+	{
+		super.writeState(outs, checkpoint);
+		outs.writeInt(isOn ? 1 : 0);
+	}
+
+	@Override
+	public void readState(StructureReader ins, WorldCheckpoint checkpoint) throws IOException
+	{
+		double[] oldpose = xyzrpy;
+		super.readState(ins, checkpoint);
+		if(!Arrays.equals(oldpose, xyzrpy)){
+			edits.incrementAndGet();
+		}
+		setLights(ins.readInt() != 0);
+	}
+
     /** Restore state that was previously written **/
     public void read(StructureReader ins) throws IOException
     {
@@ -117,6 +159,7 @@ public class SimRegion extends BaseSimObject
     	width = ins.readDouble();
     	length = ins.readDouble();
 		dist_threshold_sq = (width*width + length*length)/4;
+		edits.incrementAndGet();
     }
 
     /** Write one or more lines that serialize this instance. No line
@@ -130,6 +173,9 @@ public class SimRegion extends BaseSimObject
     }
 
     public void setRunning(boolean b){
-    	
+		// Stopped when removed from the world
+		if(!b){
+			edits.incrementAndGet();
+		}
     }
 }
@@ -33,6 +33,7 @@ import soargroup.mobilesim.sim.actions.ActionHandler.*;
 // LCM Types
 import lcm.lcm.*;
 import april.lcmtypes.laser_t;
+import april.lcmtypes.pose_t;
 import soargroup.mobilesim.lcmtypes.diff_drive_t;
 import soargroup.mobilesim.lcmtypes.grid_map_t;
 import soargroup.mobilesim.lcmtypes.control_law_t;
@@ -40,7 +41,7 @@ import soargroup.mobilesim.lcmtypes.lcmdoubles_t;
 import soargroup.mobilesim.lcmtypes.robot_info_t;
 import soargroup.mobilesim.lcmtypes.robot_map_data_t;
 
-public class SimRobot implements SimObject, LCMSubscriber
+public class SimRobot implements SimObject, Checkpointable, Transport.Subscriber
 {
 	static final double OBJECT_VIEW_DIST = 20.0;  // max distant it can see objects at
 	static final double OBJECT_VIEW_DIST_SQ = OBJECT_VIEW_DIST * OBJECT_VIEW_DIST;
@@ -56,20 +57,23 @@ public class SimRobot implements SimObject, LCMSubscriber
 
     int robotID;
 
+    // Prepended to every LCM channel this robot reads or writes, so that
+    // several robots can share one world. Empty for a lone robot.
+    String channelPrefix = "";
+
     CommandInterpreter ci;
-    LCM lcm = LCM.getSingleton();
+    Transport transport = Transport.getSingleton();
 
     SimObjectDetector objDetector;
 
     CompoundShape shape;
     VisObject visObj;
 
-    ExpiringMessageCache<diff_drive_t> diffdriveCache = new ExpiringMessageCache<diff_drive_t>(0.25);
+    volatile ExpiringMessageCache<diff_drive_t> diffdriveCache = new ExpiringMessageCache<diff_drive_t>(0.25);
 
     PeriodicTasks tasks = new PeriodicTasks(2);
 
     // static variables ..
-    static Random r = new Random();
     static Model4 model4 = new Model4();
 
     private RosieSimObject grabbedObject = null;
@@ -97,6 +101,7 @@ public class SimRobot implements SimObject, LCMSubscriber
         drive.baseline = 0.46;  // As measured to wheel centers
         drive.translation_noise = 0.1;
         drive.rotation_noise = 0.05;
+        drive.setRandom(sw.getRandom(getRandomName("drive")));
 
         // Motor setup
         double K_t = 0.7914*2;    // torque constant in [Nm / A] * multiplier to speed us up
@@ -117,9 +122,10 @@ public class SimRobot implements SimObject, LCMSubscriber
 
         objDetector = new SimObjectDetector(this, sw);
 
-        lcm.subscribe("DIFF_DRIVE", this);
-        lcm.subscribe("SOAR_COMMAND.*", this);
+        transport.subscribe("DIFF_DRIVE", diff_drive_t.class, this);
+        transport.subscribe("SOAR_COMMAND.*", control_law_t.class, this);
 
+        tasks.setStage(LockstepScheduler.STAGE_SENSE);
         tasks.addFixedDelay(new ImageTask(sw.objects), 0.04);
         tasks.addFixedDelay(new PoseTask(), 0.04);
         tasks.addFixedDelay(new ControlTask(), 0.01);
@@ -243,47 +249,66 @@ public class SimRobot implements SimObject, LCMSubscriber
         drive.poseTruth.pos = new double[] { T[0][3], T[1][3], 0 };
     }
 
-	// Return the closest region from the list that contains the position of the object
+	// Return the closest region that contains the position of the robot
 	public SimRegion getRegion(){
-		Double bestDist = Double.MAX_VALUE;
-		curRegion = null;
-		synchronized(sw.objects){
-			for(SimObject obj : sw.objects){
-				if(!(obj instanceof SimRegion)){
-					continue;
-				}
-				SimRegion region = (SimRegion)obj;
-				if(region.contains(drive.poseTruth.pos)){
-					double dist2 = region.getDistanceSq(drive.poseTruth.pos);
-					if(dist2 < bestDist){
-						bestDist = dist2;
-						curRegion = region;
-					}
-				}
-			}
-		}
+		curRegion = RegionIndex.get(sw).getRegion(drive.poseTruth.pos);
 		return curRegion;
 	}
 
-    public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins)
+    public int getRobotID()
     {
-        try {
-            messageReceivedEx(lcm, channel, ins);
-        } catch (IOException ex) {
-            System.out.println("WRN: "+ex);
-        }
+        return robotID;
+    }
+
+    public void setRobotID(int id)
+    {
+        this.robotID = id;
+        drive.setRandom(sw.getRandom(getRandomName("drive")));
+    }
+
+    /** The name of this robot's stream of the world's random numbers
+     * for the given source of noise, e.g. "robot3.drive". Streams are
+     * named by robot id, so a robot's noise doesn't depend on how many
+     * other robots there are. **/
+    public String getRandomName(String source)
+    {
+        return "robot"+robotID+"."+source;
     }
 
-    private void messageReceivedEx(LCM lcm, String channel, LCMDataInputStream ins) throws IOException
+    public CommandInterpreter getCommandInterpreter()
     {
-        if (channel.equals("DIFF_DRIVE")) {
-            diff_drive_t msg = new diff_drive_t(ins);
-            diffdriveCache.put(msg, msg.utime);
+        return ci;
+    }
+
+    public String getChannelPrefix()
+    {
+        return channelPrefix;
+    }
+
+    /** Move this robot onto its own set of LCM channels, e.g., "ROBOT4_POSE"
+     * instead of "POSE". **/
+    public synchronized void setChannelPrefix(String prefix)
+    {
+        transport.unsubscribe(channelPrefix+"DIFF_DRIVE", this);
+        transport.unsubscribe(channelPrefix+"SOAR_COMMAND.*", this);
+
+        channelPrefix = prefix;
+        ci.setChannelPrefix(prefix);
+
+        transport.subscribe(channelPrefix+"DIFF_DRIVE", diff_drive_t.class, this);
+        transport.subscribe(channelPrefix+"SOAR_COMMAND.*", control_law_t.class, this);
+    }
+
+    public void messageReceived(String channel, Object msg)
+    {
+        if (channel.equals(channelPrefix+"DIFF_DRIVE")) {
+            diff_drive_t dd = (diff_drive_t) msg;
+            diffdriveCache.put(dd, dd.utime);
         }
 
         // AM: Added so that simulated drive-xy commands teleport the robot
-		if (channel.startsWith("SOAR_COMMAND")) {
-			control_law_t controlLaw = new control_law_t(ins);
+		if (channel.startsWith(channelPrefix+"SOAR_COMMAND")) {
+			control_law_t controlLaw = (control_law_t) msg;
 			if(controlLaw.name.equals("drive-xy")){
 				double newx = 0.0;
 				double newy = 0.0;
@@ -295,8 +320,8 @@ public class SimRobot implements SimObject, LCMSubscriber
 					}
 				}
 				if(soargroup.mobilesim.MobileSimulator.Settings.TELEPORT_ROBOT){
-					drive.poseTruth.pos[0] = newx;
-					drive.poseTruth.pos[1] = newy;
+					// A new array, as DifferentialDrive.setPose does: poseTruth is read without a lock
+					drive.poseTruth.pos = new double[]{ newx, newy, drive.poseTruth.pos[2] };
 				}
 			} else if (controlLaw.name.toLowerCase().equals("pause")){
 				this.setRunning(false);
@@ -314,9 +339,10 @@ public class SimRobot implements SimObject, LCMSubscriber
     	return grabbedObject;
     }
 
+	// These rules only apply to actions taken by this robot
 	public void setupActionRules(){
 		// PickUp: Valid if not holding anything
-		ActionHandler.addValidateRule(PickUp.class, new ValidateRule<PickUp>(){
+		ActionHandler.addValidateRule(this, PickUp.class, new ValidateRule<PickUp>(){
 			public IsValid validate(PickUp pickup){
 				if(grabbedObject != null)
 					return IsValid.False("SimRobot: Already holding object " + grabbedObject);
@@ -325,7 +351,7 @@ public class SimRobot implements SimObject, LCMSubscriber
 		});
 
 		// PickUp Apply: Set grabbedObject
-		ActionHandler.addApplyRule(PickUp.class, new ApplyRule<PickUp>(){
+		ActionHandler.addApplyRule(this, PickUp.class, new ApplyRule<PickUp>(){
 			public Result apply(PickUp pickup){
 				grabbedObject = pickup.object;
 				return Result.Ok();
@@ -333,7 +359,7 @@ public class SimRobot implements SimObject, LCMSubscriber
 		});
 
 		// PutDown: Valid if currently held (and not teleporting)
-		ActionHandler.addValidateRule(PutDown.class, new ValidateRule<PutDown>(){
+		ActionHandler.addValidateRule(this, PutDown.class, new ValidateRule<PutDown>(){
 			public IsValid validate(PutDown putdown){
 				if(!putdown.teleport && putdown.object != grabbedObject){
 					return IsValid.False("SimRobot: Object " + grabbedObject + " is not the held object");
@@ -343,7 +369,7 @@ public class SimRobot implements SimObject, LCMSubscriber
 		});
 
 		// PutDown Apply: Set grabbedObject
-		ActionHandler.addApplyRule(PutDown.class, new ApplyRule<PutDown>(){
+		ActionHandler.addApplyRule(this, PutDown.class, new ApplyRule<PutDown>(){
 			public Result apply(PutDown putdown){
 				if(putdown.object == grabbedObject){
 					grabbedObject = null;
@@ -353,7 +379,7 @@ public class SimRobot implements SimObject, LCMSubscriber
 		});
 
 		// PutDownFloor Apply: Set the position of the object to in front of the robot
-		ActionHandler.addApplyRule(PutDown.Floor.class, new ApplyRule<PutDown.Floor>(){
+		ActionHandler.addApplyRule(this, PutDown.Floor.class, new ApplyRule<PutDown.Floor>(){
 			public Result apply(PutDown.Floor putdown){
 				double[] robotPos = LinAlg.copy(drive.poseTruth.pos);
 				double[] forward = LinAlg.matrixAB(LinAlg.quatToMatrix(drive.poseTruth.orientation), new double[]{1.0, 0.0, 0.0, 0.0});
@@ -366,7 +392,7 @@ public class SimRobot implements SimObject, LCMSubscriber
 		});
 
 		// PutDown.XYZ Apply: Set the position of the object to the given coordinates
-		ActionHandler.addApplyRule(PutDown.XYZ.class, new ApplyRule<PutDown.XYZ>(){
+		ActionHandler.addApplyRule(this, PutDown.XYZ.class, new ApplyRule<PutDown.XYZ>(){
 			public Result apply(PutDown.XYZ putdown){
 				putdown.object.setPose(LinAlg.xyzrpyToMatrix(new double[]{ putdown.x, putdown.y, putdown.z, 0, 0, 0 }));
 				return Result.Ok();
@@ -374,7 +400,7 @@ public class SimRobot implements SimObject, LCMSubscriber
 		});
 
 		// UseObject: Valid if the actor object is held
-		ActionHandler.addValidateRule(UseObject.class, new ValidateRule<UseObject>(){
+		ActionHandler.addValidateRule(this, UseObject.class, new ValidateRule<UseObject>(){
 			public IsValid validate(UseObject use){
 				if(grabbedObject != use.object){
 					return IsValid.False("SimRobot: The object " + use.object + " is not grabbed");
@@ -416,6 +442,16 @@ public class SimRobot implements SimObject, LCMSubscriber
 
         HashSet<SimObject> ignore = null;
 
+        byte mapEncoding = GridMapCodec.parseEncoding(Util.getConfig().getString("robot.lcm.map_encoding", "gzip"));
+
+        // Remembers what the laser has seen as the robot moves around
+        RollingOccupancyGrid grid = new RollingOccupancyGrid(Util.getConfig().getDouble("robot.map.size", 10.0),
+                                                             Util.getConfig().getDouble("robot.map.size", 10.0),
+                                                             Util.getConfig().getDouble("robot.map.meters_per_pixel", 0.1));
+
+        LaserScanEngine laserEngine = new LaserScanEngine(sw);
+        double ranges[] = null;
+
         public ImageTask(Collection<SimObject> objects)
         {
         }
@@ -449,8 +485,8 @@ public class SimRobot implements SimObject, LCMSubscriber
                                                 LinAlg.translate(0.3, 0, 0.25));
 
 
-            double ranges[] = Sensors.laser(sw, ignore, T_truth, (int) ((rad1-rad0)/radstep),
-                                            rad0, radstep, maxRange);
+            ranges = laserEngine.laser(ignore, T_truth, (int) ((rad1-rad0)/radstep),
+                                       rad0, radstep, maxRange, ranges);
 
             // XXX Config file
             double mean = 0;
@@ -463,61 +499,25 @@ public class SimRobot implements SimObject, LCMSubscriber
             laser.rad0 = (float) rad0;
             laser.radstep = (float) radstep;
 
-            lcm.publish(Util.getConfig().getString("robot.lcm.laser_channel", "HOKUYO_LIDAR"), laser);
+            transport.publish(channelPrefix+Util.getConfig().getString("robot.lcm.laser_channel", "HOKUYO_LIDAR"), laser);
 
-            // Make gzipped grid maps periodically
-            if (laser.utime - lastMapData > 1000000L/ROBOT_MAP_DATA_HZ) {
-                grid_map_t gm = new grid_map_t();
-                gm.utime = laser.utime;
-
-                double[] xyt = LinAlg.matrixToXYT(T_truth);
-                double x0 = xyt[0] - 5;
-                double y0 = xyt[1] - 5;
-
-                // Project data into map
-                GridMap map = GridMap.makeMeters(x0, y0, 10.0, 10.0, 0.1, 0);
-                for (int i = 0; i < laser.nranges; i++) {
-                    double r = laser.ranges[i];
-                    if (r < 0)
-                        continue;
-                    double t = laser.rad0 + i*laser.radstep + xyt[2];
-                    double x = xyt[0] + r*Math.cos(t);
-                    double y = xyt[1] + r*Math.sin(t);
-
-                    map.setValue(x, y, (byte)1);
-                }
+            double[] xyt = LinAlg.matrixToXYT(T_truth);
+            grid.recenter(xyt[0], xyt[1]);
+            grid.addScan(xyt[0], xyt[1], xyt[2], ranges, rad0, radstep, maxRange);
 
-                gm.x0 = map.x0;
-                gm.y0 = map.y0;
-                gm.width = map.width;
-                gm.height = map.height;
-                gm.meters_per_pixel = map.metersPerPixel;
-
-                // DEBUG
-                //gm.encoding = 0;
-                //gm.datalen = map.data.length;
-                //gm.data = map.data;
-                //lcm.publish("GRID_MAP_DEBUG", gm);
-
-                gm.encoding = grid_map_t.ENCODING_GZIP;
-
-                if (gm.encoding == grid_map_t.ENCODING_GZIP) {
-                    try {
-                        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-                        GZIPOutputStream gzos = new GZIPOutputStream(bytes);
-                        gzos.write(map.data, 0, map.data.length);
-                        gzos.finish();
-
-                        byte[] data = bytes.toByteArray();
-                        gm.datalen = data.length;
-                        gm.data = data;
-
-                        gzos.close();
-                    } catch (IOException ex) {
-                        System.out.println("ERR: Could not GZIP grid map data");
-                        ex.printStackTrace();
-                        return;
-                    }
+            // Make encoded grid maps periodically
+            if (laser.utime - lastMapData > 1000000L/ROBOT_MAP_DATA_HZ) {
+                GridMap map = grid.toGridMap(0, (byte)1);
+
+                // In-process consumers get map itself from the codec's
+                // cache, so only out-of-process ones pay for decoding
+                grid_map_t gm;
+                try {
+                    gm = GridMapCodec.encode(map, laser.utime, mapEncoding);
+                } catch (IOException ex) {
+                    System.out.println("ERR: Could not encode grid map data");
+                    ex.printStackTrace();
+                    return;
                 }
 
                 robot_map_data_t rmd = new robot_map_data_t();
@@ -526,7 +526,7 @@ public class SimRobot implements SimObject, LCMSubscriber
                 rmd.latlon_deg = new double[] {Double.NaN, Double.NaN};
                 rmd.xyt_local = xyt;
 
-                lcm.publish(Util.getConfig().getString("robot.lcm.map_channel", "ROBOT_MAP_DATA")+"_"+ROBOT_ID, rmd);
+                transport.publish(channelPrefix+Util.getConfig().getString("robot.lcm.map_channel", "ROBOT_MAP_DATA")+"_"+ROBOT_ID, rmd);
 
                 lastMapData = laser.utime;
             }
@@ -545,8 +545,14 @@ public class SimRobot implements SimObject, LCMSubscriber
 
         public void run(double dt)
         {
-            drive.poseOdom.utime = TimeUtil.utime();
-            lcm.publish("POSE", drive.poseOdom);
+            // The drive updates its poses in place, and a message must
+            // not change once published, so publish a copy
+            pose_t pose;
+            synchronized(drive) {
+                drive.poseOdom.utime = TimeUtil.utime();
+                pose = drive.poseOdom.copy();
+            }
+            transport.publish(channelPrefix+"POSE", pose);
 
             // Compute L2G
             double[] gxyt = LinAlg.matrixToXYT(LinAlg.quatPosToMatrix(drive.poseTruth.orientation,
@@ -558,7 +564,7 @@ public class SimRobot implements SimObject, LCMSubscriber
             l2g.utime = drive.poseOdom.utime;
             l2g.ndata = 3;
             l2g.data = l2g_;
-            lcm.publish("L2G", l2g);
+            transport.publish(channelPrefix+"L2G", l2g);
 
             double[] xyzrpy = LinAlg.quatPosToXyzrpy(drive.poseTruth.orientation, drive.poseTruth.pos);
             if(grabbedObject != null){
@@ -566,6 +572,7 @@ public class SimRobot implements SimObject, LCMSubscriber
 				xyzrpy2[2] = 0.5;
             	double[][] robPose = LinAlg.xyzrpyToMatrix(xyzrpy2);
     		    grabbedObject.setPose(robPose);
+				sw.commit(grabbedObject);
             }
 
             robot_info_t robotInfo = new robot_info_t();
@@ -574,7 +581,7 @@ public class SimRobot implements SimObject, LCMSubscriber
 			SimRegion region = getRegion();
 			robotInfo.current_waypoint = (region == null ? "none" : region.getHandle());
             robotInfo.held_object = (grabbedObject == null ? -1 : grabbedObject.getID());
-            lcm.publish("ROBOT_INFO", robotInfo);
+            transport.publish(channelPrefix+"ROBOT_INFO", robotInfo);
         }
     }
 
@@ -616,7 +623,7 @@ public class SimRobot implements SimObject, LCMSubscriber
     /** Restore state that was previously written **/
     public void read(StructureReader ins) throws IOException
     {
-        this.robotID = ins.readInt();
+        setRobotID(ins.readInt());
 
         double Ttruth[][] = LinAlg.xyzrpyToMatrix(ins.readDoubles());
         double Todom[][] = LinAlg.xyzrpyToMatrix(ins.readDoubles());
@@ -645,6 +652,27 @@ public class SimRobot implements SimObject, LCMSubscriber
         outs.writeDoubles(LinAlg.matrixToXyzrpy(Todom));
     }
 
+    /** Save the drive and the object the robot holds (see
+     * WorldCheckpoint). Commands are not saved: restoring interrupts
+     * the one in progress and forgets the rest, so that a script can
+     * be sent again from the start. **/
+    public void writeState(StructureWriter outs, WorldCheckpoint checkpoint) throws IOException
+    {
+        drive.writeState(outs);
+        outs.writeInt(checkpoint.indexOf(grabbedObject));
+    }
+
+    public void readState(StructureReader ins, WorldCheckpoint checkpoint) throws IOException
+    {
+        drive.readState(ins);
+        grabbedObject = (RosieSimObject) checkpoint.getObject(ins.readInt());
+        curRegion = null;
+
+        // Drop drive commands for the interrupted command
+        diffdriveCache = new ExpiringMessageCache<diff_drive_t>(0.25);
+        ci.reset();
+    }
+
     public synchronized void setRunning(boolean b)
     {
         drive.setRunning(b);
@@ -652,4 +680,60 @@ public class SimRobot implements SimObject, LCMSubscriber
         ci.setRunning(b);
         objDetector.setRunning(b);
     }
+    /** Load benchmark: wall-clock time per simulated step as robots are
+     * added to one world. Usage: SimRobot [world] [seconds] **/
+    public static void main(String args[]) throws IOException
+    {
+        String path = args.length > 0 ? args[0] : EnvUtil.expandVariables("$MOBILE_SIM_HOME/worlds/kitchen.world");
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 5.0;
+
+        System.out.printf("%6s %10s %14s %14s\n", "robots", "steps", "us/step", "sim s/wall s");
+
+        for (int k = 1; k <= 32; k *= 2) {
+            LockstepScheduler scheduler = new LockstepScheduler();
+            scheduler.install();
+
+            SimWorld world = new SimWorld(path, new Config());
+            SimRobot first = null;
+            int maxID = 0;
+            for (SimObject so : world.objects) {
+                if (so instanceof SimRobot) {
+                    if (first == null)
+                        first = (SimRobot) so;
+                    maxID = Math.max(maxID, ((SimRobot) so).getRobotID());
+                }
+            }
+            if (first == null) {
+                System.err.println("ERR: No SimRobot in "+path);
+                return;
+            }
+
+            // Park the extra robots in a column behind the first one,
+            // each with an id of its own
+            for (int i = 1; i < k; i++) {
+                SimRobot robot = new SimRobot(world);
+                double T[][] = LinAlg.copy(first.getPose());
+                T[0][3] -= 0.8*((i+1)/2);
+                T[1][3] += 0.8*(i%2 == 0 ? 1 : -1);
+                robot.setPose(T);
+                robot.setRobotID(maxID + i);
+                world.objects.add(robot);
+            }
+
+            new soargroup.mobilesim.MobileSimulator(world, false);
+
+            long end = scheduler.utime() + (long) (seconds*1000000);
+            int steps = 0;
+            long t0 = System.nanoTime();
+            while (scheduler.utime() < end && scheduler.step())
+                steps++;
+            double wall = (System.nanoTime() - t0) / 1.0E9;
+
+            System.out.printf("%6d %10d %14.1f %14.2f\n", k, steps, wall*1.0E6/steps, seconds/wall);
+
+            world.setRunning(false);
+            LockstepScheduler.uninstall();
+        }
+        System.exit(0);
+    }
 }
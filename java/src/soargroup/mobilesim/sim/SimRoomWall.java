@@ -29,6 +29,9 @@ public class SimRoomWall extends BaseSimObject {
 	protected double[] p1 = new double[]{ -1.0,  0.0 }; // first endpoint of the wall
 	protected double[] p2 = new double[]{  1.0,  0.0 }; // second endpoint of the wall
 	protected double length = 2.0;
+
+	// scale_xyz isn't used, the size comes from the endpoints
+	protected Shape occlusionShape = new BoxShape(length, thickness, height);
 	
     public SimRoomWall(SimWorld sw){
     	super(sw);
@@ -37,11 +40,16 @@ public class SimRoomWall extends BaseSimObject {
 	@Override
 	public Shape getShape(){
 		if(!soargroup.mobilesim.MobileSimulator.Settings.COLLIDE_WALLS){
-			return new april.sim.SphereShape(0.0);
+			return NO_COLLISION;
 		} 
 		return super.getShape();
 	}
     
+	@Override
+	public Shape getOcclusionShape(){
+		return occlusionShape;
+	}
+
     public VisChain createVisObject(){
 		VisChain vc = new VisChain();
     	vc.add(new VzBox(length, thickness, height, new VzMesh.Style(color)));
@@ -57,6 +65,7 @@ public class SimRoomWall extends BaseSimObject {
         p2 = ins.readDoubles();
         
         length = LinAlg.distance(p1, p2) + thickness;
+        occlusionShape = new BoxShape(length, thickness, height);
         
         double x = (p1[0] + p2[0])/2;
         double y = (p1[1] + p2[1])/2;
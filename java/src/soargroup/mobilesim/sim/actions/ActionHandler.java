@@ -4,69 +4,77 @@ import java.util.*;
 import soargroup.mobilesim.util.ResultTypes.*;
 import soargroup.mobilesim.sim.SimRobot;
 
+import april.util.Tic;
+
 public class ActionHandler {
 
 	/************************ Handle Actions *************************/
 
 	// First validates the action by checking it against each validate rule for that action type
 	// If it validates, then it applies the action by running each apply rule for the action type
-	public static Result handle(Action action, SimRobot robot){
+	// Rules added for a specific robot are only used when that robot is the one acting
+	public static synchronized Result handle(Action action, SimRobot robot){
 		action.setRobot(robot);
-		IsValid isValid = ActionHandler.validate(action);
+		return dispatch(action, getDispatch(action.getClass(), robot));
+	}
+
+	// Handles each of the actions in order, as if each were passed to handle(action, robot),
+	//   but only looks up the rules again when the type of action changes
+	//   Returns the result of each action (a failed action does not stop the later ones)
+	public static synchronized List<Result> handleAll(List<? extends Action> actions, SimRobot robot){
+		ArrayList<Result> results = new ArrayList<Result>(actions.size());
+		Dispatch dispatch = null;
+		for(Action action : actions){
+			action.setRobot(robot);
+			if(dispatch == null || dispatch.actionType != action.getClass()){
+				dispatch = getDispatch(action.getClass(), robot);
+			}
+			results.add(dispatch(action, dispatch));
+		}
+		return results;
+	}
+
+	private static Result dispatch(Action action, Dispatch dispatch){
+		IsValid isValid = dispatch.validate(action);
 		if(isValid instanceof NotValid){
-			return Result.Err("Action " + action.toString() + " is not valid\n" + 
+			return Result.Err("Action " + action.toString() + " is not valid\n" +
 					"Reason: " + ((NotValid)isValid).reason);
 		}
-		Result result = ActionHandler.apply(action);
+		Result result = dispatch.apply(action);
 		if(result instanceof Err){
-			return Result.Err("Action " + action.toString() + " failed\n" + 
+			return Result.Err("Action " + action.toString() + " failed\n" +
 					"Reason: " + ((Err)result).reason);
 		}
 		return Result.Ok();
 	}
 
-	private interface Rule { } 
+	private interface Rule { }
 
 	/*********************** Validate Actions *************************/
 	// Before applying an action, we make sure it is valid
-	
+
 	public interface ValidateRule<A extends Action> extends Rule {
 		IsValid validate(A action);
 	}
 
 	// Any object can add a validation rule that must be checked before doing an action
-	public static <A extends Action> void addValidateRule(Class<A> actionType, ValidateRule<A> rule){
-		if(!validateRules.containsKey(actionType)){
-			// If this is the first validate rule for a certain type, create a new list in the validateRules map
-			validateRules.put(actionType, new ArrayList<Rule>());
-		}
-		validateRules.get(actionType).add(rule);
+	public static synchronized <A extends Action> void addValidateRule(Class<A> actionType, ValidateRule<A> rule){
+		addRule(validateRules, actionType, rule);
+		dispatchTables.clear();
 	}
 
-	// Checks the given action against all the validation rules to make sure it is ok to apply
-	private static IsValid validate(Action action) {
-		IsValid isValid = IsValid.True();
-
-		// Look for handler rules for the given class and any superclasses that are also Actions
-		// Keep traversing up by superclass until no longer an Action
-		Class cls = action.getClass();
-		while(Action.class.isAssignableFrom(cls)){
-			List<Rule> rules = validateRules.get(cls);
-			// Loop through every ValidateRule for the given action type and make sure none of them are invalid
-			if(rules == null){
-				break;
-			}
-			for(Rule rule : rules){
-				ValidateRule<Action> vrule = (ValidateRule<Action>)rule;
-				isValid = isValid.AND(vrule.validate(action));
-			}
-			cls = cls.getSuperclass();
-		}
-		return isValid;
+	// A validation rule that is only checked when the given robot does the action
+	public static synchronized <A extends Action> void addValidateRule(SimRobot robot, Class<A> actionType, ValidateRule<A> rule){
+		addRule(getRobotRules(robotValidateRules, robot), actionType, rule);
+		dispatchTables.remove(robot);
 	}
 
 	// Map from an action class to a list of ValidateRules for that action type
-	private static HashMap<Class, List<Rule> >validateRules = new HashMap<Class, List<Rule> >();
+	private static HashMap<Class<? extends Action>, List<Rule> >validateRules = new HashMap<Class<? extends Action>, List<Rule> >();
+
+	// The same, for the rules that only apply to one robot
+	private static IdentityHashMap<SimRobot, HashMap<Class<? extends Action>, List<Rule> > > robotValidateRules =
+		new IdentityHashMap<SimRobot, HashMap<Class<? extends Action>, List<Rule> > >();
 
 
 	/*********************** Apply Actions *************************/
@@ -76,37 +84,201 @@ public class ActionHandler {
 		Result apply(A action);
 	}
 
-	public static <A extends Action> void addApplyRule(Class<A> actionType, ApplyRule<A> rule){
-		if(!applyRules.containsKey(actionType)){
-			// If this is the first apply rule for a certain type, create a new list in the applyRules map
-			applyRules.put(actionType, new ArrayList<Rule>());
+	public static synchronized <A extends Action> void addApplyRule(Class<A> actionType, ApplyRule<A> rule){
+		addRule(applyRules, actionType, rule);
+		dispatchTables.clear();
+	}
+
+	// An apply rule that is only run when the given robot does the action
+	public static synchronized <A extends Action> void addApplyRule(SimRobot robot, Class<A> actionType, ApplyRule<A> rule){
+		addRule(getRobotRules(robotApplyRules, robot), actionType, rule);
+		dispatchTables.remove(robot);
+	}
+
+	// Map from an action class to a list of ApplyRules for that action type
+	private static HashMap<Class<? extends Action>, List<Rule> > applyRules = new HashMap<Class<? extends Action>, List<Rule> >();
+
+	// The same, for the rules that only apply to one robot
+	private static IdentityHashMap<SimRobot, HashMap<Class<? extends Action>, List<Rule> > > robotApplyRules =
+		new IdentityHashMap<SimRobot, HashMap<Class<? extends Action>, List<Rule> > >();
+
+
+	/*********************** Robot Rules *************************/
+
+	// Removes the rules that only apply to the given robot
+	//   A robot's rules live as long as the handler does, so a program that builds
+	//   many worlds in turn should remove the rules of each world's robots when done with it
+	public static synchronized void removeRules(SimRobot robot){
+		robotValidateRules.remove(robot);
+		robotApplyRules.remove(robot);
+		dispatchTables.remove(robot);
+	}
+
+
+	/*********************** Rule Maps *************************/
+
+	private static void addRule(HashMap<Class<? extends Action>, List<Rule> > rules, Class<? extends Action> actionType, Rule rule){
+		if(!rules.containsKey(actionType)){
+			// If this is the first rule for a certain type, create a new list in the map
+			rules.put(actionType, new ArrayList<Rule>());
+		}
+		rules.get(actionType).add(rule);
+	}
+
+	private static HashMap<Class<? extends Action>, List<Rule> > getRobotRules(
+			IdentityHashMap<SimRobot, HashMap<Class<? extends Action>, List<Rule> > > robotRules, SimRobot robot){
+		HashMap<Class<? extends Action>, List<Rule> > rules = robotRules.get(robot);
+		if(rules == null){
+			rules = new HashMap<Class<? extends Action>, List<Rule> >();
+			robotRules.put(robot, rules);
+		}
+		return rules;
+	}
+
+
+	/*********************** Dispatch Tables *************************/
+	// The rules that apply to an action are worked out once per (robot, concrete action class)
+	//   and kept until a rule that could change them is added
+
+	// Every rule that applies to one concrete action class when done by one robot, in the order they run:
+	//   the rules for everyone, then the robot's own rules, each from the action's class up through its superclasses
+	private static class Dispatch {
+		final Class<? extends Action> actionType;
+		final Rule[] validateRules;
+		final Rule[] applyRules;
+
+		Dispatch(Class<? extends Action> actionType, SimRobot robot){
+			this.actionType = actionType;
+			this.validateRules = collect(actionType, ActionHandler.validateRules, robotValidateRules.get(robot));
+			this.applyRules = collect(actionType, ActionHandler.applyRules, robotApplyRules.get(robot));
 		}
-		applyRules.get(actionType).add(rule);
-	}
-
-	// Calls each apply rule involving the given action and reports whether it succeeded or failed
-	private static Result apply(Action action) {
-		// Look for handler rules for the given class and any superclasses that are also Actions
-		// Keep traversing up by superclass until no longer an Action
-		Class cls = action.getClass();
-		while(Action.class.isAssignableFrom(cls)){
-			List<Rule> rules = applyRules.get(cls);
-			if(rules == null){
-				break;
+
+		// Returns the first reason the action is not valid, if any
+		IsValid validate(Action action){
+			for(Rule rule : validateRules){
+				IsValid isValid = ((ValidateRule<Action>)rule).validate(action);
+				if(isValid instanceof NotValid){
+					return isValid;
+				}
 			}
-			// Loop through every ApplyRule for the given action type
-			for(Rule rule : rules){
-				ApplyRule<Action> arule = (ApplyRule<Action>)rule;
-				Result result = arule.apply(action);
+			return IsValid.True();
+		}
+
+		// Stops at the first rule that fails
+		Result apply(Action action){
+			for(Rule rule : applyRules){
+				Result result = ((ApplyRule<Action>)rule).apply(action);
 				if(result instanceof Err){
 					return result;
 				}
 			}
-			cls = cls.getSuperclass();
+			return Result.Ok();
+		}
+
+		private static Rule[] collect(Class<? extends Action> actionType, HashMap<Class<? extends Action>, List<Rule> > rules, HashMap<Class<? extends Action>, List<Rule> > robotRules){
+			ArrayList<Rule> collected = new ArrayList<Rule>();
+			collect(actionType, rules, collected);
+			if(robotRules != null){
+				collect(actionType, robotRules, collected);
+			}
+			return collected.toArray(new Rule[collected.size()]);
+		}
+
+		// Adds the rules for the given class and any superclasses that are also Actions
+		private static void collect(Class<? extends Action> actionType, HashMap<Class<? extends Action>, List<Rule> > rules, ArrayList<Rule> collected){
+			for(Class<?> cls = actionType; Action.class.isAssignableFrom(cls); cls = cls.getSuperclass()){
+				List<Rule> clsRules = rules.get(cls);
+				if(clsRules != null){
+					collected.addAll(clsRules);
+				}
+			}
 		}
-		return Result.Ok();
 	}
 
-	// Map from an action class to a list of ApplyRules for that action type
-	private static HashMap<Class, List<Rule> > applyRules = new HashMap<Class, List<Rule> >();
+	// Map from a robot (or null, for actions done by no robot) to its compiled Dispatch for each action class
+	private static IdentityHashMap<SimRobot, HashMap<Class<? extends Action>, Dispatch> > dispatchTables =
+		new IdentityHashMap<SimRobot, HashMap<Class<? extends Action>, Dispatch> >();
+
+	private static Dispatch getDispatch(Class<? extends Action> actionType, SimRobot robot){
+		HashMap<Class<? extends Action>, Dispatch> table = dispatchTables.get(robot);
+		if(table == null){
+			table = new HashMap<Class<? extends Action>, Dispatch>();
+			dispatchTables.put(robot, table);
+		}
+		Dispatch dispatch = table.get(actionType);
+		if(dispatch == null){
+			dispatch = new Dispatch(actionType, robot);
+			table.put(actionType, dispatch);
+		}
+		return dispatch;
+	}
+
+
+	/*********************** Benchmark *************************/
+
+	// A validate and an apply rule for the given type that each just count their calls
+	private static <A extends Action> void addCountingRules(Class<A> type, final int[] counter){
+		addValidateRule(type, new ValidateRule<A>(){
+			public IsValid validate(A action){
+				counter[0]++;
+				return IsValid.True();
+			}
+		});
+		addApplyRule(type, new ApplyRule<A>(){
+			public Result apply(A action){
+				counter[0]++;
+				return Result.Ok();
+			}
+		});
+	}
+
+	// Microbenchmark: action throughput through handle() and handleAll()
+	//   Usage: ActionHandler [rules-per-class] [actions]
+	//   Registers trivial rules for each level of a few action classes, then handles a mix of actions
+	public static void main(String args[]){
+		int rulesPerClass = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int n = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+
+		int[] counter = new int[1];
+		List<Class<? extends Action>> types = Arrays.<Class<? extends Action>>asList(Action.class,
+			SetProp.class, SetProp.Open.class, SetProp.Close.class, PickUp.class, PutDown.class, PutDown.Floor.class);
+		for(Class<? extends Action> type : types){
+			for(int i = 0; i < rulesPerClass; i++){
+				addCountingRules(type, counter);
+			}
+		}
+
+		ArrayList<Action> actions = new ArrayList<Action>(n);
+		for(int i = 0; i < n; i++){
+			switch(i % 4){
+				case 0: actions.add(new PickUp(null)); break;
+				case 1: actions.add(new PutDown.Floor(null)); break;
+				case 2: actions.add(new SetProp.Open(null)); break;
+				default: actions.add(new SetProp.Close(null)); break;
+			}
+		}
+		// Scripts tend to issue runs of the same kind of action
+		ArrayList<Action> sorted = new ArrayList<Action>(actions);
+		Collections.sort(sorted, new Comparator<Action>(){
+			public int compare(Action a, Action b){
+				return a.getClass().getName().compareTo(b.getClass().getName());
+			}
+		});
+
+		System.out.printf("%d rules per class, %d actions\n", rulesPerClass, n);
+		for(int rep = 0; rep < 5; rep++){
+			Tic tic = new Tic();
+			for(Action action : actions){
+				handle(action, null);
+			}
+			double one = tic.toctic();
+			handleAll(actions, null);
+			double mixed = tic.toctic();
+			handleAll(sorted, null);
+			double runs = tic.toc();
+			System.out.printf("handle %6.1f ns/action   handleAll (mixed) %6.1f ns/action   handleAll (runs) %6.1f ns/action\n",
+					one*1e9/n, mixed*1e9/n, runs*1e9/n);
+		}
+		System.out.println("(" + counter[0] + " rule calls)");
+	}
 }
@@ -2,6 +2,10 @@ package soargroup.mobilesim.sim.attributes;
 
 import april.vis.*;
 import april.sim.SimObject;
+import april.sim.WorldCheckpoint;
+import april.util.StructureReader;
+import april.util.StructureWriter;
+import java.io.IOException;
 import java.util.ArrayList;
 
 import soargroup.mobilesim.sim.*;
@@ -30,4 +34,10 @@ public class Attribute {
 	//   any transforms are relative to the baseObject itself (pose transformations already applied)
 	public void render(VisChain vc){ }
 
+	// Save and restore whatever the attribute keeps that changes as the world runs
+	//   (see RosieSimObject.writeState), other objects by checkpoint.indexOf
+	public void writeState(StructureWriter outs, WorldCheckpoint checkpoint) throws IOException { }
+
+	public void readState(StructureReader ins, WorldCheckpoint checkpoint) throws IOException { }
+
 }
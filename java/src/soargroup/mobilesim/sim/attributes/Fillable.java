@@ -2,6 +2,11 @@ package soargroup.mobilesim.sim.attributes;
 
 import java.util.ArrayList;
 import java.awt.Color;
+import java.io.IOException;
+
+import april.sim.WorldCheckpoint;
+import april.util.StructureReader;
+import april.util.StructureWriter;
 
 import soargroup.rosie.RosieConstants;
 import soargroup.mobilesim.util.ResultTypes.*;
@@ -32,6 +37,16 @@ public class Fillable extends Attribute {
 		baseObject.recreateVisObject();
 	}
 
+	@Override
+	public void writeState(StructureWriter outs, WorldCheckpoint checkpoint) throws IOException {
+		outs.writeString(contents);
+	}
+
+	@Override
+	public void readState(StructureReader ins, WorldCheckpoint checkpoint) throws IOException {
+		contents = ins.readString();
+	}
+
 	public static Color getLiquidColor(String liquid){
 		if(liquid.equals(RosieConstants.MILK)){   return new Color(255, 255, 255);  }
 		if(liquid.equals(RosieConstants.WATER)){  return new Color(200, 200, 255);  }
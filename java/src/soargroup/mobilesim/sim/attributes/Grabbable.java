@@ -1,5 +1,11 @@
 package soargroup.mobilesim.sim.attributes;
 
+import java.io.IOException;
+
+import april.sim.WorldCheckpoint;
+import april.util.StructureReader;
+import april.util.StructureWriter;
+
 import soargroup.mobilesim.sim.*;
 import soargroup.mobilesim.sim.actions.*;
 import soargroup.mobilesim.sim.actions.ActionHandler.*;
@@ -19,6 +25,16 @@ public class Grabbable extends Attribute {
 	public void setGrabbed(boolean isGrabbed){
 		this._isGrabbed = isGrabbed;
 	}
+
+	@Override
+	public void writeState(StructureWriter outs, WorldCheckpoint checkpoint) throws IOException {
+		outs.writeInt(_isGrabbed ? 1 : 0);
+	}
+
+	@Override
+	public void readState(StructureReader ins, WorldCheckpoint checkpoint) throws IOException {
+		_isGrabbed = (ins.readInt() != 0);
+	}
 	
 	// Registering Action Handling Rules
 	static {
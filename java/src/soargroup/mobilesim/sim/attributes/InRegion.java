@@ -1,6 +1,10 @@
 package soargroup.mobilesim.sim.attributes;
 
-import java.util.List;
+import java.io.IOException;
+
+import april.sim.WorldCheckpoint;
+import april.util.StructureReader;
+
 import soargroup.mobilesim.sim.*;
 
 
@@ -12,22 +16,11 @@ public class InRegion extends Attribute {
 		super(baseObject);
 	}
 
-	// Return the closest region from the list that contains the position of the object
+	// Return the closest region that contains the position of the object
 	//   It will cache this result in curRegion and not recompute until its position changes
-	public SimRegion getRegion(List<SimRegion> regions){
+	public SimRegion getRegion(RegionIndex regions){
 		if(staleRegion){
-			Double bestDist = Double.MAX_VALUE;
-			curRegion = null;
-			for(SimRegion region : regions){
-				double[] xyzrpy = baseObject.getXYZRPY();
-				if(region.contains(xyzrpy)){
-					double dist2 = region.getDistanceSq(xyzrpy);
-					if(dist2 < bestDist){
-						bestDist = dist2;
-						curRegion = region;
-					}
-				}
-			}
+			curRegion = regions.getRegion(baseObject.getXYZRPY());
 			staleRegion = false;
 		}
 		return curRegion;
@@ -37,5 +30,11 @@ public class InRegion extends Attribute {
 		staleRegion = true;
 	}
 
+	// The object may be somewhere else now, look the region up again
+	@Override
+	public void readState(StructureReader ins, WorldCheckpoint checkpoint) throws IOException {
+		staleRegion = true;
+	}
+
 
 }
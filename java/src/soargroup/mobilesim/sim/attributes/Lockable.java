@@ -1,5 +1,11 @@
 package soargroup.mobilesim.sim.attributes;
 
+import java.io.IOException;
+
+import april.sim.WorldCheckpoint;
+import april.util.StructureReader;
+import april.util.StructureWriter;
+
 import soargroup.rosie.RosieConstants;
 import soargroup.mobilesim.sim.*;
 import soargroup.mobilesim.sim.actions.*;
@@ -23,6 +29,16 @@ public class Lockable extends Attribute {
 		baseObject.setProperty(RosieConstants.LOCK, 
 				isLocked ? RosieConstants.LOCKED : RosieConstants.UNLOCKED);
 	}
+
+	@Override
+	public void writeState(StructureWriter outs, WorldCheckpoint checkpoint) throws IOException {
+		outs.writeInt(_isLocked ? 1 : 0);
+	}
+
+	@Override
+	public void readState(StructureReader ins, WorldCheckpoint checkpoint) throws IOException {
+		_isLocked = (ins.readInt() != 0);
+	}
 	
 	// Registering Action Handling Rules
 	static {
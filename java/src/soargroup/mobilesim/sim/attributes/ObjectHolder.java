@@ -1,11 +1,16 @@
 package soargroup.mobilesim.sim.attributes;
 
 import java.awt.Color;
+import java.io.IOException;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import april.jmat.LinAlg;
 import april.vis.*;
 import april.sim.SimObject;
+import april.sim.WorldCheckpoint;
+import april.util.StructureReader;
+import april.util.StructureWriter;
 
 import soargroup.mobilesim.sim.*;
 import soargroup.mobilesim.sim.actions.*;
@@ -15,6 +20,15 @@ import soargroup.mobilesim.util.ResultTypes.*;
 public class ObjectHolder extends Attribute {
 	// Anchors are locations where objects can be placed
 	protected ArrayList<AnchorPoint> anchors;
+
+	// Counts the times any holder has been given an object, so a DynamicsIslands knows when to regroup
+	//   (objects leaving a holder are not counted, grouping them together a while longer does no harm)
+	private static AtomicInteger edits = new AtomicInteger(0);
+
+	public static int getEdits(){
+		return edits.get();
+	}
+
 	public ObjectHolder(RosieSimObject baseObject){
 		super(baseObject);
 		this.anchors = new ArrayList<AnchorPoint>();
@@ -117,6 +131,40 @@ public class ObjectHolder extends Attribute {
 		}
 	}
 
+	// Changes whenever a held object does, or one is added or removed
+	//   Includes objects that have been moved away but not yet noticed by checkObject,
+	//   so that their holder's data is rebuilt (and they are noticed) when they move
+	public int getContentsVersion(){
+		int v = 0;
+		for(AnchorPoint pt : anchors){
+			RosieSimObject obj = pt.heldObj;
+			v = 31*v + (obj == null ? 0 : obj.getID()*17 + obj.getVersion());
+		}
+		return v;
+	}
+
+	// The object at each anchor, as is (not checked, the objects' poses are restored as well)
+	@Override
+	public void writeState(StructureWriter outs, WorldCheckpoint checkpoint) throws IOException {
+		int[] held = new int[anchors.size()];
+		for(int i = 0; i < anchors.size(); i += 1){
+			held[i] = checkpoint.indexOf(anchors.get(i).heldObj);
+		}
+		outs.writeInts(held);
+	}
+
+	@Override
+	public void readState(StructureReader ins, WorldCheckpoint checkpoint) throws IOException {
+		int[] held = ins.readInts();
+		if(held.length != anchors.size()){
+			throw new IOException("ObjectHolder: Expected " + anchors.size() + " anchors, not " + held.length);
+		}
+		for(int i = 0; i < held.length; i += 1){
+			anchors.get(i).heldObj = (RosieSimObject)checkpoint.getObject(held[i]);
+		}
+		edits.incrementAndGet();
+	}
+
 	public ArrayList<RosieSimObject> getObjects(){
 		ArrayList<RosieSimObject> objs = new ArrayList<RosieSimObject>();
 		for(AnchorPoint pt : anchors){
@@ -178,8 +226,12 @@ public class ObjectHolder extends Attribute {
 		}
 
 		public void setObject(RosieSimObject obj){
+			if(obj != heldObj){
+				baseObject.changed();
+			}
 			heldObj = obj;
 			if(heldObj != null){
+				edits.incrementAndGet();
 				heldObj.setPose(calcObjectPose(baseObject.getPose()));
 			}
 		}
@@ -214,6 +266,7 @@ public class ObjectHolder extends Attribute {
 			if(LinAlg.squaredDistance(obj_pos, heldObj.getXYZRPY(), 2) > 0.01){
 				// Object must have been moved
 				heldObj = null;
+				baseObject.changed();
 			}
 		}
 
@@ -1,6 +1,11 @@
 package soargroup.mobilesim.sim.attributes;
 
 import java.util.ArrayList;
+import java.io.IOException;
+
+import april.sim.WorldCheckpoint;
+import april.util.StructureReader;
+import april.util.StructureWriter;
 
 import soargroup.rosie.RosieConstants;
 import soargroup.mobilesim.util.ResultTypes.*;
@@ -27,6 +32,16 @@ public class Openable extends Attribute {
 				isOpen ? RosieConstants.DOOR_OPEN : RosieConstants.DOOR_CLOSED);
 	}
 
+	@Override
+	public void writeState(StructureWriter outs, WorldCheckpoint checkpoint) throws IOException {
+		outs.writeInt(_isOpen ? 1 : 0);
+	}
+
+	@Override
+	public void readState(StructureReader ins, WorldCheckpoint checkpoint) throws IOException {
+		_isOpen = (ins.readInt() != 0);
+	}
+
 	// Registering Action Handling Rules
 	static {
 		// SetProp.Open: Valid if the object is Openable and not open
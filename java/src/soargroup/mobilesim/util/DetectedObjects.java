@@ -0,0 +1,116 @@
+package soargroup.mobilesim.util;
+
+import java.util.*;
+
+// LCM Types
+import soargroup.mobilesim.lcmtypes.object_data_t;
+import soargroup.mobilesim.lcmtypes.object_data_list_t;
+import soargroup.mobilesim.lcmtypes.object_data_delta_t;
+
+/** The list of detected objects, rebuilt from the keyframes and deltas
+ *  that SimObjectDetector publishes on DETECTED_OBJECTS_DELTA.
+ *
+ *  Until the first keyframe, and again after a message is lost (a gap in
+ *  the sequence numbers), the list is out of date; deltas are ignored
+ *  until the next keyframe. The detector sends one every
+ *  SimObjectDetector.KEYFRAME_PERIOD seconds.
+ *
+ *  The object_data_t's are those of the messages, so they are shared
+ *  and must not be modified. Not thread safe.
+ **/
+public class DetectedObjects
+{
+    LinkedHashMap<Integer, object_data_t> objects = new LinkedHashMap<Integer, object_data_t>();
+
+    boolean synced = false;
+    long lastSeq = -1;
+    long utime = 0;
+
+    // What the last applied message changed
+    ArrayList<object_data_t> changed = new ArrayList<object_data_t>();
+    ArrayList<Integer> removed = new ArrayList<Integer>();
+
+    // Built on request, until the next change
+    object_data_list_t list = null;
+
+    /** Apply the next message from the detector. Returns true if the list
+     *  changed and is up to date, false if the message was ignored (see
+     *  the class comment). **/
+    public boolean apply(object_data_delta_t delta)
+    {
+        boolean inSequence = (delta.seq == lastSeq + 1);
+        lastSeq = delta.seq;
+
+        changed.clear();
+        removed.clear();
+
+        if (delta.keyframe) {
+            // Anything missing from the keyframe was removed
+            HashSet<Integer> stale = new HashSet<Integer>(objects.keySet());
+            for (object_data_t obj : delta.changed)
+                stale.remove(obj.id);
+            for (Integer id : stale) {
+                objects.remove(id);
+                removed.add(id);
+            }
+            synced = true;
+        } else if (!synced || !inSequence) {
+            synced = false;
+            return false;
+        }
+
+        for (object_data_t obj : delta.changed) {
+            objects.put(obj.id, obj);
+            changed.add(obj);
+        }
+        for (int id : delta.removed) {
+            if (objects.remove(id) != null)
+                removed.add(id);
+        }
+
+        utime = delta.utime;
+        list = null;
+        return true;
+    }
+
+    /** Whether every message up to the last has been applied. **/
+    public boolean isSynced()
+    {
+        return synced;
+    }
+
+    public object_data_t getObject(int id)
+    {
+        return objects.get(id);
+    }
+
+    public Collection<object_data_t> getObjects()
+    {
+        return Collections.unmodifiableCollection(objects.values());
+    }
+
+    /** The objects the last applied message added or changed (in a
+     *  keyframe, every object). **/
+    public List<object_data_t> getChanged()
+    {
+        return Collections.unmodifiableList(changed);
+    }
+
+    /** The ids of the objects the last applied message removed. **/
+    public List<Integer> getRemoved()
+    {
+        return Collections.unmodifiableList(removed);
+    }
+
+    /** Every object, as the detector's full list would have it. **/
+    public object_data_list_t getObjectList()
+    {
+        if (list == null) {
+            list = new object_data_list_t();
+            list.utime = utime;
+            list.num_objects = objects.size();
+            list.objects = objects.values().toArray(new object_data_t[list.num_objects]);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,152 @@
+package soargroup.mobilesim.util;
+
+import java.util.*;
+
+import april.util.Checks;
+
+// LCM Types
+import soargroup.mobilesim.lcmtypes.object_data_t;
+import soargroup.mobilesim.lcmtypes.object_data_delta_t;
+
+/** Checks how DetectedObjects follows a stream of keyframes and deltas:
+ *  in sequence, across a lost message, and back in sync at the next
+ *  keyframe. Exits with a non-zero status if a check fails. **/
+public class DetectedObjectsTest
+{
+    public static void main(String args[])
+    {
+        try {
+            testSequence();
+            testGap();
+            testStartMidStream();
+            testKeyframeRemoves();
+        } catch (Exception ex) {
+            Checks.fail(ex);
+        } finally {
+            Checks.exit();
+        }
+    }
+
+    /** A keyframe, then deltas that add, change and remove objects. **/
+    static void testSequence()
+    {
+        DetectedObjects dobjs = new DetectedObjects();
+
+        Checks.check(!dobjs.isSynced(), "not synced before the first keyframe");
+
+        Checks.check(dobjs.apply(delta(0, true, new int[] { 1, 2 }, new int[0], 0.0)), "keyframe applied");
+        Checks.check(dobjs.isSynced(), "synced by the keyframe");
+        checkIds(dobjs, new int[] { 1, 2 }, "keyframe");
+
+        Checks.check(dobjs.apply(delta(1, false, new int[] { 3 }, new int[0], 0.0)), "delta 1 applied");
+        checkIds(dobjs, new int[] { 1, 2, 3 }, "object added");
+        Checks.check(dobjs.getChanged().size() == 1 && dobjs.getChanged().get(0).id == 3,
+                     "delta 1 changed only 3");
+
+        Checks.check(dobjs.apply(delta(2, false, new int[] { 1 }, new int[] { 2 }, 5.0)), "delta 2 applied");
+        checkIds(dobjs, new int[] { 1, 3 }, "object changed and removed");
+        Checks.check(dobjs.getObject(1).xyzrpy[0] == 5.0, "object 1 moved");
+        Checks.check(dobjs.getRemoved().equals(Arrays.asList(2)), "delta 2 removed 2");
+
+        // removing an object that isn't there is not reported
+        Checks.check(dobjs.apply(delta(3, false, new int[0], new int[] { 2 }, 0.0)), "delta 3 applied");
+        Checks.check(dobjs.getRemoved().isEmpty(), "nothing removed twice");
+
+        Checks.check(dobjs.getObjectList().num_objects == 2, "list has every object");
+    }
+
+    /** A lost delta makes the list stale until the next keyframe. **/
+    static void testGap()
+    {
+        DetectedObjects dobjs = new DetectedObjects();
+
+        dobjs.apply(delta(10, true, new int[] { 1, 2 }, new int[0], 0.0));
+        dobjs.apply(delta(11, false, new int[] { 3 }, new int[0], 0.0));
+
+        // 12 is lost
+        Checks.check(!dobjs.apply(delta(13, false, new int[] { 4 }, new int[0], 0.0)),
+                     "delta after a gap ignored");
+        Checks.check(!dobjs.isSynced(), "out of sync after a gap");
+        Checks.check(dobjs.getObject(4) == null, "ignored delta not applied");
+
+        // in sequence again, but still stale until a keyframe
+        Checks.check(!dobjs.apply(delta(14, false, new int[] { 5 }, new int[0], 0.0)),
+                     "delta before the keyframe ignored");
+        Checks.check(!dobjs.isSynced(), "still out of sync");
+        checkIds(dobjs, new int[] { 1, 2, 3 }, "stale list kept");
+
+        Checks.check(dobjs.apply(delta(15, true, new int[] { 1, 4, 5 }, new int[0], 0.0)), "keyframe applied");
+        Checks.check(dobjs.isSynced(), "resynced by the keyframe");
+        checkIds(dobjs, new int[] { 1, 4, 5 }, "keyframe replaces the list");
+
+        Checks.check(dobjs.apply(delta(16, false, new int[] { 6 }, new int[0], 0.0)),
+                     "delta after the keyframe applied");
+        checkIds(dobjs, new int[] { 1, 4, 5, 6 }, "delta after resync");
+    }
+
+    /** Joining a stream partway through waits for a keyframe. **/
+    static void testStartMidStream()
+    {
+        DetectedObjects dobjs = new DetectedObjects();
+
+        Checks.check(!dobjs.apply(delta(0, false, new int[] { 1 }, new int[0], 0.0)),
+                     "delta before any keyframe ignored");
+        Checks.check(!dobjs.apply(delta(1, false, new int[] { 2 }, new int[0], 0.0)), "next delta ignored");
+        Checks.check(dobjs.getObjects().isEmpty(), "nothing applied");
+
+        Checks.check(dobjs.apply(delta(2, true, new int[] { 1, 2 }, new int[0], 0.0)), "keyframe applied");
+        Checks.check(dobjs.apply(delta(3, false, new int[0], new int[] { 1 }, 0.0)), "delta applied");
+        checkIds(dobjs, new int[] { 2 }, "after joining");
+    }
+
+    /** A keyframe reports the objects it drops as removed. **/
+    static void testKeyframeRemoves()
+    {
+        DetectedObjects dobjs = new DetectedObjects();
+
+        dobjs.apply(delta(0, true, new int[] { 1, 2, 3 }, new int[0], 0.0));
+        dobjs.apply(delta(1, true, new int[] { 2 }, new int[0], 0.0));
+
+        checkIds(dobjs, new int[] { 2 }, "second keyframe");
+        ArrayList<Integer> removed = new ArrayList<Integer>(dobjs.getRemoved());
+        Collections.sort(removed);
+        Checks.check(removed.equals(Arrays.asList(1, 3)), "keyframe removed 1 and 3: "+removed);
+        Checks.check(dobjs.getChanged().size() == 1, "keyframe changed every object it lists");
+    }
+
+    static object_data_delta_t delta(long seq, boolean keyframe, int changed[], int removed[], double x)
+    {
+        object_data_delta_t delta = new object_data_delta_t();
+        delta.utime = seq;
+        delta.seq = seq;
+        delta.keyframe = keyframe;
+
+        delta.num_changed = changed.length;
+        delta.changed = new object_data_t[changed.length];
+        for (int i = 0; i < changed.length; i++) {
+            object_data_t obj = new object_data_t();
+            obj.id = changed[i];
+            obj.xyzrpy = new double[] { x, 0, 0, 0, 0, 0 };
+            obj.lenxyz = new double[3];
+            delta.changed[i] = obj;
+        }
+
+        delta.num_removed = removed.length;
+        delta.removed = removed;
+        return delta;
+    }
+
+    static void checkIds(DetectedObjects dobjs, int ids[], String what)
+    {
+        ArrayList<Integer> expected = new ArrayList<Integer>();
+        for (int id : ids)
+            expected.add(id);
+
+        ArrayList<Integer> actual = new ArrayList<Integer>();
+        for (object_data_t obj : dobjs.getObjects())
+            actual.add(obj.id);
+        Collections.sort(actual);
+
+        Checks.check(actual.equals(expected), what+": expected "+expected+", got "+actual);
+    }
+}
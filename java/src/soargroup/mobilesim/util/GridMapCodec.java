@@ -0,0 +1,267 @@
+package soargroup.mobilesim.util;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+import april.util.*;
+
+import soargroup.mobilesim.lcmtypes.grid_map_t;
+
+/** Encodes GridMaps into grid_map_t messages and decodes them again.
+ *
+ *  Decoded maps are cached by message, so a map that several control
+ *  laws read at 40 Hz is only decoded once per version. A map encoded
+ *  in this JVM is put in the cache as it is encoded, so a consumer in
+ *  the same process as the producer never decodes it at all.
+ *
+ *  The cache is looked up by the message's utime and geometry. The data
+ *  of a hit is then compared by reference, which settles it for the
+ *  message every consumer shares, and only compared byte by byte for
+ *  another message of the same map.
+ *
+ *  Maps handed out by decode() are shared, and must not be modified.
+ **/
+public class GridMapCodec
+{
+    static final int CACHE_SIZE = 32;
+
+    static LinkedHashMap<Key, Entry> cache = new LinkedHashMap<Key, Entry>(CACHE_SIZE, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /** Identifies a message by everything but its data. **/
+    static class Key
+    {
+        long utime;
+        double x0, y0, metersPerPixel;
+        int width, height;
+        byte encoding;
+        int datalen;
+
+        Key(grid_map_t gm)
+        {
+            utime = gm.utime;
+            x0 = gm.x0;
+            y0 = gm.y0;
+            metersPerPixel = gm.meters_per_pixel;
+            width = gm.width;
+            height = gm.height;
+            encoding = gm.encoding;
+            datalen = gm.datalen;
+        }
+
+        public int hashCode()
+        {
+            return (int) (utime ^ (utime >>> 32)) ^ (width * 31 + height) * 31 ^ datalen;
+        }
+
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return utime == k.utime && x0 == k.x0 && y0 == k.y0 &&
+                metersPerPixel == k.metersPerPixel && width == k.width && height == k.height &&
+                encoding == k.encoding && datalen == k.datalen;
+        }
+    }
+
+    /** A decoded map, and the data of the message it came from. **/
+    static class Entry
+    {
+        byte data[];
+        GridMap map;
+
+        Entry(byte data[], GridMap map)
+        {
+            this.data = data;
+            this.map = map;
+        }
+    }
+
+    /** Parse an encoding name ("none", "gzip" or "rle"). **/
+    public static byte parseEncoding(String name)
+    {
+        if (name.equalsIgnoreCase("none"))
+            return grid_map_t.ENCODING_NONE;
+        if (name.equalsIgnoreCase("gzip"))
+            return grid_map_t.ENCODING_GZIP;
+        if (name.equalsIgnoreCase("rle"))
+            return grid_map_t.ENCODING_RLE;
+        throw new IllegalArgumentException("Unknown grid map encoding: "+name);
+    }
+
+    /** Make a message holding map. The map must not be modified
+     *  afterwards, since it is cached as the decoded form of the
+     *  message. **/
+    public static grid_map_t encode(GridMap map, long utime, byte encoding) throws IOException
+    {
+        grid_map_t gm = new grid_map_t();
+        gm.utime = utime;
+        gm.x0 = map.x0;
+        gm.y0 = map.y0;
+        gm.width = map.width;
+        gm.height = map.height;
+        gm.meters_per_pixel = map.metersPerPixel;
+        gm.encoding = encoding;
+
+        byte[] data;
+        if (encoding == grid_map_t.ENCODING_NONE) {
+            data = map.data;
+        } else if (encoding == grid_map_t.ENCODING_GZIP) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            GZIPOutputStream gzos = new GZIPOutputStream(bytes);
+            gzos.write(map.data, 0, map.data.length);
+            gzos.finish();
+            gzos.close();
+            data = bytes.toByteArray();
+        } else if (encoding == grid_map_t.ENCODING_RLE) {
+            data = encodeRLE(map.data);
+        } else {
+            throw new IOException("Unsupported grid map encoding "+encoding);
+        }
+
+        gm.datalen = data.length;
+        gm.data = data;
+
+        synchronized(cache) {
+            cache.put(new Key(gm), new Entry(gm.data, map));
+        }
+        return gm;
+    }
+
+    /** The map held by gm. The result is shared: do not modify it. **/
+    public static GridMap decode(grid_map_t gm) throws IOException
+    {
+        Key key = new Key(gm);
+        synchronized(cache) {
+            Entry entry = cache.get(key);
+            if (entry != null && (entry.data == gm.data || Arrays.equals(entry.data, gm.data))) {
+                // the next lookup of this message is by reference
+                entry.data = gm.data;
+                return entry.map;
+            }
+        }
+
+        byte[] data;
+        if (gm.encoding == grid_map_t.ENCODING_NONE) {
+            data = gm.data;
+        } else if (gm.encoding == grid_map_t.ENCODING_GZIP) {
+            data = decodeGZIP(gm.data, gm.width*gm.height);
+        } else if (gm.encoding == grid_map_t.ENCODING_RLE) {
+            data = decodeRLE(gm.data, gm.width*gm.height);
+        } else {
+            throw new IOException("Unsupported grid map encoding "+gm.encoding);
+        }
+
+        GridMap map = GridMap.makePixels(gm.x0, gm.y0, gm.width, gm.height,
+                                         gm.meters_per_pixel, 0, data);
+
+        synchronized(cache) {
+            cache.put(key, new Entry(gm.data, map));
+        }
+        return map;
+    }
+
+    static byte[] decodeGZIP(byte[] in, int len) throws IOException
+    {
+        GZIPInputStream gzis = new GZIPInputStream(new ByteArrayInputStream(in));
+
+        byte[] out = new byte[len];
+        int readSoFar = 0;
+        while (readSoFar < out.length) {
+            int read = gzis.read(out, readSoFar, out.length-readSoFar);
+            if (read < 0)
+                break;
+            readSoFar += read;
+        }
+        gzis.close();
+        return out;
+    }
+
+    /** ENCODING_RLE: pairs of (run length 1-255, value). Much cheaper
+     *  than GZIP, and nearly as small for sparse maps. **/
+    static byte[] encodeRLE(byte[] in)
+    {
+        byte[] out = new byte[2*in.length];
+        int len = 0;
+        int i = 0;
+        while (i < in.length) {
+            byte v = in[i];
+            int end = Math.min(in.length, i + 255);
+            int j = i + 1;
+            while (j < end && in[j] == v)
+                j++;
+            out[len++] = (byte) (j - i);
+            out[len++] = v;
+            i = j;
+        }
+        return Arrays.copyOf(out, len);
+    }
+
+    static byte[] decodeRLE(byte[] in, int len) throws IOException
+    {
+        byte[] out = new byte[len];
+        int pos = 0;
+        for (int i = 0; i + 1 < in.length; i += 2) {
+            int run = in[i] & 0xff;
+            if (pos + run > len)
+                throw new IOException("RLE'd map data is corrupted");
+            byte v = in[i+1];
+            if (v != 0) {
+                for (int end = pos + run; pos < end; pos++)
+                    out[pos] = v;
+            } else {
+                pos += run;
+            }
+        }
+        return out;
+    }
+
+    /** Round-trip and timing check for each encoding. **/
+    public static void main(String args[]) throws IOException
+    {
+        GridMap map = GridMap.makeMeters(0, 0, 10.0, 10.0, 0.1, 0);
+        Random r = new Random(0);
+        for (int i = 0; i < 540; i++)
+            map.setValue(r.nextDouble()*10, r.nextDouble()*10, (byte) 1);
+
+        int iters = 2000;
+        byte[] encodings = { grid_map_t.ENCODING_NONE, grid_map_t.ENCODING_GZIP, grid_map_t.ENCODING_RLE };
+        String[] names = { "none", "gzip", "rle" };
+
+        for (int e = 0; e < encodings.length; e++) {
+            grid_map_t gm = encode(map, 1, encodings[e]);
+
+            Tic tic = new Tic();
+            for (int i = 0; i < iters; i++)
+                encode(map, i, encodings[e]);
+            double encodeTime = tic.toc() / iters;
+
+            // decode without the cache
+            byte[] data = null;
+            tic = new Tic();
+            for (int i = 0; i < iters; i++) {
+                if (encodings[e] == grid_map_t.ENCODING_GZIP)
+                    data = decodeGZIP(gm.data, gm.width*gm.height);
+                else if (encodings[e] == grid_map_t.ENCODING_RLE)
+                    data = decodeRLE(gm.data, gm.width*gm.height);
+                else
+                    data = gm.data;
+            }
+            double decodeTime = tic.toc() / iters;
+
+            tic = new Tic();
+            for (int i = 0; i < iters; i++)
+                decode(gm);
+            double cachedTime = tic.toc() / iters;
+
+            System.out.printf("%-5s %6d bytes  encode %8.1f us  decode %8.1f us  cached %6.2f us  %s\n",
+                              names[e], gm.datalen, encodeTime*1.0E6, decodeTime*1.0E6, cachedTime*1.0E6,
+                              Arrays.equals(data, map.data) ? "ok" : "MISMATCH");
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package soargroup.mobilesim.util;
+
+import java.io.*;
+import java.util.*;
+
+// LCM Types
+import lcm.lcm.*;
+
+/** Passes every message through LCM (see Transport). Each subscriber
+ *  decodes its own copy of each message. **/
+public class LCMTransport extends Transport
+{
+    LCM lcm;
+
+    // The LCM subscriptions made for each (regex, subscriber)
+    HashMap<String, HashMap<Subscriber, ArrayList<Adapter>>> adapters =
+        new HashMap<String, HashMap<Subscriber, ArrayList<Adapter>>>();
+
+    public LCMTransport(LCM lcm)
+    {
+        this.lcm = lcm;
+    }
+
+    public void publish(String channel, LCMEncodable msg)
+    {
+        lcm.publish(channel, msg);
+    }
+
+    public synchronized void subscribe(String regex, Class<?> type, Subscriber subscriber)
+    {
+        HashMap<Subscriber, ArrayList<Adapter>> bySubscriber = adapters.get(regex);
+        if (bySubscriber == null) {
+            bySubscriber = new HashMap<Subscriber, ArrayList<Adapter>>();
+            adapters.put(regex, bySubscriber);
+        }
+        ArrayList<Adapter> list = bySubscriber.get(subscriber);
+        if (list == null) {
+            list = new ArrayList<Adapter>();
+            bySubscriber.put(subscriber, list);
+        }
+
+        Adapter adapter = new Adapter(type, subscriber);
+        list.add(adapter);
+        lcm.subscribe(regex, adapter);
+    }
+
+    public synchronized void unsubscribe(String regex, Subscriber subscriber)
+    {
+        HashMap<Subscriber, ArrayList<Adapter>> bySubscriber = adapters.get(regex);
+        if (bySubscriber == null)
+            return;
+        ArrayList<Adapter> list = bySubscriber.remove(subscriber);
+        if (list == null)
+            return;
+        for (Adapter adapter : list)
+            lcm.unsubscribe(regex, adapter);
+    }
+
+    public synchronized void close()
+    {
+        for (Map.Entry<String, HashMap<Subscriber, ArrayList<Adapter>>> e : adapters.entrySet()) {
+            for (ArrayList<Adapter> list : e.getValue().values()) {
+                for (Adapter adapter : list)
+                    lcm.unsubscribe(e.getKey(), adapter);
+            }
+        }
+        adapters.clear();
+    }
+
+    static class Adapter implements LCMSubscriber
+    {
+        final Class<?> type;
+        final Subscriber subscriber;
+
+        Adapter(Class<?> type, Subscriber subscriber)
+        {
+            this.type = type;
+            this.subscriber = subscriber;
+        }
+
+        public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins)
+        {
+            Object msg;
+            try {
+                msg = decode(type, ins);
+            } catch (IOException ex) {
+                System.err.println("WRN: Error reading channel "+channel+": "+ex);
+                return;
+            }
+            subscriber.messageReceived(channel, msg);
+        }
+    }
+}
@@ -0,0 +1,439 @@
+package soargroup.mobilesim.util;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.regex.*;
+
+// LCM Types
+import lcm.lcm.*;
+
+import april.util.LockstepScheduler;
+
+/** Passes message objects straight to the subscribers in this process
+ *  (see Transport), with no encoding or decoding.
+ *
+ *  Published messages go onto a lock-free queue, from which one thread
+ *  calls the subscribers, in the order the messages were published. So
+ *  a subscriber, as with LCM, is never called on the publisher's thread,
+ *  and never called by two threads at once.
+ *
+ *  While a LockstepScheduler is installed, that thread is not used:
+ *  messages are held until the scheduler's next barrier (after the task
+ *  that published them), and delivered then, in order, on the stepping
+ *  thread. So what a subscriber sees, and when, is the same from run to
+ *  run.
+ *
+ *  Given an LCM to mirror to, every message is also published to LCM
+ *  (encoded off the publisher's thread, by a second thread), and
+ *  messages that arrive from LCM on subscribed channels are delivered
+ *  like local ones. LCM does not say who sent a message, so when it
+ *  loops back one of the mirror's own sends, it is recognized by its
+ *  channel and contents, and dropped. Only sends from the last
+ *  ECHO_TIMEOUT are matched, each at most once, so that a message from
+ *  another process that happens to be the same is still delivered.
+ **/
+public class LocalTransport extends Transport
+{
+    // LCM loops a message back within milliseconds; a send not seen
+    // again in this long (nanoseconds) was lost
+    static final long ECHO_TIMEOUT = 500000000L;
+
+    LCM lcm;
+
+    // Replaced, never modified, on every subscribe and unsubscribe
+    volatile Routes routes = new Routes(new Subscription[0]);
+
+    Worker dispatcher = new Worker("LocalTransport dispatch") {
+        void handle(Object o)
+        {
+            ((Delivery) o).deliver();
+        }
+    };
+
+    // Deliveries waiting for the LockstepScheduler's next barrier, and
+    // the scheduler, once drain() has been added to its barriers
+    final ConcurrentLinkedQueue<Delivery> held = new ConcurrentLinkedQueue<Delivery>();
+    LockstepScheduler lockstep;
+    final Runnable drain = new Runnable() {
+        public void run()
+        {
+            drain();
+        }
+    };
+
+    Worker mirror;
+    Bridge bridge; // subscribed to LCM, once anything is subscribed here
+
+    // The mirror's sends that LCM has yet to loop back: all of them,
+    // oldest first, and those with each fingerprint
+    ArrayDeque<Echo> echoes = new ArrayDeque<Echo>();
+    HashMap<Long, ArrayDeque<Echo>> echoesByFingerprint = new HashMap<Long, ArrayDeque<Echo>>();
+
+    /** lcm: where to mirror messages to and from, or null to keep them
+     *  in this process. **/
+    public LocalTransport(LCM lcm)
+    {
+        this.lcm = lcm;
+        dispatcher.start();
+
+        if (lcm != null) {
+            mirror = new Worker("LocalTransport mirror") {
+                void handle(Object o)
+                {
+                    Delivery d = (Delivery) o;
+                    mirror(d.channel, (LCMEncodable) d.msg, d.subscriptions.length > 0);
+                }
+            };
+            mirror.start();
+        }
+    }
+
+    public void publish(String channel, LCMEncodable msg)
+    {
+        Subscription subscriptions[] = routes.get(channel);
+        if (subscriptions.length > 0)
+            deliver(new Delivery(channel, msg, subscriptions));
+        if (mirror != null)
+            mirror.add(new Delivery(channel, msg, subscriptions));
+    }
+
+    /** Hand d to the dispatcher thread or, with a LockstepScheduler
+     *  installed, hold it for the scheduler's next barrier. **/
+    void deliver(Delivery d)
+    {
+        LockstepScheduler scheduler = LockstepScheduler.getDefault();
+        if (scheduler == null) {
+            // Anything held for a scheduler that has since gone
+            for (Delivery h; (h = held.poll()) != null; )
+                dispatcher.add(h);
+            dispatcher.add(d);
+            return;
+        }
+
+        held.add(d);
+        synchronized(this) {
+            if (lockstep != scheduler) {
+                scheduler.addBarrier(drain);
+                lockstep = scheduler;
+            }
+        }
+    }
+
+    /** Deliver every held message, including those its subscribers
+     *  publish meanwhile, in order. **/
+    void drain()
+    {
+        for (Delivery d; (d = held.poll()) != null; )
+            d.deliver();
+    }
+
+    public synchronized void subscribe(String regex, Class<?> type, Subscriber subscriber)
+    {
+        Subscription all[] = routes.subscriptions;
+        Subscription next[] = Arrays.copyOf(all, all.length + 1);
+        next[all.length] = new Subscription(regex, type, subscriber);
+        routes = new Routes(next);
+
+        // Take every message from LCM, rather than subscribing to each
+        // regex, so that a message is received once however many of
+        // the regexes match it
+        if (lcm != null && bridge == null) {
+            bridge = new Bridge();
+            lcm.subscribe(".*", bridge);
+        }
+    }
+
+    public synchronized void unsubscribe(String regex, Subscriber subscriber)
+    {
+        ArrayList<Subscription> next = new ArrayList<Subscription>();
+        for (Subscription s : routes.subscriptions) {
+            if (s.regex.equals(regex) && s.subscriber == subscriber)
+                s.active = false; // also cancels messages already queued for it
+            else
+                next.add(s);
+        }
+        routes = new Routes(next.toArray(new Subscription[next.size()]));
+    }
+
+    public void close()
+    {
+        synchronized(this) {
+            for (Subscription s : routes.subscriptions)
+                s.active = false;
+            routes = new Routes(new Subscription[0]);
+
+            if (bridge != null) {
+                lcm.unsubscribe(".*", bridge);
+                bridge = null;
+            }
+        }
+        held.clear();
+
+        dispatcher.finish();
+        if (mirror != null)
+            mirror.finish();
+    }
+
+    /** The number of messages published but not yet delivered. **/
+    public int getBacklog()
+    {
+        return dispatcher.queue.size() + held.size();
+    }
+
+    static class Subscription
+    {
+        final String regex;
+        final Pattern pattern;
+        final Class<?> type;
+        final Subscriber subscriber;
+        volatile boolean active = true;
+
+        Subscription(String regex, Class<?> type, Subscriber subscriber)
+        {
+            this.regex = regex;
+            this.pattern = Pattern.compile(regex);
+            this.type = type;
+            this.subscriber = subscriber;
+        }
+    }
+
+    /** The subscriptions, and which of them match each channel seen so
+     *  far. **/
+    static class Routes
+    {
+        final Subscription subscriptions[];
+        final ConcurrentHashMap<String, Subscription[]> byChannel = new ConcurrentHashMap<String, Subscription[]>();
+
+        Routes(Subscription subscriptions[])
+        {
+            this.subscriptions = subscriptions;
+        }
+
+        Subscription[] get(String channel)
+        {
+            Subscription matches[] = byChannel.get(channel);
+            if (matches == null) {
+                ArrayList<Subscription> list = new ArrayList<Subscription>();
+                for (Subscription s : subscriptions) {
+                    if (s.pattern.matcher(channel).matches())
+                        list.add(s);
+                }
+                matches = list.toArray(new Subscription[list.size()]);
+                byChannel.put(channel, matches);
+            }
+            return matches;
+        }
+    }
+
+    static class Delivery
+    {
+        final String channel;
+        final Object msg;
+        final Subscription subscriptions[];
+
+        Delivery(String channel, Object msg, Subscription subscriptions[])
+        {
+            this.channel = channel;
+            this.msg = msg;
+            this.subscriptions = subscriptions;
+        }
+
+        void deliver()
+        {
+            for (Subscription s : subscriptions) {
+                if (!s.active || !s.type.isInstance(msg))
+                    continue;
+                try {
+                    s.subscriber.messageReceived(channel, msg);
+                } catch (RuntimeException ex) {
+                    System.err.println("WRN: Error handling message on channel "+channel);
+                    ex.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /** A thread that handles the objects added to its queue, in order,
+     *  sleeping while there are none. **/
+    static abstract class Worker extends Thread
+    {
+        final ConcurrentLinkedQueue<Object> queue = new ConcurrentLinkedQueue<Object>();
+        volatile boolean waiting = false;
+        volatile boolean done = false;
+
+        Worker(String name)
+        {
+            super(name);
+            setDaemon(true);
+        }
+
+        abstract void handle(Object o);
+
+        void add(Object o)
+        {
+            if (done)
+                return;
+            queue.offer(o);
+            if (waiting)
+                LockSupport.unpark(this);
+        }
+
+        public void run()
+        {
+            while (!done) {
+                Object o = queue.poll();
+                if (o == null) {
+                    // Say we're about to sleep, then look once more, so
+                    // that anything added meanwhile also unparks us
+                    waiting = true;
+                    o = queue.poll();
+                    if (o == null) {
+                        LockSupport.park(this);
+                        waiting = false;
+                        continue;
+                    }
+                    waiting = false;
+                }
+                handle(o);
+            }
+        }
+
+        /** Drop whatever is still queued, and wait for the thread to
+         *  exit (unless called from it, by handle()). **/
+        void finish()
+        {
+            done = true;
+            queue.clear();
+            LockSupport.unpark(this);
+            if (Thread.currentThread() == this)
+                return;
+
+            try {
+                join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** Publish msg to LCM. If this transport's subscribers will receive
+     *  it back from LCM, remember the send so that it can be dropped
+     *  then. **/
+    void mirror(String channel, LCMEncodable msg, boolean echoes)
+    {
+        try {
+            LCMDataOutputStream outs = new LCMDataOutputStream();
+            msg.encode(outs);
+            byte data[] = outs.toByteArray();
+            if (echoes)
+                addEcho(fingerprint(channel, data, 0, data.length), System.nanoTime());
+            lcm.publish(channel, data, 0, data.length);
+        } catch (IOException ex) {
+            System.err.println("WRN: Could not mirror message on channel "+channel+": "+ex);
+        }
+    }
+
+    /** One of the mirror's sends. **/
+    static class Echo
+    {
+        final long fingerprint;
+        final long nanos;
+        boolean seen;
+
+        Echo(long fingerprint, long nanos)
+        {
+            this.fingerprint = fingerprint;
+            this.nanos = nanos;
+        }
+    }
+
+    synchronized void addEcho(long fingerprint, long nanos)
+    {
+        expireEchoes(nanos);
+
+        Echo e = new Echo(fingerprint, nanos);
+        echoes.add(e);
+        ArrayDeque<Echo> same = echoesByFingerprint.get(fingerprint);
+        if (same == null) {
+            same = new ArrayDeque<Echo>();
+            echoesByFingerprint.put(fingerprint, same);
+        }
+        same.add(e);
+    }
+
+    /** Whether a message received from LCM is the loopback of a send
+     *  of the mirror's that has not been seen yet. **/
+    synchronized boolean removeEcho(long fingerprint, long nanos)
+    {
+        expireEchoes(nanos);
+
+        ArrayDeque<Echo> same = echoesByFingerprint.get(fingerprint);
+        if (same == null)
+            return false;
+
+        same.poll().seen = true;
+        if (same.isEmpty())
+            echoesByFingerprint.remove(fingerprint);
+        return true;
+    }
+
+    /** Forget the sends older than ECHO_TIMEOUT. **/
+    void expireEchoes(long nanos)
+    {
+        while (!echoes.isEmpty() && nanos - echoes.peek().nanos > ECHO_TIMEOUT) {
+            Echo e = echoes.poll();
+            if (e.seen)
+                continue;
+
+            // Sends with the same fingerprint expire in the same order
+            ArrayDeque<Echo> same = echoesByFingerprint.get(e.fingerprint);
+            same.poll();
+            if (same.isEmpty())
+                echoesByFingerprint.remove(e.fingerprint);
+        }
+    }
+
+    // 64-bit FNV-1a of the channel and the encoded message
+    static long fingerprint(String channel, byte data[], int offset, int length)
+    {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < channel.length(); i++)
+            h = (h ^ channel.charAt(i)) * 0x100000001b3L;
+        for (int i = offset; i < offset + length; i++)
+            h = (h ^ (data[i] & 0xff)) * 0x100000001b3L;
+        return h;
+    }
+
+    /** Delivers messages from other processes. **/
+    class Bridge implements LCMSubscriber
+    {
+        public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins)
+        {
+            Subscription subscriptions[] = routes.get(channel);
+            if (subscriptions.length == 0)
+                return;
+
+            try {
+                byte data[] = new byte[ins.available()];
+                ins.readFully(data);
+                if (removeEcho(fingerprint(channel, data, 0, data.length), System.nanoTime()))
+                    return;
+
+                // Decode once for each type subscribed to
+                HashMap<Class<?>, Object> decoded = new HashMap<Class<?>, Object>();
+                for (Subscription s : subscriptions) {
+                    Object msg = decoded.get(s.type);
+                    if (msg == null) {
+                        msg = decode(s.type, new LCMDataInputStream(data));
+                        decoded.put(s.type, msg);
+                    }
+                    deliver(new Delivery(channel, msg, new Subscription[] { s }));
+                }
+            } catch (IOException ex) {
+                System.err.println("WRN: Error reading channel "+channel+": "+ex);
+            }
+        }
+    }
+}
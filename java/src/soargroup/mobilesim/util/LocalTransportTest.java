@@ -0,0 +1,157 @@
+package soargroup.mobilesim.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import april.util.*;
+
+// LCM Types
+import soargroup.mobilesim.lcmtypes.diff_drive_t;
+
+/** Checks when and where LocalTransport calls its subscribers: under a
+ *  LockstepScheduler, on the stepping thread, in the order published,
+ *  after the publishing task ends and before the next task starts
+ *  (including the messages subscribers publish meanwhile); and without
+ *  one, on its own thread, still in order. Exits with a non-zero status
+ *  if a check fails.
+ **/
+public class LocalTransportTest
+{
+    public static void main(String args[])
+    {
+        try {
+            testLockstep();
+            testWithoutScheduler();
+        } catch (Exception ex) {
+            Checks.fail(ex);
+        } finally {
+            Checks.exit();
+        }
+    }
+
+    /** A sensing task publishes a burst on A each step, and a subscriber
+     *  answers each on B; a later control task must see all of both. **/
+    static void testLockstep()
+    {
+        LockstepScheduler scheduler = new LockstepScheduler();
+        scheduler.install();
+        final LocalTransport transport = new LocalTransport(null);
+
+        final ArrayList<Long> received = new ArrayList<Long>();
+        final ArrayList<Long> answers = new ArrayList<Long>();
+        final HashSet<Thread> threads = new HashSet<Thread>();
+
+        transport.subscribe("A", diff_drive_t.class, new Transport.Subscriber() {
+            public void messageReceived(String channel, Object msg)
+            {
+                threads.add(Thread.currentThread());
+                received.add(((diff_drive_t) msg).utime);
+                transport.publish("B", drive(((diff_drive_t) msg).utime));
+            }
+        });
+        transport.subscribe("B", diff_drive_t.class, new Transport.Subscriber() {
+            public void messageReceived(String channel, Object msg)
+            {
+                threads.add(Thread.currentThread());
+                answers.add(((diff_drive_t) msg).utime);
+            }
+        });
+
+        final int burst = 5;
+        final long published[] = new long[1];
+        final int behind[] = new int[1];
+        final int early[] = new int[1];
+
+        PeriodicTasks sense = new PeriodicTasks();
+        sense.setStage(LockstepScheduler.STAGE_SENSE);
+        sense.addFixedRate(new PeriodicTasks.Task() {
+            public void run(double dt)
+            {
+                int before = received.size();
+                for (int i = 0; i < burst; i++)
+                    transport.publish("A", drive(published[0]++));
+
+                // held until the task is done
+                if (received.size() != before)
+                    early[0]++;
+            }
+        }, 0.1);
+        sense.setRunning(true);
+
+        PeriodicTasks control = new PeriodicTasks();
+        control.setStage(LockstepScheduler.STAGE_CONTROL);
+        control.addFixedRate(new PeriodicTasks.Task() {
+            public void run(double dt)
+            {
+                if (received.size() != published[0] || answers.size() != published[0])
+                    behind[0]++;
+            }
+        }, 0.1);
+        control.setRunning(true);
+
+        // at 0, 0.1, ... 0.9 s
+        scheduler.run(0.95);
+
+        Checks.check(published[0] == 10*burst, "lockstep: published "+published[0]+", expected "+10*burst);
+        Checks.check(early[0] == 0, "lockstep: delivered before the publishing task ended, "+early[0]+" times");
+        Checks.check(behind[0] == 0, "lockstep: the control task missed messages, "+behind[0]+" times");
+        Checks.check(inOrder(received, published[0]), "lockstep: A received in order: "+received);
+        Checks.check(inOrder(answers, published[0]), "lockstep: B received in order: "+answers);
+        Checks.check(threads.equals(Collections.singleton(Thread.currentThread())),
+                     "lockstep: delivered on the stepping thread only: "+threads);
+
+        LockstepScheduler.uninstall();
+    }
+
+    /** Without a scheduler, messages go to the dispatch thread, still in
+     *  order. **/
+    static void testWithoutScheduler() throws InterruptedException
+    {
+        LocalTransport transport = new LocalTransport(null);
+
+        final LinkedBlockingQueue<Long> received = new LinkedBlockingQueue<Long>();
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        transport.subscribe("A", diff_drive_t.class, new Transport.Subscriber() {
+            public void messageReceived(String channel, Object msg)
+            {
+                threads.add(Thread.currentThread());
+                received.add(((diff_drive_t) msg).utime);
+            }
+        });
+
+        int n = 1000;
+        for (int i = 0; i < n; i++)
+            transport.publish("A", drive(i));
+
+        ArrayList<Long> got = new ArrayList<Long>();
+        for (int i = 0; i < n; i++) {
+            Long seq = received.poll(5, TimeUnit.SECONDS);
+            if (seq == null)
+                break;
+            got.add(seq);
+        }
+
+        Checks.check(inOrder(got, n), "threaded: received "+got.size()+" of "+n+" in order");
+        Checks.check(threads.size() == 1 && !threads.contains(Thread.currentThread()),
+                     "threaded: delivered on one other thread: "+threads);
+    }
+
+    static diff_drive_t drive(long seq)
+    {
+        diff_drive_t dd = new diff_drive_t();
+        dd.utime = seq;
+        return dd;
+    }
+
+    /** Whether seqs is 0, 1, ... n-1. **/
+    static boolean inOrder(List<Long> seqs, long n)
+    {
+        if (seqs.size() != n)
+            return false;
+        for (int i = 0; i < n; i++) {
+            if (seqs.get(i) != i)
+                return false;
+        }
+        return true;
+    }
+}
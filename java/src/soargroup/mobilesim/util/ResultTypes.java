@@ -3,8 +3,11 @@ package soargroup.mobilesim.util;
 public abstract class ResultTypes {
 	/******** IsValid: Valid, NotValid *******/
 	public abstract static class IsValid {
+		// Valid carries nothing, so every caller can share one
+		private static final Valid TRUE = new Valid();
+
 		public static Valid True(){
-			return new Valid();
+			return TRUE;
 		}
 		public static NotValid False(String reason){
 			return new NotValid(reason);
@@ -28,8 +31,10 @@ public abstract class ResultTypes {
 
 	/******** Result: Ok, Err *******/
 	public static class Result {
+		private static final Ok OK = new Ok();
+
 		public static Ok Ok(){ 
-			return new Ok(); 
+			return OK; 
 		}
 		public static Err Err(String reason){ 
 			return new Err(reason); 
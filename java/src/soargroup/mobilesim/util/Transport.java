@@ -0,0 +1,218 @@
+package soargroup.mobilesim.util;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// LCM Types
+import lcm.lcm.*;
+import soargroup.mobilesim.lcmtypes.condition_test_t;
+import soargroup.mobilesim.lcmtypes.control_law_t;
+import soargroup.mobilesim.lcmtypes.diff_drive_t;
+import soargroup.mobilesim.lcmtypes.typed_value_t;
+
+/** How the simulator's components pass messages to each other: poses,
+ *  laser scans and maps to the control laws, drive commands to the
+ *  robot, statuses between the CommandInterpreter and the
+ *  CommandCoordinator, and so on. The channels and message types are
+ *  those of LCM.
+ *
+ *  There are two transports:
+ *
+ *  LCMTransport sends everything through LCM, as the simulator always
+ *  has: each message is encoded, sent, and decoded again by every
+ *  subscriber, even in the same process.
+ *
+ *  LocalTransport hands the message object itself to the subscribers in
+ *  this process, and can also mirror every message to LCM (and deliver
+ *  messages from LCM), so that external tools still see the traffic.
+ *
+ *  In either case subscribers are called on a transport thread, not the
+ *  publisher's (or, by LocalTransport under a LockstepScheduler, on the
+ *  stepping thread between tasks). A message may be shared by every
+ *  subscriber, so it must not be modified once published, by its
+ *  publisher or by a subscriber.
+ *
+ *  The transport is chosen by the mobilesim.transport property: "lcm",
+ *  "local" (with mirroring to LCM), or "local-only". The default is
+ *  "local".
+ **/
+public abstract class Transport
+{
+    /** Receives the messages on the channels it subscribes to. **/
+    public interface Subscriber
+    {
+        public void messageReceived(String channel, Object msg);
+    }
+
+    private static Transport singleton = null;
+
+    public static synchronized Transport getSingleton()
+    {
+        if (singleton == null)
+            singleton = create(System.getProperty("mobilesim.transport", "local"));
+        return singleton;
+    }
+
+    /** Use transport in place of the default. Must be called before
+     *  anything has used the default. **/
+    public static synchronized void setSingleton(Transport transport)
+    {
+        singleton = transport;
+    }
+
+    /** The transport of the given kind (see the class comment), on the
+     *  LCM singleton. **/
+    public static Transport create(String kind)
+    {
+        return create(kind, kind.equals("local-only") ? null : LCM.getSingleton());
+    }
+
+    /** The transport of the given kind, on lcm (unused by
+     *  "local-only"). **/
+    public static Transport create(String kind, LCM lcm)
+    {
+        if (kind.equals("lcm"))
+            return new LCMTransport(lcm);
+        if (kind.equals("local"))
+            return new LocalTransport(lcm);
+        if (kind.equals("local-only"))
+            return new LocalTransport(null);
+        throw new IllegalArgumentException("Unknown transport "+kind+" (expected lcm, local or local-only)");
+    }
+
+    /** Send msg to every subscriber of channel. **/
+    public abstract void publish(String channel, LCMEncodable msg);
+
+    /** Receive the messages of the given type on every channel that
+     *  matches regex (as with LCM, the whole name must match). Messages
+     *  of other types on those channels are dropped. **/
+    public abstract void subscribe(String regex, Class<?> type, Subscriber subscriber);
+
+    /** Undo every subscription of subscriber to regex. **/
+    public abstract void unsubscribe(String regex, Subscriber subscriber);
+
+    /** Undo every subscription, and stop the transport's threads.
+     *  Messages not yet delivered are dropped. The LCM, if any, is left
+     *  open. **/
+    public abstract void close();
+
+    /** Decode a message of the given LCM type. **/
+    public static Object decode(Class<?> type, DataInput ins) throws IOException
+    {
+        try {
+            return getDecoder(type).newInstance(ins);
+        } catch (InvocationTargetException ex) {
+            if (ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            throw new IOException(ex.getCause());
+        } catch (Exception ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /** Benchmark: the latency from a command to the drive output it
+     *  causes, over two hops, as in the simulator: a control_law_t on
+     *  SOAR_COMMAND_TX reaches a "control law", which answers with a
+     *  diff_drive_t on DIFF_DRIVE, which reaches the "robot".
+     *
+     *  Usage: Transport [kind ...] (lcm, local, local-only; default: all)
+     **/
+    public static void main(String args[]) throws Exception
+    {
+        String kinds[] = args.length > 0 ? args : new String[] { "lcm", "local", "local-only" };
+        int n = 20000;
+
+        System.out.printf("%-12s %12s %12s %12s %14s\n", "transport", "median (us)", "p99 (us)", "max (us)", "burst (msg/s)");
+        for (String kind : kinds) {
+            final Transport transport = create(kind);
+            final LinkedBlockingQueue<Long> arrivals = new LinkedBlockingQueue<Long>();
+
+            transport.subscribe("SOAR_COMMAND_TX", control_law_t.class, new Subscriber() {
+                public void messageReceived(String channel, Object msg)
+                {
+                    diff_drive_t dd = new diff_drive_t();
+                    dd.utime = ((control_law_t) msg).utime;
+                    dd.left = dd.right = 0.5;
+                    transport.publish("DIFF_DRIVE", dd);
+                }
+            });
+            transport.subscribe("DIFF_DRIVE", diff_drive_t.class, new Subscriber() {
+                public void messageReceived(String channel, Object msg)
+                {
+                    long sent = ((diff_drive_t) msg).utime;
+                    arrivals.add(System.nanoTime() - sent);
+                }
+            });
+
+            // One command at a time, each after the last one's drive output
+            long latencies[] = new long[n];
+            int received = 0;
+            for (int i = 0; i < n; i++) {
+                transport.publish("SOAR_COMMAND_TX", command(i));
+                Long latency = arrivals.poll(1, TimeUnit.SECONDS);
+                if (latency == null)
+                    break;
+                latencies[received++] = latency;
+            }
+            if (received < n) {
+                System.out.printf("%-12s (no drive output after %d commands)\n", kind, received);
+                continue;
+            }
+
+            // Then all at once
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++)
+                transport.publish("SOAR_COMMAND_TX", command(i));
+            for (int i = 0; i < n; i++)
+                arrivals.take();
+            double burst = n / ((System.nanoTime() - start) / 1.0e9);
+
+            // Skip the first half, as warm up
+            long sorted[] = Arrays.copyOfRange(latencies, n/2, n);
+            Arrays.sort(sorted);
+            System.out.printf("%-12s %12.1f %12.1f %12.1f %14.0f\n", kind,
+                              sorted[sorted.length/2] / 1000.0,
+                              sorted[(int) (sorted.length*0.99)] / 1000.0,
+                              sorted[sorted.length-1] / 1000.0, burst);
+            transport.close();
+        }
+        System.exit(0);
+    }
+
+    static control_law_t command(int id)
+    {
+        control_law_t cl = new control_law_t();
+        cl.id = id;
+        cl.name = "drive-forward";
+        cl.num_params = 0;
+        cl.param_names = new String[0];
+        cl.param_values = new typed_value_t[0];
+        cl.termination_condition = new condition_test_t();
+        cl.termination_condition.name = "NONE";
+        cl.termination_condition.param_names = new String[0];
+        cl.termination_condition.param_values = new typed_value_t[0];
+        cl.termination_condition.compared_value = new typed_value_t();
+        cl.termination_condition.compared_value.value = "";
+        cl.utime = System.nanoTime();
+        return cl;
+    }
+
+    private static ConcurrentHashMap<Class<?>, Constructor<?>> decoders =
+        new ConcurrentHashMap<Class<?>, Constructor<?>>();
+
+    private static Constructor<?> getDecoder(Class<?> type)
+    {
+        Constructor<?> decoder = decoders.get(type);
+        if (decoder == null) {
+            try {
+                decoder = type.getConstructor(DataInput.class);
+            } catch (NoSuchMethodException ex) {
+                throw new IllegalArgumentException(type.getName()+" is not an LCM type");
+            }
+            decoders.put(type, decoder);
+        }
+        return decoder;
+    }
+}
@@ -9,6 +9,8 @@ import april.jmat.*;
 import april.vis.VisCameraManager.CameraPosition;
 import april.util.*;
 
+import soargroup.mobilesim.commands.TypedValue;
+
 public class Util
 {
     public static String configPath = "$MOBILE_SIM_HOME/config/robot.config";
@@ -156,4 +158,20 @@ public class Util
         return config;
     }
 
+    /** Name of the parameter, added by CommandInterpreter, that tells a
+     *  control law or condition test which robot's channels to use.
+     **/
+    public static final String CHANNEL_PREFIX_PARAM = "channel-prefix";
+
+    /** The prefix to put in front of every channel name, e.g.
+     *  prefix+"POSE". Empty (the original, shared channels) unless the
+     *  parameters name a robot.
+     **/
+    public static String getChannelPrefix(Map<String, TypedValue> params)
+    {
+        if (params == null || !params.containsKey(CHANNEL_PREFIX_PARAM))
+            return "";
+        return params.get(CHANNEL_PREFIX_PARAM).toString();
+    }
+
 }
@@ -19,10 +19,11 @@ import april.util.*;
 
 import sml.Identifier;
 import soargroup.rosie.actuation.MobileActuationConnector;
+import soargroup.mobilesim.util.DetectedObjects;
 
 // LCM Types
 import lcm.lcm.*;
-import soargroup.mobilesim.lcmtypes.object_data_list_t;
+import soargroup.mobilesim.lcmtypes.object_data_delta_t;
 import soargroup.mobilesim.lcmtypes.robot_info_t;
 
 public class MobilePerceptionConnector extends AgentConnector implements LCMSubscriber{
@@ -33,9 +34,17 @@ public class MobilePerceptionConnector extends AgentConnector implements LCMSubs
     private Identifier objectsId = null;
 
 	private WorldObjectManager objectManager;
+	// Only used on the LCM thread
+	private DetectedObjects detectedObjects = new DetectedObjects();
 
     private Robot robot;
 
+    // The latest robot_info_t, applied at the next input phase
+    private volatile robot_info_t robotInfo = null;
+
+    // Reused for every input phase
+    private StringBuilder svsCommands = new StringBuilder();
+
     public MobilePerceptionConnector(SoarClient client, Properties props){
     	super(client);
 
@@ -51,14 +60,14 @@ public class MobilePerceptionConnector extends AgentConnector implements LCMSubs
     public void connect(){
     	super.connect();
         lcm.subscribe("ROBOT_INFO", this);
-        lcm.subscribe("DETECTED_OBJECTS", this);
+        lcm.subscribe("DETECTED_OBJECTS_DELTA", this);
     }
 
     @Override
     public void disconnect(){
     	super.disconnect();
         lcm.unsubscribe("ROBOT_INFO", this);
-        lcm.unsubscribe("DETECTED_OBJECTS", this);
+        lcm.unsubscribe("DETECTED_OBJECTS_DELTA", this);
     }
 
 	/***************************
@@ -68,17 +77,19 @@ public class MobilePerceptionConnector extends AgentConnector implements LCMSubs
 	 **************************/
 
 
+    // Messages are only stored here, for the next input phase, so the LCM thread never
+    //   waits for Soar
     @Override
-    public synchronized void messageReceived(LCM lcm, String channel, LCMDataInputStream ins){
+    public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins){
 		try {
 			if (channel.startsWith("ROBOT_INFO")){
-				robot_info_t robotInfo = new robot_info_t(ins);
-				robot.update(robotInfo);
-				WorldObject obj = objectManager.getObject(robotInfo.held_object);
-				robot.setHeldObject(obj == null ? null : obj.getHandle());
-			} else if(channel.startsWith("DETECTED_OBJECTS")){
-				object_data_list_t newObjs = new object_data_list_t(ins);
-				objectManager.update(newObjs);
+				robotInfo = new robot_info_t(ins);
+			} else if(channel.startsWith("DETECTED_OBJECTS_DELTA")){
+				// Only update the objects once the list is complete (after a keyframe)
+				object_data_delta_t delta = new object_data_delta_t(ins);
+				if(detectedObjects.apply(delta)){
+					objectManager.receive(detectedObjects.getChanged(), detectedObjects.getRemoved());
+				}
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -92,14 +103,20 @@ public class MobilePerceptionConnector extends AgentConnector implements LCMSubs
 	 **************************/
 
     protected synchronized void onInputPhase(Identifier inputLink){
-    	// Update the information about the robot
-    	updateRobot();
-
     	// Update information about objects
     	updateObjects();
+
+    	// Update the information about the robot (after the objects, which it may hold)
+    	updateRobot();
     }
 
     private void updateRobot(){
+    	robot_info_t info = robotInfo;
+    	if(info != null){
+    		robot.update(info);
+    		WorldObject obj = objectManager.getObject(info.held_object);
+    		robot.setHeldObject(obj == null ? null : obj.getHandle());
+    	}
     	robot.updateMovingState(soarClient.getConnector(MobileActuationConnector.class).getMovingState());
     	if(!robot.isAdded()){
     		robot.addToWM(soarClient.getAgent().GetInputLink());
@@ -109,7 +126,7 @@ public class MobilePerceptionConnector extends AgentConnector implements LCMSubs
     }
 
     private void updateObjects(){
-    	StringBuilder svsCommands = new StringBuilder();
+    	svsCommands.setLength(0);
 		if(objectManager.isAdded()){
 			objectManager.updateWM(svsCommands);
 		} else {
@@ -122,8 +139,8 @@ public class MobilePerceptionConnector extends AgentConnector implements LCMSubs
     }
 
 	@Override
-	protected void onInitSoar() {
-    	StringBuilder svsCommands = new StringBuilder();
+	protected synchronized void onInitSoar() {
+    	svsCommands.setLength(0);
 		objectManager.removeFromWM(svsCommands);
     	if(svsCommands.length() > 0){
     		soarClient.getAgent().SendSVSInput(svsCommands.toString());
@@ -87,7 +87,7 @@ public class ObjectProperty implements ISoarObject
     }
     
     public void removeFromWM(){
-		if(propId != null){ return; }
+		if(propId == null){ return; }
 
     	for(FloatWME wme : values.values()){
     		wme.removeFromWM();
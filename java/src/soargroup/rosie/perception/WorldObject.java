@@ -32,6 +32,10 @@ public class WorldObject implements ISVSObject {
 	private boolean updateScale = true;
 	private double[] scale = new double[3];
 
+	// The classifications the properties were last built from
+	private boolean updateProps = true;
+	private classification_t[] classifications = new classification_t[0];
+
 	public WorldObject(object_data_t objData){
 		this.id = objData.id;
 		this.handle = new StringWME("object-handle", id.toString());
@@ -57,25 +61,34 @@ public class WorldObject implements ISVSObject {
 		return pos;
 	}
 
-	public synchronized void update(object_data_t objData){
+	// Returns true if anything changed enough to be written to working memory or SVS
+	public synchronized boolean update(object_data_t objData){
+		boolean changed = false;
 		for(int d = 0; d < 3; d++){
 			// Only update pos if it has changed by a significant amount
 			if(Math.abs(pos[d] - objData.xyzrpy[d]) > 0.01){
 				pos[d] = objData.xyzrpy[d];
-				updatePos = true;
+				updatePos = changed = true;
 			}
 			// Only update rot if it has changed by a significant amount
 			if(Math.abs(rot[d] - objData.xyzrpy[3+d]) > 0.05){
 				rot[d] = objData.xyzrpy[3+d];
-				updateRot = true;
+				updateRot = changed = true;
 			}
 			// Only update scale if it was changed by a significant amount
 			if(Math.abs(scale[d] - objData.lenxyz[d]) > 0.01){
 				scale[d] = objData.lenxyz[d];
-				updateScale = true;
+				updateScale = changed = true;
 			}
 		}
 
+		// The properties are only rebuilt if the classifications are different
+		if(sameClassifications(classifications, objData.classifications)){
+			return changed;
+		}
+		classifications = objData.classifications;
+		updateProps = true;
+
 		// Group classifications by category and update the properties
 		for(ObjectProperty prop : properties.values()){
 			prop.clearValues();
@@ -88,6 +101,23 @@ public class WorldObject implements ISVSObject {
 			}
 			prop.addValue(cls.name, cls.confidence);
 		}
+		return true;
+	}
+
+	private static boolean sameClassifications(classification_t[] a, classification_t[] b){
+		if(a.length != b.length){
+			return false;
+		}
+		for(int i = 0; i < a.length; i++){
+			if(a[i] == b[i]){
+				continue;
+			}
+			if(!a[i].category.equals(b[i].category) || !a[i].name.equals(b[i].name) ||
+					a[i].confidence != b[i].confidence){
+				return false;
+			}
+		}
+		return true;
 	}
 
 	 /******************************************************************
@@ -107,6 +137,7 @@ public class WorldObject implements ISVSObject {
     	for (ObjectProperty prop : properties.values()){
 			prop.addToWM(rootID);
     	}
+		updatePos = updateRot = updateScale = updateProps = false;
 
     	svsCommands.append(SVSCommands.addBox(handle.getValue(), pos, rot, scale));
     	svsCommands.append(SVSCommands.addTag(handle.getValue(), "object-source", "perception"));
@@ -131,12 +162,15 @@ public class WorldObject implements ISVSObject {
 
 		handle.updateWM();
 
-		for(ObjectProperty prop : properties.values()){
-			if(!prop.isAdded()){
-				prop.addToWM(rootID);
-			} else {
-				prop.updateWM();
+		if(updateProps){
+			for(ObjectProperty prop : properties.values()){
+				if(!prop.isAdded()){
+					prop.addToWM(rootID);
+				} else {
+					prop.updateWM();
+				}
 			}
+			updateProps = false;
 		}
     }
 
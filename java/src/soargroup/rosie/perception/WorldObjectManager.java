@@ -4,6 +4,8 @@ import java.io.IOException;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
 
 import edu.umich.rosie.soar.SoarUtil;
 import edu.umich.rosie.soar.ISVSObject;
@@ -15,63 +17,95 @@ import lcm.lcm.*;
 import soargroup.mobilesim.lcmtypes.object_data_t;
 import soargroup.mobilesim.lcmtypes.object_data_list_t;
 
+// The detected objects, as they are in working memory and SVS
+//
+// Changes arrive on the LCM thread (receive) and are only stored there, the latest for
+//   each object, so the LCM thread never waits on the input phase. At the input phase
+//   (updateWM) they are applied all at once, and only the objects that actually changed
+//   are written to working memory and SVS
 public class WorldObjectManager implements ISVSObject {
 	private HashMap<Integer, WorldObject> objects;
 	private HashMap<Integer, WorldObject> objsToRemove;
-	private boolean gotUpdate = true;
+
+	// Objects that are new or have changed since the last updateWM
+	private LinkedHashSet<WorldObject> dirty;
+
+	// The latest data for each object changed since the last input phase (null if it was
+	//   removed or is no longer visible), written on the LCM thread
+	//   Two maps are swapped back and forth so neither has to be reallocated
+	private final Object pendingLock = new Object();
+	private HashMap<Integer, object_data_t> pending;
+	private HashMap<Integer, object_data_t> applying;
 
     private Identifier objectsId = null;
 
     public WorldObjectManager(){
     	objects = new HashMap<Integer, WorldObject>();
     	objsToRemove = new HashMap<Integer, WorldObject>();
+    	dirty = new LinkedHashSet<WorldObject>();
+    	pending = new HashMap<Integer, object_data_t>();
+    	applying = new HashMap<Integer, object_data_t>();
     }
 
+	// The object with the given id, as of the last input phase
 	public WorldObject getObject(Integer id){
 		return objects.get(id);
 	}
 
-	public void update(object_data_list_t newObjectData){
-    	// Set of objects that didn't appear in the new update
-    	// (remove ids as we see them)
-    	HashSet<Integer> oldIds = new HashSet<Integer>();
-    	oldIds.addAll(objects.keySet());
+	// Note objects that were added, changed, or removed (as from DetectedObjects)
+	//   Safe to call from any thread; the objects are updated at the next updateWM
+	public void receive(Collection<object_data_t> changed, Collection<Integer> removed){
+		synchronized(pendingLock){
+			for(object_data_t objData : changed){
+				// Objects that aren't visible are treated as removed
+				pending.put(objData.id, objData.visible ? objData : null);
+			}
+			for(Integer id : removed){
+				pending.put(id, null);
+			}
+		}
+	}
 
-		for(object_data_t objData : newObjectData.objects){
-			if(!objData.visible){
-				// Ignore objects that aren't visible
+	// Update the objects with everything received since the last call
+	private void applyPending(){
+		synchronized(pendingLock){
+			if(pending.isEmpty()){ return; }
+			HashMap<Integer, object_data_t> received = pending;
+			pending = applying;
+			applying = received;
+		}
+
+		for(Map.Entry<Integer, object_data_t> e : applying.entrySet()){
+			Integer objID = e.getKey();
+			object_data_t objData = e.getValue();
+
+			if(objData == null){
+				WorldObject oldObj = objects.remove(objID);
+				if(oldObj != null){
+					dirty.remove(oldObj);
+					objsToRemove.put(objID, oldObj);
+				}
 				continue;
 			}
-			Integer objID = objData.id;
-			if(oldIds.contains(objID)){
-				oldIds.remove(objID);
-			}
 
 			WorldObject obj = objects.get(objID);
 			if(obj == null){
-				if(objsToRemove.containsKey(objID)){
-    				// Object was going to be removed
-    				// Transfer it to the normal list and update
-					obj = objsToRemove.get(objID);
-					objsToRemove.remove(objID);
-				} else {
-    				// It's a new object, add it to the map
+				obj = objsToRemove.remove(objID);
+				if(obj == null){
+					// It's a new object
 					obj = new WorldObject(objData);
-					objects.put(objID, obj);
+				} else {
+					// Object was going to be removed, update it instead
+					obj.update(objData);
 				}
+				objects.put(objID, obj);
+				dirty.add(obj);
+			} else if(obj.update(objData)){
+				dirty.add(obj);
 			}
-
-    		obj.update(objData);
-    	}
-
-    	for(Integer oldID : oldIds){
-    		WorldObject oldObj = objects.get(oldID);
-    		objects.remove(oldID);
-    		objsToRemove.put(oldID, oldObj);
-    	}
-
-		gotUpdate = true;
-    }
+		}
+		applying.clear();
+	}
 
 	// Returns true if the object is currently in working memory
 	public boolean isAdded(){
@@ -81,30 +115,32 @@ public class WorldObjectManager implements ISVSObject {
 	// Add the object to working memory, on the given identifier
 	public void addToWM(Identifier parentId, StringBuilder svsCommands){
 		if (objectsId != null){ return; }
+		applyPending();
 
 		objectsId = parentId.CreateIdWME("objects");
 		for(WorldObject obj : objects.values()){
 			obj.addToWM(objectsId, svsCommands);
 		}
+		dirty.clear();
 	}
 	
 	// Update is called before input phase, changes can be made to WM
 	public void updateWM(StringBuilder svsCommands){
 		if (objectsId == null){ return; }
-		if (!gotUpdate){ return; }
+		applyPending();
 
-		for(WorldObject obj : objects.values()){
+		for(WorldObject obj : dirty){
 			if(obj.isAdded()){
 				obj.updateWM(svsCommands);
 			} else {
 				obj.addToWM(objectsId, svsCommands);
 			}
 		}
+		dirty.clear();
     	for(WorldObject obj : objsToRemove.values()){
     		obj.removeFromWM(svsCommands);
     	}
     	objsToRemove.clear();
-		gotUpdate = false;
 	}
 	
 	// Release all references to SML objects and remove from WM